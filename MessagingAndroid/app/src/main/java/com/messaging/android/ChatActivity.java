@@ -7,6 +7,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -18,14 +19,18 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.messaging.android.adapters.ChatAdapter;
 import com.messaging.android.services.ConnectionService;
 import com.messaging.android.services.MessageService;
+import com.messaging.android.services.UriSource;
 import com.messaging.android.services.FileTransferService;
+import com.messaging.android.utils.ImageLoader;
 import com.messaging.models.Message;
 import com.messaging.models.MessageType;
+import com.messaging.protocol.Rooms;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Chat Activity implementing Observer pattern through MessageListener
@@ -51,6 +56,9 @@ public class ChatActivity extends AppCompatActivity {
     private MessageService messageService;
     private FileTransferService fileTransferService;
     private Handler mainHandler;
+    // Looks up picked files off the main thread; the bytes are read by the transfer
+    private final ExecutorService pickExecutor = Executors.newSingleThreadExecutor();
+    private Upload activeUpload;
 
     private String currentUserId;
 
@@ -153,12 +161,29 @@ public class ChatActivity extends AppCompatActivity {
                 });
             }
         });
+
+        connectionService.setUploadListener(new ConnectionService.UploadListener() {
+            @Override
+            public void onProgress(String transferId, long sent, long total) {
+                mainHandler.post(() -> handleUploadProgress(transferId, sent, total));
+            }
+
+            @Override
+            public void onFailed(String transferId, IOException error) {
+                mainHandler.post(() -> handleUploadFailed(transferId, error));
+            }
+        });
     }
 
     private void handleSendMessage() {
         String receiverId = receiverIdInput.getText().toString().trim();
         String content = messageInput.getText().toString().trim();
 
+        if (messageService.handleRoomCommand(content)) {
+            messageInput.setText("");
+            return;
+        }
+
         if (receiverId.isEmpty()) {
             Toast.makeText(this, "Please enter receiver ID", Toast.LENGTH_SHORT).show();
             return;
@@ -195,30 +220,125 @@ public class ChatActivity extends AppCompatActivity {
 
             Uri fileUri = data.getData();
 
-            if (fileUri != null) {
-                try {
-                    InputStream inputStream = getContentResolver().openInputStream(fileUri);
-                    byte[] fileData = fileTransferService.readFile(inputStream);
-                    String fileName = getFileNameFromUri(fileUri);
-
-                    // Ensure file has proper extension
-                    fileName = ensureFileExtension(fileUri, fileName);
-
-                    if (requestCode == PICK_IMAGE_REQUEST) {
-                        messageService.sendImage(receiverId, fileData, fileName);
-                        addSystemMessage("📷 Image sent: " + fileName);
-                    } else if (requestCode == PICK_FILE_REQUEST) {
-                        messageService.sendFile(receiverId, fileData, fileName);
-                        addSystemMessage("📎 File sent: " + fileName + " (" +
-                                FileTransferService.formatFileSize(fileData.length) + ")");
+            if (fileUri != null && (requestCode == PICK_IMAGE_REQUEST || requestCode == PICK_FILE_REQUEST)) {
+                boolean isImage = requestCode == PICK_IMAGE_REQUEST;
+                // Provider queries can be slow; the file itself is streamed, never loaded
+                pickExecutor.execute(() -> {
+                    try {
+                        String fileName = getFileNameFromUri(fileUri);
+
+                        // Ensure file has proper extension
+                        fileName = ensureFileExtension(fileUri, fileName);
+
+                        UriSource source = UriSource.open(getContentResolver(), fileUri);
+                        String name = fileName;
+                        mainHandler.post(() -> startUpload(receiverId, isImage, name, source));
+
+                    } catch (IOException | RuntimeException e) {
+                        mainHandler.post(() -> Toast.makeText(this, "Failed to read file: " + e.getMessage(),
+                                Toast.LENGTH_SHORT).show());
+                        e.printStackTrace();
                     }
+                });
+            }
+        }
+    }
 
-                } catch (IOException e) {
-                    Toast.makeText(this, "Failed to read file: " + e.getMessage(),
-                            Toast.LENGTH_SHORT).show();
-                    e.printStackTrace();
-                }
+    // ========== Uploads ==========
+
+    private void startUpload(String receiverId, boolean isImage, String fileName, UriSource source) {
+        MessageType type = isImage ? MessageType.IMAGE : MessageType.FILE;
+        String transferId = messageService.sendAttachment(receiverId, type, fileName, source);
+        // Posted from the pick thread: the window may be gone, and show() would throw
+        // BadTokenException. The transfer carries on without a dialog
+        if (isFinishing() || isDestroyed()) {
+            return;
+        }
+        Upload upload = new Upload(transferId, isImage, fileName, source.length());
+
+        ProgressBar progressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setMax(100);
+        // Until the first acknowledgement: the file is being hashed
+        progressBar.setIndeterminate(true);
+        int padding = Math.round(24 * getResources().getDisplayMetrics().density);
+        progressBar.setPadding(padding, padding / 2, padding, 0);
+
+        upload.progressBar = progressBar;
+        upload.dialog = new AlertDialog.Builder(this)
+                .setTitle((isImage ? "📷 Sending " : "📎 Sending ") + fileName)
+                .setMessage(FileTransferService.formatFileSize(upload.length))
+                .setView(progressBar)
+                .setCancelable(false)
+                .setNegativeButton("Cancel", (dialog, which) -> {
+                    messageService.cancelTransfer(transferId);
+                    finishUpload(upload);
+                    addSystemMessage("✗ Cancelled sending " + fileName);
+                })
+                .show();
+
+        // One dialog at a time; an earlier upload carries on without it
+        if (activeUpload != null && activeUpload.dialog != null) {
+            activeUpload.dialog.dismiss();
+        }
+        activeUpload = upload;
+    }
+
+    private void handleUploadProgress(String transferId, long sent, long total) {
+        Upload upload = activeUpload;
+        if (upload == null || !upload.transferId.equals(transferId)) {
+            return;
+        }
+        if (sent >= total) {
+            finishUpload(upload);
+            if (upload.isImage) {
+                addSystemMessage("📷 Image sent: " + upload.fileName);
+            } else {
+                addSystemMessage("📎 File sent: " + upload.fileName + " (" +
+                        FileTransferService.formatFileSize(upload.length) + ")");
             }
+            return;
+        }
+        upload.progressBar.setIndeterminate(false);
+        upload.progressBar.setProgress((int) (sent * 100 / Math.max(1, total)));
+        upload.dialog.setMessage(FileTransferService.formatFileSize(sent) + " / " +
+                FileTransferService.formatFileSize(total));
+    }
+
+    private void handleUploadFailed(String transferId, IOException error) {
+        Upload upload = activeUpload;
+        if (upload == null || !upload.transferId.equals(transferId)) {
+            return;
+        }
+        finishUpload(upload);
+        Toast.makeText(this, "Failed to send " + upload.fileName + ": " + error.getMessage(),
+                Toast.LENGTH_LONG).show();
+    }
+
+    private void finishUpload(Upload upload) {
+        if (upload.dialog != null && upload.dialog.isShowing()) {
+            upload.dialog.dismiss();
+        }
+        if (activeUpload == upload) {
+            activeUpload = null;
+        }
+    }
+
+    /**
+     * The upload the progress dialog shows
+     */
+    private static final class Upload {
+        final String transferId;
+        final boolean isImage;
+        final String fileName;
+        final long length;
+        AlertDialog dialog;
+        ProgressBar progressBar;
+
+        Upload(String transferId, boolean isImage, String fileName, long length) {
+            this.transferId = transferId;
+            this.isImage = isImage;
+            this.fileName = fileName;
+            this.length = length;
         }
     }
 
@@ -317,18 +437,21 @@ public class ChatActivity extends AppCompatActivity {
                 break;
 
             case IMAGE:
-                handleImageMessage(message);
-                addMessageToList(message);
+                if (handleImageMessage(message)) {
+                    addMessageToList(message);
+                }
                 break;
 
             case FILE:
-                handleFileMessage(message);
-                addMessageToList(message);
+                if (handleFileMessage(message)) {
+                    addMessageToList(message);
+                }
                 break;
 
             case AUDIO:
-                handleAudioMessage(message);
-                addMessageToList(message);
+                if (handleAudioMessage(message)) {
+                    addMessageToList(message);
+                }
                 break;
 
             case AUDIO_CALL:
@@ -345,54 +468,85 @@ public class ChatActivity extends AppCompatActivity {
                 handleCallSignal(message);
                 break;
 
+            case ROOM:
+                Toast.makeText(this, Rooms.describe(message), Toast.LENGTH_SHORT).show();
+                break;
+
             default:
                 addMessageToList(message);
                 break;
         }
     }
 
-    private void handleImageMessage(Message message) {
+    /**
+     * Returns false while the attachment is still being downloaded
+     */
+    private boolean handleImageMessage(Message message) {
         try {
-            fileTransferService.saveFile(message.getData(), message.getFileName());
+            if (fileTransferService.storeAttachment(message) == null) {
+                Toast.makeText(this, "Downloading " + message.getFileName() + "...",
+                        Toast.LENGTH_SHORT).show();
+                return false;
+            }
 
             String sizeStr = FileTransferService.formatFileSize(message.getFileSize());
             Toast.makeText(this, "Image saved: " + message.getFileName() + " (" + sizeStr + ")",
                     Toast.LENGTH_SHORT).show();
+            return true;
 
         } catch (IOException e) {
             Toast.makeText(this, "Failed to save image: " + e.getMessage(),
                     Toast.LENGTH_SHORT).show();
             e.printStackTrace();
+            return false;
         }
     }
 
-    private void handleFileMessage(Message message) {
+    /**
+     * Returns false while the attachment is still being downloaded
+     */
+    private boolean handleFileMessage(Message message) {
         try {
-            fileTransferService.saveFile(message.getData(), message.getFileName());
+            if (fileTransferService.storeAttachment(message) == null) {
+                Toast.makeText(this, "Downloading " + message.getFileName() + "...",
+                        Toast.LENGTH_SHORT).show();
+                return false;
+            }
 
             String sizeStr = FileTransferService.formatFileSize(message.getFileSize());
             Toast.makeText(this, "File saved: " + message.getFileName() + " (" + sizeStr + ")",
                     Toast.LENGTH_LONG).show();
+            return true;
 
         } catch (IOException e) {
             Toast.makeText(this, "Failed to save file: " + e.getMessage(),
                     Toast.LENGTH_SHORT).show();
             e.printStackTrace();
+            return false;
         }
     }
 
-    private void handleAudioMessage(Message message) {
+    /**
+     * Returns false while the attachment is still being downloaded
+     */
+    private boolean handleAudioMessage(Message message) {
         try {
-            fileTransferService.saveFile(message.getData(), message.getFileName());
+            if (fileTransferService.storeAttachment(message) == null) {
+                Toast.makeText(this, "Downloading " + message.getFileName() + "...",
+                        Toast.LENGTH_SHORT).show();
+                return false;
+            }
 
             String sizeStr = FileTransferService.formatFileSize(message.getFileSize());
             Toast.makeText(this, "Audio saved: " + message.getFileName() + " (" + sizeStr + ")",
                     Toast.LENGTH_SHORT).show();
+            return true;
 
         } catch (IOException e) {
             Toast.makeText(this, "Failed to save audio: " + e.getMessage(),
                     Toast.LENGTH_SHORT).show();
             e.printStackTrace();
+            return false;
         }
     }
 
@@ -506,9 +660,35 @@ public class ChatActivity extends AppCompatActivity {
         addMessageToList(systemMessage);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        connectionService.setPaused(false);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Chat messages wait until the chat is visible again; file transfers keep going
+        connectionService.setPaused(true);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Decoded images can be decoded again; give them back before anything else
+        ImageLoader.getInstance().trimMemory(level >= TRIM_MEMORY_MODERATE);
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // Uploads keep going on their transfer threads without the dialog
+        connectionService.setUploadListener(null);
+        if (activeUpload != null) {
+            finishUpload(activeUpload);
+        }
+        pickExecutor.shutdown();
         // Don't disconnect here - let MainActivity handle it
     }
 }
\ No newline at end of file
@@ -10,6 +10,9 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.messaging.android.services.ConnectionService;
+import com.messaging.android.services.FileTransferService;
+
+import java.io.File;
 
 /**
  * Main Activity for connection setup
@@ -29,6 +32,8 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         connectionService = ConnectionService.getInstance();
+        // Incoming file chunks are written to the download directory from the first message on
+        connectionService.initFileTransfers(new File(new FileTransferService(this).getDownloadDirectory()));
 
         initializeViews();
         setupListeners();
@@ -2,8 +2,6 @@ package com.messaging.android.adapters;
 
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -19,6 +17,7 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.messaging.android.R;
 import com.messaging.android.services.FileTransferService;
+import com.messaging.android.utils.ImageLoader;
 import com.messaging.models.Message;
 import com.messaging.models.MessageType;
 
@@ -36,13 +35,25 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     private final List<Message> messages;
     private final String currentUserId;
+    // Size of the image in item_image_received, in dp
+    private static final int IMAGE_WIDTH_DP = 280;
+    private static final int IMAGE_HEIGHT_DP = 200;
+
     private final Context context;
     private final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm");
+    private final FileTransferService fileService;
+    private final ImageLoader imageLoader = ImageLoader.getInstance();
+    private final int imageWidth;
+    private final int imageHeight;
 
     public ChatAdapter(List<Message> messages, String currentUserId, Context context) {
         this.messages = messages;
         this.currentUserId = currentUserId;
         this.context = context;
+        this.fileService = new FileTransferService(context);
+        float density = context.getResources().getDisplayMetrics().density;
+        this.imageWidth = Math.round(IMAGE_WIDTH_DP * density);
+        this.imageHeight = Math.round(IMAGE_HEIGHT_DP * density);
     }
 
     @Override
@@ -103,6 +114,14 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         }
     }
 
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        super.onViewRecycled(holder);
+        if (holder instanceof ImageReceivedViewHolder) {
+            ((ImageReceivedViewHolder) holder).unbind();
+        }
+    }
+
     @Override
     public int getItemCount() {
         return messages.size();
@@ -182,26 +201,33 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             fileNameText.setText("📷 " + message.getFileName());
             timeText.setText(message.getTimestamp().format(timeFormatter));
 
-            // Load image from saved file
-            FileTransferService fileService = new FileTransferService(context);
-            File imageFile = fileService.getFile(message.getFileName());
+            // Load image from saved file, decoded in the background at display size
+            File imageFile = fileService.getFile(message);
 
             if (imageFile.exists()) {
-                Bitmap bitmap = BitmapFactory.decodeFile(imageFile.getAbsolutePath());
-                imageView.setImageBitmap(bitmap);
+                imageLoader.load(imageFile, imageView, imageWidth, imageHeight);
                 imageView.setVisibility(View.VISIBLE);
+                downloadButton.setText("Open Image");
+                downloadButton.setEnabled(true);
 
                 // Open image on click
                 imageView.setOnClickListener(v -> openImage(imageFile));
 
                 downloadButton.setOnClickListener(v -> openImage(imageFile));
             } else {
+                imageLoader.cancel(imageView);
+                imageView.setImageDrawable(null);
                 imageView.setVisibility(View.GONE);
                 downloadButton.setText("Image not found");
                 downloadButton.setEnabled(false);
             }
         }
 
+        void unbind() {
+            imageLoader.cancel(imageView);
+            imageView.setImageDrawable(null);
+        }
+
         private void openImage(File imageFile) {
             try {
                 Uri imageUri = FileProvider.getUriForFile(
@@ -259,11 +285,11 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             fileSizeText.setText(FileTransferService.formatFileSize(message.getFileSize()));
             timeText.setText(message.getTimestamp().format(timeFormatter));
 
-            FileTransferService fileService = new FileTransferService(context);
-            File file = fileService.getFile(message.getFileName());
+            File file = fileService.getFile(message);
 
             if (file.exists()) {
                 downloadButton.setText("Open File");
+                downloadButton.setEnabled(true);
                 downloadButton.setOnClickListener(v -> openFile(file));
             } else {
                 downloadButton.setText("File not found");
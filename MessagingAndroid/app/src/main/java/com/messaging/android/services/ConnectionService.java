@@ -3,31 +3,99 @@ package com.messaging.android.services;
 
 import com.messaging.models.Message;
 import com.messaging.models.MessageType;
+import com.messaging.protocol.Acks;
+import com.messaging.protocol.ChunkedFileTransfer;
+import com.messaging.protocol.Heartbeat;
+import com.messaging.protocol.InboundAcks;
+import com.messaging.protocol.MessageTransport;
+import com.messaging.protocol.PresenceUpdate;
+import com.messaging.protocol.PresenceView;
+import com.messaging.protocol.RetransmitWindow;
+import com.messaging.protocol.WireFormat;
+import com.messaging.protocol.WireHandshake;
 
 import java.io.*;
         import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Android version of ConnectionService with same Singleton pattern
  * Maintains consistency with desktop client architecture
+ *
+ * Outgoing messages go through a bounded queue drained by one writer thread, which
+ * keeps them in order and writes whatever piled up with a single flush. Disconnecting
+ * queues the goodbye behind them, and the writer closes the socket once it is out, so
+ * the caller never touches the network and nothing is written after the goodbye.
+ * While the app is in the background, or the retransmit window is full, the writer sets
+ * chat messages aside, in order, and keeps writing everything else, so file transfers
+ * carry on; coming back to the foreground or the acknowledgement that makes room wakes it
+ * to send them. Transfer acknowledgements for downloads are written straight from the
+ * receiver thread, which never waits for room in the queue.
+ *
+ * Heartbeats only go out when nothing else did for a whole interval, and the interval
+ * stretches while the app is in the background so the radio can stay asleep.
  */
 public class ConnectionService {
+    private static final long ACK_INTERVAL_MILLIS = 200;
+    private static final int SEND_QUEUE_CAPACITY = 1024;
+    private static final int MAX_BATCH = 64;
+    private static final long FOREGROUND_HEARTBEAT_MILLIS = 30_000;
+    private static final long BACKGROUND_HEARTBEAT_MILLIS = 240_000;
+    private static final long HEARTBEAT_CHECK_MILLIS = 5_000;
+    // Queued to wake the writer when messages it holds may go
+    private static final Outgoing WAKE_UP = new Outgoing(null);
+
     private static ConnectionService instance;
 
     private Socket socket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+    private MessageTransport transport;
     private String userId;
     private volatile boolean connected;
+    private volatile boolean disconnecting;
+    private volatile String resumeToken;
 
-    private final BlockingQueue<Message> messageQueue;
+    private volatile ChunkedFileTransfer fileTransfers;
+    private final PresenceView presence;
+    private final RetransmitWindow retransmits;
+    private final InboundAcks inboundAcks;
+    private final Heartbeat heartbeat;
+    // Acks, heartbeats and pings: socket writes that do not go through the writer queue
+    private final ScheduledExecutorService timer;
+    private final Object writeLock = new Object();
+    private final BlockingQueue<Outgoing> sendQueue = new ArrayBlockingQueue<>(SEND_QUEUE_CAPACITY);
+    // Writer thread only: chat messages waiting for the foreground or for room in the
+    // retransmit window
+    private final ArrayDeque<Outgoing> held = new ArrayDeque<>();
+    private volatile int heldCount;
+    private final SendStats sendStats = new SendStats();
+    private volatile boolean paused;
+    private volatile Thread receiverThread;
     private MessageListener messageListener;
+    private volatile UploadListener uploadListener;
 
     private ConnectionService() {
-        this.messageQueue = new LinkedBlockingQueue<>();
         this.connected = false;
+        this.presence = new PresenceView();
+        this.retransmits = new RetransmitWindow();
+        this.inboundAcks = new InboundAcks();
+        this.heartbeat = new Heartbeat(FOREGROUND_HEARTBEAT_MILLIS);
+        // Acknowledgements normally ride on outgoing messages; this covers a quiet sender
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        timer.scheduleWithFixedDelay(this::flushAck,
+                ACK_INTERVAL_MILLIS, ACK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        timer.scheduleWithFixedDelay(this::checkHeartbeat,
+                HEARTBEAT_CHECK_MILLIS, HEARTBEAT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+
+        Thread writer = new Thread(this::writeLoop, "message-writer");
+        writer.setDaemon(true);
+        writer.start();
     }
 
     public static synchronized ConnectionService getInstance() {
@@ -37,6 +105,24 @@ public class ConnectionService {
         return instance;
     }
 
+    /**
+     * Sets up chunked file transfers; needs a Context for the download directory,
+     * so activities call it before connecting
+     */
+    public synchronized void initFileTransfers(File downloadDir) {
+        if (fileTransfers != null) {
+            return;
+        }
+        ChunkedFileTransfer transfers = new ChunkedFileTransfer(downloadDir, this::enqueue,
+                Executors.newCachedThreadPool());
+        transfers.setListener(new TransferListener());
+        fileTransfers = transfers;
+    }
+
+    public ChunkedFileTransfer getFileTransfers() {
+        return fileTransfers;
+    }
+
     /**
      * Connects to server in a background thread to avoid NetworkOnMainThreadException
      */
@@ -52,26 +138,38 @@ public class ConnectionService {
 
     private boolean connect(String serverAddress, int port, String userId) {
         try {
+            // Resuming the previous session: same user, and the server already took our codec
+            boolean resuming = resumeToken != null && userId.equals(this.userId);
+            if (!resuming) {
+                resumeToken = null;
+                // The server sends a fresh snapshot once the connection is registered
+                presence.clear();
+            }
             this.userId = userId;
+            disconnecting = false;
             socket = new Socket(serverAddress, port);
+            socket.setTcpNoDelay(true);
 
-            output = new ObjectOutputStream(socket.getOutputStream());
-            output.flush();
-            input = new ObjectInputStream(socket.getInputStream());
+            // Binary codec is negotiated with the server during the handshake; a resume
+            // sends its first messages along with the hello instead of waiting for the reply
+            transport = resuming
+                    ? WireHandshake.connectPipelined(socket.getInputStream(), socket.getOutputStream(),
+                            WireFormat.BINARY)
+                    : WireHandshake.connect(socket.getInputStream(), socket.getOutputStream(),
+                            WireFormat.BINARY);
 
             connected = true;
-
-            // Send initial connection message
-            Message initMessage = new Message.Builder()
-                    .senderId(userId)
-                    .type(MessageType.TEXT)
-                    .content("CONNECT")
-                    .build();
-            sendMessage(initMessage);
+            heartbeat.reset();
+            sendHello();
 
             // Start message receiver thread
             startMessageReceiver();
 
+            // Continue any file transfer interrupted by the previous connection
+            if (fileTransfers != null) {
+                fileTransfers.resumeAll();
+            }
+
             return true;
 
         } catch (IOException e) {
@@ -81,21 +179,37 @@ public class ConnectionService {
     }
 
     private void startMessageReceiver() {
-        Thread receiverThread = new Thread(() -> {
+        Thread receiver = new Thread(() -> {
             while (connected) {
                 try {
-                    Message message = (Message) input.readObject();
+                    Message message = transport.readMessage();
+                    heartbeat.onReceived();
+                    if (!inboundAcks.accept(message)) {
+                        continue;
+                    }
+                    if (message.getType() == MessageType.ACK) {
+                        handleAck(message);
+                        continue;
+                    }
+
+                    // Transfer chunks go straight to disk, the UI only hears about finished files
+                    ChunkedFileTransfer transfers = fileTransfers;
+                    if (transfers != null && transfers.handleMessage(message)) {
+                        continue;
+                    }
+                    if (message.getType() == MessageType.PRESENCE) {
+                        handlePresence(message);
+                        continue;
+                    }
 
                     if (messageListener != null) {
                         messageListener.onMessageReceived(message);
                     }
 
-                    messageQueue.offer(message);
-
                 } catch (EOFException e) {
                     connected = false;
                     break;
-                } catch (IOException | ClassNotFoundException e) {
+                } catch (IOException e) {
                     if (connected) {
                         e.printStackTrace();
                     }
@@ -107,46 +221,332 @@ public class ConnectionService {
                 messageListener.onDisconnected();
             }
         });
-        receiverThread.start();
+        receiverThread = receiver;
+        receiver.start();
     }
 
-    public synchronized void sendMessage(Message message) {
-        if (!connected) {
+    /**
+     * Applies a presence update, asking for a new snapshot if a delta was missed
+     */
+    private void handlePresence(Message message) {
+        try {
+            if (!presence.apply(PresenceUpdate.fromMessage(message))) {
+                sendMessage(PresenceUpdate.snapshotRequest(userId));
+            }
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Queues a message for the writer thread without blocking the caller
+     * Throws IllegalStateException when disconnected or when the queue is full
+     */
+    public void sendMessage(Message message) {
+        if (!connected || disconnecting) {
             throw new IllegalStateException("Not connected to server");
         }
+        if (heldCount >= SEND_QUEUE_CAPACITY) {
+            throw new IllegalStateException("Server is behind, " + heldCount + " messages waiting");
+        }
+        if (!sendQueue.offer(new Outgoing(message, true))) {
+            throw new IllegalStateException("Send queue full, " + SEND_QUEUE_CAPACITY + " messages waiting");
+        }
+    }
 
-        new Thread(() -> {
+    /**
+     * Like sendMessage but waits for room in the queue, so file transfers slow down to
+     * the pace of the network instead of failing; what the receiver thread sends for a
+     * download is written directly instead, so reading never waits on the queue
+     */
+    private void enqueue(Message message) throws IOException {
+        if (!connected || disconnecting) {
+            throw new IOException("Not connected to server");
+        }
+        if (Thread.currentThread() == receiverThread && !needsStamp(message)) {
+            writeMessage(message);
+            return;
+        }
+        try {
+            sendQueue.put(new Outgoing(message));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing " + message.getType());
+        }
+    }
+
+    private void writeLoop() {
+        List<Outgoing> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(sendQueue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Everything that queued up meanwhile leaves with the same flush
+            sendQueue.drainTo(batch, MAX_BATCH - 1);
+            writeBatch(batch);
+            for (Outgoing outgoing : batch) {
+                if (outgoing.closes != null) {
+                    close(outgoing.closes);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Numbers tracked messages and writes the whole batch as one buffer, so sequence
+     * numbers go out in order and a burst costs a single flush; if the connection is
+     * gone, tracked messages still enter the retransmit window for the next connect
+     * Held messages go first, as far as they may; chat and tracked messages in the batch
+     * join them while any are left, everything else is written at once
+     */
+    private void writeBatch(List<Outgoing> batch) {
+        synchronized (writeLock) {
+            MessageTransport current = transport;
+            boolean online = connected && current != null;
+            List<Outgoing> written = new ArrayList<>(held.size() + batch.size());
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
             try {
-                output.writeObject(message);
-                output.flush();
+                while (!held.isEmpty() && mayWrite(held.peekFirst())) {
+                    Outgoing outgoing = held.pollFirst();
+                    write(frames, current, online, outgoing.message);
+                    written.add(outgoing);
+                }
+                for (Outgoing outgoing : batch) {
+                    Message message = outgoing.message;
+                    if (message == null) {
+                        // Only woken up
+                        continue;
+                    }
+                    boolean waits = outgoing.chat || needsStamp(message);
+                    if (waits && (!held.isEmpty() || !mayWrite(outgoing))) {
+                        held.addLast(outgoing);
+                        continue;
+                    }
+                    write(frames, current, online, message);
+                    written.add(outgoing);
+                }
+                if (online && !written.isEmpty()) {
+                    current.writeFrame(frames.toByteArray());
+                    heartbeat.onSent();
+                    sendStats.record(written, System.nanoTime());
+                }
             } catch (IOException e) {
                 e.printStackTrace();
                 connected = false;
+            } finally {
+                heldCount = held.size();
             }
-        }).start();
+        }
     }
 
-    public void disconnect() {
-        if (connected) {
+    /**
+     * Chat waits while the app is in the background, unless it is logging out, and tracked
+     * messages while the retransmit window is full
+     */
+    private boolean mayWrite(Outgoing outgoing) {
+        if (outgoing.chat && paused && !disconnecting) {
+            return false;
+        }
+        return !needsStamp(outgoing.message) || retransmits.hasRoom();
+    }
+
+    private static boolean needsStamp(Message message) {
+        return Acks.isTracked(message.getType()) && Acks.seqOf(message) < 0;
+    }
+
+    /**
+     * Adds the message's frame to the batch, numbering it first if needed
+     */
+    private void write(ByteArrayOutputStream frames, MessageTransport current, boolean online,
+                       Message message) throws IOException {
+        if (needsStamp(message)) {
+            message = retransmits.stamp(message);
+        }
+        if (online) {
+            frames.write(current.getFormat().encodeFrame(Acks.withAck(message, inboundAcks.piggyback())));
+        }
+    }
+
+    /**
+     * Writes one message straight away, for the hello, retransmits and pings, none of
+     * which needs numbering
+     */
+    private void writeMessage(Message message) throws IOException {
+        synchronized (writeLock) {
+            transport.writeMessage(Acks.withAck(message, inboundAcks.piggyback()));
+            heartbeat.onSent();
+        }
+    }
+
+    /**
+     * Holds chat messages while the app is in the background; they wait in order and
+     * leave together once it is back in the foreground. File transfers are not held
+     * Called on the main thread, so the ping announcing the new interval goes out on the timer
+     */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) {
+            sendQueue.offer(WAKE_UP);
+        }
+        heartbeat.setIntervalMillis(paused ? BACKGROUND_HEARTBEAT_MILLIS : FOREGROUND_HEARTBEAT_MILLIS);
+        // Tell the server now, or it would expect the old interval
+        timer.execute(this::sendPing);
+    }
+
+    /**
+     * Initial connection message, opting in to acknowledgements and naming the session to
+     * resume, then everything the server had not acknowledged when the previous
+     * connection ended; the server drops what it already routed
+     */
+    private void sendHello() throws IOException {
+        synchronized (writeLock) {
+            long framesRead = inboundAcks.reset();
+            transport.writeMessage(Heartbeat.announce(
+                    Acks.hello(userId, retransmits.getSession(), resumeToken, framesRead),
+                    heartbeat.getIntervalMillis()));
+            for (Message message : retransmits.pending()) {
+                writeMessage(message);
+            }
+        }
+    }
+
+    /**
+     * Drops acknowledged messages from the retransmit window and wakes the writer if it
+     * holds messages for the room that made; the welcome ACK that opens each connection
+     * also carries the token for resuming it
+     */
+    private void handleAck(Message message) {
+        retransmits.onAck(Acks.ackOf(message));
+        String token = message.getHeader(Acks.HEADER_RESUME);
+        if (token != null) {
+            resumeToken = token;
+        }
+        if (heldCount > 0) {
+            // A full queue wakes the writer anyway
+            sendQueue.offer(WAKE_UP);
+        }
+    }
+
+    /**
+     * Sends a standalone ACK if frames arrived since the last acknowledgement went out
+     */
+    private void flushAck() {
+        if (!connected) {
+            return;
+        }
+        synchronized (writeLock) {
+            // Nothing follows the goodbye
+            if (!connected) {
+                return;
+            }
+            long frames = inboundAcks.due();
+            if (frames < 0) {
+                return;
+            }
             try {
-                Message disconnectMsg = new Message.Builder()
-                        .senderId(userId)
-                        .type(MessageType.DISCONNECT)
-                        .build();
-                sendMessage(disconnectMsg);
-            } catch (Exception e) {
-                // Ignore
+                transport.writeMessage(Acks.ack(userId, ChunkedFileTransfer.SERVER_ID, frames));
+                heartbeat.onSent();
+            } catch (IOException e) {
+                // The receiver thread notices the broken connection
+                connected = false;
             }
+        }
+    }
 
+    /**
+     * Pings a server that heard nothing from us for an interval, and closes a connection
+     * on which nothing arrived for several so the receiver reports the disconnect
+     */
+    private void checkHeartbeat() {
+        if (!connected) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (heartbeat.isExpired(now)) {
             connected = false;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (heartbeat.isPingDue(now)) {
+            sendPing();
+        }
+    }
+
+    /**
+     * Written directly, so pings never wait behind queued messages
+     */
+    private void sendPing() {
+        if (!connected) {
+            return;
+        }
+        try {
+            writeMessage(Heartbeat.ping(userId, ChunkedFileTransfer.SERVER_ID, heartbeat.getIntervalMillis()));
+        } catch (IOException e) {
+            // The receiver thread notices the broken connection
+            connected = false;
+        }
+    }
 
+    /**
+     * Safe on the main thread: the writer flushes what is still queued, paused or not,
+     * then the goodbye, and closes the connection after writing it
+     */
+    public void disconnect() {
+        if (!connected || disconnecting) {
+            return;
+        }
+        disconnecting = true;
+        // Logging out ends the session; only a dropped connection is resumed
+        resumeToken = null;
+        Outgoing goodbye = new Outgoing(new Message.Builder()
+                .senderId(userId)
+                .type(MessageType.DISCONNECT)
+                .build(), socket);
+        if (!sendQueue.offer(goodbye)) {
+            // Queue full: wait for room off the caller's thread
+            Thread queuer = new Thread(() -> {
+                try {
+                    sendQueue.put(goodbye);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "disconnect");
+            queuer.setDaemon(true);
+            queuer.start();
+        }
+    }
+
+    /**
+     * Writer thread, once the goodbye is written: no later frame can follow it
+     */
+    private void close(Socket closing) {
+        synchronized (writeLock) {
+            if (closing != socket) {
+                // Already reconnected; only the old socket goes
+                closeQuietly(closing);
+                return;
+            }
+            connected = false;
+            disconnecting = false;
             try {
-                if (input != null) input.close();
-                if (output != null) output.close();
-                if (socket != null) socket.close();
+                if (transport != null) transport.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            closeQuietly(closing);
+        }
+    }
+
+    private static void closeQuietly(Socket closing) {
+        try {
+            if (closing != null) closing.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -154,6 +554,10 @@ public class ConnectionService {
         this.messageListener = listener;
     }
 
+    public void setUploadListener(UploadListener listener) {
+        this.uploadListener = listener;
+    }
+
     public boolean isConnected() {
         return connected;
     }
@@ -162,11 +566,135 @@ public class ConnectionService {
         return userId;
     }
 
+    /**
+     * Queue-to-socket latency of sent messages
+     */
+    public SendStats getSendStats() {
+        return sendStats;
+    }
+
+    /**
+     * Users currently online, kept up to date by the server
+     */
+    public PresenceView getPresence() {
+        return presence;
+    }
+
+    /**
+     * Hands completed incoming files to the message listener like any other message
+     */
+    private class TransferListener implements ChunkedFileTransfer.Listener {
+        @Override
+        public void onProgress(String transferId, long transferred, long total, boolean incoming) {
+            UploadListener listener = uploadListener;
+            if (!incoming && listener != null) {
+                listener.onProgress(transferId, transferred, total);
+            }
+        }
+
+        @Override
+        public void onReceived(Message summary, File file) {
+            if (messageListener != null) {
+                messageListener.onMessageReceived(summary);
+            }
+        }
+
+        @Override
+        public void onFailed(String transferId, IOException error) {
+            error.printStackTrace();
+            UploadListener listener = uploadListener;
+            if (listener != null) {
+                listener.onFailed(transferId, error);
+            }
+        }
+    }
+
+    /**
+     * A queued message and when it was queued; chat is what the user sent, held in the
+     * background, and the goodbye also names the socket the writer closes once it is written
+     */
+    private static final class Outgoing {
+        final Message message;
+        final boolean chat;
+        final long queuedAt;
+        final Socket closes;
+
+        Outgoing(Message message) {
+            this(message, false, null);
+        }
+
+        Outgoing(Message message, boolean chat) {
+            this(message, chat, null);
+        }
+
+        Outgoing(Message message, Socket closes) {
+            this(message, false, closes);
+        }
+
+        private Outgoing(Message message, boolean chat, Socket closes) {
+            this.message = message;
+            this.chat = chat;
+            this.queuedAt = System.nanoTime();
+            this.closes = closes;
+        }
+    }
+
+    /**
+     * Counters for the writer thread: how long messages wait between sendMessage and
+     * the flush that puts them on the socket, and how many share each flush
+     */
+    public static final class SendStats {
+        private long messages;
+        private long batches;
+        private long totalNanos;
+        private long maxNanos;
+
+        synchronized void record(List<Outgoing> batch, long flushedAt) {
+            batches++;
+            for (Outgoing outgoing : batch) {
+                long waited = flushedAt - outgoing.queuedAt;
+                messages++;
+                totalNanos += waited;
+                maxNanos = Math.max(maxNanos, waited);
+            }
+        }
+
+        public synchronized long getMessages() {
+            return messages;
+        }
+
+        public synchronized long getBatches() {
+            return batches;
+        }
+
+        public synchronized double getAverageLatencyMillis() {
+            return messages == 0 ? 0 : totalNanos / (messages * 1_000_000.0);
+        }
+
+        public synchronized double getMaxLatencyMillis() {
+            return maxNanos / 1_000_000.0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%d messages in %d flushes, latency avg %.2f ms, max %.2f ms",
+                    messages, batches, getAverageLatencyMillis(), getMaxLatencyMillis());
+        }
+    }
+
     public interface MessageListener {
         void onMessageReceived(Message message);
         void onDisconnected();
     }
 
+    /**
+     * Progress of outgoing transfers, called on transfer threads
+     */
+    public interface UploadListener {
+        void onProgress(String transferId, long sent, long total);
+        void onFailed(String transferId, IOException error);
+    }
+
     public interface ConnectionCallback {
         void onConnectionResult(boolean success);
     }
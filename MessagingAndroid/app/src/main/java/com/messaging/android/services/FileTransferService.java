@@ -4,16 +4,22 @@ import android.content.Context;
 import android.os.Environment;
 import android.widget.Toast;
 
+import com.messaging.models.Message;
+import com.messaging.protocol.BlobCache;
+import com.messaging.protocol.ChunkedFileTransfer;
+
 import java.io.*;
 
 /**
  * Service for file operations on Android
  * Handles reading and saving files for message attachments
+ * Downloads are kept by content hash, so an attachment received twice is stored once
  */
 public class FileTransferService {
 
     private final Context context;
     private final String downloadDir;
+    private final BlobCache cache;
 
     public FileTransferService(Context context) {
         this.context = context;
@@ -32,6 +38,7 @@ public class FileTransferService {
         if (!dir.exists()) {
             dir.mkdirs();
         }
+        this.cache = new BlobCache(dir);
     }
 
     /**
@@ -78,15 +85,30 @@ public class FileTransferService {
     }
 
     /**
-     * Save byte array to file
+     * Save byte array to the download cache
      */
     public File saveFile(byte[] data, String fileName) throws IOException {
-        File file = new File(downloadDir + fileName);
-        FileOutputStream fos = new FileOutputStream(file);
-        fos.write(data);
-        fos.close();
+        return cache.storeBytes(data, fileName);
+    }
 
-        return file;
+    /**
+     * Saves an incoming attachment; streamed transfers are already on disk
+     * For a reference to content not cached yet the blob is fetched from the server and
+     * null is returned, the message arriving again with its local path once downloaded
+     */
+    public File storeAttachment(Message message) throws IOException {
+        String localPath = message.getHeader(ChunkedFileTransfer.HEADER_LOCAL_PATH);
+        if (localPath != null) {
+            return new File(localPath);
+        }
+        if (ChunkedFileTransfer.isReference(message)) {
+            ChunkedFileTransfer transfers = ConnectionService.getInstance().getFileTransfers();
+            if (transfers == null) {
+                throw new IOException("File transfers not initialized");
+            }
+            return transfers.fetch(message);
+        }
+        return saveFile(message.getData(), message.getFileName());
     }
 
     /**
@@ -142,6 +164,19 @@ public class FileTransferService {
         return new File(downloadDir + fileName);
     }
 
+    /**
+     * Get the file holding a received attachment: where it was downloaded to, else the
+     * cached copy of its content, else by name
+     */
+    public File getFile(Message message) {
+        String localPath = message.getHeader(ChunkedFileTransfer.HEADER_LOCAL_PATH);
+        if (localPath != null) {
+            return new File(localPath);
+        }
+        File cached = cache.lookup(message.getHeader(ChunkedFileTransfer.HEADER_SHA256));
+        return cached != null ? cached : getFile(message.getFileName());
+    }
+
     /**
      * Format file size for display
      */
@@ -0,0 +1,94 @@
+package com.messaging.android.services;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+
+import com.messaging.protocol.ChunkedFileTransfer;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Outgoing attachment read straight from a ContentResolver Uri
+ * The transfer pulls one chunk at a time from the provider's stream, so sending a file
+ * never holds more than a few chunks of it in memory. Reopening at an offset after a
+ * resume skips ahead in a new stream, as providers need not support seeking.
+ */
+public class UriSource implements ChunkedFileTransfer.Source {
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final long length;
+
+    private UriSource(ContentResolver resolver, Uri uri, long length) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.length = length;
+    }
+
+    /**
+     * Looks up the size the provider reports; fails for content of unknown length,
+     * which cannot be offered
+     */
+    public static UriSource open(ContentResolver resolver, Uri uri) throws IOException {
+        long length = querySize(resolver, uri);
+        if (length < 0) {
+            try (AssetFileDescriptor descriptor = resolver.openAssetFileDescriptor(uri, "r")) {
+                if (descriptor != null) {
+                    length = descriptor.getLength();
+                }
+            }
+        }
+        if (length < 0) {
+            throw new IOException("Size of " + uri + " is unknown");
+        }
+        return new UriSource(resolver, uri, length);
+    }
+
+    private static long querySize(ContentResolver resolver, Uri uri) {
+        try (Cursor cursor = resolver.query(uri, new String[]{OpenableColumns.SIZE}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (sizeIndex != -1 && !cursor.isNull(sizeIndex)) {
+                    return cursor.getLong(sizeIndex);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Providers may not answer queries; the descriptor is tried next
+        }
+        return -1;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public InputStream open(long offset) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("Cannot open " + uri);
+        }
+        long remaining = offset;
+        try {
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new IOException("Content of " + uri + " ended before offset " + offset);
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+}
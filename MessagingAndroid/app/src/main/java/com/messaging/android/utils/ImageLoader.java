@@ -0,0 +1,167 @@
+package com.messaging.android.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ImageLoader implements the Singleton pattern
+ * Decodes chat images off the main thread, subsampled to the size they are shown at,
+ * and keeps the results in a memory-bounded LruCache keyed by file and size.
+ *
+ * A load belongs to the ImageView it was started for. Binding the view again, or
+ * cancel(), drops the pending load, so a recycled holder never shows a stale picture.
+ * Main thread only, apart from the decoding itself.
+ */
+public class ImageLoader {
+    private static final int DECODE_THREADS = 2;
+
+    private static ImageLoader instance;
+
+    private final LruCache<String, Bitmap> cache;
+    private final ExecutorService decoder;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<ImageView, Request> requests = new WeakHashMap<>();
+
+    private ImageLoader() {
+        // An eighth of the heap, measured in kilobytes
+        int cacheKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        this.cache = new LruCache<String, Bitmap>(cacheKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount() / 1024;
+            }
+        };
+        this.decoder = Executors.newFixedThreadPool(DECODE_THREADS, r -> {
+            Thread thread = new Thread(r, "image-decoder");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Singleton pattern: Thread-safe lazy initialization
+     */
+    public static synchronized ImageLoader getInstance() {
+        if (instance == null) {
+            instance = new ImageLoader();
+        }
+        return instance;
+    }
+
+    /**
+     * Shows the image in the view, decoded to about width x height pixels; a cached
+     * bitmap is set right away, anything else once it is decoded
+     */
+    public void load(File file, ImageView view, int width, int height) {
+        String key = file.getAbsolutePath() + "@" + width + "x" + height;
+        Request previous = requests.get(view);
+        if (previous != null && previous.key.equals(key)) {
+            return;
+        }
+        cancel(view);
+
+        Bitmap cached = cache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageDrawable(null);
+        Request request = new Request(key);
+        requests.put(view, request);
+        request.future = decoder.submit(() -> {
+            Bitmap bitmap = decode(file, width, height);
+            mainHandler.post(() -> deliver(view, request, bitmap));
+        });
+    }
+
+    /**
+     * Drops the view's pending load, e.g. when its holder is recycled
+     */
+    public void cancel(ImageView view) {
+        Request request = requests.remove(view);
+        if (request != null && request.future != null) {
+            request.future.cancel(false);
+        }
+    }
+
+    /**
+     * Frees cached bitmaps when the system is short of memory
+     */
+    public void trimMemory(boolean everything) {
+        if (everything) {
+            cache.evictAll();
+        } else {
+            cache.trimToSize(cache.maxSize() / 2);
+        }
+    }
+
+    private void deliver(ImageView view, Request request, Bitmap bitmap) {
+        if (bitmap != null) {
+            cache.put(request.key, bitmap);
+        }
+        // The view may have been bound to another image meanwhile
+        if (requests.get(view) != request) {
+            return;
+        }
+        requests.remove(view);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+        }
+    }
+
+    /**
+     * Reads the bounds first and decodes with the largest power-of-two sample size that
+     * keeps both sides at least the requested size
+     */
+    private static Bitmap decode(File file, int width, int height) {
+        String path = file.getAbsolutePath();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, width, height);
+        options.inJustDecodeBounds = false;
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (OutOfMemoryError e) {
+            System.err.println("Not enough memory to decode " + file.getName());
+            return null;
+        }
+    }
+
+    static int sampleSize(int imageWidth, int imageHeight, int width, int height) {
+        int sample = 1;
+        if (width <= 0 || height <= 0) {
+            return sample;
+        }
+        while (imageWidth / (sample * 2) >= width && imageHeight / (sample * 2) >= height) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    private static final class Request {
+        private final String key;
+        private Future<?> future;
+
+        private Request(String key) {
+            this.key = key;
+        }
+    }
+}
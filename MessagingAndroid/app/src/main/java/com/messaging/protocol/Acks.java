@@ -0,0 +1,146 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * At-least-once delivery on each client-server connection
+ * Every tracked message a client sends carries its session and a sequence number that
+ * grows by one per message; the server answers with ACK messages holding the highest
+ * sequence it has routed, and the client retransmits anything not covered after it
+ * reconnects. The other way round the client acknowledges the number of frames it has
+ * read from the connection, usually piggybacked on HEADER_ACK of whatever it sends
+ * next. Retransmits keep their Message id, which is what receivers deduplicate on.
+ * Clients opt in by sending HEADER_ACK on their first message; others are not tracked.
+ *
+ * The first frame an acking client gets is a welcome ACK carrying HEADER_RESUME, a token
+ * for this connection. A reconnecting client sends it back on its first message along
+ * with HEADER_ACK set to the frames it read before the drop, and the server resends only
+ * what came after; the welcome also acknowledges what the server already has.
+ */
+public final class Acks {
+    public static final String HEADER_SEQ = "seq";
+    public static final String HEADER_ACK = "ack";
+    public static final String HEADER_SESSION = "session";
+    public static final String HEADER_RESUME = "resume";
+
+    private Acks() {
+    }
+
+    /**
+     * Whether messages of this type are sequenced, acknowledged and deduplicated
+     * Transfer traffic has its own resume protocol and presence its own versions
+     */
+    public static boolean isTracked(MessageType type) {
+        if (type == null) {
+            return false;
+        }
+        switch (type) {
+            case ACK:
+            case DISCONNECT:
+            case FILE_OFFER:
+            case FILE_RESUME:
+            case FILE_CHUNK:
+            case BLOB_REQUEST:
+            case PRESENCE:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Standalone acknowledgement, sent when there is nothing to piggyback it on
+     */
+    public static Message ack(String senderId, String receiverId, long value) {
+        return new Message.Builder()
+                .senderId(senderId)
+                .receiverId(receiverId)
+                .type(MessageType.ACK)
+                .header(HEADER_ACK, Long.toString(value))
+                .build();
+    }
+
+    /**
+     * First frame of an acking connection: the resume token and the highest sequence
+     * the server routed for the client's session
+     */
+    public static Message welcome(String senderId, String receiverId, long value, String resumeToken) {
+        return new Message.Builder()
+                .senderId(senderId)
+                .receiverId(receiverId)
+                .type(MessageType.ACK)
+                .header(HEADER_ACK, Long.toString(value))
+                .header(HEADER_RESUME, resumeToken)
+                .build();
+    }
+
+    /**
+     * First message of a client connection, opting in to acknowledgements
+     * With a token from the previous connection it asks to resume after framesReceived
+     */
+    public static Message hello(String userId, String session, String resumeToken, long framesReceived) {
+        Message.Builder builder = new Message.Builder()
+                .senderId(userId)
+                .type(MessageType.TEXT)
+                .content("CONNECT")
+                .header(HEADER_SESSION, session)
+                .header(HEADER_ACK, Long.toString(resumeToken != null ? framesReceived : 0));
+        if (resumeToken != null) {
+            builder.header(HEADER_RESUME, resumeToken);
+        }
+        return builder.build();
+    }
+
+    public static long seqOf(Message message) {
+        return longHeader(message, HEADER_SEQ);
+    }
+
+    /**
+     * Cumulative acknowledgement carried by the message, -1 if none
+     */
+    public static long ackOf(Message message) {
+        return longHeader(message, HEADER_ACK);
+    }
+
+    private static long longHeader(Message message, String name) {
+        String value = message.getHeader(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Copy of the message, same id, with the given headers added
+     */
+    public static Message withHeaders(Message message, Map<String, String> extra) {
+        Map<String, String> headers = new HashMap<>(message.getHeaders());
+        headers.putAll(extra);
+        return new Message.Builder()
+                .id(message.getId())
+                .senderId(message.getSenderId())
+                .receiverId(message.getReceiverId())
+                .type(message.getType())
+                .content(message.getContent())
+                .data(message.getData())
+                .fileSize(message.getFileSize())
+                .fileName(message.getFileName())
+                .timestamp(message.getTimestamp())
+                .headers(headers)
+                .build();
+    }
+
+    public static Message withAck(Message message, long value) {
+        Map<String, String> extra = new HashMap<>();
+        extra.put(HEADER_ACK, Long.toString(value));
+        return withHeaders(message, extra);
+    }
+}
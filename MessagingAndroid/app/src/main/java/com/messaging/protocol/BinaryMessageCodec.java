@@ -0,0 +1,657 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.models.User;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Hand-written binary encoding for Message and User
+ *
+ * Frame:   varint payload length, payload
+ * Message: type tag (1 byte), varint flags, [id], [senderId], [receiverId],
+ *          [content], [fileName], varint fileSize, [zigzag epoch millis], [headers], [data]
+ * Headers: varint count, then key and value strings.
+ * Strings are varint length + UTF-8; ids that are UUIDs travel as 16 raw bytes.
+ * The data payload is always last so it can be streamed straight after the header.
+ */
+public final class BinaryMessageCodec {
+    /**
+     * Largest payload accepted from the wire. File data travels in chunks of at most
+     * CHUNK_SIZE, and smaller files inline, so a frame is a chunk plus its headers;
+     * the rest is headroom for presence snapshots of large servers
+     */
+    public static final int MAX_FRAME_LENGTH = 4 * ChunkedFileTransfer.CHUNK_SIZE;
+
+    // Wire tags are positions in this table: append new types, never reorder
+    private static final MessageType[] TYPE_TAGS = {
+            MessageType.TEXT,
+            MessageType.IMAGE,
+            MessageType.FILE,
+            MessageType.AUDIO,
+            MessageType.VIDEO_CALL,
+            MessageType.AUDIO_CALL,
+            MessageType.EMOJI,
+            MessageType.CALL_SIGNAL,
+            MessageType.DISCONNECT,
+            MessageType.FILE_OFFER,
+            MessageType.FILE_RESUME,
+            MessageType.FILE_CHUNK,
+            MessageType.BLOB_REQUEST,
+            MessageType.PRESENCE,
+            MessageType.ROOM,
+            MessageType.ACK
+    };
+    private static final byte[] TAG_OF_TYPE = buildTagIndex();
+
+    private static final int FLAG_ID = 1;
+    private static final int FLAG_ID_UUID = 1 << 1;
+    private static final int FLAG_SENDER = 1 << 2;
+    private static final int FLAG_RECEIVER = 1 << 3;
+    private static final int FLAG_CONTENT = 1 << 4;
+    private static final int FLAG_FILE_NAME = 1 << 5;
+    private static final int FLAG_DATA = 1 << 6;
+    private static final int FLAG_NO_TIMESTAMP = 1 << 7;
+    private static final int FLAG_HEADERS = 1 << 8;
+
+    private static final int USER_FLAG_ID = 1;
+    private static final int USER_FLAG_USERNAME = 1 << 1;
+    private static final int USER_FLAG_IP = 1 << 2;
+    private static final int USER_FLAG_ONLINE = 1 << 3;
+
+    private BinaryMessageCodec() {
+    }
+
+    // ========== Message ==========
+
+    /**
+     * Encodes a message payload without the length prefix
+     */
+    public static byte[] encode(Message message) {
+        ByteWriter out = new ByteWriter(estimateSize(message));
+        writeMessage(out, message);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes a complete frame: varint length followed by the payload
+     * A payload over MAX_FRAME_LENGTH is refused, since no reader would accept it
+     */
+    public static byte[] encodeFrame(Message message) throws IOException {
+        byte[] payload = encode(message);
+        checkFrameLength(payload.length);
+        ByteWriter out = new ByteWriter(payload.length + 5);
+        out.writeVarInt(payload.length);
+        out.writeBytes(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes a frame up to, but not including, its data bytes, for a message whose
+     * data is written separately (for example straight from a file); the message's
+     * own data field is ignored. Head followed by exactly dataLength bytes is a complete frame
+     */
+    public static byte[] encodeFrameHead(Message message, int dataLength) throws IOException {
+        ByteWriter body = new ByteWriter(64);
+        writeHeader(body, message, true);
+        body.writeVarInt(dataLength);
+        byte[] head = body.toByteArray();
+        checkFrameLength(head.length + dataLength);
+        ByteWriter out = new ByteWriter(head.length + 5);
+        out.writeVarInt(head.length + dataLength);
+        out.writeBytes(head, 0, head.length);
+        return out.toByteArray();
+    }
+
+    public static Message decode(byte[] payload) throws IOException {
+        return decode(payload, 0, payload.length);
+    }
+
+    public static Message decode(byte[] buffer, int offset, int length) throws IOException {
+        ByteReader in = new ByteReader(buffer, offset, length);
+        Message message = readMessage(in);
+        if (in.remaining() != 0) {
+            throw new StreamCorruptedException("Trailing bytes after message: " + in.remaining());
+        }
+        return message;
+    }
+
+    private static void writeMessage(ByteWriter out, Message message) {
+        writeHeader(out, message, message.getData() != null);
+        if (message.getData() != null) {
+            out.writeVarInt(message.getData().length);
+            out.writeBytes(message.getData(), 0, message.getData().length);
+        }
+    }
+
+    /**
+     * Everything before the data: tag, flags and the optional fields
+     */
+    private static void writeHeader(ByteWriter out, Message message, boolean hasData) {
+        out.writeByte(tagOf(message.getType()));
+
+        String id = message.getId();
+        UUID uuid = parseUuid(id);
+        int flags = 0;
+        if (id != null) flags |= FLAG_ID;
+        if (uuid != null) flags |= FLAG_ID_UUID;
+        if (message.getSenderId() != null) flags |= FLAG_SENDER;
+        if (message.getReceiverId() != null) flags |= FLAG_RECEIVER;
+        if (message.getContent() != null) flags |= FLAG_CONTENT;
+        if (message.getFileName() != null) flags |= FLAG_FILE_NAME;
+        if (hasData) flags |= FLAG_DATA;
+        if (message.getTimestamp() == null) flags |= FLAG_NO_TIMESTAMP;
+        Map<String, String> headers = message.getHeaders();
+        if (!headers.isEmpty()) flags |= FLAG_HEADERS;
+        out.writeVarInt(flags);
+
+        if (uuid != null) {
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        } else if (id != null) {
+            out.writeString(id);
+        }
+        if (message.getSenderId() != null) out.writeString(message.getSenderId());
+        if (message.getReceiverId() != null) out.writeString(message.getReceiverId());
+        if (message.getContent() != null) out.writeString(message.getContent());
+        if (message.getFileName() != null) out.writeString(message.getFileName());
+        out.writeVarLong(message.getFileSize());
+        if (message.getTimestamp() != null) {
+            out.writeVarLong(zigZag(toEpochMillis(message.getTimestamp())));
+        }
+        if (!headers.isEmpty()) {
+            out.writeVarInt(headers.size());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                out.writeString(header.getKey());
+                out.writeString(header.getValue() != null ? header.getValue() : "");
+            }
+        }
+    }
+
+    private static Message readMessage(ByteReader in) throws IOException {
+        Message.Builder builder = new Message.Builder()
+                .type(typeOf(in.readByte()));
+        int flags = in.readVarInt();
+
+        if ((flags & FLAG_ID_UUID) != 0) {
+            builder.id(new UUID(in.readLong(), in.readLong()).toString());
+        } else if ((flags & FLAG_ID) != 0) {
+            builder.id(in.readString());
+        } else {
+            builder.id(null);
+        }
+        if ((flags & FLAG_SENDER) != 0) builder.senderId(in.readString());
+        if ((flags & FLAG_RECEIVER) != 0) builder.receiverId(in.readString());
+        if ((flags & FLAG_CONTENT) != 0) builder.content(in.readString());
+        if ((flags & FLAG_FILE_NAME) != 0) builder.fileName(in.readString());
+        builder.fileSize(in.readVarLong());
+        if ((flags & FLAG_NO_TIMESTAMP) != 0) {
+            builder.timestamp(null);
+        } else {
+            builder.timestamp(fromEpochMillis(unZigZag(in.readVarLong())));
+        }
+        if ((flags & FLAG_HEADERS) != 0) {
+            int count = in.readCount();
+            for (int i = 0; i < count; i++) {
+                builder.header(in.readString(), in.readString());
+            }
+        }
+        if ((flags & FLAG_DATA) != 0) {
+            builder.data(in.readBytes(in.readVarInt()));
+        }
+        return builder.build();
+    }
+
+    // ========== User ==========
+
+    public static byte[] encodeUser(User user) {
+        ByteWriter out = new ByteWriter(64);
+        writeUser(out, user);
+        return out.toByteArray();
+    }
+
+    public static User decodeUser(byte[] payload) throws IOException {
+        return readUser(new ByteReader(payload, 0, payload.length));
+    }
+
+    /**
+     * Encodes a list of users as a varint count followed by each user
+     */
+    public static byte[] encodeUsers(List<User> users) {
+        ByteWriter out = new ByteWriter(16 + users.size() * 32);
+        out.writeVarInt(users.size());
+        for (User user : users) {
+            writeUser(out, user);
+        }
+        return out.toByteArray();
+    }
+
+    public static List<User> decodeUsers(byte[] payload) throws IOException {
+        ByteReader in = new ByteReader(payload, 0, payload.length);
+        int count = in.readCount();
+        List<User> users = new ArrayList<>(Math.min(count, in.remaining()));
+        for (int i = 0; i < count; i++) {
+            users.add(readUser(in));
+        }
+        return users;
+    }
+
+    private static void writeUser(ByteWriter out, User user) {
+        int flags = 0;
+        if (user.getId() != null) flags |= USER_FLAG_ID;
+        if (user.getUsername() != null && !user.getUsername().equals(user.getId())) flags |= USER_FLAG_USERNAME;
+        if (user.getIpAddress() != null) flags |= USER_FLAG_IP;
+        if (user.isOnline()) flags |= USER_FLAG_ONLINE;
+        out.writeVarInt(flags);
+
+        if (user.getId() != null) out.writeString(user.getId());
+        if ((flags & USER_FLAG_USERNAME) != 0) out.writeString(user.getUsername());
+        if (user.getIpAddress() != null) out.writeString(user.getIpAddress());
+        out.writeVarInt(user.getPort());
+    }
+
+    private static User readUser(ByteReader in) throws IOException {
+        int flags = in.readVarInt();
+        String id = (flags & USER_FLAG_ID) != 0 ? in.readString() : null;
+        // Username defaults to the id, which is what the server assigns today
+        String username = (flags & USER_FLAG_USERNAME) != 0 ? in.readString() : id;
+
+        User user = new User(id, username);
+        if ((flags & USER_FLAG_IP) != 0) user.setIpAddress(in.readString());
+        user.setPort(in.readVarInt());
+        user.setOnline((flags & USER_FLAG_ONLINE) != 0);
+        return user;
+    }
+
+    /**
+     * Encodes a list of strings as a varint count followed by each string
+     */
+    public static byte[] encodeStrings(List<String> values) {
+        ByteWriter out = new ByteWriter(8 + values.size() * 12);
+        out.writeVarInt(values.size());
+        for (String value : values) {
+            out.writeString(value);
+        }
+        return out.toByteArray();
+    }
+
+    public static List<String> decodeStrings(byte[] payload) throws IOException {
+        ByteReader in = new ByteReader(payload, 0, payload.length);
+        int count = in.readCount();
+        List<String> values = new ArrayList<>(Math.min(count, in.remaining()));
+        for (int i = 0; i < count; i++) {
+            values.add(in.readString());
+        }
+        return values;
+    }
+
+    // ========== Presence ==========
+
+    /**
+     * Encodes a presence update as a varlong version, a snapshot byte (followed, for a
+     * snapshot, by varint page index and page count), the joined users as in encodeUsers
+     * and a varint count of departed user ids
+     */
+    public static byte[] encodePresence(PresenceUpdate update) {
+        List<User> joined = update.getJoined();
+        List<String> left = update.getLeft();
+        ByteWriter out = new ByteWriter(16 + joined.size() * 24 + left.size() * 12);
+        out.writeVarLong(update.getVersion());
+        out.writeByte(update.isSnapshot() ? 1 : 0);
+        if (update.isSnapshot()) {
+            out.writeVarInt(update.getPage());
+            out.writeVarInt(update.getPageCount());
+        }
+        out.writeVarInt(joined.size());
+        for (User user : joined) {
+            writeUser(out, user);
+        }
+        out.writeVarInt(left.size());
+        for (String userId : left) {
+            out.writeString(userId);
+        }
+        return out.toByteArray();
+    }
+
+    public static PresenceUpdate decodePresence(byte[] payload) throws IOException {
+        ByteReader in = new ByteReader(payload, 0, payload.length);
+        long version = in.readVarLong();
+        boolean snapshot = in.readByte() != 0;
+        int page = 0;
+        int pageCount = 1;
+        if (snapshot) {
+            page = in.readVarInt();
+            pageCount = in.readVarInt();
+            if (page < 0 || page >= pageCount) {
+                throw new StreamCorruptedException("Invalid snapshot page " + page + " of " + pageCount);
+            }
+        }
+        int joinedCount = in.readCount();
+        List<User> joined = new ArrayList<>(Math.min(joinedCount, in.remaining()));
+        for (int i = 0; i < joinedCount; i++) {
+            joined.add(readUser(in));
+        }
+        int leftCount = in.readCount();
+        List<String> left = new ArrayList<>(Math.min(leftCount, in.remaining()));
+        for (int i = 0; i < leftCount; i++) {
+            left.add(in.readString());
+        }
+        return new PresenceUpdate(version, snapshot, page, pageCount, joined, left);
+    }
+
+    // ========== Stream helpers ==========
+
+    /**
+     * Reads one frame payload from a stream; EOFException if the stream ends cleanly first
+     */
+    public static byte[] readFrame(InputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(payload, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Stream ended inside a frame");
+            }
+            read += n;
+        }
+        return payload;
+    }
+
+    public static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    public static int readVarInt(InputStream in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    /**
+     * Parses a frame length prefix from a buffer without consuming it
+     * Returns -1 when more bytes are needed; the prefix size is reported through prefixLength[0]
+     */
+    public static int peekFrameLength(byte[] buffer, int offset, int length, int[] prefixLength)
+            throws StreamCorruptedException {
+        int result = 0;
+        for (int i = 0; i < 5; i++) {
+            if (i >= length) {
+                return -1;
+            }
+            int b = buffer[offset + i];
+            result |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                if (result < 0 || result > MAX_FRAME_LENGTH) {
+                    throw new StreamCorruptedException("Invalid frame length: " + result);
+                }
+                prefixLength[0] = i + 1;
+                return result;
+            }
+        }
+        throw new StreamCorruptedException("Malformed frame length");
+    }
+
+    // ========== Internals ==========
+
+    private static void checkFrameLength(int length) throws IOException {
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Message of " + length + " bytes exceeds the " + MAX_FRAME_LENGTH +
+                    " byte frame limit; larger attachments go through ChunkedFileTransfer");
+        }
+    }
+
+    private static byte[] buildTagIndex() {
+        byte[] index = new byte[MessageType.values().length];
+        Arrays.fill(index, (byte) -1);
+        for (int tag = 0; tag < TYPE_TAGS.length; tag++) {
+            index[TYPE_TAGS[tag].ordinal()] = (byte) tag;
+        }
+        return index;
+    }
+
+    private static byte tagOf(MessageType type) {
+        if (type == null) {
+            return (byte) 0xFF;
+        }
+        byte tag = TAG_OF_TYPE[type.ordinal()];
+        if (tag < 0) {
+            throw new IllegalArgumentException("No wire tag for message type " + type);
+        }
+        return tag;
+    }
+
+    private static MessageType typeOf(byte tag) throws StreamCorruptedException {
+        int index = tag & 0xFF;
+        if (index == 0xFF) {
+            return null;
+        }
+        if (index >= TYPE_TAGS.length) {
+            throw new StreamCorruptedException("Unknown message type tag: " + index);
+        }
+        return TYPE_TAGS[index];
+    }
+
+    private static UUID parseUuid(String id) {
+        if (id == null || id.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            // Only use the compact form when it round-trips to the exact same text
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static long toEpochMillis(LocalDateTime timestamp) {
+        return timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime fromEpochMillis(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int estimateSize(Message message) {
+        int size = 64;
+        if (message.getContent() != null) size += message.getContent().length() * 3;
+        if (message.getData() != null) size += message.getData().length + 5;
+        return size;
+    }
+
+    /**
+     * Growable little helper for writing varints, strings and raw bytes
+     */
+    static final class ByteWriter {
+        private byte[] buffer;
+        private int position;
+
+        ByteWriter(int capacity) {
+            this.buffer = new byte[Math.max(capacity, 16)];
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(utf8.length);
+            writeBytes(utf8, 0, utf8.length);
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+        }
+
+        byte[] toByteArray() {
+            return position == buffer.length ? buffer : Arrays.copyOf(buffer, position);
+        }
+
+        private void ensure(int extra) {
+            if (position + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+            }
+        }
+    }
+
+    /**
+     * Bounds-checked cursor over an encoded payload
+     */
+    static final class ByteReader {
+        private final byte[] buffer;
+        private final int limit;
+        private int position;
+
+        ByteReader(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        int remaining() {
+            return limit - position;
+        }
+
+        byte readByte() throws IOException {
+            require(1);
+            return buffer[position++];
+        }
+
+        int readVarInt() throws IOException {
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint");
+        }
+
+        /**
+         * Element count of a list; each element takes at least a byte, so a count larger
+         * than what is left cannot be real
+         */
+        int readCount() throws IOException {
+            int count = readVarInt();
+            if (count < 0) {
+                throw new StreamCorruptedException("Invalid element count: " + count);
+            }
+            if (count > remaining()) {
+                throw new EOFException("Truncated message payload");
+            }
+            return count;
+        }
+
+        long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varlong");
+        }
+
+        long readLong() throws IOException {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt();
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            require(length);
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        private void require(int length) throws IOException {
+            if (length < 0 || length > limit - position) {
+                throw new EOFException("Truncated message payload");
+            }
+        }
+    }
+}
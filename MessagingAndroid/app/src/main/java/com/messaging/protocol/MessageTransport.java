@@ -0,0 +1,28 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Strategy pattern for putting Message objects on a socket
+ * One implementation per WireFormat; callers serialize writes themselves
+ */
+public interface MessageTransport extends Closeable {
+
+    /**
+     * Blocks until the next message arrives; EOFException when the peer closed the stream
+     */
+    Message readMessage() throws IOException;
+
+    void writeMessage(Message message) throws IOException;
+
+    /**
+     * Writes a frame already encoded with getFormat().encodeFrame,
+     * so one encoding can be shared by many connections
+     */
+    void writeFrame(byte[] frame) throws IOException;
+
+    WireFormat getFormat();
+}
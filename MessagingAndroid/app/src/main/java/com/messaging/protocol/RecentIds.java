@@ -0,0 +1,36 @@
+package com.messaging.protocol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded set of the most recently seen message ids, used to drop retransmits
+ * Once full, remembering a new id forgets the oldest one, so memory stays fixed however
+ * long the connection lives; the capacity only has to cover the retransmit window
+ */
+public final class RecentIds {
+    private final LinkedHashMap<String, Boolean> ids;
+
+    public RecentIds(final int capacity) {
+        this.ids = new LinkedHashMap<String, Boolean>(capacity * 4 / 3 + 1, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Remembers the id; false if it was already seen
+     */
+    public synchronized boolean add(String id) {
+        if (id == null) {
+            return true;
+        }
+        return ids.put(id, Boolean.TRUE) == null;
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,24 @@
+package com.messaging.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Points the server's on-disk stores at a fresh temporary directory, so benchmarks
+ * neither read nor leave behind data of a real server
+ * Must run before the first MessageBroker.getInstance() in the forked JVM
+ */
+final class BenchmarkEnvironment {
+
+    private BenchmarkEnvironment() {
+    }
+
+    static void isolate() throws IOException {
+        Path root = Files.createTempDirectory("messaging-bench");
+        System.setProperty("messaging.store.dir", root.resolve("offline").toString());
+        System.setProperty("messaging.blob.dir", root.resolve("blobs").toString());
+        System.setProperty("messaging.relay.spoolDir", root.resolve("relay").toString());
+        System.setProperty("messaging.outbound.spillDir", root.resolve("spill").toString());
+    }
+}
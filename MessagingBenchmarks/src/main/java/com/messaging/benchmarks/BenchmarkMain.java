@@ -0,0 +1,35 @@
+package com.messaging.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar
+ * Runs JMH with its usual command line, but writes the results as JSON to
+ * target/jmh-result.json unless -rf / -rff say otherwise, so every run leaves
+ * a baseline that can be diffed against the next release
+ */
+public final class BenchmarkMain {
+    private static final String DEFAULT_RESULT_FILE = "target/jmh-result.json";
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add("-rf");
+            options.add("json");
+        }
+        if (!options.contains("-rff")) {
+            new File(DEFAULT_RESULT_FILE).getParentFile().mkdirs();
+            options.add("-rff");
+            options.add(DEFAULT_RESULT_FILE);
+        }
+        Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,80 @@
+package com.messaging.benchmarks;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.models.User;
+import com.messaging.protocol.WireFormat;
+import com.messaging.server.MessageBroker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageBroker.routeMessage for one recipient and for a broadcast, with the clients
+ * connected through InMemoryConnections
+ * Each parameter combination runs in its own fork, so the broker singleton starts empty
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BrokerRoutingBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    @Param({"BINARY", "JAVA_SERIALIZATION"})
+    public WireFormat format;
+
+    private MessageBroker broker;
+    private Message unicast;
+    private Message broadcast;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkEnvironment.isolate();
+        broker = MessageBroker.getInstance();
+        for (int i = 0; i < clients; i++) {
+            String userId = userId(i);
+            broker.registerUser(new User(userId, userId));
+            broker.registerClient(userId, new InMemoryConnection(userId, format));
+        }
+
+        unicast = new Message.Builder()
+                .senderId(userId(0))
+                .receiverId(userId(clients - 1))
+                .type(MessageType.TEXT)
+                .content("Hello, how are you?")
+                .build();
+        broadcast = new Message.Builder()
+                .senderId(userId(0))
+                .receiverId("ALL")
+                .type(MessageType.TEXT)
+                .content("Hello everyone")
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (int i = 0; i < clients; i++) {
+            broker.unregisterClient(userId(i));
+        }
+    }
+
+    private static String userId(int index) {
+        return "user-" + index;
+    }
+
+    @Benchmark
+    public void routeUnicast() {
+        broker.routeMessage(unicast);
+    }
+
+    @Benchmark
+    public void routeBroadcast() {
+        broker.routeMessage(broadcast);
+    }
+}
@@ -0,0 +1,83 @@
+package com.messaging.benchmarks;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.protocol.BinaryMessageCodec;
+import com.messaging.protocol.ObjectStreamTransport;
+import com.messaging.protocol.WireFormat;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message serialization and deserialization, Java serialization against the binary codec
+ * DECODE of Java serialization includes reading the stream header, which a long-lived
+ * connection pays only once; the difference is a few hundred nanoseconds
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    /**
+     * TEXT: a short chat line; IMAGE: a 64 KB inline attachment
+     */
+    @Param({"TEXT", "IMAGE"})
+    public MessageType payload;
+
+    private Message message;
+    private byte[] binaryPayload;
+    private byte[] serializedStream;
+
+    @Setup
+    public void setup() throws IOException {
+        Message.Builder builder = new Message.Builder()
+                .senderId("alice")
+                .receiverId("bob")
+                .type(payload);
+        if (payload == MessageType.TEXT) {
+            builder.content("Hello Bob, are we still on for tomorrow?");
+        } else {
+            byte[] data = new byte[64 * 1024];
+            new Random(42).nextBytes(data);
+            builder.data(data).fileName("photo.jpg").fileSize(data.length);
+        }
+        message = builder.build();
+
+        binaryPayload = BinaryMessageCodec.encode(message);
+        byte[] header = ObjectStreamTransport.streamHeader();
+        byte[] frame = ObjectStreamTransport.serializeFrame(message);
+        serializedStream = new byte[header.length + frame.length];
+        System.arraycopy(header, 0, serializedStream, 0, header.length);
+        System.arraycopy(frame, 0, serializedStream, header.length, frame.length);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() throws IOException {
+        return WireFormat.BINARY.encodeFrame(message);
+    }
+
+    @Benchmark
+    public byte[] encodeJavaSerialization() throws IOException {
+        return WireFormat.JAVA_SERIALIZATION.encodeFrame(message);
+    }
+
+    @Benchmark
+    public Message decodeBinary() throws IOException {
+        return BinaryMessageCodec.decode(binaryPayload);
+    }
+
+    @Benchmark
+    public Object decodeJavaSerialization() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedStream))) {
+            return in.readObject();
+        }
+    }
+}
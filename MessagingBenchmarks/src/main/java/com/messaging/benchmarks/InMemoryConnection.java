@@ -0,0 +1,75 @@
+package com.messaging.benchmarks;
+
+import com.messaging.server.ClientConnection;
+import com.messaging.server.EncodedMessage;
+import com.messaging.server.OutboundQueue;
+import com.messaging.server.OverflowPolicy;
+import com.messaging.protocol.WireFormat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Stand-in for a connected client: messages go through a real OutboundQueue and are
+ * encoded for the client's WireFormat exactly like a connection's writer would, but the
+ * frames are only counted instead of written to a socket
+ * Drained on the sending thread, so a benchmark sees the whole per-recipient cost
+ */
+final class InMemoryConnection implements ClientConnection {
+    private final String userId;
+    private final WireFormat format;
+    private final OutboundQueue queue;
+    private long framesWritten;
+    private long bytesWritten;
+
+    InMemoryConnection(String userId, WireFormat format) {
+        this.userId = userId;
+        this.format = format;
+        this.queue = new OutboundQueue(userId, 1024, OverflowPolicy.DROP_OLDEST);
+    }
+
+    @Override
+    public void send(EncodedMessage message) {
+        queue.offer(message);
+        EncodedMessage next;
+        while ((next = queue.poll()) != null) {
+            try {
+                bytesWritten += next.frame(format).length;
+                framesWritten++;
+                next.written();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                next.release();
+            }
+        }
+    }
+
+    @Override
+    public String getUserId() {
+        return userId;
+    }
+
+    @Override
+    public WireFormat getWireFormat() {
+        return format;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return queue;
+    }
+
+    @Override
+    public void close() {
+        queue.close();
+    }
+
+    long getFramesWritten() {
+        return framesWritten;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+}
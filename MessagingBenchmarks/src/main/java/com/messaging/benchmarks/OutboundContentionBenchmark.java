@@ -0,0 +1,83 @@
+package com.messaging.benchmarks;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.server.EncodedMessage;
+import com.messaging.server.OutboundQueue;
+import com.messaging.server.OverflowPolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lock contention on the send path of a single client
+ * ClientHandler.sendMessage hands every message to the client's OutboundQueue, so
+ * routing threads sending to one busy client contend on that queue's lock together
+ * with the writer draining it. "contended" runs four senders against one writer,
+ * "uncontended" one of each, for the cost the lock adds under load
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class OutboundContentionBenchmark {
+    private OutboundQueue queue;
+    private EncodedMessage message;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // DROP_OLDEST keeps the queue bounded in memory when the senders outrun the writer
+        queue = new OutboundQueue("bench", 1024, OverflowPolicy.DROP_OLDEST);
+        message = EncodedMessage.of(new Message.Builder()
+                .senderId("alice")
+                .receiverId("bob")
+                .type(MessageType.TEXT)
+                .content("Hello Bob")
+                .build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.close();
+        message.release();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public boolean contendedSend() {
+        return queue.offer(message);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public EncodedMessage contendedWrite() {
+        return drainOne();
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public boolean uncontendedSend() {
+        return queue.offer(message);
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public EncodedMessage uncontendedWrite() {
+        return drainOne();
+    }
+
+    private EncodedMessage drainOne() {
+        EncodedMessage next = queue.poll();
+        if (next != null) {
+            next.written();
+            next.release();
+        }
+        return next;
+    }
+}
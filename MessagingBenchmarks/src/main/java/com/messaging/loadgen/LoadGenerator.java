@@ -0,0 +1,256 @@
+package com.messaging.loadgen;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for soak and capacity tests against a local Server
+ *
+ * Logs in --users simulated users, then sends a weighted mix of TEXT, EMOJI, IMAGE and FILE
+ * messages between random pairs of them at --rate messages per second. Every message carries
+ * the time it was scheduled and the step it belongs to, so its receiver measures end-to-end
+ * delivery latency; messages written but never delivered count as loss.
+ * With --ramp the rate grows step by step until p99 latency, loss or the achieved send rate
+ * leave their bounds, and the last rate the server sustained is reported.
+ *
+ * Thousands of users need the server in virtual or nio mode; blocking mode serves 100 clients
+ */
+public final class LoadGenerator {
+    static final String HEADER_SCHEDULED_NANOS = "load.scheduledNanos";
+    static final String HEADER_STEP = "load.step";
+
+    private static final String[] EMOJIS = {"😀", "👍", "🎉", "❤️", "😂"};
+    private static final String TEXT = "Load test message, roughly the size of a short chat line.";
+
+    private final LoadOptions options;
+    private final List<SimulatedUser> users;
+    private final List<StepStats> steps;
+    // One virtual thread per send, so a slow socket never holds back the schedule
+    private final ExecutorService senders;
+    private final MessageType[] mixTypes;
+    private final int[] mixWeights;
+    private final int mixTotal;
+    private final byte[] imageData;
+    private final byte[] fileData;
+
+    LoadGenerator(LoadOptions options) {
+        this.options = options;
+        this.users = new ArrayList<>(options.users);
+        this.steps = new CopyOnWriteArrayList<>();
+        this.senders = Executors.newVirtualThreadPerTaskExecutor();
+
+        this.mixTypes = options.mix.keySet().toArray(new MessageType[0]);
+        this.mixWeights = new int[mixTypes.length];
+        int total = 0;
+        for (int i = 0; i < mixTypes.length; i++) {
+            total += options.mix.get(mixTypes[i]);
+            mixWeights[i] = total;
+        }
+        this.mixTotal = total;
+
+        Random random = new Random(1);
+        this.imageData = new byte[options.imageBytes];
+        this.fileData = new byte[options.fileBytes];
+        random.nextBytes(imageData);
+        random.nextBytes(fileData);
+    }
+
+    public static void main(String[] args) {
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    void run() {
+        try {
+            connectAll();
+            if (options.ramp) {
+                runRamp();
+            } else {
+                StepStats result = runStep(options.rate, options.durationSeconds);
+                System.out.println(result.summary());
+            }
+        } catch (IOException e) {
+            System.err.println("Load test aborted: " + e.getMessage());
+        } finally {
+            senders.shutdownNow();
+            users.forEach(SimulatedUser::close);
+        }
+    }
+
+    private void connectAll() throws IOException {
+        System.out.println("Connecting " + options.users + " users to " + options.host + ":" + options.port +
+                " (" + options.format + ")");
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, options.connectRate);
+        long next = System.nanoTime();
+        for (int i = 0; i < options.users; i++) {
+            pauseUntil(next);
+            next += interval;
+            SimulatedUser user = new SimulatedUser("load-" + i, this::onReceived);
+            user.connect(options.host, options.port, options.format);
+            users.add(user);
+            if ((i + 1) % 1000 == 0) {
+                System.out.println("  " + (i + 1) + " connected");
+            }
+        }
+        // Let the server finish registering the last ones before traffic starts
+        sleepSeconds(1);
+    }
+
+    /**
+     * Raises the rate by --ramp-step every --step-seconds until the server stops keeping up
+     */
+    private void runRamp() {
+        double lastSustained = 0;
+        for (double rate = options.rampStart; rate <= options.maxRate; rate += options.rampStep) {
+            StepStats step = runStep(rate, options.stepSeconds);
+            System.out.println(step.summary());
+            String reason = saturation(step);
+            if (reason != null) {
+                System.out.println("Saturated at " + Math.round(rate) + " msg/s (" + reason + ")");
+                System.out.println("Highest sustained rate: " + Math.round(lastSustained) + " msg/s");
+                return;
+            }
+            lastSustained = rate;
+        }
+        System.out.println("No saturation up to " + Math.round(lastSustained) + " msg/s");
+    }
+
+    private String saturation(StepStats step) {
+        if (step.getMillisAtQuantile(0.99) > options.sloP99Millis) {
+            return String.format("p99 %.1f ms over %.1f ms", step.getMillisAtQuantile(0.99), options.sloP99Millis);
+        }
+        if (step.getLoss() > options.maxLoss) {
+            return String.format("loss %.3f%% over %.3f%%", step.getLoss() * 100, options.maxLoss * 100);
+        }
+        if (step.getSentRate() < step.targetRate * 0.9) {
+            return String.format("only %.0f msg/s could be sent", step.getSentRate());
+        }
+        return null;
+    }
+
+    /**
+     * Sends at a fixed rate for the given time, then waits --drain seconds for stragglers
+     * Messages are scheduled on a fixed timeline: when sending falls behind, the backlog
+     * goes out at once and its latency still counts from the scheduled time
+     */
+    private StepStats runStep(double rate, int seconds) {
+        StepStats step = new StepStats(steps.size(), rate);
+        steps.add(step);
+
+        double interval = 1e9 / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long count = 0;
+        long scheduled = start;
+        while (scheduled < end) {
+            pauseUntil(scheduled);
+            long now = System.nanoTime();
+            while (scheduled <= now && scheduled < end) {
+                final long at = scheduled;
+                senders.execute(() -> sendOne(step, at));
+                count++;
+                scheduled = start + (long) (count * interval);
+            }
+        }
+        step.sendingDone();
+        sleepSeconds(options.drainSeconds);
+        return step;
+    }
+
+    private void sendOne(StepStats step, long scheduledNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(users.size());
+        int to = random.nextInt(users.size() - 1);
+        if (to >= from) {
+            to++;
+        }
+        SimulatedUser sender = users.get(from);
+        Message message = buildMessage(sender.getUserId(), users.get(to).getUserId(), pickType(random))
+                .header(HEADER_SCHEDULED_NANOS, Long.toString(scheduledNanos))
+                .header(HEADER_STEP, Integer.toString(step.index))
+                .build();
+        try {
+            sender.send(message);
+            step.sent.increment();
+        } catch (IOException e) {
+            step.sendFailures.increment();
+        }
+    }
+
+    private MessageType pickType(ThreadLocalRandom random) {
+        int roll = random.nextInt(mixTotal);
+        for (int i = 0; i < mixWeights.length; i++) {
+            if (roll < mixWeights[i]) {
+                return mixTypes[i];
+            }
+        }
+        return MessageType.TEXT;
+    }
+
+    private Message.Builder buildMessage(String senderId, String receiverId, MessageType type) {
+        Message.Builder builder = new Message.Builder()
+                .senderId(senderId)
+                .receiverId(receiverId)
+                .type(type);
+        switch (type) {
+            case EMOJI:
+                return builder.content(EMOJIS[ThreadLocalRandom.current().nextInt(EMOJIS.length)]);
+            case IMAGE:
+                return builder.data(imageData).fileName("load.jpg").fileSize(imageData.length);
+            case FILE:
+                return builder.data(fileData).fileName("load.bin").fileSize(fileData.length);
+            default:
+                return builder.content(TEXT);
+        }
+    }
+
+    /**
+     * Runs on the users' reader threads: records the latency of generated messages
+     */
+    private void onReceived(Message message) {
+        String scheduled = message.getHeader(HEADER_SCHEDULED_NANOS);
+        String stepIndex = message.getHeader(HEADER_STEP);
+        if (scheduled == null || stepIndex == null) {
+            // Server notices such as ONLINE_USERS
+            return;
+        }
+        long latency = System.nanoTime() - Long.parseLong(scheduled);
+        StepStats step = steps.get(Integer.parseInt(stepIndex));
+        step.latency.record(latency);
+        step.received.increment();
+    }
+
+    private static void pauseUntil(long deadlineNanos) {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static void sleepSeconds(int seconds) {
+        try {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
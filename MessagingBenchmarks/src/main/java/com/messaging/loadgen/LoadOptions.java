@@ -0,0 +1,147 @@
+package com.messaging.loadgen;
+
+import com.messaging.models.MessageType;
+import com.messaging.protocol.WireFormat;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Command line of the LoadGenerator: --name value pairs, every one optional
+ */
+final class LoadOptions {
+    String host = "localhost";
+    int port = 8888;
+    int users = 1000;
+    WireFormat format = WireFormat.BINARY;
+    // New connections per second while logging the users in
+    int connectRate = 500;
+
+    double rate = 1000;
+    int durationSeconds = 30;
+    Map<MessageType, Integer> mix = parseMix("TEXT=70,EMOJI=20,IMAGE=8,FILE=2");
+    int imageBytes = 64 * 1024;
+    int fileBytes = 256 * 1024;
+    // Time left for messages still in flight after a run or ramp step
+    int drainSeconds = 3;
+
+    boolean ramp;
+    double rampStart = 500;
+    double rampStep = 500;
+    int stepSeconds = 10;
+    double maxRate = 100_000;
+    double sloP99Millis = 250;
+    double maxLoss = 0.001;
+
+    static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (name.equals("--ramp")) {
+                options.ramp = true;
+                continue;
+            }
+            if (name.equals("--help") || name.equals("-h")) {
+                throw new IllegalArgumentException(usage());
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name + "\n" + usage());
+            }
+            String value = args[++i];
+            switch (name) {
+                case "--host":
+                    options.host = value;
+                    break;
+                case "--port":
+                    options.port = Integer.parseInt(value);
+                    break;
+                case "--users":
+                    options.users = Integer.parseInt(value);
+                    break;
+                case "--format":
+                    options.format = WireFormat.valueOf(value.toUpperCase());
+                    break;
+                case "--connect-rate":
+                    options.connectRate = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    options.rate = Double.parseDouble(value);
+                    break;
+                case "--duration":
+                    options.durationSeconds = Integer.parseInt(value);
+                    break;
+                case "--mix":
+                    options.mix = parseMix(value);
+                    break;
+                case "--image-bytes":
+                    options.imageBytes = Integer.parseInt(value);
+                    break;
+                case "--file-bytes":
+                    options.fileBytes = Integer.parseInt(value);
+                    break;
+                case "--drain":
+                    options.drainSeconds = Integer.parseInt(value);
+                    break;
+                case "--ramp-start":
+                    options.rampStart = Double.parseDouble(value);
+                    break;
+                case "--ramp-step":
+                    options.rampStep = Double.parseDouble(value);
+                    break;
+                case "--step-seconds":
+                    options.stepSeconds = Integer.parseInt(value);
+                    break;
+                case "--max-rate":
+                    options.maxRate = Double.parseDouble(value);
+                    break;
+                case "--slo-p99-ms":
+                    options.sloP99Millis = Double.parseDouble(value);
+                    break;
+                case "--max-loss":
+                    options.maxLoss = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + name + "\n" + usage());
+            }
+        }
+        if (options.users < 2) {
+            throw new IllegalArgumentException("--users must be at least 2");
+        }
+        return options;
+    }
+
+    /**
+     * "TEXT=70,EMOJI=20,IMAGE=8,FILE=2": relative weights of the message types sent
+     */
+    static Map<MessageType, Integer> parseMix(String value) {
+        Map<MessageType, Integer> mix = new EnumMap<>(MessageType.class);
+        for (String part : value.split(",")) {
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry: " + part);
+            }
+            MessageType type = MessageType.valueOf(pair[0].trim().toUpperCase());
+            if (type != MessageType.TEXT && type != MessageType.EMOJI
+                    && type != MessageType.IMAGE && type != MessageType.FILE) {
+                throw new IllegalArgumentException("Mix supports TEXT, EMOJI, IMAGE and FILE, not " + type);
+            }
+            mix.put(type, Integer.parseInt(pair[1].trim()));
+        }
+        return mix;
+    }
+
+    static String usage() {
+        return "Usage: LoadGenerator [options]\n" +
+                "  --host localhost --port 8888     server to load\n" +
+                "  --users 1000                     simulated users, each with its own connection\n" +
+                "  --format BINARY                  BINARY or JAVA_SERIALIZATION\n" +
+                "  --connect-rate 500               logins per second\n" +
+                "  --rate 1000 --duration 30        messages per second, for how long\n" +
+                "  --mix TEXT=70,EMOJI=20,IMAGE=8,FILE=2\n" +
+                "  --image-bytes 65536 --file-bytes 262144\n" +
+                "  --drain 3                        seconds to wait for late deliveries\n" +
+                "  --ramp                           step the rate up until the server saturates:\n" +
+                "  --ramp-start 500 --ramp-step 500 --step-seconds 10 --max-rate 100000\n" +
+                "  --slo-p99-ms 250 --max-loss 0.001";
+    }
+}
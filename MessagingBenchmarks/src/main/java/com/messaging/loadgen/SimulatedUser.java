@@ -0,0 +1,110 @@
+package com.messaging.loadgen;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.protocol.MessageTransport;
+import com.messaging.protocol.WireFormat;
+import com.messaging.protocol.WireHandshake;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * One simulated user: logs in exactly like ConnectionService does, then writes whatever
+ * the generator hands it and passes every message it reads to the listener
+ * The reader runs on a virtual thread, so thousands of users cost no platform threads
+ */
+final class SimulatedUser {
+    private final String userId;
+    private final Consumer<Message> listener;
+    // A lock instead of synchronized so writers on virtual threads never pin their carrier
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Socket socket;
+    private MessageTransport transport;
+    private volatile boolean connected;
+
+    SimulatedUser(String userId, Consumer<Message> listener) {
+        this.userId = userId;
+        this.listener = listener;
+    }
+
+    void connect(String host, int port, WireFormat format) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        transport = WireHandshake.connect(socket.getInputStream(), socket.getOutputStream(), format);
+        connected = true;
+
+        send(new Message.Builder()
+                .senderId(userId)
+                .type(MessageType.TEXT)
+                .content("CONNECT")
+                .build());
+
+        Thread.ofVirtual().name("load-reader-" + userId).start(this::readLoop);
+    }
+
+    private void readLoop() {
+        try {
+            while (connected) {
+                listener.accept(transport.readMessage());
+            }
+        } catch (EOFException e) {
+            if (connected) {
+                System.err.println(userId + ": server closed the connection");
+            }
+        } catch (IOException e) {
+            if (connected) {
+                System.err.println(userId + ": " + e.getMessage());
+            }
+        } finally {
+            connected = false;
+        }
+    }
+
+    void send(Message message) throws IOException {
+        writeLock.lock();
+        try {
+            if (!connected) {
+                throw new IOException(userId + " is not connected");
+            }
+            transport.writeMessage(message);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void close() {
+        if (!connected) {
+            return;
+        }
+        // Cleared first so the reader does not report the server's close as an error
+        connected = false;
+        writeLock.lock();
+        try {
+            transport.writeMessage(new Message.Builder()
+                    .senderId(userId)
+                    .type(MessageType.DISCONNECT)
+                    .build());
+        } catch (IOException e) {
+            // Closing anyway
+        } finally {
+            writeLock.unlock();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+
+    String getUserId() {
+        return userId;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+}
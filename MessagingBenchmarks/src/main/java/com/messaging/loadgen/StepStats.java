@@ -0,0 +1,59 @@
+package com.messaging.loadgen;
+
+import com.messaging.server.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one run, or of one ramp step, at a fixed target rate
+ * Latency is measured from the time a message was scheduled to go out, not the time it
+ * actually did, so a stalled generator or server cannot hide its own queueing delay
+ */
+final class StepStats {
+    final int index;
+    final double targetRate;
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder sent = new LongAdder();
+    final LongAdder received = new LongAdder();
+    final LongAdder sendFailures = new LongAdder();
+    private final long startNanos;
+    private volatile long sendingNanos;
+
+    StepStats(int index, double targetRate) {
+        this.index = index;
+        this.targetRate = targetRate;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Called when the last message of the step was scheduled
+     */
+    void sendingDone() {
+        sendingNanos = System.nanoTime() - startNanos;
+    }
+
+    double getSentRate() {
+        long nanos = sendingNanos;
+        return nanos > 0 ? sent.sum() * 1e9 / nanos : 0;
+    }
+
+    /**
+     * Fraction of the messages written that never came back
+     */
+    double getLoss() {
+        long total = sent.sum();
+        return total == 0 ? 0 : Math.max(0, total - received.sum()) / (double) total;
+    }
+
+    double getMillisAtQuantile(double quantile) {
+        return latency.getValueAtQuantile(quantile) / 1e6;
+    }
+
+    String summary() {
+        return String.format("target %8.0f msg/s | sent %8.0f msg/s | %9d sent %9d recv | " +
+                        "p50 %8.2f ms  p99 %8.2f ms  p99.9 %8.2f ms  max %8.2f ms | loss %.3f%% | send errors %d",
+                targetRate, getSentRate(), sent.sum(), received.sum(),
+                getMillisAtQuantile(0.5), getMillisAtQuantile(0.99), getMillisAtQuantile(0.999),
+                latency.getMax() / 1e6, getLoss() * 100, sendFailures.sum());
+    }
+}
@@ -22,6 +22,7 @@ public class DesktopApp extends Application {
         // Handle close request
         primaryStage.setOnCloseRequest(event -> {
             com.messaging.desktop.services.ConnectionService.getInstance().disconnect();
+            com.messaging.desktop.services.ThumbnailService.getInstance().shutdown();
         });
     }
 
@@ -0,0 +1,200 @@
+package com.messaging.desktop.controllers;
+
+import com.messaging.desktop.services.ThumbnailService;
+import com.messaging.desktop.utils.ChatMessageItem;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Cursor;
+import javafx.scene.Node;
+import javafx.scene.control.Button;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+
+import java.io.File;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Row of the chat ListView
+ * The node tree is built once per cell and rebound in updateItem as the list recycles
+ * the cell for other items, so scrolling creates no nodes and only visible rows exist.
+ * Parts a row does not need are hidden and left out of layout.
+ */
+public class ChatMessageCell extends ListCell<ChatMessageItem> {
+    private static final int IMAGE_WIDTH = 280;
+    private static final String SENT_COLOR = "#DCF8C6";
+    private static final String RECEIVED_COLOR = "#FFFFFF";
+
+    private final Consumer<String> fileOpener;
+    private final Consumer<String> imageOpener;
+    private final ThumbnailService thumbnails = ThumbnailService.getInstance();
+    // Thumbnail still being made for the item this cell shows
+    private Future<?> pendingThumbnail;
+
+    private final HBox row = new HBox();
+    private final VBox column = new VBox(3);
+    private final Label senderLabel = new Label();
+    private final VBox bubble = new VBox(5);
+    private final ImageView imageView = new ImageView();
+    private final Label iconLabel = new Label("📎");
+    private final Label contentLabel = new Label();
+    private final Label sizeLabel = new Label();
+    private final Button openButton = new Button("💾 Open File Location");
+    private final Label systemLabel = new Label();
+
+    public ChatMessageCell(Consumer<String> fileOpener, Consumer<String> imageOpener) {
+        this.fileOpener = fileOpener;
+        this.imageOpener = imageOpener;
+
+        // Fit the list's width instead of widening it to the longest message
+        setPrefWidth(0);
+        setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+        setStyle("-fx-background-color: transparent; -fx-padding: 0;");
+
+        row.setPadding(new Insets(5));
+        row.setSpacing(10);
+
+        senderLabel.setStyle("-fx-font-weight: bold; -fx-text-fill: #1976D2;");
+        imageView.setFitWidth(IMAGE_WIDTH);
+        imageView.setPreserveRatio(true);
+        imageView.setSmooth(true);
+        // Only here is the full-size image loaded, by the system viewer
+        imageView.setOnMouseClicked(e -> {
+            ChatMessageItem item = getItem();
+            if (item != null && item.getFilePath() != null) {
+                imageOpener.accept(item.getFilePath());
+            }
+        });
+        imageView.setCursor(Cursor.HAND);
+        iconLabel.setStyle("-fx-font-size: 24px;");
+        contentLabel.setWrapText(true);
+        sizeLabel.setStyle("-fx-font-size: 11px; -fx-text-fill: gray;");
+        openButton.setOnAction(e -> {
+            ChatMessageItem item = getItem();
+            if (item != null && item.getFilePath() != null) {
+                fileOpener.accept(item.getFilePath());
+            }
+        });
+        systemLabel.setStyle("-fx-text-fill: gray; -fx-font-size: 11px; -fx-font-style: italic;");
+        systemLabel.setWrapText(true);
+
+        bubble.getChildren().addAll(imageView, iconLabel, contentLabel, sizeLabel, openButton);
+        column.getChildren().addAll(senderLabel, bubble);
+    }
+
+    @Override
+    protected void updateItem(ChatMessageItem item, boolean empty) {
+        super.updateItem(item, empty);
+        // Drops the previous row's image, so recycled cells never pin decoded pixels
+        imageView.setImage(null);
+        if (pendingThumbnail != null) {
+            pendingThumbnail.cancel(false);
+            pendingThumbnail = null;
+        }
+        if (empty || item == null) {
+            setGraphic(null);
+            return;
+        }
+
+        if (item.getKind() == ChatMessageItem.Kind.SYSTEM) {
+            systemLabel.setText(item.getText());
+            row.setAlignment(Pos.CENTER);
+            row.getChildren().setAll(systemLabel);
+            setGraphic(row);
+            return;
+        }
+
+        boolean sent = item.isSent();
+        row.setAlignment(sent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
+        row.getChildren().setAll(column);
+        show(senderLabel, !sent);
+        senderLabel.setText(item.getSender() + ":");
+        bubble.setStyle("-fx-background-color: " + (sent ? SENT_COLOR : RECEIVED_COLOR) +
+                "; -fx-background-radius: 10; -fx-padding: 10;");
+
+        switch (item.getKind()) {
+            case IMAGE:
+                bindImage(item);
+                break;
+            case FILE:
+                bindFile(item);
+                break;
+            default:
+                bindText(item);
+                break;
+        }
+        setGraphic(row);
+    }
+
+    private void bindText(ChatMessageItem item) {
+        bubble.setMaxWidth(400);
+        show(imageView, false);
+        show(iconLabel, false);
+        show(sizeLabel, false);
+        show(openButton, false);
+        contentLabel.setText(item.getText());
+        contentLabel.setStyle("-fx-font-size: 14px; -fx-text-fill: black;");
+    }
+
+    private void bindImage(ChatMessageItem item) {
+        bubble.setMaxWidth(300);
+        show(iconLabel, false);
+        show(sizeLabel, false);
+        contentLabel.setStyle("-fx-font-size: 12px; -fx-text-fill: black;");
+
+        String path = item.getFilePath();
+        if (path != null) {
+            // Whether the file is there is found out on the worker, never on the FX thread
+            Image cached = thumbnails.getCached(item.getThumbnailKey());
+            if (cached != null) {
+                imageView.setImage(cached);
+            } else {
+                pendingThumbnail = thumbnails.load(new File(path), IMAGE_WIDTH, (key, image) -> {
+                    item.setThumbnailKey(key);
+                    // The cell may show another item by now
+                    if (getItem() != item) {
+                        return;
+                    }
+                    if (image != null) {
+                        imageView.setImage(image);
+                    } else {
+                        showImageFailed();
+                    }
+                });
+            }
+            show(imageView, true);
+            contentLabel.setText("📷 " + item.getText());
+        } else {
+            showImageFailed();
+        }
+        show(openButton, !item.isSent() && path != null);
+        openButton.setStyle("-fx-background-color: #4CAF50; -fx-text-fill: white; -fx-font-size: 11px;");
+    }
+
+    private void showImageFailed() {
+        show(imageView, false);
+        contentLabel.setText("❌ Failed to load image");
+    }
+
+    private void bindFile(ChatMessageItem item) {
+        bubble.setMaxWidth(300);
+        show(imageView, false);
+        show(iconLabel, true);
+        show(sizeLabel, true);
+        contentLabel.setText(item.getText());
+        contentLabel.setStyle("-fx-font-weight: bold; -fx-text-fill: black;");
+        sizeLabel.setText(MainController.formatFileSize(item.getFileSize()));
+        show(openButton, item.getFilePath() != null);
+        openButton.setStyle("-fx-background-color: #2196F3; -fx-text-fill: white; -fx-font-size: 11px;");
+    }
+
+    private static void show(Node node, boolean visible) {
+        node.setVisible(visible);
+        node.setManaged(visible);
+    }
+}
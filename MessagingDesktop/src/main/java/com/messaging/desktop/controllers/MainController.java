@@ -1,31 +1,41 @@
 package com.messaging.desktop.controllers;
 
 import com.messaging.desktop.services.ConnectionService;
+import com.messaging.desktop.services.ConnectionState;
 import com.messaging.desktop.services.MessageService;
 import com.messaging.desktop.services.FileTransferService;
+import com.messaging.desktop.utils.ChatHistory;
+import com.messaging.desktop.utils.ChatMessageItem;
+import com.messaging.desktop.utils.PulseBatcher;
 import com.messaging.models.Message;
 import com.messaging.models.MessageType;
+import com.messaging.protocol.Rooms;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.stage.FileChooser;
 
 import java.awt.Desktop;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Main controller with rich message display
  */
 public class MainController {
+    // Cap per pulse; a larger burst spreads over the following frames
+    private static final int INCOMING_BATCH_LIMIT = 2000;
+
     @FXML private TextField serverAddressField;
     @FXML private TextField portField;
     @FXML private TextField userIdField;
@@ -39,14 +49,20 @@ public class MainController {
     @FXML private Button audioCallButton;
     @FXML private Button videoCallButton;
 
-    @FXML private ScrollPane chatScrollPane;
-    @FXML private VBox chatBox;
+    @FXML private ListView<ChatMessageItem> chatList;
 
     private ConnectionService connectionService;
     private MessageService messageService;
     private FileTransferService fileTransferService;
 
     private final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private ConnectionState lastState = ConnectionState.DISCONNECTED;
+    private final ChatHistory chatHistory = new ChatHistory();
+    private ScrollBar chatScrollBar;
+    // Received messages reach the FX thread in one batch per pulse
+    private final PulseBatcher<Message> incoming = new PulseBatcher<>(INCOMING_BATCH_LIMIT, this::applyIncoming);
+    // Non-null while a batch is applied: rows are collected and added together
+    private List<ChatMessageItem> pendingRows;
 
     @FXML
     public void initialize() {
@@ -64,13 +80,22 @@ public class MainController {
         // Setup message listener
         connectionService.setMessageListener(this::handleIncomingMessage);
 
+        // Show how many users can be reached
+        connectionService.getPresence().setListener((view, update) -> {
+            int online = view.getOnlineCount();
+            Platform.runLater(() -> receiverIdField.setPromptText(online + " user(s) online"));
+        });
+
+        // Reflect drops and automatic reconnects
+        connectionService.setStateListener(state -> Platform.runLater(() -> handleStateChanged(state)));
+
         // Allow Enter key to send message
         messageField.setOnAction(event -> handleSendMessage());
 
-        // Auto-scroll to bottom
-        chatBox.heightProperty().addListener((obs, oldVal, newVal) -> {
-            chatScrollPane.setVvalue(1.0);
-        });
+        // Only visible rows get cells, which are recycled while scrolling
+        chatList.setItems(chatHistory.getWindow());
+        chatList.setCellFactory(list -> new ChatMessageCell(this::openFileLocation, this::openImage));
+        chatList.skinProperty().addListener((obs, oldSkin, newSkin) -> Platform.runLater(this::watchChatScrolling));
     }
 
     @FXML
@@ -115,6 +140,11 @@ public class MainController {
         String receiverId = receiverIdField.getText().trim();
         String content = messageField.getText().trim();
 
+        if (messageService.handleRoomCommand(content)) {
+            messageField.clear();
+            return;
+        }
+
         if (receiverId.isEmpty()) {
             showAlert("Warning", "Please enter receiver ID", Alert.AlertType.WARNING);
             return;
@@ -124,11 +154,32 @@ public class MainController {
             return;
         }
 
-        messageService.sendTextMessage(receiverId, content);
+        try {
+            messageService.sendTextMessage(receiverId, content);
+        } catch (IllegalStateException e) {
+            showAlert("Warning", e.getMessage(), Alert.AlertType.WARNING);
+            return;
+        }
         addTextMessage(content, true);
         messageField.clear();
     }
 
+    /**
+     * Keeps the chat usable while reconnecting: messages typed meanwhile are queued
+     */
+    private void handleStateChanged(ConnectionState state) {
+        if (state == ConnectionState.RECONNECTING && lastState != ConnectionState.RECONNECTING) {
+            addSystemMessage("⚠ Connection lost, reconnecting...");
+            connectButton.setText("Reconnecting...");
+        } else if (state == ConnectionState.CONNECTED && lastState == ConnectionState.RECONNECTING) {
+            addSystemMessage("✓ Reconnected to server");
+            connectButton.setText("Connect");
+        } else if (state == ConnectionState.DISCONNECTED) {
+            connectButton.setText("Connect");
+        }
+        lastState = state;
+    }
+
     @FXML
     private void handleSendImage() {
         String receiverId = receiverIdField.getText().trim();
@@ -146,8 +197,7 @@ public class MainController {
         File file = fileChooser.showOpenDialog(sendImageButton.getScene().getWindow());
         if (file != null) {
             try {
-                byte[] imageData = fileTransferService.readFile(file);
-                messageService.sendImage(receiverId, imageData, file.getName());
+                messageService.sendAttachment(receiverId, file, MessageType.IMAGE);
 
                 // Show image preview in chat
                 addImageMessage(file, true);
@@ -172,8 +222,7 @@ public class MainController {
         File file = fileChooser.showOpenDialog(sendFileButton.getScene().getWindow());
         if (file != null) {
             try {
-                byte[] fileData = fileTransferService.readFile(file);
-                messageService.sendFile(receiverId, fileData, file.getName());
+                messageService.sendAttachment(receiverId, file, MessageType.FILE);
 
                 addFileMessage(file.getName(), file.length(), true);
 
@@ -205,52 +254,82 @@ public class MainController {
         }
     }
 
+    /**
+     * Called on the receiver thread
+     */
     private void handleIncomingMessage(Message message) {
-        Platform.runLater(() -> {
-            switch (message.getType()) {
-                case TEXT:
-                case EMOJI:
-                    addTextMessage(message.getContent(), false, message.getSenderId());
-                    break;
-
-                case IMAGE:
-                    handleImageReceived(message);
-                    break;
-
-                case FILE:
-                    handleFileReceived(message);
-                    break;
-
-                case AUDIO:
-                    handleAudioReceived(message);
-                    break;
-
-                case AUDIO_CALL:
-                    addSystemMessage("📞 " + message.getSenderId() + " is calling (audio)...");
-                    showCallAlert(message.getSenderId(), "Audio Call");
-                    break;
-
-                case VIDEO_CALL:
-                    addSystemMessage("📹 " + message.getSenderId() + " is calling (video)...");
-                    showCallAlert(message.getSenderId(), "Video Call");
-                    break;
-
-                case CALL_SIGNAL:
-                    handleCallSignal(message);
-                    break;
-
-                default:
-                    addTextMessage(message.getContent() != null ? message.getContent() : "", false, message.getSenderId());
-                    break;
+        incoming.offer(message);
+    }
+
+    /**
+     * Applies a pulse's worth of received messages with one update of the chat list
+     */
+    private void applyIncoming(List<Message> messages) {
+        List<ChatMessageItem> rows = new ArrayList<>(messages.size());
+        pendingRows = rows;
+        try {
+            for (Message message : messages) {
+                showIncomingMessage(message);
             }
-        });
+        } finally {
+            pendingRows = null;
+            appendRows(rows);
+        }
+    }
+
+    private void showIncomingMessage(Message message) {
+        switch (message.getType()) {
+            case TEXT:
+            case EMOJI:
+                addTextMessage(message.getContent(), false, message.getSenderId());
+                break;
+
+            case IMAGE:
+                handleImageReceived(message);
+                break;
+
+            case FILE:
+                handleFileReceived(message);
+                break;
+
+            case AUDIO:
+                handleAudioReceived(message);
+                break;
+
+            case AUDIO_CALL:
+                addSystemMessage("📞 " + message.getSenderId() + " is calling (audio)...");
+                // Opened after the batch: the dialog's nested event loop would hold it up
+                Platform.runLater(() -> showCallAlert(message.getSenderId(), "Audio Call"));
+                break;
+
+            case VIDEO_CALL:
+                addSystemMessage("📹 " + message.getSenderId() + " is calling (video)...");
+                // Opened after the batch: the dialog's nested event loop would hold it up
+                Platform.runLater(() -> showCallAlert(message.getSenderId(), "Video Call"));
+                break;
+
+            case CALL_SIGNAL:
+                handleCallSignal(message);
+                break;
+
+            case ROOM:
+                addSystemMessage("👥 " + Rooms.describe(message));
+                break;
+
+            default:
+                addTextMessage(message.getContent() != null ? message.getContent() : "", false, message.getSenderId());
+                break;
+        }
     }
 
     private void handleImageReceived(Message message) {
         try {
-            // Save image
-            fileTransferService.saveFile(message.getData(), message.getFileName());
-            String savePath = fileTransferService.getDownloadDirectory() + message.getFileName();
+            // Save image (streamed transfers are already on disk)
+            String savePath = fileTransferService.storeAttachment(message);
+            if (savePath == null) {
+                addFetchingMessage(message);
+                return;
+            }
 
             // Display image in chat with download button
             addReceivedImageMessage(savePath, message.getFileName(), message.getSenderId());
@@ -262,9 +341,12 @@ public class MainController {
 
     private void handleFileReceived(Message message) {
         try {
-            // Save file
-            fileTransferService.saveFile(message.getData(), message.getFileName());
-            String savePath = fileTransferService.getDownloadDirectory() + message.getFileName();
+            // Save file (streamed transfers are already on disk)
+            String savePath = fileTransferService.storeAttachment(message);
+            if (savePath == null) {
+                addFetchingMessage(message);
+                return;
+            }
 
             // Display file in chat with download button
             addReceivedFileMessage(message.getFileName(), message.getFileSize(), savePath, message.getSenderId());
@@ -276,8 +358,11 @@ public class MainController {
 
     private void handleAudioReceived(Message message) {
         try {
-            fileTransferService.saveFile(message.getData(), message.getFileName());
-            String savePath = fileTransferService.getDownloadDirectory() + message.getFileName();
+            String savePath = fileTransferService.storeAttachment(message);
+            if (savePath == null) {
+                addFetchingMessage(message);
+                return;
+            }
 
             addReceivedFileMessage(message.getFileName(), message.getFileSize(), savePath, message.getSenderId());
             addSystemMessage("🎵 Audio saved to: " + savePath);
@@ -287,6 +372,13 @@ public class MainController {
         }
     }
 
+    /**
+     * Placeholder while an attachment is downloaded; the message shows up again once it is here
+     */
+    private void addFetchingMessage(Message message) {
+        addSystemMessage("⬇ Downloading " + message.getFileName() + " from " + message.getSenderId() + "...");
+    }
+
     // ========== UI Message Display Methods ==========
 
     private void addTextMessage(String content, boolean isSent) {
@@ -294,190 +386,95 @@ public class MainController {
     }
 
     private void addTextMessage(String content, boolean isSent, String sender) {
-        HBox messageBox = new HBox();
-        messageBox.setPadding(new Insets(5));
-        messageBox.setSpacing(10);
-
-        VBox bubble = createMessageBubble(content, isSent);
-
-        if (isSent) {
-            messageBox.setAlignment(Pos.CENTER_RIGHT);
-            messageBox.getChildren().add(bubble);
-        } else {
-            messageBox.setAlignment(Pos.CENTER_LEFT);
-            Label senderLabel = new Label(sender + ":");
-            senderLabel.setStyle("-fx-font-weight: bold; -fx-text-fill: #1976D2;");
-            VBox leftBox = new VBox(3, senderLabel, bubble);
-            messageBox.getChildren().add(leftBox);
-        }
-
-        chatBox.getChildren().add(messageBox);
+        appendItem(ChatMessageItem.text(content, isSent, sender));
     }
 
     private void addImageMessage(File imageFile, boolean isSent) {
-        HBox messageBox = new HBox();
-        messageBox.setPadding(new Insets(5));
-        messageBox.setSpacing(10);
-
-        VBox content = new VBox(5);
-        content.setStyle("-fx-background-color: " + (isSent ? "#DCF8C6" : "#FFFFFF") +
-                "; -fx-background-radius: 10; -fx-padding: 10;");
-        content.setMaxWidth(300);
-
-        try {
-            ImageView imageView = new ImageView(new Image(new FileInputStream(imageFile)));
-            imageView.setFitWidth(280);
-            imageView.setPreserveRatio(true);
-            imageView.setSmooth(true);
-
-            Label fileNameLabel = new Label("📷 " + imageFile.getName());
-            fileNameLabel.setStyle("-fx-font-size: 12px;");
-
-            content.getChildren().addAll(imageView, fileNameLabel);
-
-        } catch (Exception e) {
-            Label errorLabel = new Label("❌ Failed to load image");
-            content.getChildren().add(errorLabel);
-        }
-
-        if (isSent) {
-            messageBox.setAlignment(Pos.CENTER_RIGHT);
-        } else {
-            messageBox.setAlignment(Pos.CENTER_LEFT);
-        }
-
-        messageBox.getChildren().add(content);
-        chatBox.getChildren().add(messageBox);
+        appendItem(ChatMessageItem.image(imageFile.getPath(), imageFile.getName(), isSent, "You"));
     }
 
     private void addReceivedImageMessage(String imagePath, String fileName, String sender) {
-        HBox messageBox = new HBox();
-        messageBox.setPadding(new Insets(5));
-        messageBox.setSpacing(10);
-        messageBox.setAlignment(Pos.CENTER_LEFT);
-
-        VBox leftBox = new VBox(3);
-        Label senderLabel = new Label(sender + ":");
-        senderLabel.setStyle("-fx-font-weight: bold; -fx-text-fill: #1976D2;");
-
-        VBox content = new VBox(5);
-        content.setStyle("-fx-background-color: #FFFFFF; -fx-background-radius: 10; -fx-padding: 10;");
-        content.setMaxWidth(300);
-
-        try {
-            File imageFile = new File(imagePath);
-            ImageView imageView = new ImageView(new Image(new FileInputStream(imageFile)));
-            imageView.setFitWidth(280);
-            imageView.setPreserveRatio(true);
-            imageView.setSmooth(true);
-
-            Label fileNameLabel = new Label("📷 " + fileName);
-            fileNameLabel.setStyle("-fx-font-size: 12px;");
-
-            Button downloadButton = new Button("💾 Open File Location");
-            downloadButton.setStyle("-fx-background-color: #4CAF50; -fx-text-fill: white; -fx-font-size: 11px;");
-            downloadButton.setOnAction(e -> openFileLocation(imagePath));
-
-            content.getChildren().addAll(imageView, fileNameLabel, downloadButton);
-
-        } catch (Exception e) {
-            Label errorLabel = new Label("❌ Failed to load image");
-            content.getChildren().add(errorLabel);
-        }
-
-        leftBox.getChildren().addAll(senderLabel, content);
-        messageBox.getChildren().add(leftBox);
-        chatBox.getChildren().add(messageBox);
+        appendItem(ChatMessageItem.image(imagePath, fileName, false, sender));
     }
 
     private void addFileMessage(String fileName, long fileSize, boolean isSent) {
-        HBox messageBox = new HBox();
-        messageBox.setPadding(new Insets(5));
-
-        VBox bubble = new VBox(5);
-        bubble.setStyle("-fx-background-color: " + (isSent ? "#DCF8C6" : "#FFFFFF") +
-                "; -fx-background-radius: 10; -fx-padding: 10;");
-        bubble.setMaxWidth(300);
-
-        Label fileIcon = new Label("📎");
-        fileIcon.setStyle("-fx-font-size: 24px;");
-
-        Label fileNameLabel = new Label(fileName);
-        fileNameLabel.setStyle("-fx-font-weight: bold;");
-        fileNameLabel.setWrapText(true);
-
-        Label fileSizeLabel = new Label(formatFileSize(fileSize));
-        fileSizeLabel.setStyle("-fx-font-size: 11px; -fx-text-fill: gray;");
-
-        bubble.getChildren().addAll(fileIcon, fileNameLabel, fileSizeLabel);
-
-        if (isSent) {
-            messageBox.setAlignment(Pos.CENTER_RIGHT);
-        } else {
-            messageBox.setAlignment(Pos.CENTER_LEFT);
-        }
-
-        messageBox.getChildren().add(bubble);
-        chatBox.getChildren().add(messageBox);
+        appendItem(ChatMessageItem.file(fileName, fileSize, null, isSent, "You"));
     }
 
     private void addReceivedFileMessage(String fileName, long fileSize, String filePath, String sender) {
-        HBox messageBox = new HBox();
-        messageBox.setPadding(new Insets(5));
-        messageBox.setAlignment(Pos.CENTER_LEFT);
-
-        VBox leftBox = new VBox(3);
-        Label senderLabel = new Label(sender + ":");
-        senderLabel.setStyle("-fx-font-weight: bold; -fx-text-fill: #1976D2;");
-
-        VBox bubble = new VBox(5);
-        bubble.setStyle("-fx-background-color: #FFFFFF; -fx-background-radius: 10; -fx-padding: 10;");
-        bubble.setMaxWidth(300);
-
-        Label fileIcon = new Label("📎");
-        fileIcon.setStyle("-fx-font-size: 24px;");
-
-        Label fileNameLabel = new Label(fileName);
-        fileNameLabel.setStyle("-fx-font-weight: bold;");
-        fileNameLabel.setWrapText(true);
-
-        Label fileSizeLabel = new Label(formatFileSize(fileSize));
-        fileSizeLabel.setStyle("-fx-font-size: 11px; -fx-text-fill: gray;");
-
-        Button downloadButton = new Button("💾 Open File Location");
-        downloadButton.setStyle("-fx-background-color: #2196F3; -fx-text-fill: white; -fx-font-size: 11px;");
-        downloadButton.setOnAction(e -> openFileLocation(filePath));
-
-        bubble.getChildren().addAll(fileIcon, fileNameLabel, fileSizeLabel, downloadButton);
-        leftBox.getChildren().addAll(senderLabel, bubble);
-        messageBox.getChildren().add(leftBox);
-        chatBox.getChildren().add(messageBox);
+        appendItem(ChatMessageItem.file(fileName, fileSize, filePath, false, sender));
     }
 
     private void addSystemMessage(String content) {
-        HBox messageBox = new HBox();
-        messageBox.setPadding(new Insets(5));
-        messageBox.setAlignment(Pos.CENTER);
+        appendItem(ChatMessageItem.system(content));
+    }
 
-        Label systemLabel = new Label(content);
-        systemLabel.setStyle("-fx-text-fill: gray; -fx-font-size: 11px; -fx-font-style: italic;");
+    /**
+     * Adds a row and follows it if the reader was at the bottom; someone reading older
+     * messages keeps their place
+     */
+    private void appendItem(ChatMessageItem item) {
+        if (pendingRows != null) {
+            pendingRows.add(item);
+            return;
+        }
+        appendRows(Collections.singletonList(item));
+    }
 
-        messageBox.getChildren().add(systemLabel);
-        chatBox.getChildren().add(messageBox);
+    private void appendRows(List<ChatMessageItem> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        boolean following = isAtBottom();
+        chatHistory.appendAll(rows, following);
+        if (following) {
+            chatList.scrollTo(chatHistory.getWindow().size() - 1);
+        }
     }
 
-    private VBox createMessageBubble(String content, boolean isSent) {
-        VBox bubble = new VBox();
-        bubble.setStyle("-fx-background-color: " + (isSent ? "#DCF8C6" : "#FFFFFF") +
-                "; -fx-background-radius: 10; -fx-padding: 10;");
-        bubble.setMaxWidth(400);
+    private boolean isAtBottom() {
+        return chatScrollBar == null || !chatScrollBar.isVisible()
+                || chatScrollBar.getValue() >= chatScrollBar.getMax() - 0.01;
+    }
 
-        Label contentLabel = new Label(content);
-        contentLabel.setWrapText(true);
-        contentLabel.setStyle("-fx-font-size: 14px;");
+    /**
+     * The list's scroll bar only exists once its skin is created
+     */
+    private void watchChatScrolling() {
+        for (Node node : chatList.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                chatScrollBar = (ScrollBar) node;
+                chatScrollBar.valueProperty().addListener((obs, oldVal, newVal) -> {
+                    if (newVal.doubleValue() <= chatScrollBar.getMin() && chatHistory.hasOlder()) {
+                        loadOlderMessages();
+                    }
+                });
+                return;
+            }
+        }
+    }
+
+    /**
+     * Pages in older rows above the top one, keeping that row where it was
+     */
+    private void loadOlderMessages() {
+        int added = chatHistory.loadOlder();
+        if (added > 0) {
+            chatList.scrollTo(added);
+        }
+    }
 
-        bubble.getChildren().add(contentLabel);
-        return bubble;
+    private void openImage(String filePath) {
+        try {
+            File file = new File(filePath);
+            if (file.exists()) {
+                Desktop.getDesktop().open(file);
+            } else {
+                showAlert("Error", "Image not found: " + filePath, Alert.AlertType.ERROR);
+            }
+        } catch (Exception e) {
+            showAlert("Error", "Failed to open image: " + e.getMessage(), Alert.AlertType.ERROR);
+        }
     }
 
     private void openFileLocation(String filePath) {
@@ -609,7 +606,7 @@ public class MainController {
 
     // ========== Utility Methods ==========
 
-    private String formatFileSize(long size) {
+    static String formatFileSize(long size) {
         if (size < 1024) {
             return size + " B";
         } else if (size < 1024 * 1024) {
@@ -2,31 +2,92 @@ package com.messaging.desktop.services;
 
 import com.messaging.models.Message;
 import com.messaging.models.MessageType;
+import com.messaging.protocol.Acks;
+import com.messaging.protocol.ChunkedFileTransfer;
+import com.messaging.protocol.Heartbeat;
+import com.messaging.protocol.InboundAcks;
+import com.messaging.protocol.MessageTransport;
+import com.messaging.protocol.PresenceUpdate;
+import com.messaging.protocol.PresenceView;
+import com.messaging.protocol.RetransmitWindow;
+import com.messaging.protocol.WireFormat;
+import com.messaging.protocol.WireHandshake;
 
 import java.io.*;
+import java.net.InetSocketAddress;
         import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Singleton pattern for managing server connection
  * Separates connection logic from UI (Single Responsibility Principle)
+ *
+ * Once connected, a dropped link is retried with jittered exponential backoff until the
+ * user disconnects. Messages sent meanwhile wait in a bounded outbox and go out in
+ * order, after the retransmits, as soon as the session is resumed. The same outbox holds
+ * chat messages while the retransmit window is full, and acknowledgements release them,
+ * so no thread ever waits for the server to catch up.
  */
 public class ConnectionService {
+    private static final long ACK_INTERVAL_MILLIS = 200;
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 15_000;
+    private static final long HEARTBEAT_CHECK_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final int OUTBOX_CAPACITY = 500;
+
     private static ConnectionService instance;
 
     private Socket socket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+    private MessageTransport transport;
+    private String serverAddress;
+    private int port;
     private String userId;
     private volatile boolean connected;
+    private volatile String resumeToken;
+    private volatile boolean autoReconnect;
+    private volatile ConnectionState state = ConnectionState.DISCONNECTED;
+    private Thread reconnector;
+    private final ArrayDeque<Message> outbox = new ArrayDeque<>();
 
-    private final BlockingQueue<Message> messageQueue;
+    private final ChunkedFileTransfer fileTransfers;
+    private final PresenceView presence;
+    private final RetransmitWindow retransmits;
+    private final InboundAcks inboundAcks;
+    private final Heartbeat heartbeat;
+    private final ScheduledExecutorService ackTimer;
     private MessageListener messageListener;
+    private StateListener stateListener;
 
     private ConnectionService() {
-        this.messageQueue = new LinkedBlockingQueue<>();
         this.connected = false;
+        this.fileTransfers = new ChunkedFileTransfer(new File(FileTransferService.DOWNLOAD_DIR),
+                this::writeMessage, Executors.newCachedThreadPool(task -> {
+                    Thread thread = new Thread(task, "file-transfer");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+        this.fileTransfers.setListener(new TransferListener());
+        this.presence = new PresenceView();
+        this.retransmits = new RetransmitWindow();
+        this.inboundAcks = new InboundAcks();
+        this.heartbeat = new Heartbeat(HEARTBEAT_INTERVAL_MILLIS);
+        this.ackTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "ack-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Acknowledgements normally ride on outgoing messages; this covers a quiet sender
+        this.ackTimer.scheduleWithFixedDelay(this::flushAck,
+                ACK_INTERVAL_MILLIS, ACK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        // A half-open connection only shows up as silence
+        this.ackTimer.scheduleWithFixedDelay(this::checkHeartbeat,
+                HEARTBEAT_CHECK_MILLIS, HEARTBEAT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     public static synchronized ConnectionService getInstance() {
@@ -36,78 +97,363 @@ public class ConnectionService {
         return instance;
     }
 
+    /**
+     * First connection; once it succeeds, drops are retried until disconnect()
+     */
     public boolean connect(String serverAddress, int port, String userId) {
+        this.serverAddress = serverAddress;
+        this.port = port;
+        setState(ConnectionState.CONNECTING);
+        if (!open(userId)) {
+            setState(ConnectionState.DISCONNECTED);
+            return false;
+        }
+        autoReconnect = true;
+        return true;
+    }
+
+    private boolean open(String userId) {
+        Socket newSocket = new Socket();
         try {
+            // Resuming the previous session: same user, and the server already took our codec
+            boolean resuming = resumeToken != null && userId.equals(this.userId);
+            if (!resuming) {
+                resumeToken = null;
+                // The server sends a fresh snapshot once the connection is registered
+                presence.clear();
+            }
             this.userId = userId;
-            socket = new Socket(serverAddress, port);
-
-            output = new ObjectOutputStream(socket.getOutputStream());
-            output.flush();
-            input = new ObjectInputStream(socket.getInputStream());
+            newSocket.connect(new InetSocketAddress(serverAddress, port), CONNECT_TIMEOUT_MILLIS);
+            newSocket.setTcpNoDelay(true);
 
-            connected = true;
+            // Binary codec is negotiated with the server during the handshake; a resume
+            // sends its first messages along with the hello instead of waiting for the reply
+            MessageTransport newTransport = resuming
+                    ? WireHandshake.connectPipelined(newSocket.getInputStream(), newSocket.getOutputStream(),
+                            WireFormat.BINARY)
+                    : WireHandshake.connect(newSocket.getInputStream(), newSocket.getOutputStream(),
+                            WireFormat.BINARY);
 
-            // Send initial connection message
-            Message initMessage = new Message.Builder()
-                    .senderId(userId)
-                    .type(MessageType.TEXT)
-                    .content("CONNECT")
-                    .build();
-            sendMessage(initMessage);
+            // Nothing sent in between can overtake the retransmits and the outbox
+            synchronized (this) {
+                socket = newSocket;
+                transport = newTransport;
+                connected = true;
+                heartbeat.reset();
+                sendHello();
+                flushOutbox();
+            }
 
             // Start message receiver thread
-            startMessageReceiver();
+            startMessageReceiver(newTransport);
+            setState(ConnectionState.CONNECTED);
+
+            // Continue any file transfer interrupted by the previous connection
+            fileTransfers.resumeAll();
 
             return true;
 
         } catch (IOException e) {
             System.err.println("Connection error: " + e.getMessage());
+            synchronized (this) {
+                if (socket == newSocket) {
+                    connected = false;
+                    transport = null;
+                }
+            }
+            closeQuietly(newSocket);
             return false;
         }
     }
 
-    private void startMessageReceiver() {
+    private void startMessageReceiver(MessageTransport current) {
         Thread receiverThread = new Thread(() -> {
-            while (connected) {
+            while (true) {
                 try {
-                    Message message = (Message) input.readObject();
+                    Message message = current.readMessage();
+                    heartbeat.onReceived();
+                    if (!inboundAcks.accept(message)) {
+                        continue;
+                    }
+                    if (message.getType() == MessageType.ACK) {
+                        handleAck(message);
+                        continue;
+                    }
+
+                    // Transfer chunks go straight to disk, the UI only hears about finished files
+                    if (fileTransfers.handleMessage(message)) {
+                        continue;
+                    }
+                    if (message.getType() == MessageType.PRESENCE) {
+                        handlePresence(message);
+                        continue;
+                    }
 
                     if (messageListener != null) {
                         messageListener.onMessageReceived(message);
                     }
 
-                    messageQueue.offer(message);
-
-                } catch (EOFException e) {
-                    connected = false;
-                    break;
-                } catch (IOException | ClassNotFoundException e) {
-                    if (connected) {
+                } catch (IOException e) {
+                    if (connected && !(e instanceof EOFException)) {
                         System.err.println("Error receiving message: " + e.getMessage());
                     }
+                    connectionLost(current);
                     break;
                 }
             }
-        });
+        }, "message-receiver");
         receiverThread.setDaemon(true);
         receiverThread.start();
     }
 
+    /**
+     * The given connection failed; starts reconnecting unless the user disconnected
+     * Ignored for connections already replaced, whichever thread noticed first wins
+     */
+    private void connectionLost(MessageTransport failed) {
+        boolean reconnect;
+        ConnectionState next;
+        synchronized (this) {
+            if (failed == null || failed != transport) {
+                return;
+            }
+            connected = false;
+            transport = null;
+            // Unblocks the receiver if a write noticed first
+            closeQuietly(socket);
+            reconnect = autoReconnect;
+            next = reconnect ? ConnectionState.RECONNECTING : ConnectionState.DISCONNECTED;
+            state = next;
+        }
+        notifyState(next);
+        if (reconnect) {
+            startReconnecting();
+        }
+    }
+
+    private synchronized void startReconnecting() {
+        if (reconnector != null && reconnector.isAlive()) {
+            return;
+        }
+        reconnector = new Thread(this::reconnectLoop, "reconnect");
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
+
+    private void reconnectLoop() {
+        for (int attempt = 0; autoReconnect && !connected; attempt++) {
+            try {
+                Thread.sleep(backoffMillis(attempt));
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!autoReconnect) {
+                return;
+            }
+            System.out.println("Reconnecting to " + serverAddress + ":" + port + " (attempt " + (attempt + 1) + ")");
+            if (open(userId)) {
+                System.out.println("Reconnected to server");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with equal jitter: half the capped delay plus a random share of
+     * the other half, so clients dropped together do not all come back at once
+     */
+    static long backoffMillis(int attempt) {
+        long cap = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already broken
+        }
+    }
+
+    /**
+     * Applies a presence update, asking for a new snapshot if a delta was missed
+     */
+    private void handlePresence(Message message) {
+        try {
+            if (!presence.apply(PresenceUpdate.fromMessage(message))) {
+                writeMessage(PresenceUpdate.snapshotRequest(userId));
+            }
+        } catch (IOException e) {
+            System.err.println("Error handling presence update: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends now, or queues in the outbox while reconnecting or waiting for acknowledgements
+     * Throws IllegalStateException when disconnected or when the outbox is full
+     */
     public synchronized void sendMessage(Message message) {
         if (!connected) {
-            throw new IllegalStateException("Not connected to server");
+            if (state != ConnectionState.RECONNECTING) {
+                throw new IllegalStateException("Not connected to server");
+            }
+            if (outbox.size() >= OUTBOX_CAPACITY) {
+                throw new IllegalStateException("Still reconnecting, " + outbox.size() + " messages already waiting");
+            }
+            outbox.addLast(message);
+            return;
+        }
+        if (outbox.size() >= OUTBOX_CAPACITY) {
+            throw new IllegalStateException("Server is behind, " + outbox.size() + " messages already waiting");
         }
 
         try {
-            output.writeObject(message);
-            output.flush();
+            writeMessage(message);
         } catch (IOException e) {
             System.err.println("Error sending message: " + e.getMessage());
-            connected = false;
+        }
+    }
+
+    /**
+     * Initial connection message, opting in to acknowledgements and naming the session to
+     * resume, then everything the server had not acknowledged when the previous
+     * connection ended; the server drops what it already routed
+     */
+    private synchronized void sendHello() throws IOException {
+        long framesRead = inboundAcks.reset();
+        transport.writeMessage(Heartbeat.announce(
+                Acks.hello(userId, retransmits.getSession(), resumeToken, framesRead),
+                heartbeat.getIntervalMillis()));
+        for (Message message : retransmits.pending()) {
+            writeMessage(message);
+        }
+    }
+
+    /**
+     * Sends what was queued, oldest first, until a tracked message finds the retransmit
+     * window full; anything tracked that a failure interrupts is already in the window
+     */
+    private synchronized void flushOutbox() throws IOException {
+        Message message;
+        while ((message = outbox.peekFirst()) != null) {
+            if (needsStamp(message) && !retransmits.hasRoom()) {
+                return;
+            }
+            outbox.pollFirst();
+            writeNow(message);
+        }
+    }
+
+    /**
+     * Drops acknowledged messages from the retransmit window, which may let the outbox
+     * go on; the welcome ACK that opens each connection also carries the token for resuming it
+     */
+    private void handleAck(Message message) {
+        retransmits.onAck(Acks.ackOf(message));
+        String token = message.getHeader(Acks.HEADER_RESUME);
+        if (token != null) {
+            resumeToken = token;
+        }
+        synchronized (this) {
+            if (connected && !outbox.isEmpty()) {
+                try {
+                    flushOutbox();
+                } catch (IOException e) {
+                    // writeNow already reported the broken connection
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a standalone ACK if frames arrived since the last acknowledgement went out
+     */
+    private synchronized void flushAck() {
+        if (!connected) {
+            return;
+        }
+        long frames = inboundAcks.due();
+        if (frames < 0) {
+            return;
+        }
+        try {
+            transport.writeMessage(Acks.ack(userId, ChunkedFileTransfer.SERVER_ID, frames));
+            heartbeat.onSent();
+        } catch (IOException e) {
+            connectionLost(transport);
+        }
+    }
+
+    /**
+     * Pings a server that heard nothing from us for an interval, and drops a connection
+     * on which nothing arrived for several; the drop reconnects like any other failure
+     */
+    private synchronized void checkHeartbeat() {
+        if (!connected) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (heartbeat.isExpired(now)) {
+            System.err.println("No heartbeat from server for " + Heartbeat.MISSED_BEATS + " intervals");
+            connectionLost(transport);
+            return;
+        }
+        if (heartbeat.isPingDue(now)) {
+            try {
+                writeMessage(Heartbeat.ping(userId, ChunkedFileTransfer.SERVER_ID, heartbeat.getIntervalMillis()));
+            } catch (IOException e) {
+                // writeMessage already reported the broken connection
+            }
+        }
+    }
+
+    /**
+     * Like sendMessage but reports failures, so file transfers know to wait for a reconnect
+     * Tracked messages are numbered and kept until the server acknowledges them, so one
+     * lost with the connection goes out again after the next connect; while the window is
+     * full they wait in the outbox behind the ones already there
+     */
+    private synchronized void writeMessage(Message message) throws IOException {
+        if (!connected) {
+            throw new IOException("Not connected to server");
+        }
+        if (needsStamp(message) && (!outbox.isEmpty() || !retransmits.hasRoom())) {
+            outbox.addLast(message);
+            return;
+        }
+        writeNow(message);
+    }
+
+    private static boolean needsStamp(Message message) {
+        return Acks.isTracked(message.getType()) && Acks.seqOf(message) < 0;
+    }
+
+    /**
+     * Writes the message, numbering it first if needed; the caller made sure the
+     * retransmit window has room
+     */
+    private synchronized void writeNow(Message message) throws IOException {
+        if (needsStamp(message)) {
+            message = retransmits.stamp(message);
+        }
+        try {
+            transport.writeMessage(Acks.withAck(message, inboundAcks.piggyback()));
+            heartbeat.onSent();
+        } catch (IOException e) {
+            connectionLost(transport);
+            throw e;
         }
     }
 
     public void disconnect() {
+        autoReconnect = false;
+        Thread retrying = reconnector;
+        if (retrying != null) {
+            retrying.interrupt();
+        }
         if (connected) {
             try {
                 Message disconnectMsg = new Message.Builder()
@@ -119,15 +465,36 @@ public class ConnectionService {
                 // Ignore
             }
 
+        }
+        synchronized (this) {
             connected = false;
+            // Logging out ends the session; only a dropped connection is resumed
+            resumeToken = null;
+            if (!outbox.isEmpty()) {
+                System.err.println("Discarding " + outbox.size() + " unsent message(s)");
+                outbox.clear();
+            }
 
             try {
-                if (input != null) input.close();
-                if (output != null) output.close();
+                if (transport != null) transport.close();
                 if (socket != null) socket.close();
             } catch (IOException e) {
                 System.err.println("Error disconnecting: " + e.getMessage());
             }
+            transport = null;
+        }
+        setState(ConnectionState.DISCONNECTED);
+    }
+
+    private void setState(ConnectionState next) {
+        state = next;
+        notifyState(next);
+    }
+
+    private void notifyState(ConnectionState current) {
+        StateListener listener = stateListener;
+        if (listener != null) {
+            listener.onStateChanged(current);
         }
     }
 
@@ -135,18 +502,74 @@ public class ConnectionService {
         this.messageListener = listener;
     }
 
+    public void setStateListener(StateListener listener) {
+        this.stateListener = listener;
+    }
+
     public boolean isConnected() {
         return connected;
     }
 
+    public ConnectionState getState() {
+        return state;
+    }
+
+    /**
+     * Messages waiting for the connection to come back
+     */
+    public synchronized int getOutboxSize() {
+        return outbox.size();
+    }
+
     public String getUserId() {
         return userId;
     }
 
+    /**
+     * Users currently online, kept up to date by the server
+     */
+    public PresenceView getPresence() {
+        return presence;
+    }
+
+    public ChunkedFileTransfer getFileTransfers() {
+        return fileTransfers;
+    }
+
+    /**
+     * Hands completed incoming files to the message listener like any other message
+     */
+    private class TransferListener implements ChunkedFileTransfer.Listener {
+        @Override
+        public void onProgress(String transferId, long transferred, long total, boolean incoming) {
+        }
+
+        @Override
+        public void onReceived(Message summary, File file) {
+            System.out.println("File received: " + file.getAbsolutePath());
+            if (messageListener != null) {
+                messageListener.onMessageReceived(summary);
+            }
+        }
+
+        @Override
+        public void onFailed(String transferId, IOException error) {
+            System.err.println("File transfer " + transferId + " failed: " + error.getMessage());
+        }
+    }
+
     /**
      * Observer pattern interface for message notifications
      */
     public interface MessageListener {
         void onMessageReceived(Message message);
     }
+
+    /**
+     * Observer pattern interface for connection state changes, called on the thread
+     * that noticed the change
+     */
+    public interface StateListener {
+        void onStateChanged(ConnectionState state);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,14 @@
+package com.messaging.desktop.services;
+
+/**
+ * Lifecycle of the link to the server, as ConnectionService reports it to the UI
+ */
+public enum ConnectionState {
+    /** Never connected, or the user disconnected */
+    DISCONNECTED,
+    /** First connection attempt in progress */
+    CONNECTING,
+    CONNECTED,
+    /** The link dropped; sends wait in the outbox while the service retries */
+    RECONNECTING
+}
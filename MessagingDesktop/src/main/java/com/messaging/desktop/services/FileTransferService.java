@@ -1,15 +1,22 @@
 package com.messaging.desktop.services;
 
+import com.messaging.models.Message;
+import com.messaging.protocol.BlobCache;
+import com.messaging.protocol.ChunkedFileTransfer;
+
 import java.io.*;
         import java.nio.file.*;
 
 /**
  * Service for file operations
  * Handles reading and saving files for message attachments
+ * Downloads are kept by content hash, so an attachment received twice is stored once
  */
 public class FileTransferService {
 
-    private static final String DOWNLOAD_DIR = System.getProperty("user.home") + "/MessagingDownloads/";
+    static final String DOWNLOAD_DIR = System.getProperty("user.home") + "/MessagingDownloads/";
+
+    private final BlobCache cache = new BlobCache(new File(DOWNLOAD_DIR));
 
     public FileTransferService() {
         // Create downloads directory if it doesn't exist
@@ -36,12 +43,30 @@ public class FileTransferService {
     }
 
     /**
-     * Save byte array to file
+     * Save byte array to the download cache and return the stored file
+     */
+    public File saveFile(byte[] data, String fileName) throws IOException {
+        File file = cache.storeBytes(data, fileName);
+        System.out.println("File saved to: " + file.getAbsolutePath());
+        return file;
+    }
+
+    /**
+     * Saves an incoming attachment and returns its path
+     * Streamed transfers are already on disk and inline data is written to the cache;
+     * for a reference to content not cached yet the blob is fetched from the server and
+     * null is returned, the message arriving again with its path once downloaded
      */
-    public void saveFile(byte[] data, String fileName) throws IOException {
-        Path path = Paths.get(DOWNLOAD_DIR + fileName);
-        Files.write(path, data);
-        System.out.println("File saved to: " + path.toAbsolutePath());
+    public String storeAttachment(Message message) throws IOException {
+        String localPath = message.getHeader(ChunkedFileTransfer.HEADER_LOCAL_PATH);
+        if (localPath != null) {
+            return localPath;
+        }
+        if (ChunkedFileTransfer.isReference(message)) {
+            File file = ConnectionService.getInstance().getFileTransfers().fetch(message);
+            return file != null ? file.getAbsolutePath() : null;
+        }
+        return saveFile(message.getData(), message.getFileName()).getAbsolutePath();
     }
 
     /**
@@ -2,6 +2,14 @@ package com.messaging.desktop.services;
 
 import com.messaging.models.Message;
 import com.messaging.models.MessageType;
+import com.messaging.protocol.ChunkedFileTransfer;
+import com.messaging.protocol.Rooms;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Strategy pattern for handling different message types
@@ -37,42 +45,42 @@ public class MessageService {
     }
 
     public void sendImage(String receiverId, byte[] imageData, String fileName) {
-        Message message = new Message.Builder()
-                .senderId(connectionService.getUserId())
-                .receiverId(receiverId)
-                .type(MessageType.IMAGE)
-                .data(imageData)
-                .fileName(fileName)
-                .fileSize(imageData.length)
-                .build();
-
-        connectionService.sendMessage(message);
+        sendReference(receiverId, MessageType.IMAGE, fileName, ChunkedFileTransfer.bytesSource(imageData));
     }
 
     public void sendFile(String receiverId, byte[] fileData, String fileName) {
-        Message message = new Message.Builder()
-                .senderId(connectionService.getUserId())
-                .receiverId(receiverId)
-                .type(MessageType.FILE)
-                .data(fileData)
-                .fileName(fileName)
-                .fileSize(fileData.length)
-                .build();
-
-        connectionService.sendMessage(message);
+        sendReference(receiverId, MessageType.FILE, fileName, ChunkedFileTransfer.bytesSource(fileData));
     }
 
     public void sendAudio(String receiverId, byte[] audioData, String fileName) {
-        Message message = new Message.Builder()
+        sendReference(receiverId, MessageType.AUDIO, fileName, ChunkedFileTransfer.bytesSource(audioData));
+    }
+
+    /**
+     * Sends an IMAGE, FILE or AUDIO attachment from disk
+     * The file is streamed in chunks and never loaded whole into memory
+     */
+    public void sendAttachment(String receiverId, File file, MessageType type) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        sendReference(receiverId, type, file.getName(), ChunkedFileTransfer.fileSource(file));
+    }
+
+    /**
+     * Attachments travel by content hash: the blob is uploaded to the server unless it is
+     * stored there already, and the receiver gets a reference it fetches the data with
+     */
+    private void sendReference(String receiverId, MessageType type, String fileName,
+                               ChunkedFileTransfer.Source source) {
+        Message reference = new Message.Builder()
                 .senderId(connectionService.getUserId())
                 .receiverId(receiverId)
-                .type(MessageType.AUDIO)
-                .data(audioData)
+                .type(type)
                 .fileName(fileName)
-                .fileSize(audioData.length)
                 .build();
 
-        connectionService.sendMessage(message);
+        connectionService.getFileTransfers().sendAttachment(reference, source);
     }
 
     public void initiateVideoCall(String receiverId) {
@@ -96,4 +104,55 @@ public class MessageService {
 
         connectionService.sendMessage(message);
     }
-}
\ No newline at end of file
+
+    /**
+     * Group conversations: send to Rooms.address(room) once and the server fans the
+     * message out to every member
+     */
+    public void joinRoom(String room) {
+        connectionService.sendMessage(Rooms.join(connectionService.getUserId(), room));
+    }
+
+    public void leaveRoom(String room) {
+        connectionService.sendMessage(Rooms.leave(connectionService.getUserId(), room));
+    }
+
+    public void addToRoom(String room, List<String> members) {
+        connectionService.sendMessage(Rooms.add(connectionService.getUserId(), room, members));
+    }
+
+    public void requestRoomMembers(String room) {
+        connectionService.sendMessage(Rooms.list(connectionService.getUserId(), room));
+    }
+
+    /**
+     * Runs a chat command: /join room, /leave room, /add room user..., /members room
+     * Returns false if the input is not one
+     */
+    public boolean handleRoomCommand(String input) {
+        String[] words = input.trim().split("\\s+");
+        if (words.length < 2 || !words[0].startsWith("/")) {
+            return false;
+        }
+        String room = words[1].startsWith(Rooms.ADDRESS_PREFIX) ? Rooms.roomOf(words[1]) : words[1];
+        if (room == null) {
+            return false;
+        }
+        switch (words[0]) {
+            case "/join":
+                joinRoom(room);
+                return true;
+            case "/leave":
+                leaveRoom(room);
+                return true;
+            case "/add":
+                addToRoom(room, Arrays.asList(words).subList(2, words.length));
+                return true;
+            case "/members":
+                requestRoomMembers(room);
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.messaging.desktop.services;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * ThumbnailService implements the Singleton pattern
+ * Chat images are shown as thumbnails made off the FX thread. The first time an image
+ * is shown it is decoded with ImageIO subsampling, so only about the target width is
+ * ever in memory, scaled and written as PNG to MessagingDownloads/.thumbnails. Later
+ * sessions load that small file instead. Decoded thumbnails stay in an LRU bounded by
+ * pixel memory. Full-size images are only opened by the system viewer.
+ *
+ * The directory is capped too: at startup, and whenever a write takes it over
+ * DISK_BUDGET_BYTES, thumbnails unused for MAX_AGE_DAYS go, then the least recently
+ * used ones until it is back under three quarters of the budget. Loading a thumbnail
+ * from disk touches its modification time, which is what "used" means here.
+ */
+public class ThumbnailService {
+    private static final String THUMBNAIL_DIR = FileTransferService.DOWNLOAD_DIR + ".thumbnails/";
+    private static final long MEMORY_BUDGET_BYTES = 64L * 1024 * 1024;
+    private static final long DISK_BUDGET_BYTES = 128L * 1024 * 1024;
+    private static final long MAX_AGE_DAYS = 30;
+    private static final int WORKER_THREADS = 2;
+
+    private static ThumbnailService instance;
+
+    // FX thread only; access order makes it an LRU
+    private final LinkedHashMap<String, Image> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryBytes;
+    private final ExecutorService workers;
+    // Bytes in the thumbnail directory as of the last trim, plus what was written since
+    private final AtomicLong diskBytes = new AtomicLong();
+
+    private ThumbnailService() {
+        try {
+            Files.createDirectories(new File(THUMBNAIL_DIR).toPath());
+        } catch (IOException e) {
+            System.err.println("Failed to create thumbnail directory: " + e.getMessage());
+        }
+        this.workers = Executors.newFixedThreadPool(WORKER_THREADS, r -> {
+            Thread thread = new Thread(r, "thumbnail-worker");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        workers.execute(this::trimDisk);
+    }
+
+    /**
+     * Singleton pattern: Thread-safe lazy initialization
+     */
+    public static synchronized ThumbnailService getInstance() {
+        if (instance == null) {
+            instance = new ThumbnailService();
+        }
+        return instance;
+    }
+
+    /**
+     * Thumbnail in memory under a key an earlier load reported, or null; FX thread only
+     * Touches no file, so rebinding a list row costs a map lookup
+     */
+    public Image getCached(String key) {
+        return key != null ? memory.get(key) : null;
+    }
+
+    /**
+     * Makes or loads the thumbnail in the background and hands it to the callback on the
+     * FX thread together with its cache key (null image if the file is missing or not a
+     * readable image). The file is only looked at on the worker. Cancelling the returned
+     * future before it runs skips the work.
+     */
+    public Future<?> load(File source, int width, BiConsumer<String, Image> callback) {
+        return workers.submit(() -> {
+            String key = source.isFile() ? key(source, width) : null;
+            Image image = key != null ? thumbnail(source, width, key) : null;
+            Platform.runLater(() -> {
+                if (image != null) {
+                    remember(key, image);
+                }
+                callback.accept(key, image);
+            });
+        });
+    }
+
+    private void remember(String key, Image image) {
+        Image previous = memory.put(key, image);
+        if (previous != null) {
+            memoryBytes -= bytes(previous);
+        }
+        memoryBytes += bytes(image);
+        Iterator<Map.Entry<String, Image>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > MEMORY_BUDGET_BYTES && memory.size() > 1) {
+            memoryBytes -= bytes(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    private static long bytes(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+
+    private Image thumbnail(File source, int width, String key) {
+        File thumb = new File(THUMBNAIL_DIR, digest(key) + ".png");
+        if (thumb.isFile()) {
+            Image image = new Image(thumb.toURI().toString());
+            if (!image.isError()) {
+                thumb.setLastModified(System.currentTimeMillis());
+                return image;
+            }
+        }
+
+        try {
+            BufferedImage scaled = decodeScaled(source, width);
+            if (scaled != null) {
+                // Written aside and moved in, so a reader never sees half a file
+                Path partial = Files.createTempFile(thumb.getParentFile().toPath(), thumb.getName(), ".tmp");
+                ImageIO.write(scaled, "png", partial.toFile());
+                Files.move(partial, thumb.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (diskBytes.addAndGet(thumb.length()) > DISK_BUDGET_BYTES) {
+                    trimDisk();
+                }
+                return new Image(thumb.toURI().toString());
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to make thumbnail of " + source.getName() + ": " + e.getMessage());
+        }
+
+        // A format ImageIO lacks: JavaFX scales while decoding, but nothing is stored
+        Image image = new Image(source.toURI().toString(), width, 0, true, true);
+        return image.isError() ? null : image;
+    }
+
+    /**
+     * Deletes expired thumbnails and leftover temp files, then the least recently used
+     * until the directory is under three quarters of its budget; worker threads only
+     */
+    private synchronized void trimDisk() {
+        File[] files = new File(THUMBNAIL_DIR).listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiry = now - TimeUnit.DAYS.toMillis(MAX_AGE_DAYS);
+        List<File> kept = new ArrayList<>();
+        long total = 0;
+        int deleted = 0;
+        for (File file : files) {
+            boolean stale = file.getName().endsWith(".tmp") && file.lastModified() < now - TimeUnit.HOURS.toMillis(1);
+            if ((stale || file.lastModified() < expiry) && file.delete()) {
+                deleted++;
+            } else {
+                kept.add(file);
+                total += file.length();
+            }
+        }
+        if (total > DISK_BUDGET_BYTES) {
+            kept.sort(Comparator.comparingLong(File::lastModified));
+            long target = DISK_BUDGET_BYTES / 4 * 3;
+            for (File file : kept) {
+                if (total <= target) {
+                    break;
+                }
+                long length = file.length();
+                if (file.delete()) {
+                    total -= length;
+                    deleted++;
+                }
+            }
+        }
+        diskBytes.set(total);
+        if (deleted > 0) {
+            System.out.println("Removed " + deleted + " cached thumbnails, " + (total / 1024) + " KB kept");
+        }
+    }
+
+    /**
+     * Reads every n-th pixel so the decoded image is just over the target width, then
+     * scales it down the rest of the way
+     */
+    private static BufferedImage decodeScaled(File source, int width) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source)) {
+            if (input == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int sourceWidth = reader.getWidth(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, sourceWidth / width);
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage decoded = reader.read(0, param);
+                if (decoded.getWidth() <= width) {
+                    return decoded;
+                }
+                int height = Math.max(1, Math.round(decoded.getHeight() * (float) width / decoded.getWidth()));
+                BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = scaled.createGraphics();
+                try {
+                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    g.drawImage(decoded, 0, 0, width, height, null);
+                } finally {
+                    g.dispose();
+                }
+                return scaled;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * A changed file gets a new thumbnail
+     */
+    private static String key(File source, int width) {
+        return source.getAbsolutePath() + "|" + source.lastModified() + "|" + source.length() + "|" + width;
+    }
+
+    private static String digest(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,84 @@
+package com.messaging.desktop.utils;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chat transcript behind the virtualized chat list
+ * The list shows a window of the most recent items. Scrolling to the top pages older
+ * ones in, and the window shrinks back to MAX_WINDOW while the reader follows new
+ * messages at the bottom. The transcript itself keeps the last HISTORY_LIMIT items, so
+ * a session that runs for days holds about the same memory as one that runs for hours.
+ * FX thread only
+ */
+public class ChatHistory {
+    public static final int PAGE_SIZE = 100;
+    private static final int MAX_WINDOW = 5 * PAGE_SIZE;
+    private static final int HISTORY_LIMIT = 10_000;
+
+    private final List<ChatMessageItem> items = new ArrayList<>();
+    // Always the last window.size() entries of items
+    private final ObservableList<ChatMessageItem> window = FXCollections.observableArrayList();
+
+    /**
+     * What the list displays
+     */
+    public ObservableList<ChatMessageItem> getWindow() {
+        return window;
+    }
+
+    /**
+     * Adds a new item at the bottom; with trim, the window drops what scrolled far out of view
+     */
+    public void append(ChatMessageItem item, boolean trim) {
+        appendAll(Collections.singletonList(item), trim);
+    }
+
+    /**
+     * Adds a batch at the bottom as a single change to the window, so the list lays
+     * out once for the whole batch
+     */
+    public void appendAll(List<ChatMessageItem> batch, boolean trim) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        items.addAll(batch);
+        window.addAll(batch);
+
+        // Forget a page at a time, so the array copy is rare
+        if (items.size() > HISTORY_LIMIT + PAGE_SIZE) {
+            items.subList(0, items.size() - HISTORY_LIMIT).clear();
+            if (window.size() > items.size()) {
+                window.remove(0, window.size() - items.size());
+            }
+        }
+        if (trim && window.size() > MAX_WINDOW) {
+            window.remove(0, window.size() - MAX_WINDOW);
+        }
+    }
+
+    /**
+     * Prepends the page before the window; returns how many items came in
+     */
+    public int loadOlder() {
+        int start = items.size() - window.size();
+        int from = Math.max(0, start - PAGE_SIZE);
+        if (from == start) {
+            return 0;
+        }
+        window.addAll(0, items.subList(from, start));
+        return start - from;
+    }
+
+    public boolean hasOlder() {
+        return window.size() < items.size();
+    }
+
+    public int size() {
+        return items.size();
+    }
+}
@@ -1,16 +1,83 @@
 package com.messaging.desktop.utils;
 
 import com.messaging.models.Message;
+import com.messaging.models.MessageType;
 
+/**
+ * One row of the chat list: what to show, not how
+ * Rows hold only text and file paths; the list builds nodes for the visible ones
+ */
 public class ChatMessageItem {
+
+    public enum Kind {
+        TEXT,
+        IMAGE,
+        FILE,
+        SYSTEM
+    }
+
     private final Message message;
     private final boolean isSent; // true if sent by current user
+    private final Kind kind;
+    private final String sender;
+    private final String text;
+    private final String filePath;
+    private final long fileSize;
+    // Cache key of the thumbnail once made, so rebinding the row touches no file; FX thread only
+    private String thumbnailKey;
 
     public ChatMessageItem(Message message, boolean isSent) {
+        this(message, isSent, kindOf(message.getType()), message.getSenderId(),
+                message.getFileName() != null ? message.getFileName() : message.getContent(),
+                null, message.getFileSize());
+    }
+
+    private ChatMessageItem(Message message, boolean isSent, Kind kind, String sender,
+                            String text, String filePath, long fileSize) {
         this.message = message;
         this.isSent = isSent;
+        this.kind = kind;
+        this.sender = sender;
+        this.text = text;
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+    }
+
+    public static ChatMessageItem text(String content, boolean isSent, String sender) {
+        return new ChatMessageItem(null, isSent, Kind.TEXT, sender, content, null, 0);
+    }
+
+    /**
+     * Image stored at filePath
+     */
+    public static ChatMessageItem image(String filePath, String fileName, boolean isSent, String sender) {
+        return new ChatMessageItem(null, isSent, Kind.IMAGE, sender, fileName, filePath, 0);
+    }
+
+    /**
+     * File attachment; filePath is where a received file was saved, null for a sent one
+     */
+    public static ChatMessageItem file(String fileName, long fileSize, String filePath, boolean isSent, String sender) {
+        return new ChatMessageItem(null, isSent, Kind.FILE, sender, fileName, filePath, fileSize);
+    }
+
+    public static ChatMessageItem system(String content) {
+        return new ChatMessageItem(null, false, Kind.SYSTEM, null, content, null, 0);
+    }
+
+    private static Kind kindOf(MessageType type) {
+        if (type == MessageType.IMAGE) {
+            return Kind.IMAGE;
+        }
+        if (type == MessageType.FILE || type == MessageType.AUDIO) {
+            return Kind.FILE;
+        }
+        return Kind.TEXT;
     }
 
+    /**
+     * Message the row was made from, null for rows built from their parts
+     */
     public Message getMessage() {
         return message;
     }
@@ -18,4 +85,38 @@ public class ChatMessageItem {
     public boolean isSent() {
         return isSent;
     }
-}
\ No newline at end of file
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Message text, or the file name of an attachment
+     */
+    public String getText() {
+        return text;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Key the row's thumbnail is cached under, null until it was first made
+     */
+    public String getThumbnailKey() {
+        return thumbnailKey;
+    }
+
+    public void setThumbnailKey(String thumbnailKey) {
+        this.thumbnailKey = thumbnailKey;
+    }
+}
@@ -56,8 +56,9 @@ public class MessageHandler {
     private void handleImageMessage(Message message, MessageCallback callback) {
         try {
             // Save image automatically
-            fileTransferService.saveFile(message.getData(), message.getFileName());
-            callback.onFileReceived(message);
+            if (fileTransferService.storeAttachment(message) != null) {
+                callback.onFileReceived(message);
+            }
         } catch (IOException e) {
             callback.onError("Failed to save image: " + e.getMessage());
         }
@@ -66,8 +67,9 @@ public class MessageHandler {
     private void handleFileMessage(Message message, MessageCallback callback) {
         try {
             // Save file automatically
-            fileTransferService.saveFile(message.getData(), message.getFileName());
-            callback.onFileReceived(message);
+            if (fileTransferService.storeAttachment(message) != null) {
+                callback.onFileReceived(message);
+            }
         } catch (IOException e) {
             callback.onError("Failed to save file: " + e.getMessage());
         }
@@ -76,8 +78,9 @@ public class MessageHandler {
     private void handleAudioMessage(Message message, MessageCallback callback) {
         try {
             // Save audio file
-            fileTransferService.saveFile(message.getData(), message.getFileName());
-            callback.onFileReceived(message);
+            if (fileTransferService.storeAttachment(message) != null) {
+                callback.onFileReceived(message);
+            }
         } catch (IOException e) {
             callback.onError("Failed to save audio: " + e.getMessage());
         }
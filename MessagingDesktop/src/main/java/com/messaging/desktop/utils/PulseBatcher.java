@@ -0,0 +1,140 @@
+package com.messaging.desktop.utils;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Hands items produced on any thread to the FX thread in batches, one per pulse
+ * Instead of a Platform.runLater per item, offers go into a lock-free queue and an
+ * AnimationTimer drains it once per frame (about every 16 ms), so a burst of thousands
+ * of items costs a handful of layout passes. The timer only runs while items are
+ * waiting. A batch is capped so one frame never takes all the time.
+ *
+ * UI lag is how long the oldest item of a batch waited for its frame.
+ */
+public class PulseBatcher<T> {
+    private static final long SLOW_LAG_MILLIS = 250;
+
+    private final ConcurrentLinkedQueue<Pending<T>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Consumer<List<T>> consumer;
+    private final int maxBatch;
+    private final AnimationTimer timer;
+    // FX thread only: set while the consumer runs, which may spin a nested event loop
+    private boolean draining;
+
+    // Lag statistics, FX thread writes
+    private volatile long batches;
+    private volatile long items;
+    private volatile long totalLagNanos;
+    private volatile long maxLagNanos;
+
+    public PulseBatcher(int maxBatch, Consumer<List<T>> consumer) {
+        this.maxBatch = Math.max(1, maxBatch);
+        this.consumer = consumer;
+        this.timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                drain();
+            }
+        };
+    }
+
+    /**
+     * Queues an item from any thread
+     */
+    public void offer(T item) {
+        queue.add(new Pending<>(item));
+        if (scheduled.compareAndSet(false, true)) {
+            Platform.runLater(timer::start);
+        }
+    }
+
+    private void drain() {
+        if (draining) {
+            return;
+        }
+        List<T> batch = new ArrayList<>(Math.min(maxBatch, 256));
+        long oldest = 0;
+        Pending<T> pending;
+        while (batch.size() < maxBatch && (pending = queue.poll()) != null) {
+            if (batch.isEmpty()) {
+                oldest = pending.queuedAt;
+            }
+            batch.add(pending.item);
+        }
+
+        if (!batch.isEmpty()) {
+            record(batch.size(), System.nanoTime() - oldest);
+            draining = true;
+            try {
+                consumer.accept(batch);
+            } catch (RuntimeException e) {
+                System.err.println("Error applying UI batch: " + e.getMessage());
+            } finally {
+                draining = false;
+            }
+        }
+
+        if (queue.isEmpty()) {
+            timer.stop();
+            scheduled.set(false);
+            // An offer may have slipped in after the check; it found the timer still scheduled
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                timer.start();
+            }
+        }
+    }
+
+    private void record(int count, long lagNanos) {
+        batches++;
+        items += count;
+        totalLagNanos += lagNanos;
+        maxLagNanos = Math.max(maxLagNanos, lagNanos);
+        long lagMillis = TimeUnit.NANOSECONDS.toMillis(lagNanos);
+        if (lagMillis >= SLOW_LAG_MILLIS) {
+            System.err.println("UI is " + lagMillis + " ms behind, applying " + count + " update(s)");
+        }
+    }
+
+    public long getBatchCount() {
+        return batches;
+    }
+
+    public long getItemCount() {
+        return items;
+    }
+
+    public double getAverageLagMillis() {
+        long count = batches;
+        return count == 0 ? 0 : totalLagNanos / (count * 1_000_000.0);
+    }
+
+    public double getMaxLagMillis() {
+        return maxLagNanos / 1_000_000.0;
+    }
+
+    /**
+     * Items waiting for the next pulse
+     */
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    private static final class Pending<T> {
+        private final T item;
+        private final long queuedAt;
+
+        private Pending(T item) {
+            this.item = item;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+}
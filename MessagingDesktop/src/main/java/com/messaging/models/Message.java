@@ -2,6 +2,9 @@ package com.messaging.models;
 
 import java.io.Serializable;
 import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -20,6 +23,8 @@ public class Message implements Serializable {
     private long fileSize;
     private String fileName;
     private LocalDateTime timestamp;
+    // Optional key/value metadata, null when empty; older peers simply ignore it
+    private HashMap<String, String> headers;
 
     private Message(Builder builder) {
         this.id = builder.id;
@@ -31,6 +36,7 @@ public class Message implements Serializable {
         this.fileSize = builder.fileSize;
         this.fileName = builder.fileName;
         this.timestamp = builder.timestamp;
+        this.headers = builder.headers;
     }
 
     // Getters
@@ -43,6 +49,10 @@ public class Message implements Serializable {
     public long getFileSize() { return fileSize; }
     public String getFileName() { return fileName; }
     public LocalDateTime getTimestamp() { return timestamp; }
+    public Map<String, String> getHeaders() {
+        return headers != null ? Collections.unmodifiableMap(headers) : Collections.<String, String>emptyMap();
+    }
+    public String getHeader(String name) { return headers != null ? headers.get(name) : null; }
 
     /**
      * Builder pattern implementation for flexible Message creation
@@ -58,6 +68,12 @@ public class Message implements Serializable {
         private long fileSize;
         private String fileName;
         private LocalDateTime timestamp = LocalDateTime.now();
+        private HashMap<String, String> headers;
+
+        public Builder id(String id) {
+            this.id = id;
+            return this;
+        }
 
         public Builder senderId(String senderId) {
             this.senderId = senderId;
@@ -94,6 +110,24 @@ public class Message implements Serializable {
             return this;
         }
 
+        public Builder timestamp(LocalDateTime timestamp) {
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        public Builder header(String name, String value) {
+            if (headers == null) {
+                headers = new HashMap<>();
+            }
+            headers.put(name, value);
+            return this;
+        }
+
+        public Builder headers(Map<String, String> headers) {
+            this.headers = headers == null || headers.isEmpty() ? null : new HashMap<>(headers);
+            return this;
+        }
+
         public Message build() {
             return new Message(this);
         }
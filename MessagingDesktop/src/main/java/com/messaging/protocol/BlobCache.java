@@ -0,0 +1,156 @@
+package com.messaging.protocol;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash-keyed file store: content lives at directory/&lt;sha256&gt;/&lt;file name&gt;, so the
+ * same bytes are kept once however often, and under whatever names, they are sent or received
+ * Clients use their download directory as this cache; the server keeps its blob store the same way
+ */
+public class BlobCache {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+
+    public BlobCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Cached file holding the content with this hash, or null
+     */
+    public File lookup(String sha256) {
+        if (!isValidHash(sha256)) {
+            return null;
+        }
+        File[] files = new File(directory, sha256).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the content is cached with the expected length
+     */
+    public boolean contains(String sha256, long length) {
+        File file = lookup(sha256);
+        return file != null && file.length() == length;
+    }
+
+    /**
+     * Moves a file already verified against its hash into the cache and returns the cached copy
+     * If the content is cached already the file is simply deleted
+     */
+    public File store(File file, String sha256, String fileName) throws IOException {
+        if (!isValidHash(sha256)) {
+            throw new IOException("Invalid content hash: " + sha256);
+        }
+        File existing = lookup(sha256);
+        if (existing != null) {
+            if (!file.delete()) {
+                System.err.println("Could not delete duplicate " + file);
+            }
+            return existing;
+        }
+        File blobDir = new File(directory, sha256);
+        if (!blobDir.isDirectory() && !blobDir.mkdirs()) {
+            throw new IOException("Cannot create " + blobDir);
+        }
+        File target = new File(blobDir, safeName(fileName, sha256));
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    /**
+     * Caches inline attachment data, unless the same content is cached already
+     */
+    public File storeBytes(byte[] data, String fileName) throws IOException {
+        String sha256 = sha256(data);
+        File existing = lookup(sha256);
+        if (existing != null) {
+            return existing;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        // Written next to the blob directories, so a lookup never sees it half written
+        File temp = File.createTempFile(".blob", ".tmp", directory);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+        }
+        return store(temp, sha256, fileName);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    // ========== Hashing ==========
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public static String sha256(byte[] data) {
+        return toHex(newDigest().digest(data));
+    }
+
+    /**
+     * Hashes everything left in the stream and closes it
+     */
+    public static String sha256(InputStream in) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream input = in) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = Character.forDigit((digest[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(digest[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Lowercase hex SHA-256; anything else is refused before it gets near a path
+     */
+    public static boolean isValidHash(String sha256) {
+        if (sha256 == null || sha256.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < sha256.length(); i++) {
+            char c = sha256.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String safeName(String fileName, String fallback) {
+        // Never let a remote name escape the blob directory
+        String name = fileName != null ? new File(fileName).getName() : "";
+        return name.isEmpty() || name.startsWith(".") ? fallback : name;
+    }
+}
@@ -0,0 +1,56 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+
+/**
+ * Receiver side of Acks on a client: counts the frames read from the current
+ * connection, which is what the server expects back, and drops tracked messages whose
+ * id was already delivered (server retransmits after a lost acknowledgement)
+ */
+public final class InboundAcks {
+    private static final int REMEMBERED_IDS = 4096;
+
+    private final RecentIds seen = new RecentIds(REMEMBERED_IDS);
+    private long received;
+    private long acknowledged;
+
+    /**
+     * Counts a frame read from the connection; false if it is a duplicate to drop
+     */
+    public boolean accept(Message message) {
+        synchronized (this) {
+            received++;
+        }
+        return !Acks.isTracked(message.getType()) || seen.add(message.getId());
+    }
+
+    /**
+     * Value to piggyback on an outgoing message; marks it as sent
+     */
+    public synchronized long piggyback() {
+        acknowledged = received;
+        return received;
+    }
+
+    /**
+     * Value for a standalone ACK, or -1 if the server is already up to date
+     */
+    public synchronized long due() {
+        if (received == acknowledged) {
+            return -1;
+        }
+        acknowledged = received;
+        return received;
+    }
+
+    /**
+     * Frame counts start over on each connection; remembered ids do not
+     * Returns the frames read on the previous connection, which a resume reports
+     */
+    public synchronized long reset() {
+        long previous = received;
+        received = 0;
+        acknowledged = 0;
+        return previous;
+    }
+}
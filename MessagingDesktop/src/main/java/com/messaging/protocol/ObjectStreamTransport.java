@@ -0,0 +1,109 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Legacy transport: Java serialization through object streams
+ * Kept so clients that predate the binary codec still work
+ */
+public class ObjectStreamTransport implements MessageTransport {
+    private static final byte[] STREAM_HEADER = createStreamHeader();
+
+    private final OutputStream rawOutput;
+    private final ObjectOutputStream output;
+    private final ObjectInputStream input;
+
+    /**
+     * Both sides write their stream header before reading the peer's one,
+     * so the output stream must be created first
+     */
+    public ObjectStreamTransport(InputStream in, OutputStream out) throws IOException {
+        this.rawOutput = out;
+        this.output = new ObjectOutputStream(out);
+        this.output.flush();
+        this.input = new ObjectInputStream(in);
+    }
+
+    @Override
+    public Message readMessage() throws IOException {
+        while (true) {
+            Object obj;
+            try {
+                obj = input.readObject();
+            } catch (ClassNotFoundException e) {
+                System.err.println("Unknown message class: " + e.getMessage());
+                continue;
+            }
+            if (obj instanceof Message) {
+                return (Message) obj;
+            }
+            System.err.println("Received object is not a Message");
+        }
+    }
+
+    @Override
+    public void writeMessage(Message message) throws IOException {
+        output.writeObject(message);
+        output.flush();
+        output.reset(); // Important: prevents memory leaks with object caching
+    }
+
+    /**
+     * Every writeMessage ends with flush + reset, so the object stream holds no
+     * buffered data or handles here and a serializeFrame result can go straight out
+     */
+    @Override
+    public void writeFrame(byte[] frame) throws IOException {
+        output.flush();
+        rawOutput.write(frame);
+        rawOutput.flush();
+    }
+
+    @Override
+    public WireFormat getFormat() {
+        return WireFormat.JAVA_SERIALIZATION;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            input.close();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Serializes one message exactly as writeMessage does (writeObject + reset),
+     * so the bytes can be appended to any already-open object stream of a peer
+     */
+    public static byte[] serializeFrame(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(message);
+        output.reset();
+        output.flush();
+        byte[] frame = bytes.toByteArray();
+        return Arrays.copyOfRange(frame, STREAM_HEADER.length, frame.length);
+    }
+
+    /**
+     * Bytes an ObjectOutputStream writes on creation (magic + version)
+     */
+    public static byte[] streamHeader() {
+        return STREAM_HEADER.clone();
+    }
+
+    private static byte[] createStreamHeader() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new ObjectOutputStream(bytes).flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.models.User;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One PRESENCE message from the server: either the full online set (a snapshot, sent on
+ * connect and on request) or the users who joined and left since the previous version
+ * Versions increase by exactly one per delta, so a client can tell when it missed one
+ * A snapshot is split into pages of at most SNAPSHOT_PAGE_USERS users, all under the
+ * same version and sent back to back, so no frame grows with the number of users online
+ */
+public final class PresenceUpdate {
+    /**
+     * Users per snapshot page, far below MAX_FRAME_LENGTH even with long names
+     */
+    public static final int SNAPSHOT_PAGE_USERS = 1024;
+
+    private final long version;
+    private final boolean snapshot;
+    private final int page;
+    private final int pageCount;
+    private final List<User> joined;
+    private final List<String> left;
+
+    public PresenceUpdate(long version, boolean snapshot, List<User> joined, List<String> left) {
+        this(version, snapshot, 0, 1, joined, left);
+    }
+
+    public PresenceUpdate(long version, boolean snapshot, int page, int pageCount,
+                          List<User> joined, List<String> left) {
+        this.version = version;
+        this.snapshot = snapshot;
+        this.page = page;
+        this.pageCount = pageCount;
+        this.joined = joined != null ? joined : Collections.<User>emptyList();
+        this.left = left != null ? left : Collections.<String>emptyList();
+    }
+
+    public static PresenceUpdate snapshot(long version, List<User> online) {
+        return new PresenceUpdate(version, true, online, null);
+    }
+
+    /**
+     * The online set as snapshot pages, always at least one
+     */
+    public static List<PresenceUpdate> snapshotPages(long version, List<User> online) {
+        int pageCount = Math.max(1, (online.size() + SNAPSHOT_PAGE_USERS - 1) / SNAPSHOT_PAGE_USERS);
+        List<PresenceUpdate> pages = new ArrayList<>(pageCount);
+        for (int page = 0; page < pageCount; page++) {
+            int from = page * SNAPSHOT_PAGE_USERS;
+            int to = Math.min(online.size(), from + SNAPSHOT_PAGE_USERS);
+            pages.add(new PresenceUpdate(version, true, page, pageCount,
+                    new ArrayList<>(online.subList(from, to)), null));
+        }
+        return pages;
+    }
+
+    public long getVersion() { return version; }
+    public boolean isSnapshot() { return snapshot; }
+    public int getPage() { return page; }
+    public int getPageCount() { return pageCount; }
+    public boolean isLastPage() { return page == pageCount - 1; }
+    public List<User> getJoined() { return joined; }
+    public List<String> getLeft() { return left; }
+
+    public Message toMessage() {
+        return new Message.Builder()
+                .senderId(ChunkedFileTransfer.SERVER_ID)
+                .type(MessageType.PRESENCE)
+                .data(BinaryMessageCodec.encodePresence(this))
+                .build();
+    }
+
+    public static PresenceUpdate fromMessage(Message message) throws IOException {
+        if (message.getType() != MessageType.PRESENCE || message.getData() == null) {
+            throw new IOException("Not a presence update");
+        }
+        return BinaryMessageCodec.decodePresence(message.getData());
+    }
+
+    /**
+     * Asks the server for a fresh snapshot, after a client found a gap in the versions
+     */
+    public static Message snapshotRequest(String userId) {
+        return new Message.Builder()
+                .senderId(userId)
+                .receiverId(ChunkedFileTransfer.SERVER_ID)
+                .type(MessageType.PRESENCE)
+                .build();
+    }
+}
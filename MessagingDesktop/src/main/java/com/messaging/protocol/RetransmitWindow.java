@@ -0,0 +1,90 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Sender side of Acks on a client: numbers outgoing tracked messages and keeps them
+ * until the server acknowledges them
+ * The window is bounded; when it is full, stamp() refuses the message instead of
+ * waiting, and the caller holds it in its own outbox until an acknowledgement makes
+ * room, so a server that stops acknowledging slows the sender down without blocking
+ * whichever thread is sending. The session survives reconnects, which is what lets
+ * the server recognise retransmits of messages it already routed
+ */
+public final class RetransmitWindow {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final int capacity;
+    private final String session;
+    private final ArrayDeque<Message> unacked;
+    private long nextSeq = 1;
+    private long acked;
+
+    public RetransmitWindow() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RetransmitWindow(int capacity) {
+        this.capacity = capacity;
+        this.session = UUID.randomUUID().toString();
+        this.unacked = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Numbers the message and keeps it for retransmission; returns the copy to send, or
+     * null when the window is full and the message has to wait for an acknowledgement
+     */
+    public synchronized Message stamp(Message message) {
+        if (unacked.size() >= capacity) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<>();
+        headers.put(Acks.HEADER_SESSION, session);
+        headers.put(Acks.HEADER_SEQ, Long.toString(nextSeq++));
+        Message stamped = Acks.withHeaders(message, headers);
+        unacked.addLast(stamped);
+        return stamped;
+    }
+
+    /**
+     * Drops everything up to and including the acknowledged sequence
+     */
+    public synchronized void onAck(long seq) {
+        if (seq <= acked) {
+            return;
+        }
+        acked = seq;
+        while (!unacked.isEmpty() && Acks.seqOf(unacked.peekFirst()) <= seq) {
+            unacked.pollFirst();
+        }
+    }
+
+    /**
+     * Whether stamp() would take another message now
+     */
+    public synchronized boolean hasRoom() {
+        return unacked.size() < capacity;
+    }
+
+    /**
+     * Messages to send again, oldest first, after a new connection is up
+     */
+    public synchronized List<Message> pending() {
+        return new ArrayList<>(unacked);
+    }
+
+    public synchronized int size() {
+        return unacked.size();
+    }
+
+    public String getSession() {
+        return session;
+    }
+}
@@ -0,0 +1,125 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Group conversations: a message whose receiver is address(room) is sent once and the
+ * server fans it out to every member of the room
+ * Membership is managed with ROOM messages to SERVER_ID carrying HEADER_ROOM and
+ * HEADER_ACTION; the server answers members with ROOM notifications that list only the
+ * users that changed, plus the full member list for whoever just joined
+ */
+public final class Rooms {
+    public static final String ADDRESS_PREFIX = "room:";
+
+    public static final String HEADER_ROOM = "room";
+    public static final String HEADER_ACTION = "roomAction";
+
+    // Requests
+    public static final String ACTION_JOIN = "join";
+    public static final String ACTION_LEAVE = "leave";
+    /** Adds other users; only members can, unless the room does not exist yet */
+    public static final String ACTION_ADD = "add";
+    /** Asks for the member list, answered with ACTION_MEMBERS */
+    public static final String ACTION_LIST = "list";
+
+    // Notifications
+    public static final String ACTION_JOINED = "joined";
+    public static final String ACTION_LEFT = "left";
+    public static final String ACTION_MEMBERS = "members";
+
+    private Rooms() {
+    }
+
+    public static boolean isRoomAddress(String receiverId) {
+        return receiverId != null && receiverId.startsWith(ADDRESS_PREFIX)
+                && receiverId.length() > ADDRESS_PREFIX.length();
+    }
+
+    public static String address(String room) {
+        return ADDRESS_PREFIX + room;
+    }
+
+    /**
+     * Room name of a room address, or null
+     */
+    public static String roomOf(String receiverId) {
+        return isRoomAddress(receiverId) ? receiverId.substring(ADDRESS_PREFIX.length()) : null;
+    }
+
+    public static Message join(String userId, String room) {
+        return request(userId, room, ACTION_JOIN, null);
+    }
+
+    public static Message leave(String userId, String room) {
+        return request(userId, room, ACTION_LEAVE, null);
+    }
+
+    public static Message add(String userId, String room, List<String> members) {
+        return request(userId, room, ACTION_ADD, members);
+    }
+
+    public static Message list(String userId, String room) {
+        return request(userId, room, ACTION_LIST, null);
+    }
+
+    private static Message request(String userId, String room, String action, List<String> members) {
+        return new Message.Builder()
+                .senderId(userId)
+                .receiverId(ChunkedFileTransfer.SERVER_ID)
+                .type(MessageType.ROOM)
+                .header(HEADER_ROOM, room)
+                .header(HEADER_ACTION, action)
+                .data(members != null ? BinaryMessageCodec.encodeStrings(members) : null)
+                .build();
+    }
+
+    /**
+     * Server notification, addressed to the room so one encoding serves every member
+     */
+    public static Message notification(String room, String action, List<String> members) {
+        return new Message.Builder()
+                .senderId(ChunkedFileTransfer.SERVER_ID)
+                .receiverId(address(room))
+                .type(MessageType.ROOM)
+                .header(HEADER_ROOM, room)
+                .header(HEADER_ACTION, action)
+                .data(BinaryMessageCodec.encodeStrings(members))
+                .build();
+    }
+
+    /**
+     * User ids carried by a ROOM message, empty if it has none
+     */
+    public static List<String> members(Message message) throws IOException {
+        byte[] data = message.getData();
+        return data != null ? BinaryMessageCodec.decodeStrings(data) : Collections.<String>emptyList();
+    }
+
+    /**
+     * One-line description of a ROOM notification for the chat window
+     */
+    public static String describe(Message message) {
+        String room = message.getHeader(HEADER_ROOM);
+        String action = message.getHeader(HEADER_ACTION);
+        String users;
+        try {
+            users = String.join(", ", members(message));
+        } catch (IOException e) {
+            users = "?";
+        }
+        if (ACTION_JOINED.equals(action)) {
+            return users + " joined " + address(room);
+        } else if (ACTION_LEFT.equals(action)) {
+            return users + " left " + address(room);
+        } else if (ACTION_MEMBERS.equals(action)) {
+            return "Members of " + address(room) + ": " + users;
+        }
+        return "Room " + room + ": " + action;
+    }
+}
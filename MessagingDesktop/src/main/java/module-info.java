@@ -14,5 +14,6 @@ module org.example.messagingdesktop {
         exports com.messaging.desktop.services;
         exports com.messaging.desktop.utils;
         exports com.messaging.models;
+        exports com.messaging.protocol;
     opens com.messaging.models to javafx.fxml;
 }
\ No newline at end of file
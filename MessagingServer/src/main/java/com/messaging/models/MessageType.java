@@ -9,5 +9,12 @@ public enum MessageType {
     AUDIO_CALL,
     EMOJI,
     CALL_SIGNAL,
-    DISCONNECT
+    DISCONNECT,
+    FILE_OFFER,
+    FILE_RESUME,
+    FILE_CHUNK,
+    BLOB_REQUEST,
+    PRESENCE,
+    ROOM,
+    ACK
 }
\ No newline at end of file
@@ -0,0 +1,50 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+
+import java.io.*;
+
+/**
+ * Transport using length-prefixed BinaryMessageCodec frames
+ */
+public class BinaryTransport implements MessageTransport {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final InputStream input;
+    private final OutputStream output;
+
+    public BinaryTransport(InputStream in, OutputStream out) {
+        this.input = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, BUFFER_SIZE);
+        this.output = out instanceof BufferedOutputStream ? out : new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
+    @Override
+    public Message readMessage() throws IOException {
+        return BinaryMessageCodec.decode(BinaryMessageCodec.readFrame(input));
+    }
+
+    @Override
+    public void writeMessage(Message message) throws IOException {
+        writeFrame(BinaryMessageCodec.encodeFrame(message));
+    }
+
+    @Override
+    public void writeFrame(byte[] frame) throws IOException {
+        output.write(frame);
+        output.flush();
+    }
+
+    @Override
+    public WireFormat getFormat() {
+        return WireFormat.BINARY;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            input.close();
+        } finally {
+            output.close();
+        }
+    }
+}
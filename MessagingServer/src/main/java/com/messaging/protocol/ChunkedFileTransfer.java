@@ -0,0 +1,985 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Streams large attachments as a series of FILE_CHUNK messages instead of one Message
+ *
+ * The sender announces a transfer with FILE_OFFER; the receiver answers FILE_RESUME with
+ * the number of bytes it already holds and the sender streams chunks from there, each one
+ * carrying its offset and a CRC32. Verified chunks are written straight to a .part file
+ * and the receiver keeps acknowledging with FILE_RESUME, which also caps how far ahead
+ * the sender may run. After a reconnect the sender offers its unfinished transfers again
+ * and both sides continue from the receiver's offset, so memory stays at a few chunks
+ * per transfer whatever the file size.
+ *
+ * Attachments are content-addressed: sendAttachment offers the file to the server with
+ * its SHA-256, and a server already holding that blob acknowledges the whole length at
+ * once, so the bytes are uploaded at most once. The recipient then gets a reference, the
+ * attachment message with the hash and no data, which fetch() resolves from the local
+ * BlobCache or by asking the server to stream the blob (BLOB_REQUEST). Transfers carrying
+ * a hash are verified against it and land in the cache, never twice.
+ */
+public class ChunkedFileTransfer {
+    public static final int CHUNK_SIZE = 256 * 1024;
+    // Chunks the sender may have in flight past the last acknowledged offset
+    public static final int WINDOW_CHUNKS = 8;
+
+    public static final String HEADER_TRANSFER_ID = "transferId";
+    public static final String HEADER_OFFSET = "offset";
+    public static final String HEADER_CHECKSUM = "crc32";
+    public static final String HEADER_MEDIA_TYPE = "mediaType";
+    public static final String HEADER_RETRY = "retry";
+    /** Set on the message handed to Listener.onReceived: absolute path of the saved file */
+    public static final String HEADER_LOCAL_PATH = "localPath";
+    /** Content hash of a blob: on offers to and from the server and on attachment references */
+    public static final String HEADER_SHA256 = "sha256";
+    /** Set on the server's BLOB_REQUEST reply when it holds no such blob */
+    public static final String HEADER_MISSING = "missing";
+
+    /** Peer id of the server's blob store */
+    public static final String SERVER_ID = "SERVER";
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".meta";
+    private static final long ACK_INTERVAL = (long) CHUNK_SIZE * (WINDOW_CHUNKS / 2);
+
+    private final File downloadDir;
+    private final File partialDir;
+    private final MessageSink sink;
+    private final Executor executor;
+    private final Map<String, Outgoing> outgoing;
+    private final Map<String, Incoming> incoming;
+    private final BlobCache cache;
+    // Blobs requested from the server, by hash; guarded by itself
+    private final Map<String, Fetch> fetches;
+    // Attachment references that could not be sent yet, sent again by resumeAll
+    private final Queue<Message> unsentReferences;
+    // Attachments still being hashed, before they become uploads; cancel() removes them
+    private final Set<String> hashing;
+    private volatile Listener listener;
+
+    public ChunkedFileTransfer(File downloadDir, MessageSink sink, Executor executor) {
+        this.downloadDir = downloadDir;
+        this.partialDir = new File(downloadDir, ".partial");
+        this.sink = sink;
+        this.executor = executor;
+        this.outgoing = new ConcurrentHashMap<>();
+        this.incoming = new ConcurrentHashMap<>();
+        this.cache = new BlobCache(downloadDir);
+        this.fetches = new HashMap<>();
+        this.unsentReferences = new ConcurrentLinkedQueue<>();
+        this.hashing = ConcurrentHashMap.newKeySet();
+        loadPartialTransfers();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Whether a file is big enough to be worth streaming rather than sending inline
+     */
+    public static boolean shouldStream(long length) {
+        return length > CHUNK_SIZE;
+    }
+
+    // ========== Sending ==========
+
+    /**
+     * Starts streaming a file to a user; returns the transfer id
+     */
+    public String send(String senderId, String receiverId, MessageType mediaType,
+                       String fileName, Source source) {
+        return send(UUID.randomUUID().toString(), senderId, receiverId, mediaType, fileName, source, null);
+    }
+
+    /**
+     * Streams a file under a given transfer id, announcing its content hash if known
+     * so the receiver verifies and caches it; asking again for a running id offers it again
+     */
+    public String send(String transferId, String senderId, String receiverId, MessageType mediaType,
+                       String fileName, Source source, String sha256) {
+        Outgoing running = outgoing.get(transferId);
+        if (running != null) {
+            offer(running);
+            return transferId;
+        }
+        Outgoing transfer = new Outgoing(transferId, senderId, receiverId, mediaType, fileName, source, sha256, null);
+        outgoing.put(transfer.id, transfer);
+        offer(transfer);
+        executor.execute(transfer);
+        return transfer.id;
+    }
+
+    /**
+     * Sends a content-addressed attachment: the file is hashed, uploaded to the server only
+     * if it does not hold that blob yet, and then reference (type, receiver, file name...)
+     * goes out carrying the hash instead of the data. Returns the upload's transfer id,
+     * which cancel() accepts from the start, while the file is still being hashed
+     */
+    public String sendAttachment(final Message reference, final Source source) {
+        final String transferId = UUID.randomUUID().toString();
+        hashing.add(transferId);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String sha256;
+                try {
+                    sha256 = BlobCache.sha256(new CancellableInput(transferId, source.open(0)));
+                } catch (IOException e) {
+                    if (!hashing.remove(transferId)) {
+                        // Cancelled while hashing
+                        return;
+                    }
+                    Listener current = listener;
+                    if (current != null) {
+                        current.onFailed(transferId, e);
+                    }
+                    return;
+                }
+                Message withHash = copyOf(reference)
+                        .data(null)
+                        .fileSize(source.length())
+                        .header(HEADER_SHA256, sha256)
+                        .build();
+                Outgoing upload = new Outgoing(transferId, reference.getSenderId(), SERVER_ID,
+                        reference.getType(), sha256, source, sha256, withHash);
+                outgoing.put(transferId, upload);
+                // Registered before the check, so a cancel() in between finds one or the other
+                if (!hashing.remove(transferId)) {
+                    outgoing.remove(transferId);
+                    return;
+                }
+                offer(upload);
+                // Already on the executor: pump the upload from here
+                upload.run();
+            }
+        });
+        return transferId;
+    }
+
+    /**
+     * Whether a message is an attachment reference still to be resolved with fetch()
+     */
+    public static boolean isReference(Message message) {
+        return message.getData() == null && message.getHeader(HEADER_SHA256) != null
+                && message.getHeader(HEADER_LOCAL_PATH) == null;
+    }
+
+    /**
+     * Resolves an attachment reference: returns the cached file when this content was seen
+     * before, otherwise asks the server for the blob and returns null. The file then arrives
+     * through Listener.onReceived as a copy of the reference carrying HEADER_LOCAL_PATH
+     */
+    public File fetch(Message reference) throws IOException {
+        String sha256 = reference.getHeader(HEADER_SHA256);
+        if (!BlobCache.isValidHash(sha256)) {
+            throw new IOException("Invalid attachment reference: " + sha256);
+        }
+        File cached = cache.lookup(sha256);
+        if (cached != null) {
+            return cached;
+        }
+
+        Fetch fetch;
+        boolean first;
+        synchronized (fetches) {
+            fetch = fetches.get(sha256);
+            first = fetch == null;
+            if (first) {
+                fetch = new Fetch(UUID.randomUUID().toString(), reference);
+                fetches.put(sha256, fetch);
+            }
+            fetch.waiting.add(reference);
+        }
+        if (first) {
+            try {
+                requestBlob(fetch);
+            } catch (IOException e) {
+                // Requested again by resumeAll once the connection is back
+                System.err.println("Failed to request blob " + sha256 + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private void requestBlob(Fetch fetch) throws IOException {
+        Message reference = fetch.reference;
+        sink.send(new Message.Builder()
+                .senderId(reference.getReceiverId())
+                .receiverId(SERVER_ID)
+                .type(MessageType.BLOB_REQUEST)
+                .fileName(reference.getFileName())
+                .fileSize(reference.getFileSize())
+                .header(HEADER_TRANSFER_ID, fetch.transferId)
+                .header(HEADER_SHA256, reference.getHeader(HEADER_SHA256))
+                .header(HEADER_MEDIA_TYPE, reference.getType() != null ? reference.getType().name() : MessageType.FILE.name())
+                .build());
+    }
+
+    private void sendReference(Message reference) {
+        try {
+            sink.send(reference);
+        } catch (IOException e) {
+            unsentReferences.add(reference);
+        }
+    }
+
+    public BlobCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Picks every unfinished transfer up again, typically right after reconnecting:
+     * outgoing ones are offered again, incoming ones ask their sender to continue
+     */
+    public void resumeAll() {
+        Message reference;
+        while ((reference = unsentReferences.poll()) != null) {
+            try {
+                sink.send(reference);
+            } catch (IOException e) {
+                unsentReferences.add(reference);
+                break;
+            }
+        }
+        for (Outgoing transfer : outgoing.values()) {
+            offer(transfer);
+        }
+        List<Fetch> pending;
+        synchronized (fetches) {
+            pending = new ArrayList<>(fetches.values());
+        }
+        for (Fetch fetch : pending) {
+            try {
+                // Same transfer id, so the server continues from our partial file
+                requestBlob(fetch);
+            } catch (IOException e) {
+                System.err.println("Failed to request blob again: " + e.getMessage());
+            }
+        }
+        for (Incoming transfer : incoming.values()) {
+            try {
+                // Chunks still in flight from before are ignored until the sender rewinds
+                transfer.awaitingRetry = true;
+                acknowledge(transfer, transfer.offset, true);
+            } catch (IOException e) {
+                System.err.println("Failed to resume transfer " + transfer.id + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops an outgoing transfer; the receiver keeps its partial file
+     */
+    public void cancel(String transferId) {
+        hashing.remove(transferId);
+        Outgoing transfer = outgoing.remove(transferId);
+        if (transfer != null) {
+            transfer.finish();
+        }
+    }
+
+    public boolean isActive(String transferId) {
+        return hashing.contains(transferId) || outgoing.containsKey(transferId) || incoming.containsKey(transferId);
+    }
+
+    private void offer(Outgoing transfer) {
+        synchronized (transfer) {
+            transfer.accepted = false;
+        }
+        Message.Builder offer = new Message.Builder()
+                .senderId(transfer.senderId)
+                .receiverId(transfer.receiverId)
+                .type(MessageType.FILE_OFFER)
+                .fileName(transfer.fileName)
+                .fileSize(transfer.length)
+                .header(HEADER_TRANSFER_ID, transfer.id)
+                .header(HEADER_MEDIA_TYPE, transfer.mediaType.name());
+        if (transfer.sha256 != null) {
+            offer.header(HEADER_SHA256, transfer.sha256);
+        }
+        try {
+            sink.send(offer.build());
+        } catch (IOException e) {
+            // Offered again by resumeAll once the connection is back
+            System.err.println("Failed to offer transfer " + transfer.id + ": " + e.getMessage());
+        }
+    }
+
+    private void handleResume(Message message) {
+        Outgoing transfer = outgoing.get(message.getHeader(HEADER_TRANSFER_ID));
+        if (transfer == null) {
+            return;
+        }
+        long offset = parseLong(message.getHeader(HEADER_OFFSET), -1);
+        if (offset < 0) {
+            // Receiver lost track of the transfer: start the negotiation over
+            offer(transfer);
+            return;
+        }
+
+        boolean finished = false;
+        synchronized (transfer) {
+            if (offset >= transfer.length) {
+                finished = outgoing.remove(transfer.id) != null;
+                transfer.done = true;
+            } else if (!transfer.accepted || "true".equals(message.getHeader(HEADER_RETRY))) {
+                transfer.nextOffset = offset;
+                transfer.ackedOffset = offset;
+                transfer.accepted = true;
+            } else {
+                transfer.ackedOffset = Math.max(transfer.ackedOffset, offset);
+            }
+            transfer.notifyAll();
+        }
+        progress(transfer.id, Math.min(offset, transfer.length), transfer.length, false);
+        if (finished && transfer.reference != null) {
+            // The server holds the blob now, whether it was uploaded or already there
+            sendReference(transfer.reference);
+        }
+    }
+
+    // ========== Receiving ==========
+
+    /**
+     * Handles transfer protocol messages; returns false for anything else
+     */
+    public boolean handleMessage(Message message) {
+        MessageType type = message.getType();
+        if (type == MessageType.BLOB_REQUEST && message.getHeader(HEADER_MISSING) != null) {
+            blobMissing(message.getHeader(HEADER_SHA256));
+            return true;
+        }
+        if (type != MessageType.FILE_OFFER && type != MessageType.FILE_RESUME && type != MessageType.FILE_CHUNK) {
+            return false;
+        }
+        String transferId = message.getHeader(HEADER_TRANSFER_ID);
+        if (transferId == null) {
+            System.err.println("Transfer message without " + HEADER_TRANSFER_ID);
+            return true;
+        }
+
+        try {
+            switch (type) {
+                case FILE_OFFER:
+                    handleOffer(transferId, message);
+                    break;
+                case FILE_RESUME:
+                    handleResume(message);
+                    break;
+                default:
+                    handleChunk(transferId, message);
+                    break;
+            }
+        } catch (IOException e) {
+            Incoming failed = incoming.remove(transferId);
+            if (failed != null) {
+                failed.close();
+                failed.deleteMeta();
+            }
+            Listener current = listener;
+            if (current != null) {
+                current.onFailed(transferId, e);
+            }
+        }
+        return true;
+    }
+
+    private void handleOffer(String transferId, Message offer) throws IOException {
+        Incoming transfer = incoming.get(transferId);
+        String sha256 = offer.getHeader(HEADER_SHA256);
+        if (transfer == null && sha256 != null && cache.contains(sha256, offer.getFileSize())) {
+            // Content we already hold: acknowledge everything, nothing is sent
+            sendResume(offer.getReceiverId(), offer.getSenderId(), transferId, offer.getFileSize(), false);
+            File cached = cache.lookup(sha256);
+            deliver(sha256, cached, copyOf(offer)
+                    .type(mediaTypeOf(offer.getHeader(HEADER_MEDIA_TYPE)))
+                    .header(HEADER_LOCAL_PATH, cached.getAbsolutePath())
+                    .build());
+            return;
+        }
+        if (transfer == null) {
+            transfer = new Incoming(transferId, offer.getSenderId(), offer.getReceiverId(),
+                    mediaTypeOf(offer.getHeader(HEADER_MEDIA_TYPE)), offer.getFileName(),
+                    offer.getFileSize(), offer.getTimestamp(), BlobCache.isValidHash(sha256) ? sha256 : null);
+            transfer.saveMeta();
+            incoming.put(transferId, transfer);
+        }
+        transfer.awaitingRetry = false;
+        transfer.lastAck = transfer.offset;
+
+        if (transfer.offset >= transfer.length) {
+            complete(transfer);
+        } else {
+            acknowledge(transfer, transfer.offset, false);
+        }
+    }
+
+    private void handleChunk(String transferId, Message chunk) throws IOException {
+        Incoming transfer = incoming.get(transferId);
+        if (transfer == null) {
+            // Probably restarted since the offer; ask the sender to offer it again
+            sendResume(chunk.getReceiverId(), chunk.getSenderId(), transferId, -1, false);
+            return;
+        }
+
+        byte[] data = chunk.getData() != null ? chunk.getData() : new byte[0];
+        long offset = parseLong(chunk.getHeader(HEADER_OFFSET), -1);
+        if (offset != transfer.offset || !checksum(data).equals(chunk.getHeader(HEADER_CHECKSUM))) {
+            // Ask once for a rewind, then ignore the chunks already in flight
+            if (!transfer.awaitingRetry) {
+                transfer.awaitingRetry = true;
+                acknowledge(transfer, transfer.offset, true);
+            }
+            return;
+        }
+
+        transfer.file.seek(offset);
+        transfer.file.write(data);
+        if (transfer.digest != null) {
+            transfer.digest.update(data);
+        }
+        transfer.offset += data.length;
+        transfer.awaitingRetry = false;
+        progress(transferId, transfer.offset, transfer.length, true);
+
+        if (transfer.offset >= transfer.length) {
+            complete(transfer);
+        } else if (transfer.offset - transfer.lastAck >= ACK_INTERVAL) {
+            acknowledge(transfer, transfer.offset, false);
+        }
+    }
+
+    private void complete(Incoming transfer) throws IOException {
+        transfer.close();
+        incoming.remove(transfer.id);
+        transfer.deleteMeta();
+
+        File target;
+        if (transfer.sha256 != null) {
+            String actual = BlobCache.toHex(transfer.digest.digest());
+            if (!actual.equals(transfer.sha256)) {
+                if (!transfer.partFile.delete()) {
+                    System.err.println("Could not delete " + transfer.partFile);
+                }
+                throw new IOException("Content hash mismatch for " + transfer.fileName);
+            }
+            target = cache.store(transfer.partFile, transfer.sha256, transfer.fileName);
+        } else {
+            target = new File(downloadDir, transfer.fileName);
+            Files.move(transfer.partFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        acknowledge(transfer, transfer.length, false);
+
+        Message.Builder summary = new Message.Builder()
+                .id(transfer.id)
+                .senderId(transfer.senderId)
+                .receiverId(transfer.receiverId)
+                .type(transfer.mediaType)
+                .fileName(transfer.fileName)
+                .fileSize(transfer.length)
+                .timestamp(transfer.timestamp)
+                .header(HEADER_TRANSFER_ID, transfer.id)
+                .header(HEADER_LOCAL_PATH, target.getAbsolutePath());
+        if (transfer.sha256 != null) {
+            summary.header(HEADER_SHA256, transfer.sha256);
+        }
+        deliver(transfer.sha256, target, summary.build());
+    }
+
+    /**
+     * Reports a received file: once per reference waiting for this content if it was fetched,
+     * otherwise with the transfer's own summary
+     */
+    private void deliver(String sha256, File file, Message summary) {
+        Fetch fetch = null;
+        if (sha256 != null) {
+            synchronized (fetches) {
+                fetch = fetches.remove(sha256);
+            }
+        }
+        Listener current = listener;
+        if (current == null) {
+            return;
+        }
+        if (fetch == null) {
+            current.onReceived(summary, file);
+            return;
+        }
+        for (Message reference : fetch.waiting) {
+            current.onReceived(copyOf(reference)
+                    .header(HEADER_LOCAL_PATH, file.getAbsolutePath())
+                    .build(), file);
+        }
+    }
+
+    private void blobMissing(String sha256) {
+        Fetch fetch;
+        synchronized (fetches) {
+            fetch = sha256 != null ? fetches.remove(sha256) : null;
+        }
+        Listener current = listener;
+        if (fetch != null && current != null) {
+            current.onFailed(fetch.transferId, new FileNotFoundException("Server has no blob " + sha256));
+        }
+    }
+
+    private void acknowledge(Incoming transfer, long offset, boolean retry) throws IOException {
+        transfer.lastAck = offset;
+        sendResume(transfer.receiverId, transfer.senderId, transfer.id, offset, retry);
+    }
+
+    private void sendResume(String from, String to, String transferId, long offset, boolean retry) throws IOException {
+        Message.Builder resume = new Message.Builder()
+                .senderId(from)
+                .receiverId(to)
+                .type(MessageType.FILE_RESUME)
+                .header(HEADER_TRANSFER_ID, transferId)
+                .header(HEADER_OFFSET, Long.toString(offset));
+        if (retry) {
+            resume.header(HEADER_RETRY, "true");
+        }
+        sink.send(resume.build());
+    }
+
+    // ========== Helpers ==========
+
+    private void progress(String transferId, long transferred, long total, boolean isIncoming) {
+        Listener current = listener;
+        if (current != null) {
+            current.onProgress(transferId, transferred, total, isIncoming);
+        }
+    }
+
+    static String checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static long parseLong(String value, long fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Builder pre-filled with every field of a message
+     */
+    private static Message.Builder copyOf(Message message) {
+        return new Message.Builder()
+                .id(message.getId())
+                .senderId(message.getSenderId())
+                .receiverId(message.getReceiverId())
+                .type(message.getType())
+                .content(message.getContent())
+                .data(message.getData())
+                .fileSize(message.getFileSize())
+                .fileName(message.getFileName())
+                .timestamp(message.getTimestamp())
+                .headers(message.getHeaders());
+    }
+
+    /**
+     * Source over data already in memory
+     */
+    public static Source bytesSource(final byte[] data) {
+        return new Source() {
+            @Override
+            public long length() {
+                return data.length;
+            }
+
+            @Override
+            public InputStream open(long offset) {
+                return new ByteArrayInputStream(data, (int) offset, data.length - (int) offset);
+            }
+        };
+    }
+
+    /**
+     * Source backed by a local file
+     */
+    public static Source fileSource(final File file) {
+        return new Source() {
+            @Override
+            public long length() {
+                return file.length();
+            }
+
+            @Override
+            public InputStream open(long offset) throws IOException {
+                FileInputStream in = new FileInputStream(file);
+                in.getChannel().position(offset);
+                return in;
+            }
+        };
+    }
+
+    /**
+     * Stops hashing an attachment once it is cancelled
+     */
+    private final class CancellableInput extends FilterInputStream {
+        private final String transferId;
+
+        CancellableInput(String transferId, InputStream in) {
+            super(in);
+            this.transferId = transferId;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            return super.read(b, off, len);
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (!hashing.contains(transferId)) {
+                throw new InterruptedIOException("Transfer " + transferId + " cancelled");
+            }
+        }
+    }
+
+    /**
+     * Sender side state; the pump runs on the executor until the receiver has everything
+     */
+    private final class Outgoing implements Runnable {
+        final String id;
+        final String senderId;
+        final String receiverId;
+        final MessageType mediaType;
+        final String fileName;
+        final Source source;
+        final long length;
+        // Content hash announced in the offer, and the reference to send once the server has it
+        final String sha256;
+        final Message reference;
+
+        // Guarded by this
+        long nextOffset;
+        long ackedOffset;
+        boolean accepted;
+        boolean done;
+
+        private InputStream in;
+        private long inPosition;
+
+        Outgoing(String id, String senderId, String receiverId, MessageType mediaType,
+                 String fileName, Source source, String sha256, Message reference) {
+            this.id = id;
+            this.senderId = senderId;
+            this.receiverId = receiverId;
+            this.mediaType = mediaType != null ? mediaType : MessageType.FILE;
+            this.fileName = fileName;
+            this.source = source;
+            this.length = source.length();
+            this.sha256 = sha256;
+            this.reference = reference;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    long offset;
+                    synchronized (this) {
+                        while (!done && (!accepted || nextOffset >= length
+                                || nextOffset - ackedOffset >= (long) WINDOW_CHUNKS * CHUNK_SIZE)) {
+                            wait();
+                        }
+                        if (done) {
+                            return;
+                        }
+                        offset = nextOffset;
+                        // Claimed before sending, so a rewind arriving meanwhile is never overwritten
+                        nextOffset = offset + Math.min(CHUNK_SIZE, length - offset);
+                    }
+
+                    byte[] data = read(offset, (int) Math.min(CHUNK_SIZE, length - offset));
+                    Message chunk = new Message.Builder()
+                            .senderId(senderId)
+                            .receiverId(receiverId)
+                            .type(MessageType.FILE_CHUNK)
+                            .data(data)
+                            .header(HEADER_TRANSFER_ID, id)
+                            .header(HEADER_OFFSET, Long.toString(offset))
+                            .header(HEADER_CHECKSUM, checksum(data))
+                            .build();
+                    try {
+                        sink.send(chunk);
+                    } catch (IOException e) {
+                        // Wait for resumeAll and the receiver's offset
+                        synchronized (this) {
+                            accepted = false;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                outgoing.remove(id);
+                Listener current = listener;
+                if (current != null) {
+                    current.onFailed(id, e);
+                }
+            } finally {
+                closeInput();
+            }
+        }
+
+        private byte[] read(long offset, int count) throws IOException {
+            if (in == null || inPosition != offset) {
+                closeInput();
+                in = source.open(offset);
+                inPosition = offset;
+            }
+            byte[] data = new byte[count];
+            int read = 0;
+            while (read < count) {
+                int n = in.read(data, read, count - read);
+                if (n < 0) {
+                    throw new EOFException("File shrank during transfer: " + fileName);
+                }
+                read += n;
+            }
+            inPosition += count;
+            return data;
+        }
+
+        synchronized void finish() {
+            done = true;
+            notifyAll();
+        }
+
+        private void closeInput() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to read anyway
+                }
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * Restores incoming transfers a previous run left half done
+     */
+    private void loadPartialTransfers() {
+        File[] metas = partialDir.listFiles();
+        if (metas == null) {
+            return;
+        }
+        for (File meta : metas) {
+            if (!meta.getName().endsWith(META_SUFFIX)) {
+                continue;
+            }
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(meta)) {
+                properties.load(in);
+                String id = properties.getProperty("id");
+                String timestamp = properties.getProperty("timestamp");
+                Incoming transfer = new Incoming(id,
+                        properties.getProperty("senderId"),
+                        properties.getProperty("receiverId"),
+                        mediaTypeOf(properties.getProperty("mediaType")),
+                        properties.getProperty("fileName"),
+                        Long.parseLong(properties.getProperty("fileSize")),
+                        timestamp != null ? LocalDateTime.parse(timestamp) : null,
+                        properties.getProperty("sha256"));
+                incoming.put(id, transfer);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Ignoring unreadable transfer state " + meta + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Receiver side state, only touched by the thread reading from the connection
+     * A .meta file next to the .part file lets a restarted client resume it
+     */
+    private final class Incoming {
+        final String id;
+        final String senderId;
+        final String receiverId;
+        final MessageType mediaType;
+        final String fileName;
+        final long length;
+        final LocalDateTime timestamp;
+        final File partFile;
+        final File metaFile;
+        final RandomAccessFile file;
+        // Set when the sender announced a content hash; fed with every chunk in order
+        final String sha256;
+        final MessageDigest digest;
+
+        long offset;
+        long lastAck;
+        boolean awaitingRetry;
+
+        Incoming(String id, String senderId, String receiverId, MessageType mediaType,
+                 String fileName, long length, LocalDateTime timestamp, String sha256) throws IOException {
+            this.id = id;
+            this.senderId = senderId;
+            this.receiverId = receiverId;
+            this.mediaType = mediaType;
+            // Never let a remote name escape the download directory
+            this.fileName = new File(fileName != null ? fileName : id).getName();
+            this.length = length;
+            this.timestamp = timestamp;
+
+            if (!partialDir.isDirectory() && !partialDir.mkdirs()) {
+                throw new IOException("Cannot create " + partialDir);
+            }
+            String baseName = id.replaceAll("[^A-Za-z0-9-]", "_");
+            this.partFile = new File(partialDir, baseName + PART_SUFFIX);
+            this.metaFile = new File(partialDir, baseName + META_SUFFIX);
+            this.file = new RandomAccessFile(partFile, "rw");
+            // Whatever survived a previous attempt is kept, within the announced size
+            if (file.length() > length) {
+                file.setLength(0);
+            }
+            this.offset = file.length();
+            this.sha256 = sha256;
+            this.digest = sha256 != null ? BlobCache.newDigest() : null;
+            if (digest != null && offset > 0) {
+                hashExisting();
+            }
+        }
+
+        /**
+         * Catches the digest up with bytes kept from a previous run
+         */
+        private void hashExisting() throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            file.seek(0);
+            long remaining = offset;
+            while (remaining > 0) {
+                int n = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new EOFException("Partial file shrank: " + partFile);
+                }
+                digest.update(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+
+        void saveMeta() throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("id", id);
+            if (senderId != null) properties.setProperty("senderId", senderId);
+            if (receiverId != null) properties.setProperty("receiverId", receiverId);
+            properties.setProperty("mediaType", mediaType.name());
+            properties.setProperty("fileName", fileName);
+            properties.setProperty("fileSize", Long.toString(length));
+            if (timestamp != null) properties.setProperty("timestamp", timestamp.toString());
+            if (sha256 != null) properties.setProperty("sha256", sha256);
+            try (OutputStream out = new FileOutputStream(metaFile)) {
+                properties.store(out, null);
+            }
+        }
+
+        void deleteMeta() {
+            if (metaFile.exists() && !metaFile.delete()) {
+                System.err.println("Could not delete " + metaFile);
+            }
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.err.println("Error closing " + partFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static MessageType mediaTypeOf(String name) {
+        if (name != null) {
+            try {
+                return MessageType.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                // Fall through to FILE
+            }
+        }
+        return MessageType.FILE;
+    }
+
+    /**
+     * A blob requested from the server and the references waiting for it
+     */
+    private static final class Fetch {
+        final String transferId;
+        final Message reference;
+        final List<Message> waiting = new ArrayList<>();
+
+        Fetch(String transferId, Message reference) {
+            this.transferId = transferId;
+            this.reference = reference;
+        }
+    }
+
+    /**
+     * Sends one message over the client's connection
+     */
+    public interface MessageSink {
+        void send(Message message) throws IOException;
+    }
+
+    /**
+     * Where outgoing bytes come from; reopened at an offset after a resume
+     */
+    public interface Source {
+        long length();
+
+        InputStream open(long offset) throws IOException;
+    }
+
+    /**
+     * Observer pattern interface for transfer events, called on the reading or pump thread
+     */
+    public interface Listener {
+        void onProgress(String transferId, long transferred, long total, boolean incoming);
+
+        /**
+         * The summary carries the original media type, file name and size, no data,
+         * and HEADER_LOCAL_PATH pointing at the saved file
+         */
+        void onReceived(Message summary, File file);
+
+        void onFailed(String transferId, IOException error);
+    }
+}
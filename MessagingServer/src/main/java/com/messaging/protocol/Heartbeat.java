@@ -0,0 +1,127 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application-level liveness on a client-server connection
+ * A client opts in by putting HEADER_HEARTBEAT, its ping interval in milliseconds, on
+ * its first message. From then on it pings whenever it has sent nothing for a whole
+ * interval, and the server answers every ping with a pong; any frame counts as a sign
+ * of life either way. A side that hears nothing for MISSED_BEATS intervals drops the
+ * connection, so a dead peer is noticed long before TCP gives up on it.
+ *
+ * Pings and pongs are ACK frames, so they also carry the sender's acknowledgement and
+ * clients that do not know about heartbeats treat them as ordinary ACKs. A ping with a
+ * different interval changes it, which is how a client slows down in the background.
+ *
+ * An instance tracks one side of a connection.
+ */
+public final class Heartbeat {
+    public static final String HEADER_HEARTBEAT = "heartbeat";
+    public static final int MISSED_BEATS = 3;
+
+    private volatile long intervalNanos;
+    private volatile long lastSent;
+    private volatile long lastReceived;
+
+    public Heartbeat(long intervalMillis) {
+        setIntervalMillis(intervalMillis);
+        reset();
+    }
+
+    /**
+     * Starts counting again, for a new connection
+     */
+    public void reset() {
+        long now = System.nanoTime();
+        lastSent = now;
+        lastReceived = now;
+    }
+
+    public void onSent() {
+        lastSent = System.nanoTime();
+    }
+
+    public void onReceived() {
+        lastReceived = System.nanoTime();
+    }
+
+    public long getIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+    }
+
+    public void setIntervalMillis(long intervalMillis) {
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+    }
+
+    /**
+     * Whether nothing went out for a whole interval
+     */
+    public boolean isPingDue(long now) {
+        return now - lastSent >= intervalNanos;
+    }
+
+    /**
+     * Whether nothing came in for MISSED_BEATS intervals
+     */
+    public boolean isExpired(long now) {
+        return now - lastReceived >= MISSED_BEATS * intervalNanos;
+    }
+
+    /**
+     * Ping announcing the interval the client keeps to
+     */
+    public static Message ping(String senderId, String receiverId, long intervalMillis) {
+        return new Message.Builder()
+                .senderId(senderId)
+                .receiverId(receiverId)
+                .type(MessageType.ACK)
+                .header(HEADER_HEARTBEAT, Long.toString(intervalMillis))
+                .build();
+    }
+
+    /**
+     * Answer to a ping; carries no interval
+     */
+    public static Message pong(String senderId, String receiverId) {
+        return new Message.Builder()
+                .senderId(senderId)
+                .receiverId(receiverId)
+                .type(MessageType.ACK)
+                .header(HEADER_HEARTBEAT, "")
+                .build();
+    }
+
+    /**
+     * Copy of a client's first message opting in to heartbeats at the given interval
+     */
+    public static Message announce(Message hello, long intervalMillis) {
+        Map<String, String> extra = new HashMap<>();
+        extra.put(HEADER_HEARTBEAT, Long.toString(intervalMillis));
+        return Acks.withHeaders(hello, extra);
+    }
+
+    public static boolean isHeartbeat(Message message) {
+        return message.getType() == MessageType.ACK && message.getHeader(HEADER_HEARTBEAT) != null;
+    }
+
+    /**
+     * Interval a ping or first message announces, -1 if none
+     */
+    public static long intervalOf(Message message) {
+        String value = message.getHeader(HEADER_HEARTBEAT);
+        if (value == null || value.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.messaging.protocol;
+
+import com.messaging.models.User;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client-side copy of the server's online set, kept current from PRESENCE updates
+ * A snapshot replaces the set once its last page has arrived; a delta applies only on top
+ * of the version right before it. Deltas older than the current version are dropped, and
+ * a skipped version or snapshot page makes apply() return false so the caller can send
+ * PresenceUpdate.snapshotRequest
+ */
+public class PresenceView {
+    private final Map<String, User> online = new LinkedHashMap<>();
+    // -1 until the first snapshot arrives
+    private long version = -1;
+    // Snapshot pages received so far, until the last one completes the set
+    private Map<String, User> pending;
+    private long pendingVersion;
+    private int pendingPage;
+    private volatile Listener listener;
+
+    public interface Listener {
+        void onPresenceChanged(PresenceView view, PresenceUpdate update);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns false when deltas were missed and a new snapshot is needed
+     */
+    public boolean apply(PresenceUpdate update) {
+        synchronized (this) {
+            if (update.isSnapshot()) {
+                if (update.getPage() == 0) {
+                    pending = new LinkedHashMap<>();
+                    pendingVersion = update.getVersion();
+                } else if (pending == null || update.getVersion() != pendingVersion
+                        || update.getPage() != pendingPage) {
+                    // A page went missing
+                    pending = null;
+                    return false;
+                }
+                for (User user : update.getJoined()) {
+                    pending.put(user.getId(), user);
+                }
+                pendingPage = update.getPage() + 1;
+                if (!update.isLastPage()) {
+                    return true;
+                }
+                online.clear();
+                online.putAll(pending);
+                version = pendingVersion;
+                update = PresenceUpdate.snapshot(version, new ArrayList<>(pending.values()));
+                pending = null;
+            } else if (pending != null) {
+                // Pages are sent back to back, so the rest of the snapshot is lost
+                pending = null;
+                return false;
+            } else if (version < 0 || update.getVersion() <= version) {
+                // Before the first snapshot, or already covered by it
+                return true;
+            } else if (update.getVersion() != version + 1) {
+                return false;
+            } else {
+                for (String userId : update.getLeft()) {
+                    online.remove(userId);
+                }
+                for (User user : update.getJoined()) {
+                    online.put(user.getId(), user);
+                }
+                version = update.getVersion();
+            }
+        }
+
+        Listener current = listener;
+        if (current != null) {
+            current.onPresenceChanged(this, update);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets everything, for when the connection drops; the next connection starts
+     * from a fresh snapshot
+     */
+    public synchronized void clear() {
+        online.clear();
+        version = -1;
+        pending = null;
+    }
+
+    public synchronized List<User> getOnlineUsers() {
+        return new ArrayList<>(online.values());
+    }
+
+    public synchronized int getOnlineCount() {
+        return online.size();
+    }
+
+    public synchronized boolean isOnline(String userId) {
+        return online.containsKey(userId);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+}
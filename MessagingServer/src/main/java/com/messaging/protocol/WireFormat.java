@@ -0,0 +1,60 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Encodings a connection can use for Message frames
+ * Chosen once per connection during the handshake
+ */
+public enum WireFormat {
+    /** Legacy ObjectOutputStream/ObjectInputStream stream, used by old clients */
+    JAVA_SERIALIZATION((byte) 0),
+    /** Length-prefixed BinaryMessageCodec frames */
+    BINARY((byte) 1);
+
+    // Types that existed before the binary codec; older clients fail on any other enum constant
+    private static final Set<MessageType> LEGACY_TYPES = EnumSet.of(
+            MessageType.TEXT, MessageType.IMAGE, MessageType.FILE, MessageType.AUDIO,
+            MessageType.VIDEO_CALL, MessageType.AUDIO_CALL, MessageType.EMOJI,
+            MessageType.CALL_SIGNAL, MessageType.DISCONNECT);
+
+    private final byte id;
+
+    WireFormat(byte id) {
+        this.id = id;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * Whether a peer using this format can decode the message type
+     */
+    public boolean supports(MessageType type) {
+        return this == BINARY || LEGACY_TYPES.contains(type);
+    }
+
+    /**
+     * Complete frame for this format, ready for MessageTransport.writeFrame
+     */
+    public byte[] encodeFrame(Message message) throws IOException {
+        return this == BINARY
+                ? BinaryMessageCodec.encodeFrame(message)
+                : ObjectStreamTransport.serializeFrame(message);
+    }
+
+    public static WireFormat fromId(byte id) {
+        for (WireFormat format : values()) {
+            if (format.id == id) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
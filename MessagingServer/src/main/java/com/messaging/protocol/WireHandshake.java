@@ -0,0 +1,298 @@
+package com.messaging.protocol;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Negotiates the WireFormat when a connection opens
+ *
+ * A new client starts with a hello: magic "MSGB", protocol version, preferred format,
+ * then a varint count of string key/value attributes. The server answers with a hello
+ * carrying the chosen format. Old clients start directly with the object stream header
+ * (0xACED), which the server detects and serves with Java serialization.
+ */
+public final class WireHandshake {
+    public static final byte PROTOCOL_VERSION = 1;
+
+    private static final byte[] MAGIC = {'M', 'S', 'G', 'B'};
+    private static final int MAX_ATTRIBUTES = 64;
+    private static final int DETECT_BUFFER_SIZE = 16 * 1024;
+
+    private WireHandshake() {
+    }
+
+    /**
+     * Hello exchanged by both sides: a format plus free-form attributes
+     */
+    public static final class Hello {
+        private final WireFormat format;
+        private final Map<String, String> attributes;
+
+        public Hello(WireFormat format) {
+            this(format, new LinkedHashMap<String, String>());
+        }
+
+        public Hello(WireFormat format, Map<String, String> attributes) {
+            this.format = format;
+            this.attributes = attributes;
+        }
+
+        public WireFormat getFormat() {
+            return format;
+        }
+
+        public String getAttribute(String key) {
+            return attributes.get(key);
+        }
+
+        public Hello attribute(String key, String value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        public Map<String, String> getAttributes() {
+            return Collections.unmodifiableMap(attributes);
+        }
+    }
+
+    // ========== Server side ==========
+
+    /**
+     * Detects the client's format from its first bytes, answers a hello if there is one,
+     * and returns the transport to use for the rest of the connection
+     */
+    public static MessageTransport accept(InputStream rawIn, OutputStream rawOut) throws IOException {
+        return accept(rawIn, rawOut, null);
+    }
+
+    /**
+     * Same as accept(in, out) but reports the client's hello through helloOut[0]
+     * (null for legacy clients) and lets the caller add reply attributes
+     */
+    public static MessageTransport accept(InputStream rawIn, OutputStream rawOut, Hello[] helloOut)
+            throws IOException {
+        BufferedInputStream in = new BufferedInputStream(rawIn, DETECT_BUFFER_SIZE);
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        if (first < 0 || second < 0) {
+            throw new EOFException("Connection closed before handshake");
+        }
+
+        if (isObjectStreamStart(first, second)) {
+            return new ObjectStreamTransport(in, rawOut);
+        }
+
+        Hello hello = readHello(in);
+        if (helloOut != null) {
+            helloOut[0] = hello;
+        }
+        WireFormat chosen = chooseFormat(hello.getFormat());
+        rawOut.write(encodeHello(new Hello(chosen)));
+        rawOut.flush();
+        return open(chosen, in, rawOut);
+    }
+
+    /**
+     * True when the first two bytes are the ObjectOutputStream magic (0xACED)
+     */
+    public static boolean isObjectStreamStart(int first, int second) {
+        return (first & 0xFF) == 0xAC && (second & 0xFF) == 0xED;
+    }
+
+    /**
+     * The server speaks every format, so it honours the client's preference
+     */
+    public static WireFormat chooseFormat(WireFormat preferred) {
+        return preferred != null ? preferred : WireFormat.BINARY;
+    }
+
+    // ========== Client side ==========
+
+    /**
+     * Opens a transport towards the server, offering the preferred format
+     * Asking for JAVA_SERIALIZATION skips the hello so old servers still understand us
+     */
+    public static MessageTransport connect(InputStream rawIn, OutputStream rawOut, WireFormat preferred)
+            throws IOException {
+        if (preferred == WireFormat.JAVA_SERIALIZATION) {
+            return new ObjectStreamTransport(rawIn, rawOut);
+        }
+        Hello reply = exchangeHello(rawIn, rawOut, new Hello(preferred));
+        return open(reply.getFormat(), rawIn, rawOut);
+    }
+
+    /**
+     * Reconnect to a server that already accepted this format: the hello is buffered
+     * with whatever is written next instead of waiting for the reply, so the first
+     * messages leave in the same packet; the reply is checked on the first read
+     */
+    public static MessageTransport connectPipelined(InputStream rawIn, OutputStream rawOut, WireFormat format)
+            throws IOException {
+        if (format == WireFormat.JAVA_SERIALIZATION) {
+            return new ObjectStreamTransport(rawIn, rawOut);
+        }
+        BufferedOutputStream out = new BufferedOutputStream(rawOut, DETECT_BUFFER_SIZE);
+        out.write(encodeHello(new Hello(format)));
+        return open(format, new PendingReplyInputStream(rawIn, format), out);
+    }
+
+    /**
+     * Reads and checks the server's hello before the first byte of the transport
+     */
+    private static final class PendingReplyInputStream extends FilterInputStream {
+        private final WireFormat expected;
+        private boolean replied;
+
+        PendingReplyInputStream(InputStream in, WireFormat expected) {
+            super(in);
+            this.expected = expected;
+        }
+
+        private void awaitReply() throws IOException {
+            if (replied) {
+                return;
+            }
+            Hello reply = readHello(in);
+            if (reply.getFormat() != expected) {
+                throw new StreamCorruptedException("Server chose " + reply.getFormat() + " instead of " + expected);
+            }
+            replied = true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            awaitReply();
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            awaitReply();
+            return in.read(buffer, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return replied ? in.available() : 0;
+        }
+    }
+
+    /**
+     * Sends our hello and blocks for the server's one
+     */
+    public static Hello exchangeHello(InputStream rawIn, OutputStream rawOut, Hello hello) throws IOException {
+        rawOut.write(encodeHello(hello));
+        rawOut.flush();
+        Hello reply = readHello(rawIn);
+        if (reply.getFormat() == null) {
+            throw new StreamCorruptedException("Server chose an unknown wire format");
+        }
+        return reply;
+    }
+
+    public static MessageTransport open(WireFormat format, InputStream in, OutputStream out) throws IOException {
+        if (format == WireFormat.JAVA_SERIALIZATION) {
+            return new ObjectStreamTransport(in, out);
+        }
+        return new BinaryTransport(in, out);
+    }
+
+    // ========== Encoding ==========
+
+    public static byte[] encodeHello(Hello hello) {
+        BinaryMessageCodec.ByteWriter out = new BinaryMessageCodec.ByteWriter(32);
+        out.writeBytes(MAGIC, 0, MAGIC.length);
+        out.writeByte(PROTOCOL_VERSION);
+        out.writeByte(hello.getFormat().getId());
+        out.writeVarInt(hello.attributes.size());
+        for (Map.Entry<String, String> attribute : hello.attributes.entrySet()) {
+            out.writeString(attribute.getKey());
+            out.writeString(attribute.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Blocking read of a hello from a stream
+     */
+    public static Hello readHello(InputStream in) throws IOException {
+        byte[] header = new byte[MAGIC.length + 2];
+        readFully(in, header);
+        WireFormat format = checkHeader(header, 0);
+
+        int count = BinaryMessageCodec.readVarInt(in);
+        if (count < 0 || count > MAX_ATTRIBUTES) {
+            throw new StreamCorruptedException("Too many handshake attributes: " + count);
+        }
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            attributes.put(readString(in), readString(in));
+        }
+        return new Hello(format, attributes);
+    }
+
+    /**
+     * Non-blocking parse of a hello from buffered bytes
+     * Returns null when more bytes are needed; otherwise consumed[0] holds its length
+     */
+    public static Hello tryParseHello(byte[] buffer, int offset, int length, int[] consumed) throws IOException {
+        if (length < MAGIC.length + 2) {
+            return null;
+        }
+        WireFormat format = checkHeader(buffer, offset);
+        BinaryMessageCodec.ByteReader in = new BinaryMessageCodec.ByteReader(
+                buffer, offset + MAGIC.length + 2, length - MAGIC.length - 2);
+        try {
+            int count = in.readVarInt();
+            if (count < 0 || count > MAX_ATTRIBUTES) {
+                throw new StreamCorruptedException("Too many handshake attributes: " + count);
+            }
+            Map<String, String> attributes = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                attributes.put(in.readString(), in.readString());
+            }
+            consumed[0] = length - in.remaining();
+            return new Hello(format, attributes);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static WireFormat checkHeader(byte[] header, int offset) throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[offset + i] != MAGIC[i]) {
+                throw new StreamCorruptedException("Not a messaging handshake");
+            }
+        }
+        if (header[offset + MAGIC.length] != PROTOCOL_VERSION) {
+            throw new StreamCorruptedException("Unsupported protocol version: " + header[offset + MAGIC.length]);
+        }
+        return WireFormat.fromId(header[offset + MAGIC.length + 1]);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        int length = BinaryMessageCodec.readVarInt(in);
+        if (length < 0 || length > DETECT_BUFFER_SIZE) {
+            throw new StreamCorruptedException("Invalid handshake string length: " + length);
+        }
+        byte[] utf8 = new byte[length];
+        readFully(in, utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int n = in.read(buffer, read, buffer.length - read);
+            if (n < 0) {
+                throw new EOFException("Connection closed during handshake");
+            }
+            read += n;
+        }
+    }
+}
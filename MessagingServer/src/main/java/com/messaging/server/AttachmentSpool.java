@@ -0,0 +1,339 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.protocol.ChunkedFileTransfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AttachmentSpool implements the Singleton pattern
+ * Relays FILE_CHUNK data through the server without keeping it on the heap.
+ *
+ * Each transfer gets a spool file the chunks are written into at their offsets; the
+ * recipients' outbound queues only hold the chunk's header and a Region of that file.
+ * Connections write the header and then hand the region to FileChannel.transferTo, so
+ * the kernel moves file pages straight to the socket. Regions are read with positional
+ * transfers, so any number of connections can stream from the same spool at once.
+ * A spool is deleted when the receiver has acknowledged everything written to it and
+ * no region is still queued, or after sitting unused for messaging.relay.idleSeconds.
+ */
+public class AttachmentSpool {
+    private static final String SPOOL_SUFFIX = ".spool";
+
+    private static AttachmentSpool instance;
+
+    private final Path directory;
+    private final long idleMillis;
+    private final Map<String, Spool> spools;
+    private final ScheduledExecutorService sweeper;
+    private final LongAdder stagedBytes;
+
+    private AttachmentSpool() {
+        this.directory = ServerConfig.relaySpoolDirectory();
+        this.idleMillis = TimeUnit.SECONDS.toMillis(Math.max(1, ServerConfig.relayIdleSeconds()));
+        this.spools = new ConcurrentHashMap<>();
+        this.stagedBytes = new LongAdder();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "attachment-spool-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.min(idleMillis, TimeUnit.MINUTES.toMillis(1));
+        sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Singleton pattern: Thread-safe lazy initialization
+     */
+    public static synchronized AttachmentSpool getInstance() {
+        if (instance == null) {
+            instance = new AttachmentSpool();
+        }
+        return instance;
+    }
+
+    /**
+     * Writes the chunk's data to its transfer's spool and returns the message to route:
+     * the chunk without its data, backed by the spooled bytes
+     * Chunks without a transfer id or offset are routed as they are
+     */
+    public EncodedMessage stage(Message chunk) throws IOException {
+        String transferId = chunk.getHeader(ChunkedFileTransfer.HEADER_TRANSFER_ID);
+        long offset = parseOffset(chunk.getHeader(ChunkedFileTransfer.HEADER_OFFSET));
+        byte[] data = chunk.getData();
+        if (transferId == null || offset < 0 || data == null) {
+            return EncodedMessage.of(chunk);
+        }
+
+        String key = key(chunk.getSenderId(), transferId);
+        while (true) {
+            Spool spool = spools.computeIfAbsent(key, this::newSpool);
+            spool.lock.lock();
+            try {
+                if (spool.deleted) {
+                    // Lost a race with cleanup; the next lookup creates a fresh one
+                    continue;
+                }
+                spool.write(data, offset);
+                stagedBytes.add(data.length);
+                return EncodedMessage.ofRegion(withData(chunk, null), new Region(spool, offset, data.length), null);
+            } finally {
+                spool.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Notes a receiver's FILE_RESUME: once it covers everything spooled, the spool can go
+     */
+    public void onResume(Message resume) {
+        String transferId = resume.getHeader(ChunkedFileTransfer.HEADER_TRANSFER_ID);
+        if (transferId == null) {
+            return;
+        }
+        // The resume travels back to the uploader, who owns the spool
+        Spool spool = spools.get(key(resume.getReceiverId(), transferId));
+        if (spool == null) {
+            return;
+        }
+        long offset = parseOffset(resume.getHeader(ChunkedFileTransfer.HEADER_OFFSET));
+        spool.lock.lock();
+        try {
+            if (offset > spool.acked) {
+                spool.acked = offset;
+            }
+            spool.touch();
+            spool.deleteIfDone();
+        } finally {
+            spool.lock.unlock();
+        }
+    }
+
+    private Spool newSpool(String key) {
+        return new Spool(key, directory.resolve(ServerConfig.fileSafeName(key) + SPOOL_SUFFIX));
+    }
+
+    /**
+     * Deletes spools nobody used for a while, typically abandoned uploads
+     */
+    void sweep() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        for (Spool spool : spools.values()) {
+            spool.lock.lock();
+            try {
+                if (spool.refs == 0 && spool.lastUsed < cutoff) {
+                    System.out.println("Dropping idle relay spool " + spool.path.getFileName());
+                    spool.delete();
+                }
+            } finally {
+                spool.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Deletes every spool; only called while the server shuts down
+     */
+    public void close() {
+        sweeper.shutdownNow();
+        for (Spool spool : spools.values()) {
+            spool.lock.lock();
+            try {
+                spool.delete();
+            } finally {
+                spool.lock.unlock();
+            }
+        }
+    }
+
+    // ========== Metrics ==========
+
+    public int getSpoolCount() {
+        return spools.size();
+    }
+
+    /**
+     * Attachment bytes written to spool files since startup
+     */
+    public long getStagedBytes() {
+        return stagedBytes.sum();
+    }
+
+    // ========== Helpers ==========
+
+    private static String key(String uploaderId, String transferId) {
+        return uploaderId + "-" + transferId;
+    }
+
+    private static long parseOffset(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Copy of a message with different data
+     */
+    static Message withData(Message message, byte[] data) {
+        return new Message.Builder()
+                .id(message.getId())
+                .senderId(message.getSenderId())
+                .receiverId(message.getReceiverId())
+                .type(message.getType())
+                .content(message.getContent())
+                .data(data)
+                .fileSize(message.getFileSize())
+                .fileName(message.getFileName())
+                .timestamp(message.getTimestamp())
+                .headers(message.getHeaders())
+                .build();
+    }
+
+    /**
+     * A chunk's bytes inside a spool file; keeps the spool alive until released
+     */
+    public static final class Region {
+        private final Spool spool;
+        private final long position;
+        private final int length;
+
+        private Region(Spool spool, long position, int length) {
+            this.spool = spool;
+            this.position = position;
+            this.length = length;
+            spool.refs++;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        /**
+         * Sends the region from the given offset into it; returns the bytes the target took,
+         * which may be fewer than requested (zero when a non-blocking socket is full)
+         */
+        public long transferTo(long from, WritableByteChannel target) throws IOException {
+            return spool.channel.transferTo(position + from, length - from, target);
+        }
+
+        /**
+         * Copies the region onto the heap, for peers that need the whole frame at once
+         */
+        byte[] read() throws IOException {
+            byte[] data = new byte[length];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (spool.channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Relay spool shorter than expected: " + spool.path);
+                }
+            }
+            return data;
+        }
+
+        /**
+         * Another owner for the same region, released separately
+         */
+        Region retain() {
+            spool.lock.lock();
+            try {
+                spool.refs++;
+            } finally {
+                spool.lock.unlock();
+            }
+            return this;
+        }
+
+        void release() {
+            spool.lock.lock();
+            try {
+                spool.refs--;
+                spool.touch();
+                spool.deleteIfDone();
+            } finally {
+                spool.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One transfer's spool file; every field is guarded by lock
+     */
+    private final class Spool {
+        private final String key;
+        private final Path path;
+        private final ReentrantLock lock = new ReentrantLock();
+        private FileChannel channel;
+        // Regions still waiting in some outbound queue
+        private int refs;
+        // End of the furthest chunk written, and how far the receiver has acknowledged
+        private long written;
+        private long acked;
+        private long lastUsed;
+        private boolean deleted;
+
+        Spool(String key, Path path) {
+            this.key = key;
+            this.path = path;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        void write(byte[] data, long offset) throws IOException {
+            if (channel == null) {
+                Files.createDirectories(path.getParent());
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            written = Math.max(written, offset + data.length);
+            touch();
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        void deleteIfDone() {
+            if (refs == 0 && written > 0 && acked >= written) {
+                delete();
+            }
+        }
+
+        void delete() {
+            if (deleted) {
+                return;
+            }
+            deleted = true;
+            spools.remove(key, this);
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("Failed to delete relay spool " + path + ": " + e.getMessage());
+            }
+        }
+    }
+}
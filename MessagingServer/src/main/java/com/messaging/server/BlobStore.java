@@ -0,0 +1,257 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.protocol.BlobCache;
+import com.messaging.protocol.ChunkedFileTransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BlobStore implements the Singleton pattern
+ * Server end of content-addressed attachments. Clients upload files to SERVER_ID through
+ * ChunkedFileTransfer and fetch them back with BLOB_REQUEST; every blob is kept once per
+ * SHA-256 in a BlobCache, so an offer for content already stored is acknowledged in full
+ * without a byte being uploaded, and messages only ever carry the hash
+ */
+public class BlobStore {
+    private static BlobStore instance;
+
+    private final ChunkedFileTransfer transfers;
+    private final BlobCache blobs;
+    private final int inlineMaxBytes;
+    private final ExecutorService pumps;
+    // Downloads running to each user, stopped when the user disconnects
+    private final Map<String, Set<String>> downloads;
+
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder served = new LongAdder();
+
+    private BlobStore() {
+        AtomicInteger pumpIds = new AtomicInteger();
+        this.pumps = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "blob-transfer-" + pumpIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.transfers = new ChunkedFileTransfer(ServerConfig.blobStoreDirectory().toFile(),
+                this::sendToClient, pumps);
+        this.transfers.setListener(new StoreListener());
+        this.blobs = transfers.getCache();
+        this.inlineMaxBytes = ServerConfig.blobInlineMaxBytes();
+        this.downloads = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Singleton pattern: Thread-safe lazy initialization
+     */
+    public static synchronized BlobStore getInstance() {
+        if (instance == null) {
+            instance = new BlobStore();
+        }
+        return instance;
+    }
+
+    /**
+     * Handles a message a client addressed to SERVER_ID
+     */
+    public void handle(Message message) {
+        MessageType type = message.getType();
+        if (type == MessageType.BLOB_REQUEST) {
+            serve(message);
+            return;
+        }
+        if (type == MessageType.FILE_OFFER
+                && blobs.contains(message.getHeader(ChunkedFileTransfer.HEADER_SHA256), message.getFileSize())) {
+            deduplicated.increment();
+        }
+        if (!transfers.handleMessage(message)) {
+            System.out.println("Ignoring " + type + " sent to the server by " + message.getSenderId());
+        }
+    }
+
+    /**
+     * Streams a stored blob back to the client that asked for it, under the client's
+     * transfer id so a repeated request continues the same download
+     */
+    private void serve(Message request) {
+        String sha256 = request.getHeader(ChunkedFileTransfer.HEADER_SHA256);
+        String transferId = request.getHeader(ChunkedFileTransfer.HEADER_TRANSFER_ID);
+        String userId = request.getSenderId();
+        File blob = blobs.lookup(sha256);
+
+        if (blob == null || transferId == null) {
+            System.out.println("Blob requested by " + userId + " not found: " + sha256);
+            try {
+                sendToClient(new Message.Builder()
+                        .senderId(ChunkedFileTransfer.SERVER_ID)
+                        .receiverId(userId)
+                        .type(MessageType.BLOB_REQUEST)
+                        .header(ChunkedFileTransfer.HEADER_SHA256, sha256 != null ? sha256 : "")
+                        .header(ChunkedFileTransfer.HEADER_MISSING, "true")
+                        .build());
+            } catch (IOException e) {
+                // Gone already
+            }
+            return;
+        }
+
+        String fileName = request.getFileName() != null ? request.getFileName() : blob.getName();
+        transfers.send(transferId, ChunkedFileTransfer.SERVER_ID, userId, mediaTypeOf(request),
+                fileName, ChunkedFileTransfer.fileSource(blob), sha256);
+        downloads.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(transferId);
+        served.increment();
+    }
+
+    /**
+     * Stops the downloads to a user who went away; their next BLOB_REQUEST resumes them
+     */
+    public void onDisconnect(String userId) {
+        Set<String> running = downloads.remove(userId);
+        if (running != null) {
+            running.forEach(transfers::cancel);
+        }
+    }
+
+    /**
+     * Whether a message carries inline data too big to relay as one binary frame; legacy
+     * object-stream clients send attachments of any size inline
+     */
+    static boolean isOversized(Message message) {
+        byte[] data = message.getData();
+        return data != null && message.getType() != MessageType.FILE_CHUNK
+                && ChunkedFileTransfer.shouldStream(data.length);
+    }
+
+    /**
+     * Stores an oversized message's data as a blob and returns the message as a reference
+     * to it, which binary clients fetch and legacy ones get inline again
+     */
+    Message toReference(Message message, String sha256) throws IOException {
+        byte[] data = message.getData();
+        blobs.storeBytes(data, message.getFileName());
+        return new Message.Builder()
+                .id(message.getId())
+                .senderId(message.getSenderId())
+                .receiverId(message.getReceiverId())
+                .type(message.getType())
+                .content(message.getContent())
+                .fileSize(data.length)
+                .fileName(message.getFileName())
+                .timestamp(message.getTimestamp())
+                .headers(message.getHeaders())
+                .header(ChunkedFileTransfer.HEADER_SHA256, sha256)
+                .build();
+    }
+
+    /**
+     * Legacy object-stream clients cannot fetch blobs, so they get the referenced data inline
+     * Blobs over messaging.blob.inlineMaxBytes are never read into memory: the client gets
+     * a text notice naming the file instead. Returns null when the message is no reference
+     * or the blob is unknown
+     */
+    EncodedMessage inline(EncodedMessage reference) {
+        Message message = reference.getMessage();
+        if (!ChunkedFileTransfer.isReference(message)) {
+            return null;
+        }
+        File blob = blobs.lookup(message.getHeader(ChunkedFileTransfer.HEADER_SHA256));
+        if (blob == null) {
+            return null;
+        }
+        if (blob.length() > inlineMaxBytes) {
+            return EncodedMessage.of(tooLargeNotice(message, blob.length()), reference.getOnWritten());
+        }
+        try {
+            byte[] data = Files.readAllBytes(blob.toPath());
+            return EncodedMessage.of(AttachmentSpool.withData(message, data), reference.getOnWritten());
+        } catch (IOException e) {
+            System.err.println("Failed to read blob " + blob + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stands in for an attachment too big to send inline, under the same id so it is
+     * acknowledged and deduplicated like the attachment would have been
+     */
+    private static Message tooLargeNotice(Message reference, long length) {
+        String name = reference.getFileName() != null ? reference.getFileName() : "a file";
+        return new Message.Builder()
+                .id(reference.getId())
+                .senderId(reference.getSenderId())
+                .receiverId(reference.getReceiverId())
+                .type(MessageType.TEXT)
+                .content("[" + reference.getType() + " " + name + " (" + length + " bytes) is too large for " +
+                        "this client; update the app to receive it]")
+                .timestamp(reference.getTimestamp())
+                .build();
+    }
+
+    private void sendToClient(Message message) throws IOException {
+        if (!MessageBroker.getInstance().sendToClient(message)) {
+            throw new IOException("Not connected: " + message.getReceiverId());
+        }
+    }
+
+    private static MessageType mediaTypeOf(Message request) {
+        String name = request.getHeader(ChunkedFileTransfer.HEADER_MEDIA_TYPE);
+        if (name != null) {
+            try {
+                return MessageType.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                // Fall through to FILE
+            }
+        }
+        return MessageType.FILE;
+    }
+
+    public void close() {
+        pumps.shutdownNow();
+    }
+
+    // ========== Metrics ==========
+
+    /**
+     * Offers answered without an upload because the blob was already stored
+     */
+    public long getDeduplicatedCount() {
+        return deduplicated.sum();
+    }
+
+    /**
+     * Blob downloads started for clients
+     */
+    public long getServedCount() {
+        return served.sum();
+    }
+
+    /**
+     * Logs blobs as they become available
+     */
+    private class StoreListener implements ChunkedFileTransfer.Listener {
+        @Override
+        public void onProgress(String transferId, long transferred, long total, boolean incoming) {
+        }
+
+        @Override
+        public void onReceived(Message summary, File file) {
+            System.out.println("Blob stored: " + summary.getHeader(ChunkedFileTransfer.HEADER_SHA256) +
+                    " (" + file.length() + " bytes, from " + summary.getSenderId() + ")");
+        }
+
+        @Override
+        public void onFailed(String transferId, IOException error) {
+            System.err.println("Blob transfer " + transferId + " failed: " + error.getMessage());
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.protocol.WireFormat;
+
+/**
+ * Common contract for a connected client, whatever engine serves it
+ * MessageBroker only talks to clients through this interface (Observer pattern)
+ */
+public interface ClientConnection {
+
+    /**
+     * Id of the user bound to this connection, null until the handshake completes
+     */
+    String getUserId();
+
+    /**
+     * Queues an encoded message for the remote client without blocking the caller
+     * The connection takes its own reference; the caller keeps and releases its one
+     */
+    void send(EncodedMessage message);
+
+    /**
+     * Queues a message meant for this client only
+     */
+    default void sendMessage(Message message) {
+        EncodedMessage encoded = EncodedMessage.of(message);
+        try {
+            send(encoded);
+        } finally {
+            encoded.release();
+        }
+    }
+
+    /**
+     * Codec negotiated with the client, null before the handshake
+     */
+    WireFormat getWireFormat();
+
+    /**
+     * Pending outgoing messages, null until the handshake completes
+     */
+    OutboundQueue getOutboundQueue();
+
+    /**
+     * Drops the connection from any thread; cleanup follows as if the client had left
+     */
+    void close();
+}
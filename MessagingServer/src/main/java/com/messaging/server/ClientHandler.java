@@ -3,149 +3,281 @@ package com.messaging.server;
 import com.messaging.models.Message;
 import com.messaging.models.MessageType;
 import com.messaging.models.User;
+import com.messaging.protocol.MessageTransport;
+import com.messaging.protocol.WireFormat;
+import com.messaging.protocol.WireHandshake;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * Handles individual client connections
- * Each instance runs in its own thread from the server's thread pool
+ * Each instance runs in its own thread from the server's thread pool,
+ * or on its own virtual thread in ServerMode.VIRTUAL
+ * Outgoing messages go through a bounded OutboundQueue drained by a dedicated writer thread,
+ * so a slow reader on the other end never blocks the threads routing to it
+ * Relayed attachment chunks go from their spool file to the socket with FileChannel.transferTo
  */
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ClientConnection {
     private final Socket socket;
     private final MessageBroker broker;
-    private ObjectInputStream input;
-    private ObjectOutputStream output;
+    private final VirtualThreadStats threadStats;
+    private final ServerMetrics metrics;
+    // A lock instead of synchronized so a virtual thread blocked in a write never pins its carrier
+    private final ReentrantLock writeLock;
+    private InputStream socketInput;
+    private MessageTransport transport;
+    // Where spooled attachment bytes are written after their frame header
+    private WritableByteChannel rawOutput;
+    private volatile OutboundQueue outboundQueue;
+    private Thread writer;
     private String userId;
     private volatile boolean running;
+    private volatile ConnectionAcks acks;
+    private volatile HeartbeatMonitor.Watch heartbeat;
 
     public ClientHandler(Socket socket, MessageBroker broker) {
         this.socket = socket;
         this.broker = broker;
+        this.threadStats = VirtualThreadStats.getInstance();
+        this.metrics = ServerMetrics.getInstance();
+        this.writeLock = new ReentrantLock();
         this.running = true;
     }
 
     @Override
     public void run() {
         try {
-            // ObjectOutputStream must be created before ObjectInputStream
-            output = new ObjectOutputStream(socket.getOutputStream());
-            output.flush();
-            input = new ObjectInputStream(socket.getInputStream());
+            // Old clients open an object stream, new ones send a hello choosing the codec
+            socketInput = new CountingInputStream(socket.getInputStream(), metrics);
+            MessageTransport negotiated = WireHandshake.accept(socketInput, socket.getOutputStream());
+            writeLock.lock();
+            try {
+                transport = negotiated;
+                // Sockets accepted through a ServerSocketChannel allow zero-copy file transfers
+                rawOutput = socket.getChannel() != null
+                        ? socket.getChannel()
+                        : Channels.newChannel(socket.getOutputStream());
+            } finally {
+                writeLock.unlock();
+            }
 
             // First message should contain user info
-            Object obj = input.readObject();
-            if (obj instanceof Message) {
-                Message initMessage = (Message) obj;
-                this.userId = initMessage.getSenderId();
-
-                User user = new User(userId, userId);
-                user.setIpAddress(socket.getInetAddress().getHostAddress());
-                user.setPort(socket.getPort());
-
-                broker.registerUser(user);
-                broker.registerClient(userId, this);
-
-                System.out.println("User connected: " + userId);
+            Message initMessage = transport.readMessage();
+            this.userId = initMessage.getSenderId();
 
-                // Send list of online users
-                sendOnlineUsers();
+            User user = new User(userId, userId);
+            user.setIpAddress(socket.getInetAddress().getHostAddress());
+            user.setPort(socket.getPort());
 
-                // Message processing loop
-                while (running) {
-                    try {
-                        Object messageObj = input.readObject();
+            acks = new ConnectionAcks(this, initMessage);
+            outboundQueue = OutboundQueue.fromConfig(userId);
+            startWriter();
+            acks.start();
+            heartbeat = HeartbeatMonitor.getInstance().watch(this, initMessage);
 
-                        if (messageObj instanceof Message) {
-                            Message message = (Message) messageObj;
+            // Registration sends the presence snapshot ahead of any replayed offline messages
+            broker.registerUser(user);
+            broker.registerClient(userId, this);
 
-                            if (message.getType() == MessageType.DISCONNECT) {
-                                System.out.println("User disconnecting: " + userId);
-                                break;
-                            }
+            System.out.println("User connected: " + userId + " (" + transport.getFormat() + ")");
 
-                            System.out.println("Message received from " + userId +
-                                    ": Type=" + message.getType());
-
-                            broker.routeMessage(message);
-                        }
+            // Message processing loop
+            while (running) {
+                try {
+                    Message message = readMessage();
+                    if (heartbeat != null) {
+                        heartbeat.onReceived(message);
+                    }
+                    if (!acks.onReceived(message)) {
+                        continue;
+                    }
 
-                    } catch (EOFException e) {
-                        System.out.println("Client disconnected (EOF): " + userId);
+                    if (message.getType() == MessageType.DISCONNECT) {
+                        System.out.println("User disconnecting: " + userId);
                         break;
-                    } catch (ClassNotFoundException e) {
-                        System.err.println("Unknown message class: " + e.getMessage());
-                        e.printStackTrace();
                     }
+
+                    broker.routeMessage(message);
+                    acks.onRouted(message);
+
+                } catch (EOFException e) {
+                    System.out.println("Client disconnected (EOF): " + userId);
+                    break;
                 }
-            } else {
-                System.err.println("First message is not a Message object");
             }
 
         } catch (EOFException e) {
             System.out.println("Client connection closed unexpectedly: " +
                     (userId != null ? userId : "unknown"));
         } catch (IOException e) {
-            System.err.println("Client handler IO error: " + e.getMessage());
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            System.err.println("Class not found during initialization: " + e.getMessage());
-            e.printStackTrace();
+            // Not worth a stack trace when the writer closed the socket on purpose
+            if (running) {
+                System.err.println("Client handler IO error: " + e.getMessage());
+                e.printStackTrace();
+            }
         } finally {
             cleanup();
         }
     }
 
-    public synchronized void sendMessage(Message message) {
+    /**
+     * Blocking read, instrumented when running on a virtual thread
+     */
+    private Message readMessage() throws IOException {
+        String carrier = threadStats.currentCarrier();
+        threadStats.beforeBlockingRead(socketInput);
+        try {
+            return transport.readMessage();
+        } finally {
+            threadStats.afterBlockingRead(carrier);
+        }
+    }
+
+    /**
+     * Queues the message for the writer thread; never blocks on the socket
+     */
+    @Override
+    public void send(EncodedMessage message) {
+        OutboundQueue queue = outboundQueue;
+        if (queue == null || !running) {
+            return;
+        }
+        if (!queue.offer(message) && !queue.isClosed()) {
+            System.err.println("Outbound queue full for " + userId + ", disconnecting slow client");
+            close();
+        }
+    }
+
+    /**
+     * Writer runs on the same kind of thread as the reader: virtual in ServerMode.VIRTUAL
+     */
+    private void startWriter() {
+        Thread.Builder builder = Thread.currentThread().isVirtual()
+                ? Thread.ofVirtual()
+                : Thread.ofPlatform().daemon(true);
+        writer = builder.name("writer-" + userId).start(this::drainOutbound);
+    }
+
+    private void drainOutbound() {
+        OutboundQueue queue = outboundQueue;
         try {
-            if (output != null) {
-                output.writeObject(message);
-                output.flush();
-                output.reset(); // Important: prevents memory leaks with object caching
+            while (running) {
+                // Nothing leaves the queue while the client owes acks for a full window
+                if (!acks.awaitRoom(1000)) {
+                    continue;
+                }
+                EncodedMessage message = queue.poll(1, TimeUnit.SECONDS);
+                if (message == null) {
+                    if (queue.isClosed()) {
+                        break;
+                    }
+                    continue;
+                }
+                writeMessage(message);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
-            System.err.println("Error sending message to " + userId + ": " + e.getMessage());
-            running = false;
+            if (running) {
+                System.err.println("Error sending message to " + userId + ": " + e.getMessage());
+            }
+            close();
         }
     }
 
-    private void sendOnlineUsers() {
+    private void writeMessage(EncodedMessage message) throws IOException {
+        writeLock.lock();
         try {
-            Message userListMessage = new Message.Builder()
-                    .type(MessageType.TEXT)
-                    .content("ONLINE_USERS")
-                    .senderId("SERVER")
-                    .receiverId(userId)
-                    .build();
-            sendMessage(userListMessage);
-        } catch (Exception e) {
-            System.err.println("Error sending online users: " + e.getMessage());
+            AttachmentSpool.Region region = message.getRegion();
+            long frameBytes;
+            if (region != null && transport.getFormat() == WireFormat.BINARY) {
+                // The transport flushes the header before the data goes out on the raw channel
+                byte[] head = message.headFrame();
+                transport.writeFrame(head);
+                long sent = 0;
+                while (sent < region.length()) {
+                    long transferred = region.transferTo(sent, rawOutput);
+                    // A blocking target takes at least a byte, so nothing sent means the spool ended
+                    if (transferred <= 0) {
+                        throw new EOFException("Relay spool shorter than its region for " + userId);
+                    }
+                    sent += transferred;
+                }
+                frameBytes = head.length + sent;
+            } else {
+                byte[] frame = message.frame(transport.getFormat());
+                transport.writeFrame(frame);
+                frameBytes = frame.length;
+            }
+            metrics.onWritten(message, frameBytes);
+            acks.onWritten(message);
+            message.written();
+        } finally {
+            writeLock.unlock();
+            message.release();
+        }
+    }
+
+    /**
+     * Closing the socket unblocks the reader, which then runs cleanup()
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing socket: " + e.getMessage());
         }
     }
 
+    @Override
     public String getUserId() {
         return userId;
     }
 
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    @Override
+    public WireFormat getWireFormat() {
+        MessageTransport current = transport;
+        return current != null ? current.getFormat() : null;
+    }
+
     private void cleanup() {
         running = false;
+        if (heartbeat != null) {
+            heartbeat.cancel();
+        }
 
         if (userId != null) {
-            broker.unregisterClient(userId);
+            broker.unregisterClient(userId, this);
+            if (acks != null) {
+                acks.close();
+            }
             System.out.println("Client cleaned up: " + userId);
         }
 
-        try {
-            if (input != null) input.close();
-        } catch (IOException e) {
-            System.err.println("Error closing input stream: " + e.getMessage());
+        if (outboundQueue != null) {
+            outboundQueue.close();
+        }
+        if (writer != null) {
+            writer.interrupt();
         }
 
         try {
-            if (output != null) output.close();
+            if (transport != null) transport.close();
         } catch (IOException e) {
-            System.err.println("Error closing output stream: " + e.getMessage());
+            System.err.println("Error closing transport: " + e.getMessage());
         }
 
         try {
@@ -156,4 +288,34 @@ public class ClientHandler implements Runnable {
             System.err.println("Error closing socket: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Counts the raw bytes read from the socket into ServerMetrics
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final ServerMetrics metrics;
+
+        CountingInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                metrics.onBytesRead(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                metrics.onBytesRead(n);
+            }
+            return n;
+        }
+    }
+}
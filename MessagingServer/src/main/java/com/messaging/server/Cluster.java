@@ -0,0 +1,656 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.protocol.BinaryMessageCodec;
+import com.messaging.protocol.ChunkedFileTransfer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cluster implements the Singleton pattern
+ * Lets several server processes share the load, enabled by messaging.cluster.nodes
+ * (id@host:port of every node's peer listener) and messaging.cluster.node (this node's id).
+ *
+ * - Membership: every node pings every other over a ClusterLink; peers heard from within
+ *   messaging.cluster.failureMillis are live, and the live set forms a HashRing
+ * - Ownership: the ring assigns each user, room and blob to one node. A user's owner keeps
+ *   their offline inbox and knows which node they are connected to, so a message for a
+ *   user not connected here goes to the owner, and from there to the user's node
+ * - Rooms and blob transfers are handled on the node owning the room address or hash
+ * - Broadcasts cross each link once and fan out to clients on the receiving node
+ * When a node is lost only the keys it owned move; nodes then tell the new owners of
+ * their users where those users are. Without the properties every call is a no-op
+ *
+ * Every routed message is kept until the receiving node reports it delivered: it reached
+ * the user's socket, was stored there or was confirmed by the next hop. Until then it is
+ * sent again when the link reconnects or the confirmation is overdue, and routed afresh
+ * when the node leaves the ring, so a batch lost with a connection or a frame dropped by a
+ * full link queue is not lost with it. Delivery is at least once; clients drop the
+ * duplicates by message id.
+ * A routed message may also carry a callback, such as an offline inbox acknowledgement,
+ * that must not run before the message is safe. Callbacks run in the order their messages
+ * were routed to a node; when a node gives up on confirmations the callbacks are not run,
+ * so the records stay in the inbox to be replayed
+ */
+public class Cluster {
+    static final byte OP_HELLO = 1;
+    static final byte OP_PING = 2;
+    /** Deliver to one user: hops, user id, message */
+    static final byte OP_ROUTE = 3;
+    /** Handle as the owner of its receiver (a room or the server): message */
+    static final byte OP_FORWARD = 4;
+    /** Deliver to every client on the node: message */
+    static final byte OP_BROADCAST = 5;
+    /** The user is connected to the sending node: user id */
+    static final byte OP_LOCATE = 6;
+    static final byte OP_UNLOCATE = 7;
+    /** The node took over a routed message: delivery id */
+    static final byte OP_DELIVERED = 8;
+
+    static final byte[] PING_FRAME = frame(OP_PING, new byte[0]);
+
+    /**
+     * Links a message may cross: sender's node, a node with a stale ring, the owner, the
+     * user's node. Past that it is stored where it is rather than bounced between nodes
+     */
+    static final int MAX_HOPS = 3;
+
+    // Routed messages awaiting confirmation per node before the oldest are given up
+    private static final int MAX_AWAITING = 65536;
+    private static final long CONFIRM_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // Times an unconfirmed message is sent again to a live node before it is given up
+    private static final int MAX_RESENDS = 3;
+
+    private static Cluster instance;
+
+    private final boolean enabled;
+    private final String selfId;
+    private final Map<String, ClusterMember> members;
+    private final Map<String, ClusterLink> links;
+    private final Map<String, Long> lastHeard;
+    // Users this node owns that are connected to another node
+    private final Map<String, String> locations;
+    // Per local user: node handling each of their transfers with SERVER_ID
+    private final Map<String, Map<String, String>> transferRoutes;
+    // Per node: routed messages waiting for OP_DELIVERED, in routing order
+    private final Map<String, ArrayDeque<Awaiting>> awaiting;
+    private final AtomicLong nextDeliveryId;
+    private final int virtualNodes;
+    private final long heartbeatMillis;
+    private final long failureNanos;
+
+    private volatile HashRing ring;
+    private ServerSocket listener;
+    private ScheduledExecutorService monitor;
+
+    private Cluster() {
+        String spec = ServerConfig.clusterNodes();
+        this.selfId = ServerConfig.clusterNodeId();
+        this.members = spec != null ? ClusterMember.parseAll(spec) : Collections.<String, ClusterMember>emptyMap();
+        this.enabled = selfId != null && members.containsKey(selfId) && members.size() > 1;
+        if (spec != null && !enabled) {
+            System.err.println("Cluster disabled: messaging.cluster.node must name one of " + members.keySet());
+        }
+        this.links = new LinkedHashMap<>();
+        this.lastHeard = new ConcurrentHashMap<>();
+        this.locations = new ConcurrentHashMap<>();
+        this.transferRoutes = new ConcurrentHashMap<>();
+        this.awaiting = new ConcurrentHashMap<>();
+        this.nextDeliveryId = new AtomicLong();
+        this.virtualNodes = ServerConfig.clusterVirtualNodes();
+        this.heartbeatMillis = ServerConfig.clusterHeartbeatMillis();
+        this.failureNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.clusterFailureMillis());
+        this.ring = new HashRing(Collections.singleton(selfId != null ? selfId : "local"), virtualNodes);
+    }
+
+    /**
+     * Singleton pattern: Thread-safe lazy initialization
+     */
+    public static synchronized Cluster getInstance() {
+        if (instance == null) {
+            instance = new Cluster();
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Opens the peer listener and a link to every other node
+     */
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        ClusterMember self = members.get(selfId);
+        listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(self.getPort()));
+        Thread acceptor = new Thread(this::acceptPeers, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        byte[] hello = frame(OP_HELLO, utf(selfId));
+        for (ClusterMember member : members.values()) {
+            if (!member.getId().equals(selfId)) {
+                ClusterLink link = new ClusterLink(member, hello, heartbeatMillis,
+                        () -> unconfirmedFrames(member.getId()));
+                links.put(member.getId(), link);
+                link.start();
+            }
+        }
+
+        monitor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cluster-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        monitor.scheduleWithFixedDelay(this::checkMembership, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        System.out.println("Cluster node " + selfId + " listening for peers on port " + self.getPort() +
+                " (" + (members.size() - 1) + " peers configured)");
+    }
+
+    public void close() {
+        if (monitor != null) {
+            monitor.shutdownNow();
+        }
+        links.values().forEach(ClusterLink::close);
+        if (listener != null) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    // ========== Ownership ==========
+
+    /**
+     * Whether this node owns the key; always true outside a cluster
+     */
+    public boolean owns(String key) {
+        return !enabled || selfId.equals(ring.ownerOf(key));
+    }
+
+    public String ownerOf(String key) {
+        return ring.ownerOf(key);
+    }
+
+    /**
+     * Where a message for a user not connected here goes next: the user's owner or, on the
+     * owner, the node the user is connected to; null when it stays on this node
+     */
+    String nextHopFor(String userId) {
+        if (!enabled) {
+            return null;
+        }
+        String owner = ring.ownerOf(userId);
+        return selfId.equals(owner) ? locations.get(userId) : owner;
+    }
+
+    void setLocation(String userId, String nodeId) {
+        locations.put(userId, nodeId);
+    }
+
+    /**
+     * Node that handles a transfer message sent to SERVER_ID, null for this one
+     * Offers and blob requests go to the owner of the hash; the chunks and acks that follow
+     * carry only the transfer id, so the choice is remembered per transfer
+     */
+    String transferNodeFor(Message message) {
+        if (!enabled || message.getSenderId() == null) {
+            return null;
+        }
+        String transferId = message.getHeader(ChunkedFileTransfer.HEADER_TRANSFER_ID);
+        String sha256 = message.getHeader(ChunkedFileTransfer.HEADER_SHA256);
+        MessageType type = message.getType();
+        String node = null;
+        if (sha256 != null && (type == MessageType.FILE_OFFER || type == MessageType.BLOB_REQUEST)) {
+            node = ring.ownerOf(sha256);
+            if (transferId != null) {
+                transferRoutes.computeIfAbsent(message.getSenderId(), id -> new ConcurrentHashMap<>())
+                        .put(transferId, node);
+            }
+        } else if (transferId != null) {
+            Map<String, String> routes = transferRoutes.get(message.getSenderId());
+            node = routes != null ? routes.get(transferId) : null;
+        }
+        return node == null || selfId.equals(node) ? null : node;
+    }
+
+    // ========== Local clients ==========
+
+    void onLocalRegister(String userId) {
+        if (!enabled) {
+            return;
+        }
+        String owner = ring.ownerOf(userId);
+        if (selfId.equals(owner)) {
+            locations.remove(userId);
+        } else {
+            send(owner, frame(OP_LOCATE, utf(userId)));
+        }
+    }
+
+    void onLocalUnregister(String userId) {
+        if (!enabled) {
+            return;
+        }
+        transferRoutes.remove(userId);
+        String owner = ring.ownerOf(userId);
+        if (!selfId.equals(owner)) {
+            send(owner, frame(OP_UNLOCATE, utf(userId)));
+        }
+    }
+
+    // ========== Sending ==========
+
+    void route(String nodeId, String userId, int hops, Message message) {
+        route(nodeId, userId, hops, message, null);
+    }
+
+    /**
+     * Routes a message to a user via another node, which keeps it until that node confirms
+     * it delivered or stored it; onDelivered, if any, runs then, and never if it does not
+     */
+    void route(String nodeId, String userId, int hops, Message message, Runnable onDelivered) {
+        try {
+            long deliveryId = nextDeliveryId.incrementAndGet();
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(hops);
+            out.writeUTF(userId);
+            out.writeLong(deliveryId);
+            out.write(BinaryMessageCodec.encode(message));
+            byte[] frame = frame(OP_ROUTE, payload.toByteArray());
+            await(nodeId, new Awaiting(deliveryId, userId, hops, message, frame, onDelivered));
+            send(nodeId, frame);
+        } catch (IOException e) {
+            System.err.println("Failed to route message to node " + nodeId + ": " + e.getMessage());
+        }
+    }
+
+    void forward(String nodeId, Message message) {
+        send(nodeId, frame(OP_FORWARD, BinaryMessageCodec.encode(message)));
+    }
+
+    /**
+     * Sends a broadcast to every live peer; encoded once and sent once per node
+     */
+    void broadcast(Message message) {
+        if (!enabled) {
+            return;
+        }
+        byte[] frame = frame(OP_BROADCAST, BinaryMessageCodec.encode(message));
+        for (String nodeId : ring.getNodes()) {
+            if (!selfId.equals(nodeId)) {
+                send(nodeId, frame);
+            }
+        }
+    }
+
+    /**
+     * Tells the node that routed a message here that it is delivered or stored
+     */
+    private void confirm(String nodeId, long deliveryId) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(payload).writeLong(deliveryId);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        send(nodeId, frame(OP_DELIVERED, payload.toByteArray()));
+    }
+
+    private void send(String nodeId, byte[] frame) {
+        ClusterLink link = links.get(nodeId);
+        if (link != null) {
+            link.send(frame);
+        }
+    }
+
+    // ========== Receiving ==========
+
+    private void acceptPeers() {
+        while (!listener.isClosed()) {
+            try {
+                Socket socket = listener.accept();
+                Thread reader = new Thread(() -> serve(socket), "cluster-peer-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!listener.isClosed()) {
+                    System.err.println("Error accepting cluster peer: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        String peerId = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            byte[] hello = readFrame(in, OP_HELLO);
+            peerId = new DataInputStream(new ByteArrayInputStream(hello)).readUTF();
+            if (!members.containsKey(peerId) || selfId.equals(peerId)) {
+                System.err.println("Rejecting unknown cluster peer: " + peerId);
+                return;
+            }
+            lastHeard.put(peerId, System.nanoTime());
+
+            while (true) {
+                int op = in.readUnsignedByte();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                lastHeard.put(peerId, System.nanoTime());
+                dispatch(peerId, op, payload);
+            }
+        } catch (EOFException e) {
+            // Peer closed the link
+        } catch (IOException e) {
+            System.err.println("Cluster link from " + peerId + " failed: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void dispatch(String peerId, int op, byte[] payload) throws IOException {
+        MessageBroker broker = MessageBroker.getInstance();
+        ByteArrayInputStream bytes = new ByteArrayInputStream(payload);
+        DataInputStream in = new DataInputStream(bytes);
+        switch (op) {
+            case OP_PING:
+                break;
+
+            case OP_ROUTE: {
+                int hops = in.readUnsignedByte();
+                String userId = in.readUTF();
+                long deliveryId = in.readLong();
+                int offset = payload.length - bytes.available();
+                broker.deliverFromPeer(userId, hops,
+                        BinaryMessageCodec.decode(payload, offset, payload.length - offset),
+                        deliveryId != 0 ? () -> confirm(peerId, deliveryId) : null);
+                break;
+            }
+
+            case OP_DELIVERED:
+                onDelivered(peerId, in.readLong());
+                break;
+
+            case OP_FORWARD:
+                broker.routeForwarded(BinaryMessageCodec.decode(payload));
+                break;
+
+            case OP_BROADCAST:
+                broker.broadcastFromPeer(BinaryMessageCodec.decode(payload));
+                break;
+
+            case OP_LOCATE:
+                broker.registerRemote(in.readUTF(), peerId);
+                break;
+
+            case OP_UNLOCATE:
+                locations.remove(in.readUTF(), peerId);
+                break;
+
+            default:
+                System.err.println("Unknown cluster frame " + op + " from " + peerId);
+                break;
+        }
+    }
+
+    // ========== Delivery confirmations ==========
+
+    private void await(String nodeId, Awaiting entry) {
+        ArrayDeque<Awaiting> queue = awaiting.computeIfAbsent(nodeId, id -> new ArrayDeque<>());
+        synchronized (queue) {
+            if (queue.size() >= MAX_AWAITING) {
+                // Too far behind to keep the order: everything waiting stays in its inbox
+                System.err.println("Giving up on " + queue.size() + " unconfirmed deliveries to node " + nodeId);
+                queue.clear();
+            }
+            queue.addLast(entry);
+        }
+    }
+
+    /**
+     * Frames of the messages a node has not confirmed yet, written first when its link
+     * (re)connects since the previous connection may have lost them
+     */
+    private List<byte[]> unconfirmedFrames(String nodeId) {
+        List<byte[]> frames = new ArrayList<>();
+        ArrayDeque<Awaiting> queue = awaiting.get(nodeId);
+        if (queue != null) {
+            synchronized (queue) {
+                for (Awaiting entry : queue) {
+                    if (!entry.confirmed) {
+                        frames.add(entry.frame);
+                    }
+                }
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Marks a delivery confirmed and runs the callbacks of the confirmed ones at the head
+     */
+    private void onDelivered(String nodeId, long deliveryId) {
+        ArrayDeque<Awaiting> queue = awaiting.get(nodeId);
+        if (queue == null) {
+            return;
+        }
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (queue) {
+            for (Awaiting entry : queue) {
+                if (entry.deliveryId == deliveryId) {
+                    entry.confirmed = true;
+                    break;
+                }
+            }
+            while (!queue.isEmpty() && queue.peekFirst().confirmed) {
+                ready.add(queue.pollFirst().onDelivered);
+            }
+        }
+        for (Runnable callback : ready) {
+            if (callback == null) {
+                continue;
+            }
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                System.err.println("Delivery callback failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Routes the unconfirmed messages of dead nodes again over the current ring, and sends
+     * those a live node left unconfirmed too long once more; after MAX_RESENDS the node's
+     * confirmations are given up, since a lost one holds up every later callback for good
+     */
+    private void expireAwaiting(Set<String> live) {
+        long now = System.nanoTime();
+        List<Awaiting> reroute = new ArrayList<>();
+        awaiting.forEach((nodeId, queue) -> {
+            synchronized (queue) {
+                Awaiting oldest = queue.peekFirst();
+                if (oldest == null) {
+                    return;
+                }
+                if (!live.contains(nodeId)) {
+                    for (Awaiting entry : queue) {
+                        if (!entry.confirmed) {
+                            reroute.add(entry);
+                        }
+                    }
+                    queue.clear();
+                } else if (now - oldest.routedAt > CONFIRM_TIMEOUT_NANOS) {
+                    if (oldest.resends >= MAX_RESENDS) {
+                        System.err.println("Node " + nodeId + " did not confirm " + queue.size() +
+                                " deliveries; they stay in the offline inbox");
+                        queue.clear();
+                        return;
+                    }
+                    for (Awaiting entry : queue) {
+                        if (!entry.confirmed && now - entry.routedAt > CONFIRM_TIMEOUT_NANOS) {
+                            entry.routedAt = now;
+                            entry.resends++;
+                            send(nodeId, entry.frame);
+                        }
+                    }
+                }
+            }
+        });
+        if (!reroute.isEmpty()) {
+            System.out.println("Routing " + reroute.size() + " unconfirmed messages again after a node left");
+        }
+        MessageBroker broker = MessageBroker.getInstance();
+        for (Awaiting entry : reroute) {
+            broker.deliverFromPeer(entry.userId, entry.hops, entry.message, entry.onDelivered);
+        }
+    }
+
+    /**
+     * A routed message kept until the node confirms it, with the callback waiting for that
+     */
+    private static final class Awaiting {
+        final long deliveryId;
+        final String userId;
+        final int hops;
+        final Message message;
+        final byte[] frame;
+        final Runnable onDelivered;
+        long routedAt = System.nanoTime();
+        int resends;
+        boolean confirmed;
+
+        Awaiting(long deliveryId, String userId, int hops, Message message, byte[] frame, Runnable onDelivered) {
+            this.deliveryId = deliveryId;
+            this.userId = userId;
+            this.hops = hops;
+            this.message = message;
+            this.frame = frame;
+            this.onDelivered = onDelivered;
+        }
+    }
+
+    // ========== Membership ==========
+
+    /**
+     * Rebuilds the ring when a peer appears or goes silent, then hands the users connected
+     * here whose owner changed to their new owner
+     */
+    private void checkMembership() {
+        try {
+            long now = System.nanoTime();
+            Set<String> live = new TreeSet<>();
+            live.add(selfId);
+            lastHeard.forEach((nodeId, heard) -> {
+                if (now - heard < failureNanos) {
+                    live.add(nodeId);
+                }
+            });
+            HashRing previous = ring;
+            if (live.equals(previous.getNodes())) {
+                expireAwaiting(live);
+                return;
+            }
+            HashRing updated = new HashRing(live, virtualNodes);
+            ring = updated;
+            System.out.println("Cluster membership changed: " + live);
+
+            locations.entrySet().removeIf(entry ->
+                    !live.contains(entry.getValue()) || !selfId.equals(updated.ownerOf(entry.getKey())));
+            for (String userId : MessageBroker.getInstance().getConnectedClients().keySet()) {
+                String owner = updated.ownerOf(userId);
+                if (!owner.equals(previous.ownerOf(userId)) && !selfId.equals(owner)) {
+                    send(owner, frame(OP_LOCATE, utf(userId)));
+                }
+            }
+            // After the ring changed, so messages of a node that left go to the new owners
+            expireAwaiting(live);
+        } catch (RuntimeException e) {
+            System.err.println("Cluster membership check failed: " + e.getMessage());
+        }
+    }
+
+    // ========== Frames ==========
+
+    /**
+     * Link frame: op byte, payload length as a 4-byte int, payload
+     */
+    static byte[] frame(byte op, byte[] payload) {
+        byte[] frame = new byte[5 + payload.length];
+        frame[0] = op;
+        frame[1] = (byte) (payload.length >>> 24);
+        frame[2] = (byte) (payload.length >>> 16);
+        frame[3] = (byte) (payload.length >>> 8);
+        frame[4] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 5, payload.length);
+        return frame;
+    }
+
+    private static byte[] readFrame(DataInputStream in, byte expectedOp) throws IOException {
+        int op = in.readUnsignedByte();
+        if (op != expectedOp) {
+            throw new IOException("Expected cluster frame " + expectedOp + ", got " + op);
+        }
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private static byte[] utf(String value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(value);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // ========== Metrics ==========
+
+    public String getSelfId() {
+        return selfId;
+    }
+
+    public Set<String> getLiveNodes() {
+        return ring.getNodes();
+    }
+
+    Collection<ClusterLink> getLinks() {
+        return links.values();
+    }
+}
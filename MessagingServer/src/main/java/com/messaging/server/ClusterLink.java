@@ -0,0 +1,160 @@
+package com.messaging.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Outbound connection to one peer node
+ * Callers queue ready-made frames and return at once. A writer thread takes whatever has
+ * piled up, writes it through one buffered stream and flushes once per batch, so a busy
+ * link carries many frames per syscall and never waits for the peer between them; an
+ * idle one sends a ping every heartbeat so the peer knows this node is alive.
+ * The link reconnects on its own and first writes the routed messages the peer has not
+ * confirmed, since the previous connection may have lost them. Frames beyond
+ * QUEUE_CAPACITY are dropped: by then the peer is too slow or gone, and the ring hands its
+ * users to the other nodes; unconfirmed routed messages among them are sent again later
+ */
+final class ClusterLink {
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_BATCH = 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long RECONNECT_MILLIS = 500;
+
+    private final ClusterMember peer;
+    private final byte[] hello;
+    private final long heartbeatMillis;
+    private final Supplier<List<byte[]>> unconfirmed;
+    private final BlockingQueue<byte[]> queue;
+    private final Thread writer;
+    private volatile boolean running;
+    private volatile boolean connected;
+    private volatile Socket socket;
+
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    ClusterLink(ClusterMember peer, byte[] hello, long heartbeatMillis, Supplier<List<byte[]>> unconfirmed) {
+        this.peer = peer;
+        this.hello = hello;
+        this.heartbeatMillis = heartbeatMillis;
+        this.unconfirmed = unconfirmed;
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.writer = new Thread(this::run, "cluster-link-" + peer.getId());
+        this.writer.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        writer.start();
+    }
+
+    /**
+     * Queues a frame; false if it had to be dropped
+     */
+    boolean send(byte[] frame) {
+        if (!queue.offer(frame)) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private void run() {
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+        while (running) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                s.connect(new InetSocketAddress(peer.getHost(), peer.getPort()), CONNECT_TIMEOUT_MILLIS);
+                s.setTcpNoDelay(true);
+                OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+                out.write(hello);
+                List<byte[]> resend = unconfirmed.get();
+                for (byte[] frame : resend) {
+                    out.write(frame);
+                }
+                out.flush();
+                connected = true;
+                System.out.println("Cluster link to " + peer.getId() + " established" +
+                        (resend.isEmpty() ? "" : ", " + resend.size() + " unconfirmed messages sent again"));
+
+                while (running) {
+                    byte[] first = queue.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                    batch.add(first != null ? first : Cluster.PING_FRAME);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (byte[] frame : batch) {
+                        out.write(frame);
+                    }
+                    out.flush();
+                    frames.add(batch.size());
+                    batches.increment();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                if (connected) {
+                    System.err.println("Cluster link to " + peer.getId() + " lost: " + e.getMessage());
+                }
+                // The batch being written is lost with the connection
+                dropped.add(batch.size());
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    void close() {
+        running = false;
+        writer.interrupt();
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    ClusterMember getPeer() {
+        return peer;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    long getFrameCount() {
+        return frames.sum();
+    }
+
+    long getBatchCount() {
+        return batches.sum();
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,51 @@
+package com.messaging.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One configured node of the cluster: its id and the address of its peer listener
+ */
+final class ClusterMember {
+    private final String id;
+    private final String host;
+    private final int port;
+
+    ClusterMember(String id, String host, int port) {
+        this.id = id;
+        this.host = host;
+        this.port = port;
+    }
+
+    String getId() { return id; }
+    String getHost() { return host; }
+    int getPort() { return port; }
+
+    /**
+     * Parses messaging.cluster.nodes: comma-separated id@host:port entries
+     */
+    static Map<String, ClusterMember> parseAll(String spec) {
+        Map<String, ClusterMember> members = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int at = entry.indexOf('@');
+            int colon = entry.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("Invalid cluster node (expected id@host:port): " + entry);
+            }
+            String id = entry.substring(0, at);
+            String host = entry.substring(at + 1, colon);
+            int port = Integer.parseInt(entry.substring(colon + 1));
+            members.put(id, new ClusterMember(id, host, port));
+        }
+        return members;
+    }
+
+    @Override
+    public String toString() {
+        return id + "@" + host + ":" + port;
+    }
+}
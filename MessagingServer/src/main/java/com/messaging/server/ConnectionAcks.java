@@ -0,0 +1,283 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.protocol.Acks;
+import com.messaging.protocol.ChunkedFileTransfer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Acks on one client connection, created at the handshake
+ *
+ * Inbound, it drops ACKs and retransmits before they reach the broker and, once
+ * tracked messages are routed, acknowledges the highest sequence. Acknowledgements go
+ * out at most every messaging.ack.delayMillis, so a burst of messages is answered by
+ * one ACK. Outbound, it counts every frame written and, if the client acknowledges,
+ * keeps the tracked ones until it does; whatever is left when the connection closes is
+ * parked in DeliveryTracker under this connection's resume token. A full window stops
+ * the writer taking messages off the outbound queue until acknowledgements make room,
+ * so nothing written leaves the window unacknowledged; a client that stops acking
+ * fills its queue and meets the queue's overflow policy instead.
+ *
+ * An acking client gets the token in a welcome ACK, the first frame of the connection.
+ * When it reconnects it presents the token and the number of frames it read, and the
+ * new connection starts with only the frames it is missing, taken from the parked
+ * session or, if the old connection has not noticed it is dead yet, straight from it.
+ */
+final class ConnectionAcks {
+    private final ClientConnection connection;
+    private final Message initMessage;
+    private final String userId;
+    private final String token;
+    private final DeliveryTracker tracker;
+    private final boolean clientAcks;
+    private final int capacity;
+    private final Runnable onWindowOpen;
+
+    // Client to server
+    private long routedSeq;
+    private final AtomicBoolean ackScheduled = new AtomicBoolean();
+
+    // Server to client, guarded by this
+    private long written;
+    private final ArrayDeque<Unacked> unacked = new ArrayDeque<>();
+    private boolean stalled;
+
+    ConnectionAcks(ClientConnection connection, Message initMessage) {
+        this(connection, initMessage, () -> { });
+    }
+
+    /**
+     * onWindowOpen runs after an acknowledgement made room in a window the writer found
+     * full, for writers that do not wait in awaitRoom()
+     */
+    ConnectionAcks(ClientConnection connection, Message initMessage, Runnable onWindowOpen) {
+        this.connection = connection;
+        this.onWindowOpen = onWindowOpen;
+        this.initMessage = initMessage;
+        this.userId = initMessage.getSenderId();
+        this.tracker = DeliveryTracker.getInstance();
+        this.clientAcks = initMessage.getHeader(Acks.HEADER_ACK) != null;
+        this.token = clientAcks ? UUID.randomUUID().toString() : null;
+        this.capacity = Math.max(1, ServerConfig.ackWindow());
+    }
+
+    /**
+     * Sends the welcome ACK and resumes the session the client names; call once the
+     * outbound queue exists, before the client is registered
+     */
+    void start() {
+        if (!clientAcks) {
+            return;
+        }
+        String session = initMessage.getHeader(Acks.HEADER_SESSION);
+        long seq = session != null ? tracker.highestSeq(userId, session) : 0;
+        synchronized (this) {
+            routedSeq = seq;
+        }
+        connection.sendMessage(Acks.welcome(ChunkedFileTransfer.SERVER_ID, userId, seq, token));
+
+        String resumeToken = initMessage.getHeader(Acks.HEADER_RESUME);
+        long framesReceived = Math.max(0, Acks.ackOf(initMessage));
+        ConnectionAcks previous = resumeToken != null ? tracker.liveSession(userId, resumeToken) : null;
+        List<Message> gap;
+        if (previous != null) {
+            gap = tracker.onResumed(previous.drain(), framesReceived);
+            previous.connection.close();
+        } else {
+            gap = tracker.resume(userId, resumeToken, framesReceived);
+        }
+        tracker.onOpened(token, this);
+
+        for (Message message : gap) {
+            connection.sendMessage(message);
+        }
+        if (!gap.isEmpty()) {
+            System.out.println("Resumed session of " + userId + ": " + gap.size() + " message(s) resent");
+        }
+    }
+
+    /**
+     * Takes the acknowledgement a message carries; false if the message stops here
+     */
+    boolean onReceived(Message message) {
+        long ack = Acks.ackOf(message);
+        if (ack >= 0) {
+            onClientAck(ack);
+        }
+        if (message.getType() == MessageType.ACK) {
+            return false;
+        }
+        long seq = Acks.seqOf(message);
+        if (seq < 0 || tracker.firstDelivery(userId, message)) {
+            return true;
+        }
+        // Routed before; the acknowledgement must have been lost
+        onRouted(message);
+        return false;
+    }
+
+    /**
+     * The broker accepted the message; acknowledge it with the next batch
+     */
+    void onRouted(Message message) {
+        long seq = Acks.seqOf(message);
+        if (seq < 0) {
+            return;
+        }
+        synchronized (this) {
+            routedSeq = Math.max(routedSeq, seq);
+        }
+        if (ackScheduled.compareAndSet(false, true)) {
+            tracker.schedule(this::sendAck);
+        }
+    }
+
+    private void sendAck() {
+        ackScheduled.set(false);
+        long seq;
+        synchronized (this) {
+            seq = routedSeq;
+        }
+        connection.sendMessage(Acks.ack(ChunkedFileTransfer.SERVER_ID, userId, seq));
+        tracker.onAckSent();
+    }
+
+    /**
+     * Whether the writer may take the next message off the queue; false while the window
+     * is full of frames the client has not acknowledged
+     */
+    synchronized boolean hasRoom() {
+        if (!clientAcks || unacked.size() < capacity) {
+            return true;
+        }
+        if (!stalled) {
+            stalled = true;
+            tracker.onWindowFull();
+        }
+        return false;
+    }
+
+    /**
+     * For a writer thread: waits up to the timeout for room in the window
+     */
+    synchronized boolean awaitRoom(long timeoutMillis) throws InterruptedException {
+        if (hasRoom()) {
+            return true;
+        }
+        wait(timeoutMillis);
+        return hasRoom();
+    }
+
+    /**
+     * Called by the writer for every frame, in the order the client reads them
+     * The writer asks hasRoom() before taking each message, so the window stays in capacity
+     */
+    synchronized void onWritten(EncodedMessage message) {
+        written++;
+        if (!clientAcks || !Acks.isTracked(message.getMessage().getType())) {
+            return;
+        }
+        if (message.getRegion() != null) {
+            // Relayed attachments are not kept on the heap; transfers resume instead
+            return;
+        }
+        unacked.addLast(new Unacked(written, message.getMessage()));
+    }
+
+    private void onClientAck(long frames) {
+        boolean opened;
+        synchronized (this) {
+            while (!unacked.isEmpty() && unacked.peekFirst().frame <= frames) {
+                unacked.pollFirst();
+            }
+            opened = stalled && unacked.size() < capacity;
+            if (opened) {
+                stalled = false;
+                notifyAll();
+            }
+        }
+        if (opened) {
+            onWindowOpen.run();
+        }
+    }
+
+    /**
+     * Called once the connection is unregistered. If the user is already back on
+     * another connection what is left goes there now, otherwise it is parked
+     */
+    void close() {
+        if (!clientAcks) {
+            return;
+        }
+        tracker.onClosed(token, this);
+        List<Unacked> frames = drain();
+        if (MessageBroker.getInstance().isConnected(userId)) {
+            MessageBroker.getInstance().redeliver(userId, after(frames, 0));
+        } else {
+            tracker.park(userId, token, frames);
+        }
+    }
+
+    /**
+     * What the client may not have, oldest first: written but never acknowledged, then
+     * still queued. Empties the window and the queue
+     */
+    private List<Unacked> drain() {
+        List<Unacked> frames;
+        synchronized (this) {
+            frames = new ArrayList<>(unacked);
+            unacked.clear();
+            notifyAll();
+        }
+        OutboundQueue queue = connection.getOutboundQueue();
+        if (queue != null) {
+            EncodedMessage queued;
+            while ((queued = queue.poll()) != null) {
+                try {
+                    if (Acks.isTracked(queued.getMessage().getType()) && queued.getRegion() == null) {
+                        frames.add(new Unacked(Long.MAX_VALUE, queued.getMessage()));
+                    }
+                } finally {
+                    queued.release();
+                }
+            }
+        }
+        return frames;
+    }
+
+    String getUserId() {
+        return userId;
+    }
+
+    /**
+     * Messages of the frames past the number the client read
+     */
+    static List<Message> after(List<Unacked> frames, long framesReceived) {
+        List<Message> messages = new ArrayList<>(frames.size());
+        for (Unacked frame : frames) {
+            if (frame.frame > framesReceived) {
+                messages.add(frame.message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * A tracked message and the frame number it went out as; queued ones have none yet
+     */
+    static final class Unacked {
+        private final long frame;
+        private final Message message;
+
+        private Unacked(long frame, Message message) {
+            this.frame = frame;
+            this.message = message;
+        }
+    }
+}
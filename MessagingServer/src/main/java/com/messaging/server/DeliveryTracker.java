@@ -0,0 +1,268 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.protocol.Acks;
+import com.messaging.protocol.RecentIds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DeliveryTracker implements the Singleton pattern
+ * Server-wide state behind Acks: which tracked messages each user already had routed,
+ * the sessions waiting to be resumed, and the timer that coalesces acknowledgements.
+ *
+ * Message ids are remembered per user and client session, so a message the client
+ * retransmits after a lost acknowledgement is acknowledged again but routed once. A new
+ * session means the client restarted and its old window is gone, so its ids are
+ * forgotten. The per-connection side lives in ConnectionAcks.
+ *
+ * When an acking connection closes, what it could not confirm is parked under its
+ * resume token for messaging.resume.ttlMillis. A reconnect presenting the token gets
+ * only the frames it reports missing; otherwise the parked messages are delivered
+ * again like any other, to the next connection or the offline store.
+ */
+public class DeliveryTracker {
+    private static final int REMEMBERED_IDS = 1024;
+
+    private static DeliveryTracker instance;
+
+    private final Map<String, SenderState> senders = new ConcurrentHashMap<>();
+    private final Map<String, ParkedSession> parked = new ConcurrentHashMap<>();
+    private final Map<String, ConnectionAcks> live = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder acksSent = new LongAdder();
+    private final LongAdder redelivered = new LongAdder();
+    private final LongAdder windowFull = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder resumeSkipped = new LongAdder();
+
+    private DeliveryTracker() {
+        this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "ack-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Singleton pattern: Thread-safe lazy initialization
+     */
+    public static synchronized DeliveryTracker getInstance() {
+        if (instance == null) {
+            instance = new DeliveryTracker();
+        }
+        return instance;
+    }
+
+    /**
+     * Whether this is the first time the user's message arrives; false for a retransmit
+     */
+    boolean firstDelivery(String userId, Message message) {
+        String session = String.valueOf(message.getHeader(Acks.HEADER_SESSION));
+        SenderState state = senders.compute(userId, (id, current) ->
+                current != null && current.session.equals(session) ? current : new SenderState(session));
+        if (state.ids.add(message.getId())) {
+            state.onSeq(Acks.seqOf(message));
+            return true;
+        }
+        duplicates.increment();
+        return false;
+    }
+
+    /**
+     * Highest sequence routed for the client session, 0 for one not seen yet
+     */
+    long highestSeq(String userId, String session) {
+        SenderState state = senders.get(userId);
+        return state != null && state.session.equals(session) ? state.getHighestSeq() : 0;
+    }
+
+    /**
+     * Keeps a closed connection's unconfirmed frames until the client resumes or the
+     * session expires; a session parked earlier for the user is delivered again now
+     */
+    void park(String userId, String token, List<ConnectionAcks.Unacked> frames) {
+        ParkedSession session = new ParkedSession(token, frames);
+        ParkedSession previous = parked.put(userId, session);
+        if (previous != null) {
+            release(userId, previous);
+        }
+        try {
+            session.expiry = timer.schedule(() -> {
+                if (parked.remove(userId, session)) {
+                    redeliver(userId, ConnectionAcks.after(session.frames, 0));
+                }
+            }, Math.max(1, ServerConfig.resumeTtlMillis()), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down: nothing will resume
+            if (parked.remove(userId, session)) {
+                redeliver(userId, ConnectionAcks.after(session.frames, 0));
+            }
+        }
+    }
+
+    /**
+     * Frames the client is missing if it resumes its parked session, past the frames it
+     * reports; an empty list if there is nothing to resume
+     * A wrong token ends the parked session and its messages are delivered again
+     */
+    List<Message> resume(String userId, String token, long framesReceived) {
+        ParkedSession session = parked.remove(userId);
+        if (session == null) {
+            return Collections.emptyList();
+        }
+        if (token == null || !token.equals(session.token)) {
+            release(userId, session);
+            return Collections.emptyList();
+        }
+        ScheduledFuture<?> expiry = session.expiry;
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        return onResumed(session.frames, framesReceived);
+    }
+
+    /**
+     * The client resumed: of its old connection's frames, those it reports missing
+     */
+    List<Message> onResumed(List<ConnectionAcks.Unacked> frames, long framesReceived) {
+        List<Message> gap = ConnectionAcks.after(frames, framesReceived);
+        resumed.increment();
+        resumeSkipped.add(frames.size() - gap.size());
+        return gap;
+    }
+
+    /**
+     * Open connection holding the token, still waiting for its socket to fail
+     */
+    ConnectionAcks liveSession(String userId, String token) {
+        ConnectionAcks acks = live.remove(token);
+        return acks != null && acks.getUserId().equals(userId) ? acks : null;
+    }
+
+    void onOpened(String token, ConnectionAcks acks) {
+        live.put(token, acks);
+    }
+
+    void onClosed(String token, ConnectionAcks acks) {
+        live.remove(token, acks);
+    }
+
+    private void release(String userId, ParkedSession session) {
+        ScheduledFuture<?> expiry = session.expiry;
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        redeliver(userId, ConnectionAcks.after(session.frames, 0));
+    }
+
+    private void redeliver(String userId, List<Message> messages) {
+        MessageBroker.getInstance().redeliver(userId, messages);
+    }
+
+    /**
+     * Runs the task after messaging.ack.delayMillis
+     */
+    void schedule(Runnable task) {
+        timer.schedule(task, Math.max(1, ServerConfig.ackDelayMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    void onAckSent() {
+        acksSent.increment();
+    }
+
+    void onRedelivered(int count) {
+        redelivered.add(count);
+    }
+
+    void onWindowFull() {
+        windowFull.increment();
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    public long getAckCount() {
+        return acksSent.sum();
+    }
+
+    public long getRedeliveredCount() {
+        return redelivered.sum();
+    }
+
+    /**
+     * Times a writer paused because its client had a full window unacknowledged
+     */
+    public long getWindowFullCount() {
+        return windowFull.sum();
+    }
+
+    public long getResumedCount() {
+        return resumed.sum();
+    }
+
+    /**
+     * Frames a resuming client already had, so they were not sent again
+     */
+    public long getResumeSkippedCount() {
+        return resumeSkipped.sum();
+    }
+
+    public int getParkedCount() {
+        return parked.size();
+    }
+
+    /**
+     * Hands every parked session to the offline store; call before the store closes
+     */
+    public void close() {
+        timer.shutdownNow();
+        for (String userId : new ArrayList<>(parked.keySet())) {
+            ParkedSession session = parked.remove(userId);
+            if (session != null) {
+                redeliver(userId, ConnectionAcks.after(session.frames, 0));
+            }
+        }
+    }
+
+    private static final class SenderState {
+        private final String session;
+        private final RecentIds ids = new RecentIds(REMEMBERED_IDS);
+        private long highestSeq;
+
+        private SenderState(String session) {
+            this.session = session;
+        }
+
+        private synchronized void onSeq(long seq) {
+            highestSeq = Math.max(highestSeq, seq);
+        }
+
+        private synchronized long getHighestSeq() {
+            return highestSeq;
+        }
+    }
+
+    private static final class ParkedSession {
+        private final String token;
+        private final List<ConnectionAcks.Unacked> frames;
+        private volatile ScheduledFuture<?> expiry;
+
+        private ParkedSession(String token, List<ConnectionAcks.Unacked> frames) {
+            this.token = token;
+            this.frames = frames;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.protocol.BinaryMessageCodec;
+import com.messaging.protocol.WireFormat;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A routed message together with its wire encodings, shared by every recipient
+ * Each WireFormat is encoded at most once however many clients receive the message,
+ * so a broadcast costs one encode instead of one per connection
+ *
+ * Reference counted: the broker holds one reference while routing and every
+ * OutboundQueue holding the message another; the encoded frames are dropped as soon
+ * as the last reference is released, even if the Message itself lives on elsewhere
+ *
+ * A relayed attachment chunk carries no data on the heap: its bytes sit in an
+ * AttachmentSpool region that binary connections send with FileChannel.transferTo
+ * right after headFrame(); the region is released with the last reference
+ *
+ * Encodes are timed into ServerMetrics, and a message routed from a client carries
+ * the time it was received so its delivery latency is known once written
+ */
+public final class EncodedMessage {
+    private static final LongAdder ENCODE_COUNT = new LongAdder();
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+
+    private final Message message;
+    private final Runnable onWritten;
+    private final AttachmentSpool.Region region;
+    private final AtomicInteger refCount;
+    // ReentrantLock rather than synchronized: encoders may run on virtual threads
+    private final ReentrantLock encodeLock;
+    private Map<WireFormat, byte[]> frames;
+    private byte[] headFrame;
+    // System.nanoTime() when the message came in from a client, 0 when not routed live
+    private volatile long receivedNanos;
+
+    private EncodedMessage(Message message, Runnable onWritten, AttachmentSpool.Region region) {
+        this.message = message;
+        this.onWritten = onWritten;
+        this.region = region;
+        this.refCount = new AtomicInteger(1);
+        this.encodeLock = new ReentrantLock();
+        this.frames = new EnumMap<>(WireFormat.class);
+    }
+
+    /**
+     * Wraps a message with one reference owned by the caller
+     */
+    public static EncodedMessage of(Message message) {
+        return new EncodedMessage(message, null, null);
+    }
+
+    /**
+     * Single-recipient message whose callback runs once its frame reached the socket
+     */
+    public static EncodedMessage of(Message message, Runnable onWritten) {
+        return new EncodedMessage(message, onWritten, null);
+    }
+
+    /**
+     * Message whose data lives in a spool region; takes over the caller's reference to it
+     */
+    static EncodedMessage ofRegion(Message head, AttachmentSpool.Region region, Runnable onWritten) {
+        return new EncodedMessage(head, onWritten, region);
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Spooled data of a relayed chunk, or null for an ordinary message
+     */
+    public AttachmentSpool.Region getRegion() {
+        return region;
+    }
+
+    /**
+     * Binary frame up to the data, to be followed by the region's bytes
+     */
+    public byte[] headFrame() throws IOException {
+        encodeLock.lock();
+        try {
+            if (headFrame == null) {
+                long start = System.nanoTime();
+                headFrame = BinaryMessageCodec.encodeFrameHead(message, region.length());
+                encoded(start);
+            }
+            return headFrame;
+        } finally {
+            encodeLock.unlock();
+        }
+    }
+
+    /**
+     * Frame for the given format, encoded on first use and reused afterwards
+     * A spooled message is read back and encoded whole every time, never cached
+     */
+    public byte[] frame(WireFormat format) throws IOException {
+        if (region != null) {
+            byte[] data = region.read();
+            long start = System.nanoTime();
+            byte[] frame = format.encodeFrame(AttachmentSpool.withData(message, data));
+            encoded(start);
+            return frame;
+        }
+        encodeLock.lock();
+        try {
+            if (frames == null) {
+                // Already released by everyone: encode without caching
+                long start = System.nanoTime();
+                byte[] frame = format.encodeFrame(message);
+                encoded(start);
+                return frame;
+            }
+            byte[] frame = frames.get(format);
+            if (frame == null) {
+                long start = System.nanoTime();
+                frame = format.encodeFrame(message);
+                encoded(start);
+                frames.put(format, frame);
+            }
+            return frame;
+        } finally {
+            encodeLock.unlock();
+        }
+    }
+
+    private static void encoded(long startNanos) {
+        METRICS.onEncoded(System.nanoTime() - startNanos);
+        ENCODE_COUNT.increment();
+    }
+
+    void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * Called by the connection after the whole frame was written to the socket
+     */
+    public void written() {
+        if (onWritten != null) {
+            onWritten.run();
+        }
+    }
+
+    Runnable getOnWritten() {
+        return onWritten;
+    }
+
+    public EncodedMessage retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drops one reference; the last one frees the encoded frames and the spool region
+     */
+    public void release() {
+        int remaining = refCount.decrementAndGet();
+        if (remaining == 0) {
+            encodeLock.lock();
+            try {
+                frames = null;
+                headFrame = null;
+            } finally {
+                encodeLock.unlock();
+            }
+            if (region != null) {
+                region.release();
+            }
+        } else if (remaining < 0) {
+            System.err.println("EncodedMessage released too many times");
+        }
+    }
+
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+    /**
+     * Frames encoded since startup, across all messages and formats
+     */
+    public static long getEncodeCount() {
+        return ENCODE_COUNT.sum();
+    }
+}
@@ -0,0 +1,77 @@
+package com.messaging.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring assigning keys (user ids, room addresses, blob hashes) to nodes
+ * Every node owns virtualNodes points on a 64-bit ring and a key belongs to the first
+ * point at or after its hash, so removing a node only moves the keys it owned, spread
+ * over the survivors, and adding one only takes keys from the others.
+ * Immutable: Cluster builds a new ring whenever the set of live nodes changes
+ */
+final class HashRing {
+    private final long[] points;
+    private final String[] owners;
+    private final Set<String> nodes;
+
+    HashRing(Collection<String> nodeIds, int virtualNodes) {
+        this.nodes = new TreeSet<>(nodeIds);
+        int count = nodes.size() * virtualNodes;
+        long[] hashes = new long[count];
+        String[] pointOwners = new String[count];
+
+        // Sort the points by hash, carrying their owner along
+        long[][] pairs = new long[count][];
+        String[] ids = nodes.toArray(new String[0]);
+        int i = 0;
+        for (int node = 0; node < ids.length; node++) {
+            for (int replica = 0; replica < virtualNodes; replica++) {
+                pairs[i++] = new long[]{hash(ids[node] + "#" + replica), node};
+            }
+        }
+        Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+        for (i = 0; i < count; i++) {
+            hashes[i] = pairs[i][0];
+            pointOwners[i] = ids[(int) pairs[i][1]];
+        }
+        this.points = hashes;
+        this.owners = pointOwners;
+    }
+
+    /**
+     * Node owning the key, or null on an empty ring
+     */
+    String ownerOf(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    Set<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, finished with the SplitMix64 mixer so that
+     * similar ids ("node-1#1", "node-1#2") land far apart
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
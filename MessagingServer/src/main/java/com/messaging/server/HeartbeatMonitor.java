@@ -0,0 +1,160 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.protocol.ChunkedFileTransfer;
+import com.messaging.protocol.Heartbeat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HeartbeatMonitor implements the Singleton pattern
+ * Server side of Heartbeat: answers pings and closes connections whose client went
+ * silent for Heartbeat.MISSED_BEATS of its announced intervals, so dead peers leave
+ * MessageBroker instead of collecting messages until TCP times them out.
+ *
+ * Every watched connection has one timeout on a shared TimingWheel. Frames only record
+ * when they arrived; when the timeout fires it compares that with the deadline and
+ * either closes the connection or schedules itself for the time still left. A busy
+ * connection therefore costs one wheel entry per idle period, not one per frame.
+ * Clients that do not announce an interval are never reaped.
+ */
+public class HeartbeatMonitor {
+    private static final int WHEEL_BUCKETS = 512;
+
+    private static HeartbeatMonitor instance;
+
+    private final TimingWheel wheel;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final LongAdder watched = new LongAdder();
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+
+    private HeartbeatMonitor() {
+        this.wheel = new TimingWheel("heartbeat-wheel", Math.max(1, ServerConfig.heartbeatTickMillis()),
+                TimeUnit.MILLISECONDS, WHEEL_BUCKETS);
+        this.minIntervalMillis = Math.max(1, ServerConfig.heartbeatMinMillis());
+        this.maxIntervalMillis = Math.max(minIntervalMillis, ServerConfig.heartbeatMaxMillis());
+    }
+
+    /**
+     * Singleton pattern: Thread-safe lazy initialization
+     */
+    public static synchronized HeartbeatMonitor getInstance() {
+        if (instance == null) {
+            instance = new HeartbeatMonitor();
+        }
+        return instance;
+    }
+
+    /**
+     * Starts watching a connection whose first message announced a heartbeat interval;
+     * null if it did not
+     */
+    Watch watch(ClientConnection connection, Message initMessage) {
+        long interval = Heartbeat.intervalOf(initMessage);
+        if (interval <= 0) {
+            return null;
+        }
+        Watch watch = new Watch(connection, initMessage.getSenderId(), clamp(interval));
+        watched.increment();
+        watch.scheduleCheck(watch.timeoutNanos);
+        return watch;
+    }
+
+    private long clamp(long intervalMillis) {
+        return Math.min(maxIntervalMillis, Math.max(minIntervalMillis, intervalMillis));
+    }
+
+    public long getWatchedCount() {
+        return watched.sum();
+    }
+
+    public long getPingCount() {
+        return pings.sum();
+    }
+
+    /**
+     * Connections closed because their client went silent
+     */
+    public long getReapedCount() {
+        return reaped.sum();
+    }
+
+    public void close() {
+        wheel.stop();
+    }
+
+    /**
+     * Liveness of one connection; frames may arrive on any thread
+     */
+    final class Watch {
+        private final ClientConnection connection;
+        private final String userId;
+        private volatile long timeoutNanos;
+        private volatile long lastHeard;
+        private volatile TimingWheel.Timeout timeout;
+        private volatile boolean cancelled;
+
+        private Watch(ClientConnection connection, String userId, long intervalMillis) {
+            this.connection = connection;
+            this.userId = userId;
+            this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis * Heartbeat.MISSED_BEATS);
+            this.lastHeard = System.nanoTime();
+        }
+
+        /**
+         * Any frame proves the client alive; a ping is answered and may change the interval
+         */
+        void onReceived(Message message) {
+            lastHeard = System.nanoTime();
+            if (!Heartbeat.isHeartbeat(message)) {
+                return;
+            }
+            pings.increment();
+            long interval = Heartbeat.intervalOf(message);
+            if (interval > 0) {
+                // Takes effect when the pending check fires, which then waits for the rest
+                timeoutNanos = TimeUnit.MILLISECONDS.toNanos(clamp(interval) * Heartbeat.MISSED_BEATS);
+            }
+            connection.sendMessage(Heartbeat.pong(ChunkedFileTransfer.SERVER_ID, userId));
+        }
+
+        /**
+         * The connection closed; its pending check is dropped
+         */
+        void cancel() {
+            cancelled = true;
+            TimingWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        private void scheduleCheck(long delayNanos) {
+            if (!cancelled) {
+                timeout = wheel.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Runs on the wheel: closes the connection or waits for the remaining time
+         */
+        private void check() {
+            if (cancelled) {
+                return;
+            }
+            long silent = System.nanoTime() - lastHeard;
+            long limit = timeoutNanos;
+            if (silent < limit) {
+                scheduleCheck(limit - silent);
+                return;
+            }
+            reaped.increment();
+            System.out.println("Closing silent connection of " + userId + ": nothing heard for "
+                    + TimeUnit.NANOSECONDS.toMillis(silent) + " ms");
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.messaging.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * InputStream fed by the NIO event loop with the bytes read from a channel
+ * Lets a stream-based decoder consume non-blocking reads; it only blocks
+ * while a frame is partially received. The wait uses a lock rather than a
+ * monitor so a virtual decoder thread unmounts from its carrier meanwhile
+ */
+class InboundByteStream extends InputStream {
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataArrived = lock.newCondition();
+    private int offset;
+    private int available;
+    private boolean closed;
+    private boolean finished;
+
+    public void append(byte[] bytes) {
+        lock.lock();
+        try {
+            if (closed || finished || bytes.length == 0) {
+                return;
+            }
+            chunks.addLast(bytes);
+            available += bytes.length;
+            dataArrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        lock.lock();
+        try {
+            if (!awaitData()) {
+                return -1;
+            }
+            byte[] head = chunks.peekFirst();
+            int value = head[offset++] & 0xFF;
+            consumed(head, 1);
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            if (!awaitData()) {
+                return -1;
+            }
+            int copied = 0;
+            while (copied < len && !chunks.isEmpty()) {
+                byte[] head = chunks.peekFirst();
+                int n = Math.min(len - copied, head.length - offset);
+                System.arraycopy(head, offset, b, off + copied, n);
+                offset += n;
+                copied += n;
+                consumed(head, n);
+            }
+            return copied;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return available;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The peer closed its side: what is buffered can still be read, then the stream ends
+     */
+    public void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            dataArrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isFinished() {
+        lock.lock();
+        try {
+            return finished;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            chunks.clear();
+            available = 0;
+            dataArrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void consumed(byte[] head, int n) {
+        available -= n;
+        if (offset == head.length) {
+            chunks.pollFirst();
+            offset = 0;
+        }
+    }
+
+    private boolean awaitData() throws IOException {
+        while (available == 0 && !closed && !finished) {
+            try {
+                dataArrived.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for data", e);
+            }
+        }
+        return available > 0;
+    }
+}
@@ -1,10 +1,17 @@
 package com.messaging.server;
 
 import com.messaging.models.Message;
+import com.messaging.models.MessageType;
 import com.messaging.models.User;
+import com.messaging.protocol.BlobCache;
+import com.messaging.protocol.ChunkedFileTransfer;
+import com.messaging.protocol.Rooms;
+import com.messaging.protocol.WireFormat;
 
+import java.io.IOException;
 import java.util.*;
         import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * MessageBroker implements Singleton and Observer patterns
@@ -12,14 +19,37 @@ import java.util.*;
  * Observer: Notifies registered clients of new messages
  */
 public class MessageBroker {
+    // Transfer traffic the sender renegotiates anyway, so not worth keeping for offline users
+    private static final Set<MessageType> TRANSIENT_TYPES =
+            EnumSet.of(MessageType.FILE_RESUME, MessageType.FILE_CHUNK);
+
+    private static final boolean LOG_MESSAGES = ServerConfig.logMessages();
+
     private static MessageBroker instance;
-    private final Map<String, ClientHandler> connectedClients;
+    private final Map<String, ClientConnection> connectedClients;
     private final Map<String, User> users;
+    // Clients already reported as slow, so a backlog is logged once rather than per message
+    private final Set<String> slowConsumers;
+    private final OfflineMessageStore offlineStore;
+    private final AttachmentSpool attachmentSpool;
+    private final BlobStore blobStore;
+    private final PresenceIndex presence;
+    private final RoomRegistry rooms;
+    private final Cluster cluster;
+    private final ServerMetrics metrics;
 
     private MessageBroker() {
         // ConcurrentHashMap for thread-safe operations
         this.connectedClients = new ConcurrentHashMap<>();
         this.users = new ConcurrentHashMap<>();
+        this.slowConsumers = ConcurrentHashMap.newKeySet();
+        this.offlineStore = OfflineMessageStore.getInstance();
+        this.attachmentSpool = AttachmentSpool.getInstance();
+        this.blobStore = BlobStore.getInstance();
+        this.presence = PresenceIndex.getInstance();
+        this.rooms = RoomRegistry.getInstance();
+        this.cluster = Cluster.getInstance();
+        this.metrics = ServerMetrics.getInstance();
     }
 
     /**
@@ -32,13 +62,75 @@ public class MessageBroker {
         return instance;
     }
 
-    public void registerClient(String userId, ClientHandler handler) {
-        connectedClients.put(userId, handler);
+    /**
+     * Sends the presence snapshot and replays the user's offline inbox, then makes the
+     * client reachable; the replay and the registration happen under the inbox lock so
+     * live messages queue behind the replayed ones
+     */
+    public void registerClient(String userId, ClientConnection handler) {
+        presence.subscribe(handler);
+        ReentrantLock inboxLock = offlineStore.lockFor(userId);
+        inboxLock.lock();
+        try {
+            int replayed = offlineStore.replay(userId, message -> deliver(handler, message));
+            if (replayed > 0) {
+                System.out.println("Replayed " + replayed + " offline messages to " + userId);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to replay offline messages for " + userId + ": " + e.getMessage());
+        } finally {
+            connectedClients.put(userId, handler);
+            inboxLock.unlock();
+        }
+        presence.markChanged(userId);
+        cluster.onLocalRegister(userId);
         System.out.println("Client registered: " + userId);
     }
 
+    /**
+     * Cluster: a user this node owns connected to another node. Their inbox is replayed
+     * there, and later messages follow, in order, under the same inbox lock
+     */
+    void registerRemote(String userId, String nodeId) {
+        users.computeIfAbsent(userId, id -> new User(id, id));
+        offlineStore.remember(userId);
+        ReentrantLock inboxLock = offlineStore.lockFor(userId);
+        inboxLock.lock();
+        try {
+            // Each record is acknowledged only once the node confirms it delivered or stored
+            int replayed = offlineStore.replay(userId, message ->
+                    cluster.route(nodeId, userId, Cluster.MAX_HOPS, message.getMessage(), message.getOnWritten()));
+            if (replayed > 0) {
+                System.out.println("Replayed " + replayed + " offline messages to " + userId + " on node " + nodeId);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to replay offline messages for " + userId + ": " + e.getMessage());
+        } finally {
+            cluster.setLocation(userId, nodeId);
+            inboxLock.unlock();
+        }
+    }
+
     public void unregisterClient(String userId) {
-        connectedClients.remove(userId);
+        ClientConnection client = connectedClients.get(userId);
+        if (client != null) {
+            unregisterClient(userId, client);
+        }
+    }
+
+    /**
+     * Removes the connection only if it is still the one registered for the user, so a
+     * connection that closes after its user reconnected cannot take the new one offline
+     */
+    public void unregisterClient(String userId, ClientConnection connection) {
+        presence.unsubscribe(connection);
+        if (!connectedClients.remove(userId, connection)) {
+            return;
+        }
+        presence.markChanged(userId);
+        cluster.onLocalUnregister(userId);
+        slowConsumers.remove(userId);
+        blobStore.onDisconnect(userId);
         User user = users.get(userId);
         if (user != null) {
             user.setOnline(false);
@@ -49,6 +141,10 @@ public class MessageBroker {
     public void registerUser(User user) {
         users.put(user.getId(), user);
         user.setOnline(true);
+        // The owner remembers the user across restarts; in a cluster that may be another node
+        if (cluster.owns(user.getId())) {
+            offlineStore.remember(user.getId());
+        }
     }
 
     /**
@@ -56,35 +152,374 @@ public class MessageBroker {
      * Implements the Observer pattern by notifying registered observers (clients)
      */
     public void routeMessage(Message message) {
+        route(message, false);
+    }
+
+    /**
+     * Cluster: a peer sent a message for a room or the server that this node owns
+     */
+    void routeForwarded(Message message) {
+        route(message, true);
+    }
+
+    private void route(Message message, boolean forwarded) {
+        long receivedNanos = metrics.onReceived(message.getType());
+        if (LOG_MESSAGES) {
+            System.out.println("Message received from " + message.getSenderId() + ": Type=" + message.getType());
+        }
         String receiverId = message.getReceiverId();
+        if (ChunkedFileTransfer.SERVER_ID.equals(receiverId)) {
+            handleServerMessage(message, forwarded);
+            return;
+        }
+        if (BlobStore.isOversized(message)) {
+            // Relayed as a blob reference from the node owning the blob, as if sent there
+            String sha256 = BlobCache.sha256(message.getData());
+            if (!forwarded && !cluster.owns(sha256)) {
+                cluster.forward(cluster.ownerOf(sha256), message);
+                metrics.onRouted(receivedNanos);
+                return;
+            }
+            try {
+                message = blobStore.toReference(message, sha256);
+                forwarded = false;
+            } catch (IOException e) {
+                System.err.println("Dropping " + message.getType() + " from " + message.getSenderId() +
+                        ", too big to relay inline and not stored: " + e.getMessage());
+                metrics.onRouted(receivedNanos);
+                return;
+            }
+        }
+        if (!forwarded && Rooms.isRoomAddress(receiverId) && !cluster.owns(receiverId)) {
+            // Rooms fan out from the node that owns them
+            cluster.forward(cluster.ownerOf(receiverId), message);
+            metrics.onRouted(receivedNanos);
+            return;
+        }
+        // Encoded lazily, at most once per wire format, whatever the number of recipients
+        EncodedMessage encoded = encode(message);
+        encoded.setReceivedNanos(receivedNanos);
+        try {
+            // Broadcast to all if receiver is null
+            if (receiverId == null || receiverId.equals("ALL")) {
+                broadcastMessage(encoded);
+                if (!forwarded) {
+                    cluster.broadcast(message);
+                }
+            } else if (Rooms.isRoomAddress(receiverId)) {
+                int[] members = rooms.membersFor(Rooms.roomOf(receiverId), message.getSenderId());
+                if (members != null) {
+                    deliverToMembers(members, encoded);
+                }
+            } else {
+                // Send to specific client
+                ClientConnection receiver = connectedClients.get(receiverId);
+                if (receiver != null) {
+                    deliver(receiver, encoded);
+                } else {
+                    routeToUser(receiverId, encoded, 0);
+                }
+            }
+        } finally {
+            encoded.release();
+            metrics.onRouted(receivedNanos);
+        }
+    }
 
-        // Broadcast to all if receiver is null
-        if (receiverId == null || receiverId.equals("ALL")) {
-            broadcastMessage(message);
+    /**
+     * Messages clients address to SERVER_ID: presence resyncs are answered here, room
+     * requests and transfers by the node owning the room or blob
+     */
+    private void handleServerMessage(Message message, boolean forwarded) {
+        MessageType type = message.getType();
+        if (type == MessageType.PRESENCE) {
+            // A client missed a presence delta
+            ClientConnection sender = connectedClients.get(message.getSenderId());
+            if (sender != null) {
+                presence.resync(sender);
+            }
+        } else if (type == MessageType.ROOM) {
+            String room = Rooms.address(String.valueOf(message.getHeader(Rooms.HEADER_ROOM)));
+            if (forwarded || cluster.owns(room)) {
+                rooms.handle(message);
+            } else {
+                cluster.forward(cluster.ownerOf(room), message);
+            }
         } else {
-            // Send to specific client
-            ClientHandler receiver = connectedClients.get(receiverId);
-            if (receiver != null) {
-                receiver.sendMessage(message);
+            String node = forwarded ? null : cluster.transferNodeFor(message);
+            if (node == null) {
+                // Uploads to and downloads from the blob store
+                blobStore.handle(message);
+            } else {
+                cluster.forward(node, message);
+            }
+        }
+    }
+
+    /**
+     * Cluster: a message a peer routed to one user
+     */
+    void deliverFromPeer(String userId, int hops, Message message, Runnable onDelivered) {
+        EncodedMessage encoded = EncodedMessage.of(message, onDelivered);
+        try {
+            ClientConnection client = connectedClients.get(userId);
+            if (client != null) {
+                deliver(client, encoded);
             } else {
-                System.out.println("Receiver not found: " + receiverId);
+                routeToUser(userId, encoded, hops);
             }
+        } finally {
+            encoded.release();
+        }
+    }
+
+    /**
+     * Cluster: a broadcast from a client on another node, for the clients on this one
+     */
+    void broadcastFromPeer(Message message) {
+        EncodedMessage encoded = encode(message);
+        try {
+            broadcastMessage(encoded);
+        } finally {
+            encoded.release();
         }
     }
 
-    private void broadcastMessage(Message message) {
+    /**
+     * For a user not connected to this node: passes the message on to the node that knows
+     * where the user is, or keeps it in their inbox
+     * Only messages for local receivers are staged in the AttachmentSpool, so the message
+     * still carries its data here
+     */
+    private void routeToUser(String userId, EncodedMessage message, int hops) {
+        String node = hops < Cluster.MAX_HOPS ? cluster.nextHopFor(userId) : null;
+        if (node != null) {
+            cluster.route(node, userId, hops + 1, message.getMessage(), message.getOnWritten());
+        } else {
+            deliverOrStore(userId, message);
+        }
+    }
+
+    /**
+     * Attachment chunks with someone online to receive them are staged in the
+     * AttachmentSpool, so only their header stays on the heap while queued
+     */
+    private EncodedMessage encode(Message message) {
+        if (message.getType() == MessageType.FILE_RESUME) {
+            attachmentSpool.onResume(message);
+        } else if (message.getType() == MessageType.FILE_CHUNK && message.getData() != null) {
+            String receiverId = message.getReceiverId();
+            if (receiverId == null || receiverId.equals("ALL") || connectedClients.containsKey(receiverId)) {
+                try {
+                    return attachmentSpool.stage(message);
+                } catch (IOException e) {
+                    System.err.println("Failed to spool attachment chunk, relaying from memory: " + e.getMessage());
+                }
+            }
+        }
+        return EncodedMessage.of(message);
+    }
+
+    private void broadcastMessage(EncodedMessage message) {
+        String senderId = message.getMessage().getSenderId();
         connectedClients.values().forEach(client -> {
-            if (!client.getUserId().equals(message.getSenderId())) {
-                client.sendMessage(message);
+            if (!client.getUserId().equals(senderId)) {
+                deliver(client, message);
             }
         });
     }
 
+    /**
+     * Room fan-out: the one encoded message is queued for every member but its sender,
+     * and kept in the inbox of members who are offline
+     */
+    void deliverToMembers(int[] members, EncodedMessage message) {
+        String senderId = message.getMessage().getSenderId();
+        for (int member : members) {
+            String userId = rooms.nameOf(member);
+            if (!userId.equals(senderId)) {
+                deliverToUser(userId, message);
+            }
+        }
+    }
+
+    /**
+     * Delivers to the user if connected, otherwise stores the message for them
+     */
+    void deliverToUser(String userId, EncodedMessage message) {
+        ClientConnection client = connectedClients.get(userId);
+        if (client != null) {
+            deliver(client, message);
+        } else {
+            routeToUser(userId, message, 0);
+        }
+    }
+
+    /**
+     * Messages a closed connection could not confirm, in their original order: they go to
+     * the user's next connection or the offline store, and the client drops any copy it
+     * already had by id
+     */
+    void redeliver(String userId, List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        for (Message message : messages) {
+            EncodedMessage encoded = EncodedMessage.of(message);
+            try {
+                deliverToUser(userId, encoded);
+            } finally {
+                encoded.release();
+            }
+        }
+        DeliveryTracker.getInstance().onRedelivered(messages.size());
+        System.out.println("Redelivering " + messages.size() + " unacknowledged message(s) to " + userId);
+    }
+
+    /**
+     * Queues a message for one connected client; false if the client is not connected
+     * In a cluster the client may be connected to another node, which gets the message
+     */
+    public boolean sendToClient(Message message) {
+        String receiverId = message.getReceiverId();
+        ClientConnection client = connectedClients.get(receiverId);
+        if (client == null) {
+            String node = cluster.nextHopFor(receiverId);
+            if (node == null) {
+                return false;
+            }
+            cluster.route(node, receiverId, 1, message);
+            return true;
+        }
+        EncodedMessage encoded = EncodedMessage.of(message);
+        try {
+            deliver(client, encoded);
+        } finally {
+            encoded.release();
+        }
+        return true;
+    }
+
+    /**
+     * Slow path for a receiver that looked offline: re-checks under the inbox lock,
+     * since the user may be registering right now, and otherwise keeps the message
+     */
+    private void deliverOrStore(String receiverId, EncodedMessage message) {
+        if (!isKnownUser(receiverId)) {
+            System.out.println("Receiver not found: " + receiverId);
+            return;
+        }
+
+        if (TRANSIENT_TYPES.contains(message.getMessage().getType())) {
+            return;
+        }
+
+        ReentrantLock inboxLock = offlineStore.lockFor(receiverId);
+        inboxLock.lock();
+        try {
+            ClientConnection receiver = connectedClients.get(receiverId);
+            if (receiver != null) {
+                deliver(receiver, message);
+                return;
+            }
+            String location = cluster.isEnabled() && cluster.owns(receiverId) ? cluster.nextHopFor(receiverId) : null;
+            if (location != null) {
+                // Connected to another node since the first check
+                cluster.route(location, receiverId, Cluster.MAX_HOPS, message.getMessage(), message.getOnWritten());
+                return;
+            }
+            offlineStore.append(receiverId, message.getMessage());
+            // Stored here now, so whoever routed it may let go of its copy
+            message.written();
+            if (LOG_MESSAGES) {
+                System.out.println("Receiver offline, stored message for " + receiverId);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to store message for " + receiverId + ": " + e.getMessage());
+        } finally {
+            inboxLock.unlock();
+        }
+    }
+
+    /**
+     * Hands the shared message to the client's outbound queue; never blocks on a slow socket
+     */
+    private void deliver(ClientConnection client, EncodedMessage message) {
+        WireFormat format = client.getWireFormat();
+        if (format != null && !format.supports(message.getMessage().getType())) {
+            // Counts as handled, so an offline inbox can still move past it
+            message.written();
+            return;
+        }
+        EncodedMessage inline = format == WireFormat.JAVA_SERIALIZATION ? blobStore.inline(message) : null;
+        if (inline != null) {
+            try {
+                client.send(inline);
+            } finally {
+                inline.release();
+            }
+        } else {
+            client.send(message);
+        }
+
+        OutboundQueue queue = client.getOutboundQueue();
+        if (queue != null && queue.getDepth() >= queue.getCapacity()
+                && slowConsumers.add(client.getUserId())) {
+            System.out.println("Slow consumer: " + client.getUserId() + " has " + queue.getDepth() +
+                    " queued messages (policy " + queue.getPolicy() + ")");
+        } else if (queue != null && queue.getDepth() == 0) {
+            slowConsumers.remove(client.getUserId());
+        }
+    }
+
+    /**
+     * Current outbound backlog per connected client
+     */
+    public Map<String, Integer> getOutboundQueueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        connectedClients.forEach((userId, client) -> {
+            OutboundQueue queue = client.getOutboundQueue();
+            depths.put(userId, queue != null ? queue.getDepth() : 0);
+        });
+        return depths;
+    }
+
+    /**
+     * Whether the user has connected since startup or has an offline inbox; every user
+     * that ever connected has one, even if it is empty
+     */
+    public boolean isKnownUser(String userId) {
+        // In a cluster, users owned by other nodes are known there
+        return users.containsKey(userId) || offlineStore.hasInbox(userId) || !cluster.owns(userId);
+    }
+
+    public boolean isConnected(String userId) {
+        return connectedClients.containsKey(userId);
+    }
+
+    /**
+     * Display name of a known user, the id itself otherwise
+     */
+    public String getUsername(String userId) {
+        User user = users.get(userId);
+        return user != null && user.getUsername() != null ? user.getUsername() : userId;
+    }
+
+    public int getConnectedCount() {
+        return connectedClients.size();
+    }
+
+    /**
+     * Read-only view of the connected clients by user id
+     */
+    public Map<String, ClientConnection> getConnectedClients() {
+        return Collections.unmodifiableMap(connectedClients);
+    }
+
+    /**
+     * Users online as of the last presence flush, shared rather than copied per call
+     */
     public List<User> getOnlineUsers() {
-        List<User> onlineUsers = new ArrayList<>();
-        users.values().stream()
-                .filter(User::isOnline)
-                .forEach(onlineUsers::add);
-        return onlineUsers;
+        return presence.getOnlineUsers();
     }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.messaging.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves ServerMetrics over HTTP: GET /metrics returns the Prometheus text format
+ * Bound to the loopback interface only, on messaging.metrics.port (0 disables it);
+ * scrapes run on their own thread and never touch the message path
+ */
+public class MetricsEndpoint {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final int port;
+    private HttpServer http;
+    private ExecutorService executor;
+
+    public MetricsEndpoint(int port) {
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        http.setExecutor(executor);
+        http.createContext("/metrics", this::handle);
+        http.start();
+        System.out.println("Metrics available on http://" + InetAddress.getLoopbackAddress().getHostAddress() +
+                ":" + http.getAddress().getPort() + "/metrics");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = ServerMetrics.getInstance().render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void stop() {
+        if (http != null) {
+            http.stop(0);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.models.User;
+import com.messaging.protocol.BinaryMessageCodec;
+import com.messaging.protocol.ObjectStreamTransport;
+import com.messaging.protocol.WireFormat;
+import com.messaging.protocol.WireHandshake;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client connection served by a NioEventLoop instead of a dedicated thread
+ * Binary-codec frames are decoded right on the event loop; legacy object streams
+ * are decoded on a virtual thread of their own only while bytes are pending
+ * Decoded messages are handled in order on a shared worker pool, never on the loop:
+ * registration and routing may block on disk. While too many wait, the loop stops
+ * reading from this client until the worker catches up
+ * Outgoing messages wait in a bounded OutboundQueue and are encoded by the event loop
+ * only when the socket can take more bytes; relayed attachment chunks are sent from
+ * their spool file with FileChannel.transferTo, a socket buffer's worth at a time
+ */
+public class NioClientConnection implements ClientConnection {
+    private static final int MAX_HANDSHAKE_BYTES = 64 * 1024;
+    // Received messages waiting for the worker before reading pauses, and per worker run
+    private static final int MAX_RECEIVED = 1024;
+    private static final int DISPATCH_BATCH = 64;
+    // Queued after the last message read before the client closed its side
+    private static final Message END_OF_INPUT = new Message.Builder().build();
+
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private final MessageBroker broker;
+    private final ServerMetrics metrics;
+    private final Executor decoder;
+    private final Executor worker;
+
+    private final InboundByteStream inbound;
+    // Handshake bytes written ahead of any message
+    private final Queue<ByteBuffer> control;
+    private volatile OutboundQueue outboundQueue;
+    private ByteBuffer current;
+    private EncodedMessage currentMessage;
+    // Bytes of currentMessage's spool region already sent
+    private long regionSent;
+    // Length of currentMessage's frame, not counting its region
+    private int currentFrameLength;
+    private final AtomicBoolean decodeScheduled;
+    private final AtomicBoolean flushScheduled;
+    private final AtomicBoolean closed;
+    private final Queue<Message> received;
+    private final AtomicInteger receivedCount;
+    private final AtomicBoolean dispatchScheduled;
+    // Event loop only
+    private boolean readPaused;
+    private boolean writeInterest;
+    private boolean inputEnded;
+    // Decoder only: the object stream reached the client's EOF
+    private volatile boolean decodeEnded;
+
+    private SelectionKey key;
+    private ObjectInputStream input;
+    private volatile WireFormat format;
+    private volatile String userId;
+    private volatile ConnectionAcks acks;
+    private volatile HeartbeatMonitor.Watch heartbeat;
+
+    // Bytes not yet decoded while detecting the format or parsing binary frames (event loop only)
+    private byte[] pending = new byte[0];
+    private int pendingLength;
+    private final int[] prefixLength = new int[1];
+
+    public NioClientConnection(SocketChannel channel, NioEventLoop eventLoop,
+                               MessageBroker broker, Executor decoder, Executor worker) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.broker = broker;
+        this.metrics = ServerMetrics.getInstance();
+        this.decoder = decoder;
+        this.worker = worker;
+        this.inbound = new InboundByteStream();
+        this.control = new ConcurrentLinkedQueue<>();
+        this.decodeScheduled = new AtomicBoolean();
+        this.flushScheduled = new AtomicBoolean();
+        this.closed = new AtomicBoolean();
+        this.received = new ConcurrentLinkedQueue<>();
+        this.receivedCount = new AtomicInteger();
+        this.dispatchScheduled = new AtomicBoolean();
+    }
+
+    /**
+     * Called on the event loop once the channel is registered with the selector
+     */
+    void onRegistered(SelectionKey key) {
+        this.key = key;
+    }
+
+    void onReadable() {
+        ByteBuffer buffer = eventLoop.getReadBuffer();
+        boolean ended = false;
+        try {
+            int read;
+            while ((read = channel.read(buffer)) > 0) {
+                metrics.onBytesRead(read);
+                buffer.flip();
+                if (format == WireFormat.JAVA_SERIALIZATION) {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    inbound.append(bytes);
+                } else {
+                    appendPending(buffer);
+                }
+                buffer.clear();
+            }
+            if (read < 0) {
+                System.out.println("Client disconnected (EOF): " + (userId != null ? userId : "unknown"));
+                // What arrived before the EOF is still handled; the worker closes after it
+                ended = true;
+                inputEnded = true;
+                readPaused = true;
+                updateInterest();
+            }
+        } catch (IOException e) {
+            System.err.println("Client read error: " + e.getMessage());
+            buffer.clear();
+            close();
+            return;
+        }
+
+        try {
+            if (format != WireFormat.JAVA_SERIALIZATION) {
+                processPending();
+            }
+        } catch (IOException e) {
+            System.err.println("Client protocol error: " + e.getMessage());
+            close();
+            return;
+        }
+        if (ended) {
+            if (format == WireFormat.JAVA_SERIALIZATION) {
+                inbound.finish();
+                scheduleDecode();
+            } else {
+                dispatch(END_OF_INPUT);
+            }
+            return;
+        }
+        scheduleDecode();
+        if (!readPaused && receivedCount.get() >= MAX_RECEIVED) {
+            readPaused = true;
+            updateInterest();
+        }
+    }
+
+    private void appendPending(ByteBuffer buffer) {
+        int needed = pendingLength + buffer.remaining();
+        if (needed > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(needed, Math.max(pending.length * 2, 256)));
+        }
+        int count = buffer.remaining();
+        buffer.get(pending, pendingLength, count);
+        pendingLength += count;
+    }
+
+    /**
+     * Detects the wire format, then decodes every complete binary frame (event loop only)
+     */
+    private void processPending() throws IOException {
+        int position = 0;
+
+        if (format == null) {
+            if (pendingLength < 2) {
+                return;
+            }
+            if (WireHandshake.isObjectStreamStart(pending[0], pending[1])) {
+                switchToObjectStream(0);
+                return;
+            }
+
+            int[] consumed = new int[1];
+            WireHandshake.Hello hello = WireHandshake.tryParseHello(pending, 0, pendingLength, consumed);
+            if (hello == null) {
+                if (pendingLength > MAX_HANDSHAKE_BYTES) {
+                    throw new StreamCorruptedException("Handshake too large");
+                }
+                return;
+            }
+            format = WireHandshake.chooseFormat(hello.getFormat());
+            enqueue(ByteBuffer.wrap(WireHandshake.encodeHello(new WireHandshake.Hello(format))));
+            position = consumed[0];
+
+            if (format == WireFormat.JAVA_SERIALIZATION) {
+                switchToObjectStream(position);
+                return;
+            }
+        }
+
+        while (!closed.get()) {
+            int frameLength = BinaryMessageCodec.peekFrameLength(
+                    pending, position, pendingLength - position, prefixLength);
+            if (frameLength < 0 || pendingLength - position - prefixLength[0] < frameLength) {
+                break;
+            }
+            int payloadStart = position + prefixLength[0];
+            position = payloadStart + frameLength;
+            dispatch(BinaryMessageCodec.decode(pending, payloadStart, frameLength));
+        }
+
+        // Keep only the incomplete tail
+        pendingLength -= position;
+        System.arraycopy(pending, position, pending, 0, pendingLength);
+        if (pendingLength == 0 && pending.length > 64 * 1024) {
+            pending = new byte[0];
+        }
+    }
+
+    private void switchToObjectStream(int position) {
+        format = WireFormat.JAVA_SERIALIZATION;
+        // Same order as ClientHandler: our stream header goes out before reading theirs
+        enqueue(ByteBuffer.wrap(ObjectStreamTransport.streamHeader()));
+        inbound.append(Arrays.copyOfRange(pending, position, pendingLength));
+        pending = new byte[0];
+        pendingLength = 0;
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    private void scheduleDecode() {
+        if ((inbound.available() > 0 || inbound.isFinished()) && !decodeEnded
+                && decodeScheduled.compareAndSet(false, true)) {
+            decoder.execute(this::decodePending);
+        }
+    }
+
+    /**
+     * Decodes every complete object currently buffered, then lets the decoder thread end;
+     * a partial object parks only this connection's virtual thread until the rest arrives
+     */
+    private void decodePending() {
+        try {
+            do {
+                if (input == null) {
+                    input = new ObjectInputStream(inbound);
+                } else {
+                    readObject();
+                }
+            } while (!closed.get() && (inbound.available() > 0 || inbound.isFinished()));
+        } catch (EOFException e) {
+            if (inbound.isFinished()) {
+                decodeEnded = true;
+                dispatch(END_OF_INPUT);
+            } else {
+                close();
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                System.err.println("Client decode error: " + e.getMessage());
+            }
+            close();
+        } finally {
+            decodeScheduled.set(false);
+        }
+        if (!closed.get()) {
+            scheduleDecode();
+        }
+    }
+
+    private void readObject() throws IOException {
+        Object obj;
+        try {
+            obj = input.readObject();
+        } catch (ClassNotFoundException e) {
+            System.err.println("Unknown message class: " + e.getMessage());
+            return;
+        }
+
+        if (!(obj instanceof Message)) {
+            System.err.println("Received object is not a Message");
+            return;
+        }
+        dispatch((Message) obj);
+    }
+
+    /**
+     * Queues a decoded message for the worker, keeping the order it arrived in
+     */
+    private void dispatch(Message message) {
+        received.add(message);
+        receivedCount.incrementAndGet();
+        scheduleDispatch();
+    }
+
+    private void scheduleDispatch() {
+        if (!received.isEmpty() && dispatchScheduled.compareAndSet(false, true)) {
+            worker.execute(this::handleReceived);
+        }
+    }
+
+    /**
+     * Handles a batch of received messages on a worker, then lets other connections run
+     */
+    private void handleReceived() {
+        try {
+            Message message;
+            int handled = 0;
+            while (handled < DISPATCH_BATCH && !closed.get() && (message = received.poll()) != null) {
+                handled++;
+                if (receivedCount.decrementAndGet() == MAX_RECEIVED / 2) {
+                    eventLoop.execute(this::resumeReading);
+                }
+                if (message == END_OF_INPUT) {
+                    close();
+                    break;
+                }
+                handleMessage(message);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed.get()) {
+                System.err.println("Client message error: " + e.getMessage());
+            }
+            close();
+        } finally {
+            dispatchScheduled.set(false);
+        }
+        if (closed.get()) {
+            received.clear();
+        } else {
+            scheduleDispatch();
+        }
+    }
+
+    private void resumeReading() {
+        if (readPaused && !inputEnded && receivedCount.get() < MAX_RECEIVED) {
+            readPaused = false;
+            updateInterest();
+        }
+    }
+
+    /**
+     * Registers for reads unless paused, and for writes while output waits (event loop only)
+     */
+    private void updateInterest() {
+        if (key != null && key.isValid()) {
+            key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writeInterest ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    private void handleMessage(Message message) throws IOException {
+        if (userId == null) {
+            handshake(message);
+            return;
+        }
+        if (heartbeat != null) {
+            heartbeat.onReceived(message);
+        }
+        if (!acks.onReceived(message)) {
+            return;
+        }
+
+        if (message.getType() == MessageType.DISCONNECT) {
+            System.out.println("User disconnecting: " + userId);
+            close();
+            return;
+        }
+
+        broker.routeMessage(message);
+        acks.onRouted(message);
+    }
+
+    private void handshake(Message initMessage) throws IOException {
+        String senderId = initMessage.getSenderId();
+
+        User user = new User(senderId, senderId);
+        InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+        user.setIpAddress(remote.getAddress().getHostAddress());
+        user.setPort(remote.getPort());
+
+        this.acks = new ConnectionAcks(this, initMessage, this::scheduleFlush);
+        this.userId = senderId;
+        this.outboundQueue = OutboundQueue.fromConfig(senderId);
+        acks.start();
+        this.heartbeat = HeartbeatMonitor.getInstance().watch(this, initMessage);
+
+        // Registration sends the presence snapshot ahead of any replayed offline messages
+        broker.registerUser(user);
+        broker.registerClient(senderId, this);
+
+        System.out.println("User connected: " + senderId + " (" + format + ")");
+    }
+
+    @Override
+    public void send(EncodedMessage message) {
+        OutboundQueue queue = outboundQueue;
+        if (closed.get() || queue == null) {
+            return;
+        }
+        if (!queue.offer(message)) {
+            if (!queue.isClosed()) {
+                System.err.println("Outbound queue full for " + userId + ", disconnecting slow client");
+                close();
+            }
+            return;
+        }
+        scheduleFlush();
+    }
+
+    private void enqueue(ByteBuffer buffer) {
+        control.add(buffer);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::flush);
+        }
+    }
+
+    /**
+     * Writes handshake bytes, then encodes and writes queued messages
+     * until the socket would block (event loop only)
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            while (true) {
+                if (current == null && currentMessage == null) {
+                    current = nextBuffer();
+                    if (current == null) {
+                        break;
+                    }
+                }
+                if (current != null) {
+                    channel.write(current);
+                    if (current.hasRemaining()) {
+                        writeInterest = true;
+                        updateInterest();
+                        return;
+                    }
+                    current = null;
+                }
+                if (currentMessage != null) {
+                    if (!transferRegion()) {
+                        writeInterest = true;
+                        updateInterest();
+                        return;
+                    }
+                    metrics.onWritten(currentMessage, currentFrameLength + regionSent);
+                    acks.onWritten(currentMessage);
+                    currentMessage.written();
+                    currentMessage.release();
+                    currentMessage = null;
+                    regionSent = 0;
+                }
+            }
+            writeInterest = false;
+            updateInterest();
+        } catch (IOException e) {
+            System.err.println("Error sending message to " + userId + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Sends whatever the socket takes of the current message's spool region
+     * Returns false while part of it is still waiting for the socket to drain
+     */
+    private boolean transferRegion() throws IOException {
+        AttachmentSpool.Region region = currentMessage.getRegion();
+        if (region == null || format != WireFormat.BINARY) {
+            return true;
+        }
+        while (regionSent < region.length()) {
+            long sent = region.transferTo(regionSent, channel);
+            if (sent <= 0) {
+                return false;
+            }
+            regionSent += sent;
+        }
+        return true;
+    }
+
+    private ByteBuffer nextBuffer() throws IOException {
+        ByteBuffer buffer = control.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        OutboundQueue queue = outboundQueue;
+        // A full ack window holds the queue until acks arrive and schedule a flush
+        if (queue == null || !acks.hasRoom()) {
+            return null;
+        }
+        EncodedMessage message = queue.poll();
+        if (message == null) {
+            return null;
+        }
+        try {
+            ByteBuffer frame = message.getRegion() != null && format == WireFormat.BINARY
+                    ? ByteBuffer.wrap(message.headFrame())
+                    : ByteBuffer.wrap(message.frame(format));
+            currentMessage = message;
+            currentFrameLength = frame.remaining();
+            regionSent = 0;
+            return frame;
+        } catch (IOException e) {
+            message.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public String getUserId() {
+        return userId;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    @Override
+    public WireFormat getWireFormat() {
+        return format;
+    }
+
+    /**
+     * Closes the connection from any thread
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        inbound.close();
+        control.clear();
+        if (heartbeat != null) {
+            heartbeat.cancel();
+        }
+
+        if (userId != null) {
+            broker.unregisterClient(userId, this);
+            // Written but never acknowledged, or still queued: kept for the client to resume
+            acks.close();
+            System.out.println("Client cleaned up: " + userId);
+        }
+        if (outboundQueue != null) {
+            outboundQueue.close();
+        }
+        eventLoop.execute(this::closeChannel);
+    }
+
+    /**
+     * Closes the connection from the event loop during shutdown
+     */
+    void closeNow() {
+        close();
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        // A half-written message still holds its frames and possibly a spool region
+        current = null;
+        if (currentMessage != null) {
+            currentMessage.release();
+            currentMessage = null;
+        }
+        if (key != null) {
+            key.cancel();
+            key = null;
+            eventLoop.onConnectionClosed();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing channel: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.messaging.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single-threaded selector loop owning a subset of the NIO connections
+ * All socket reads, writes and interest changes for its channels happen on this thread
+ */
+public class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final String name;
+    private volatile Thread thread;
+    private final Queue<Runnable> tasks;
+    private final AtomicInteger connectionCount;
+
+    // Shared by every connection of this loop, so idle connections hold no buffer
+    private final ByteBuffer readBuffer;
+    private volatile boolean running;
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.name = name;
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.connectionCount = new AtomicInteger();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    }
+
+    public void start() {
+        running = true;
+        Thread loopThread = new Thread(this, name);
+        loopThread.setDaemon(true);
+        thread = loopThread;
+        loopThread.start();
+    }
+
+    /**
+     * Runs a task on the loop thread, waking the selector if needed
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Hands a freshly accepted channel over to this loop
+     */
+    public void register(SocketChannel channel, NioClientConnection connection) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connectionCount.incrementAndGet();
+                connection.onRegistered(key);
+            } catch (IOException e) {
+                System.err.println("Failed to register channel: " + e.getMessage());
+                connection.close();
+            }
+        });
+    }
+
+    void onConnectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                runTasks();
+                // Tasks queued by the loop itself must not wait for the next wakeup
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    processKey(key);
+                }
+            } catch (IOException e) {
+                System.err.println("Event loop error: " + e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    private void processKey(SelectionKey key) {
+        NioClientConnection connection = (NioClientConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        } catch (CancelledKeyException e) {
+            connection.close();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Event loop task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void closeAll() {
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((NioClientConnection) key.attachment()).closeNow();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing selector: " + e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+        Thread loopThread = thread;
+        if (loopThread == null) {
+            return;
+        }
+        try {
+            loopThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
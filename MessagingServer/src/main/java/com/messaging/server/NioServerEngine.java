@@ -0,0 +1,136 @@
+package com.messaging.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking connection engine built on java.nio Selectors
+ * A handful of event loops (one per core) multiplex every client socket,
+ * so idle connections cost no thread at all. Routing and registration may touch the
+ * disk (offline inboxes, spool, blob store), so they run on a bounded worker pool and a
+ * slow fsync never stalls the loops. Legacy object streams decode on virtual threads, one
+ * per connection with bytes pending, so a client stuck mid-object only parks its own decoder
+ */
+public class NioServerEngine {
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final int port;
+    private final MessageBroker broker;
+    private final NioEventLoop[] eventLoops;
+    private final ExecutorService decoders;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop;
+
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    public NioServerEngine(int port, MessageBroker broker) {
+        this(port, broker, Runtime.getRuntime().availableProcessors());
+    }
+
+    public NioServerEngine(int port, MessageBroker broker, int eventLoopCount) {
+        this.port = port;
+        this.broker = broker;
+        this.eventLoops = new NioEventLoop[eventLoopCount];
+        this.nextLoop = new AtomicInteger();
+
+        this.decoders = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("nio-decoder-", 0).factory());
+        this.workers = newPool("nio-worker-", ServerConfig.nioWorkerThreads());
+    }
+
+    private static ExecutorService newPool(String prefix, int threads) {
+        AtomicInteger ids = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+            Thread thread = new Thread(task, prefix + ids.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Binds the port and accepts connections until stop() is called
+     */
+    public void start() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new NioEventLoop("nio-event-loop-" + i);
+            eventLoops[i].start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        running = true;
+        System.out.println("Server started on port " + port + " (NIO, " +
+                eventLoops.length + " event loops)");
+
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                NioEventLoop loop = nextEventLoop();
+                loop.register(channel, new NioClientConnection(channel, loop, broker, decoders, workers));
+
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting client: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private NioEventLoop nextEventLoop() {
+        return eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)];
+    }
+
+    /**
+     * Number of channels currently registered across all event loops
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (NioEventLoop loop : eventLoops) {
+            if (loop != null) {
+                count += loop.getConnectionCount();
+            }
+        }
+        return count;
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing server channel: " + e.getMessage());
+        }
+
+        for (NioEventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+
+        shutdownPool(workers);
+        shutdownPool(decoders);
+    }
+
+    private static void shutdownPool(ExecutorService pool) {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(5, TimeUnit.SECONDS)) {
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
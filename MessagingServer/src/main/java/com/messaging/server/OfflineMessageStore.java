@@ -0,0 +1,418 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.protocol.BinaryMessageCodec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * OfflineMessageStore implements the Singleton pattern
+ * Durable per-user inbox for messages addressed to users who are not connected.
+ *
+ * Each inbox is an append-only log split into segment files named after the offset
+ * of their first record; a record is one BinaryMessageCodec frame. Appends go through
+ * a FileChannel and a background thread fsyncs dirty inboxes in batches. On connect the
+ * unacknowledged records are replayed in order, and a segment is deleted once every
+ * record in it has been written to the client.
+ */
+public class OfflineMessageStore {
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String ACK_FILE = "ack";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static OfflineMessageStore instance;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final Map<String, Inbox> inboxes;
+    // Inboxes with unsynced appends or a changed ack offset
+    private final Set<Inbox> dirty;
+    private final ScheduledExecutorService syncer;
+
+    private OfflineMessageStore() {
+        this(ServerConfig.offlineStoreDirectory(), ServerConfig.offlineSegmentBytes(), ServerConfig.offlineSyncMillis());
+    }
+
+    /**
+     * Store over its own directory, apart from the singleton; tests open a second one
+     * on the same directory to see what a restarted server would find
+     */
+    OfflineMessageStore(Path directory, int segmentBytes, int syncMillis) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.inboxes = new ConcurrentHashMap<>();
+        this.dirty = ConcurrentHashMap.newKeySet();
+        this.syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "offline-store-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int interval = Math.max(1, syncMillis);
+        syncer.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Singleton pattern: Thread-safe lazy initialization
+     */
+    public static synchronized OfflineMessageStore getInstance() {
+        if (instance == null) {
+            instance = new OfflineMessageStore();
+        }
+        return instance;
+    }
+
+    /**
+     * Lock guarding one user's inbox; the broker holds it while deciding between
+     * storing a message and delivering it, so nothing slips past a replay
+     */
+    public ReentrantLock lockFor(String userId) {
+        return inbox(userId).lock;
+    }
+
+    /**
+     * Whether this user ever had an inbox, in this run or a previous one
+     */
+    public boolean hasInbox(String userId) {
+        return inboxes.containsKey(userId) || Files.isDirectory(directory.resolve(ServerConfig.fileSafeName(userId)));
+    }
+
+    /**
+     * Records that the user exists by creating their (empty) inbox directory, so
+     * messages for them are still stored after a restart, before they reconnect
+     */
+    public void remember(String userId) {
+        if (inboxes.containsKey(userId)) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory.resolve(ServerConfig.fileSafeName(userId)));
+        } catch (IOException e) {
+            System.err.println("Failed to record user " + userId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends a message to the user's inbox; durable after the next batched sync
+     */
+    public void append(String userId, Message message) throws IOException {
+        Inbox inbox = inbox(userId);
+        inbox.lock.lock();
+        try {
+            inbox.append(BinaryMessageCodec.encodeFrame(message));
+        } finally {
+            inbox.lock.unlock();
+        }
+        dirty.add(inbox);
+    }
+
+    /**
+     * Hands every unacknowledged message to the sink, oldest first
+     * Each one is acknowledged once the connection reports it written
+     */
+    public int replay(String userId, Consumer<EncodedMessage> sink) throws IOException {
+        Inbox inbox = inbox(userId);
+        inbox.lock.lock();
+        try {
+            return inbox.replay(sink);
+        } finally {
+            inbox.lock.unlock();
+        }
+    }
+
+    /**
+     * Messages stored for the user and not yet written to them
+     */
+    public long getPendingCount(String userId) {
+        Inbox inbox = inboxes.get(userId);
+        return inbox != null ? inbox.pendingCount() : 0;
+    }
+
+    private Inbox inbox(String userId) {
+        return inboxes.computeIfAbsent(userId,
+                id -> new Inbox(directory.resolve(ServerConfig.fileSafeName(id))));
+    }
+
+    /**
+     * Batched fsync, ack persistence and compaction, run by the background thread
+     */
+    void sync() {
+        for (Inbox inbox : dirty) {
+            dirty.remove(inbox);
+            inbox.lock.lock();
+            try {
+                inbox.sync();
+            } catch (IOException e) {
+                System.err.println("Offline store sync failed for " + inbox.path + ": " + e.getMessage());
+                dirty.add(inbox);
+            } finally {
+                inbox.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Flushes everything to disk and releases the open segments
+     */
+    public void close() {
+        syncer.shutdownNow();
+        sync();
+        for (Inbox inbox : inboxes.values()) {
+            inbox.lock.lock();
+            try {
+                inbox.closeActive();
+            } finally {
+                inbox.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One user's log: every method except acknowledge runs under lock
+     */
+    private final class Inbox {
+        private final Path path;
+        private final ReentrantLock lock = new ReentrantLock();
+        // Base offset of each segment file
+        private final NavigableMap<Long, Path> segments = new TreeMap<>();
+        // Everything below this offset was written to the client
+        private final AtomicLong ackedOffset = new AtomicLong();
+        private long persistedAck;
+        private long nextOffset;
+        private boolean loaded;
+
+        private FileChannel active;
+        private long activeSize;
+        private boolean unsynced;
+
+        Inbox(Path path) {
+            this.path = path;
+        }
+
+        /**
+         * Reads the segment list and ack offset, dropping a torn record left by a crash
+         */
+        private void load() throws IOException {
+            if (loaded) {
+                return;
+            }
+            loaded = true;
+            if (!Files.isDirectory(path)) {
+                return;
+            }
+
+            Path ackFile = path.resolve(ACK_FILE);
+            if (Files.exists(ackFile)) {
+                try (DataInputStream in = new DataInputStream(Files.newInputStream(ackFile))) {
+                    persistedAck = in.readLong();
+                    ackedOffset.set(persistedAck);
+                } catch (EOFException e) {
+                    System.err.println("Ignoring truncated ack file in " + path);
+                }
+            }
+
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path, "*" + SEGMENT_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    try {
+                        segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Ignoring unexpected file " + file);
+                    }
+                }
+            }
+
+            nextOffset = ackedOffset.get();
+            if (!segments.isEmpty()) {
+                Map.Entry<Long, Path> last = segments.lastEntry();
+                long[] scan = scan(last.getValue());
+                if (scan[1] < Files.size(last.getValue())) {
+                    System.err.println("Truncating torn record in " + last.getValue());
+                    try (FileChannel channel = FileChannel.open(last.getValue(), StandardOpenOption.WRITE)) {
+                        channel.truncate(scan[1]);
+                    }
+                }
+                nextOffset = Math.max(nextOffset, last.getKey() + scan[0]);
+            }
+        }
+
+        /**
+         * Counts the complete records of a segment; returns {records, valid bytes}
+         */
+        private long[] scan(Path segment) throws IOException {
+            long records = 0;
+            long validBytes = 0;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(segment), READ_BUFFER_SIZE)) {
+                while (true) {
+                    byte[] payload;
+                    try {
+                        payload = BinaryMessageCodec.readFrame(in);
+                    } catch (EOFException | StreamCorruptedException e) {
+                        break;
+                    }
+                    records++;
+                    validBytes += varIntSize(payload.length) + payload.length;
+                }
+            }
+            return new long[]{records, validBytes};
+        }
+
+        void append(byte[] frame) throws IOException {
+            load();
+            if (active == null || activeSize >= segmentBytes) {
+                roll();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            while (buffer.hasRemaining()) {
+                activeSize += active.write(buffer, activeSize);
+            }
+            nextOffset++;
+            unsynced = true;
+        }
+
+        /**
+         * Starts a new segment at the next offset
+         */
+        private void roll() throws IOException {
+            if (active != null) {
+                active.force(false);
+                active.close();
+            }
+            Files.createDirectories(path);
+            Path segment = path.resolve(String.format("%020d%s", nextOffset, SEGMENT_SUFFIX));
+            active = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            activeSize = active.size();
+            segments.put(nextOffset, segment);
+        }
+
+        int replay(Consumer<EncodedMessage> sink) throws IOException {
+            load();
+            long from = ackedOffset.get();
+            int replayed = 0;
+
+            for (Map.Entry<Long, Path> entry : segments.entrySet()) {
+                Long nextBase = segments.higherKey(entry.getKey());
+                if (nextBase != null && nextBase <= from) {
+                    continue;
+                }
+                long offset = entry.getKey();
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(entry.getValue()), READ_BUFFER_SIZE)) {
+                    while (offset < nextOffset) {
+                        byte[] payload;
+                        try {
+                            payload = BinaryMessageCodec.readFrame(in);
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        long delivered = ++offset;
+                        if (delivered <= from) {
+                            continue;
+                        }
+                        EncodedMessage message = EncodedMessage.of(BinaryMessageCodec.decode(payload),
+                                () -> acknowledge(delivered));
+                        sink.accept(message);
+                        message.release();
+                        replayed++;
+                    }
+                }
+            }
+            return replayed;
+        }
+
+        /**
+         * Called from writer threads as records reach the client; may run without the lock
+         */
+        void acknowledge(long offset) {
+            long current;
+            while ((current = ackedOffset.get()) < offset) {
+                if (ackedOffset.compareAndSet(current, offset)) {
+                    dirty.add(this);
+                    return;
+                }
+            }
+        }
+
+        void sync() throws IOException {
+            if (unsynced && active != null) {
+                active.force(false);
+                unsynced = false;
+            }
+            long acked = ackedOffset.get();
+            if (acked != persistedAck) {
+                writeAck(acked);
+                persistedAck = acked;
+                compact(acked);
+            }
+        }
+
+        /**
+         * Deletes segments whose records were all acknowledged
+         */
+        private void compact(long acked) throws IOException {
+            while (!segments.isEmpty()) {
+                Map.Entry<Long, Path> first = segments.firstEntry();
+                Long nextBase = segments.higherKey(first.getKey());
+                long end = nextBase != null ? nextBase : nextOffset;
+                if (end > acked) {
+                    return;
+                }
+                if (nextBase == null) {
+                    closeActive();
+                }
+                Files.deleteIfExists(first.getValue());
+                segments.remove(first.getKey());
+            }
+        }
+
+        private void writeAck(long acked) throws IOException {
+            Files.createDirectories(path);
+            Path temp = path.resolve(ACK_FILE + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+                out.writeLong(acked);
+            }
+            Files.move(temp, path.resolve(ACK_FILE),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        long pendingCount() {
+            return loaded ? Math.max(0, nextOffset - ackedOffset.get()) : 0;
+        }
+
+        void closeActive() {
+            if (active == null) {
+                return;
+            }
+            try {
+                active.force(false);
+                active.close();
+            } catch (IOException e) {
+                System.err.println("Error closing segment in " + path + ": " + e.getMessage());
+            }
+            active = null;
+            activeSize = 0;
+            unsynced = false;
+        }
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,368 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.protocol.BinaryMessageCodec;
+import com.messaging.protocol.WireFormat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-client queue between the routing threads and the client's writer
+ * Routing never blocks on a socket: a full queue applies the OverflowPolicy instead,
+ * so one slow consumer cannot stall the sender or the rest of a broadcast
+ * Entries are shared EncodedMessages: the queue retains each one it accepts and
+ * whoever polls it must release it after writing
+ * A spilled relay chunk only writes its header to the spill file; its data stays in the
+ * AttachmentSpool, so spilling never copies attachment bytes
+ */
+public class OutboundQueue {
+    private static final AtomicInteger SPILL_FILE_IDS = new AtomicInteger();
+
+    private final String owner;
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    // ReentrantLock rather than synchronized: writers may be virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<EncodedMessage> messages = new ArrayDeque<>();
+
+    private SpillFile spill;
+    private int spilledPending;
+    // What a spilled message keeps in memory, in file order
+    private final ArrayDeque<SpilledEntry> spilledEntries = new ArrayDeque<>();
+    private boolean closed;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private volatile int depth;
+    private volatile int highWatermark;
+
+    public OutboundQueue(String owner, int capacity, OverflowPolicy policy) {
+        this.owner = owner;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Queue sized and configured from ServerConfig
+     */
+    public static OutboundQueue fromConfig(String owner) {
+        return new OutboundQueue(owner, ServerConfig.outboundQueueCapacity(), ServerConfig.outboundOverflowPolicy());
+    }
+
+    /**
+     * Adds a message without blocking
+     * Returns false when the queue is closed, the DISCONNECT policy refuses the message or
+     * a spill fails; callers then drop the client rather than lose messages silently
+     */
+    public boolean offer(EncodedMessage message) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            // Once spilling started, new messages go behind the spilled ones to keep order
+            if (spilledPending == 0 && messages.size() < capacity) {
+                messages.addLast(message.retain());
+            } else if (!overflow(message)) {
+                return false;
+            }
+            enqueued.incrementAndGet();
+            updateDepth();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean overflow(EncodedMessage message) {
+        switch (policy) {
+            case DROP_OLDEST:
+                EncodedMessage oldest = messages.pollFirst();
+                if (oldest != null) {
+                    oldest.release();
+                }
+                messages.addLast(message.retain());
+                dropped.incrementAndGet();
+                return true;
+
+            case SPILL_TO_DISK:
+                try {
+                    if (spill == null) {
+                        spill = new SpillFile(owner);
+                    }
+                    AttachmentSpool.Region region = message.getRegion();
+                    spill.append(region != null
+                            ? BinaryMessageCodec.encodeFrame(message.getMessage())
+                            : message.frame(WireFormat.BINARY));
+                    spilledEntries.addLast(new SpilledEntry(message.getOnWritten(),
+                            region != null ? region.retain() : null));
+                    spilledPending++;
+                    spilled.incrementAndGet();
+                    return true;
+                } catch (IOException e) {
+                    // Handled like DISCONNECT, so the sender is not told it was queued
+                    System.err.println("Failed to spill message for " + owner + ": " + e.getMessage());
+                    dropped.incrementAndGet();
+                    return false;
+                }
+
+            case DISCONNECT:
+            default:
+                dropped.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * Next message without waiting, or null; the caller releases it
+     */
+    public EncodedMessage poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to the timeout for the next message; null on timeout or once closed
+     * The caller releases the returned message
+     */
+    public EncodedMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (messages.isEmpty() && spilledPending == 0 && !closed) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private EncodedMessage next() {
+        if (messages.isEmpty() && spilledPending > 0) {
+            refillFromSpill();
+        }
+        EncodedMessage message = messages.pollFirst();
+        if (message != null) {
+            updateDepth();
+        }
+        return message;
+    }
+
+    /**
+     * Moves spilled messages back into memory, in order, once the writer caught up
+     */
+    private void refillFromSpill() {
+        try {
+            int batch = Math.max(1, capacity / 2);
+            while (spilledPending > 0 && messages.size() < batch) {
+                SpilledEntry entry = spilledEntries.pollFirst();
+                Message message = BinaryMessageCodec.decode(spill.next());
+                messages.addLast(entry.region != null
+                        ? EncodedMessage.ofRegion(message, entry.region, entry.onWritten)
+                        : EncodedMessage.of(message, entry.onWritten));
+                spilledPending--;
+            }
+            if (spilledPending == 0) {
+                spill.reset();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read spilled messages for " + owner + ": " + e.getMessage());
+            dropped.addAndGet(spilledPending);
+            spilledPending = 0;
+            clearSpilledEntries();
+            closeSpill();
+        }
+    }
+
+    /**
+     * Stops accepting messages, wakes the writer and deletes any spill file
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            EncodedMessage message;
+            while ((message = messages.pollFirst()) != null) {
+                message.release();
+            }
+            spilledPending = 0;
+            clearSpilledEntries();
+            closeSpill();
+            updateDepth();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void clearSpilledEntries() {
+        SpilledEntry entry;
+        while ((entry = spilledEntries.pollFirst()) != null) {
+            if (entry.region != null) {
+                entry.region.release();
+            }
+        }
+    }
+
+    private void closeSpill() {
+        if (spill != null) {
+            spill.delete();
+            spill = null;
+        }
+    }
+
+    private void updateDepth() {
+        int current = messages.size() + spilledPending;
+        depth = current;
+        if (current > highWatermark) {
+            highWatermark = current;
+        }
+    }
+
+    // ========== Metrics ==========
+
+    /**
+     * Messages waiting for the writer, in memory and on disk
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getSpilledCount() {
+        return spilled.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Write callback and spooled data of a message moved to the spill file
+     */
+    private static final class SpilledEntry {
+        final Runnable onWritten;
+        final AttachmentSpool.Region region;
+
+        SpilledEntry(Runnable onWritten, AttachmentSpool.Region region) {
+            this.onWritten = onWritten;
+            this.region = region;
+        }
+    }
+
+    /**
+     * Append-only file of BinaryMessageCodec frames, read back sequentially
+     */
+    private static final class SpillFile {
+        private final Path path;
+        private final FileChannel channel;
+        private long writePosition;
+        private long readPosition;
+        private final int[] prefixLength = new int[1];
+
+        SpillFile(String owner) throws IOException {
+            Path directory = ServerConfig.spillDirectory();
+            Files.createDirectories(directory);
+            this.path = directory.resolve(ServerConfig.fileSafeName(owner) + "-" + SPILL_FILE_IDS.incrementAndGet() + ".spill");
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void append(byte[] frame) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            while (buffer.hasRemaining()) {
+                writePosition += channel.write(buffer, writePosition);
+            }
+        }
+
+        byte[] next() throws IOException {
+            byte[] prefix = new byte[5];
+            int available = (int) Math.min(prefix.length, writePosition - readPosition);
+            readFully(ByteBuffer.wrap(prefix, 0, available), readPosition);
+            int length = BinaryMessageCodec.peekFrameLength(prefix, 0, available, prefixLength);
+            if (length < 0) {
+                throw new EOFException("Truncated spill file " + path);
+            }
+            byte[] payload = new byte[length];
+            readFully(ByteBuffer.wrap(payload), readPosition + prefixLength[0]);
+            readPosition += prefixLength[0] + length;
+            return payload;
+        }
+
+        /**
+         * Everything was read back: start over at the beginning of the file
+         */
+        void reset() throws IOException {
+            channel.truncate(0);
+            writePosition = 0;
+            readPosition = 0;
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("Failed to delete spill file " + path + ": " + e.getMessage());
+            }
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new EOFException("Truncated spill file " + path);
+                }
+                position += n;
+            }
+        }
+    }
+}
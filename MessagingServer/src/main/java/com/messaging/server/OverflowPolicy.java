@@ -0,0 +1,25 @@
+package com.messaging.server;
+
+/**
+ * What an OutboundQueue does when a slow client lets it fill up
+ */
+public enum OverflowPolicy {
+    /** Discard the oldest queued message to make room */
+    DROP_OLDEST,
+    /** Refuse the message and disconnect the slow client */
+    DISCONNECT,
+    /** Keep accepting and append the overflow to a per-client file on disk */
+    SPILL_TO_DISK;
+
+    public static OverflowPolicy fromString(String value, OverflowPolicy fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown overflow policy '" + value + "', using " + fallback);
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.messaging.server;
+
+import com.messaging.models.MessageType;
+import com.messaging.models.User;
+import com.messaging.protocol.PresenceUpdate;
+import com.messaging.protocol.WireFormat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PresenceIndex implements the Singleton and Observer patterns
+ * Versioned view of who is online, pushed to every subscribed client.
+ *
+ * Connects and disconnects only mark the user id as changed in a concurrent set, so
+ * they never contend with each other or wait on a broadcast. A flusher thread then,
+ * every messaging.presence.flushMillis:
+ * - compares each changed user with what subscribers were last told
+ * - drops users who left and came back (or the reverse) within the interval
+ * - publishes what is left as one delta, encoded once, under the next version
+ * New subscribers get a snapshot of the published set, in pages of bounded size that are
+ * cached per version and sent back to back, and
+ * getOnlineUsers() returns the same immutable list instead of scanning every user.
+ */
+public class PresenceIndex {
+    private static PresenceIndex instance;
+
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private final Set<ClientConnection> subscribers = ConcurrentHashMap.newKeySet();
+
+    // Published state: what subscribers have been told, guarded by publishLock
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private final Map<String, User> published = new LinkedHashMap<>();
+    private long version;
+    private List<EncodedMessage> snapshot;
+    private volatile List<User> onlineUsers = Collections.emptyList();
+
+    private final ScheduledExecutorService flusher;
+    private final LongAdder deltas = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    private PresenceIndex() {
+        this.flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "presence-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int interval = Math.max(1, ServerConfig.presenceFlushMillis());
+        flusher.scheduleWithFixedDelay(this::flushSafely, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Singleton pattern: Thread-safe lazy initialization
+     */
+    public static synchronized PresenceIndex getInstance() {
+        if (instance == null) {
+            instance = new PresenceIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * The user connected or disconnected; picked up by the next flush
+     */
+    public void markChanged(String userId) {
+        changed.add(userId);
+    }
+
+    /**
+     * Sends the client the current snapshot and every delta after it
+     * Clients that cannot decode PRESENCE are left out
+     */
+    public void subscribe(ClientConnection client) {
+        WireFormat format = client.getWireFormat();
+        if (format != null && !format.supports(MessageType.PRESENCE)) {
+            return;
+        }
+        publishLock.lock();
+        try {
+            // Under the lock, so no delta can slip in between the snapshot and the subscription
+            sendSnapshot(client);
+            subscribers.add(client);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    public void unsubscribe(ClientConnection client) {
+        subscribers.remove(client);
+    }
+
+    /**
+     * A client noticed a gap in the versions and asked for the whole set again
+     */
+    public void resync(ClientConnection client) {
+        if (!subscribers.contains(client)) {
+            return;
+        }
+        publishLock.lock();
+        try {
+            sendSnapshot(client);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            System.err.println("Presence flush failed: " + e.getMessage());
+        }
+    }
+
+    void flush() {
+        if (changed.isEmpty()) {
+            return;
+        }
+        MessageBroker broker = MessageBroker.getInstance();
+        List<User> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+
+        publishLock.lock();
+        try {
+            for (Iterator<String> it = changed.iterator(); it.hasNext(); ) {
+                String userId = it.next();
+                // Removed before the state is read, so a change racing with this flush marks it again
+                it.remove();
+                boolean online = broker.isConnected(userId);
+                if (online && !published.containsKey(userId)) {
+                    User user = new User(userId, broker.getUsername(userId));
+                    user.setOnline(true);
+                    published.put(userId, user);
+                    joined.add(user);
+                } else if (!online && published.remove(userId) != null) {
+                    left.add(userId);
+                } else {
+                    coalesced.increment();
+                }
+            }
+            if (joined.isEmpty() && left.isEmpty()) {
+                return;
+            }
+
+            version++;
+            if (snapshot != null) {
+                snapshot.forEach(EncodedMessage::release);
+                snapshot = null;
+            }
+            onlineUsers = Collections.unmodifiableList(new ArrayList<>(published.values()));
+
+            EncodedMessage delta = EncodedMessage.of(new PresenceUpdate(version, false, joined, left).toMessage());
+            try {
+                for (ClientConnection subscriber : subscribers) {
+                    subscriber.send(delta);
+                }
+            } finally {
+                delta.release();
+            }
+            deltas.increment();
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the snapshot pages of the published set, encoded once per version; caller
+     * holds publishLock
+     */
+    private void sendSnapshot(ClientConnection client) {
+        if (snapshot == null) {
+            List<EncodedMessage> pages = new ArrayList<>();
+            for (PresenceUpdate page : PresenceUpdate.snapshotPages(version, onlineUsers)) {
+                pages.add(EncodedMessage.of(page.toMessage()));
+            }
+            snapshot = pages;
+        }
+        for (EncodedMessage page : snapshot) {
+            client.send(page);
+        }
+    }
+
+    /**
+     * Users online as of the last flush; an immutable list shared by all callers
+     */
+    public List<User> getOnlineUsers() {
+        return onlineUsers;
+    }
+
+    public long getVersion() {
+        publishLock.lock();
+        try {
+            return version;
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * Deltas published since startup
+     */
+    public long getDeltaCount() {
+        return deltas.sum();
+    }
+
+    /**
+     * Changes that cancelled out within one flush interval and were never published
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public void close() {
+        flusher.shutdownNow();
+    }
+}
@@ -0,0 +1,71 @@
+package com.messaging.server;
+
+import java.util.Arrays;
+
+/**
+ * Members of one room as a sorted array of interned user numbers
+ * Senders read the current array without locking and iterate it for fan-out; a join or
+ * leave copies it with one element more or less. RoomRegistry only changes a room
+ * inside ConcurrentHashMap.compute, so there is never more than one writer
+ */
+final class Room {
+    private static final int[] EMPTY = new int[0];
+
+    private final String name;
+    private volatile int[] members = EMPTY;
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Current members; the array is never modified, so callers may keep it
+     */
+    int[] members() {
+        return members;
+    }
+
+    boolean contains(int member) {
+        return Arrays.binarySearch(members, member) >= 0;
+    }
+
+    boolean isEmpty() {
+        return members.length == 0;
+    }
+
+    int size() {
+        return members.length;
+    }
+
+    boolean add(int member) {
+        int[] current = members;
+        int index = Arrays.binarySearch(current, member);
+        if (index >= 0) {
+            return false;
+        }
+        int insertAt = -index - 1;
+        int[] updated = new int[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, insertAt);
+        updated[insertAt] = member;
+        System.arraycopy(current, insertAt, updated, insertAt + 1, current.length - insertAt);
+        members = updated;
+        return true;
+    }
+
+    boolean remove(int member) {
+        int[] current = members;
+        int index = Arrays.binarySearch(current, member);
+        if (index < 0) {
+            return false;
+        }
+        int[] updated = current.length == 1 ? EMPTY : new int[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        members = updated;
+        return true;
+    }
+}
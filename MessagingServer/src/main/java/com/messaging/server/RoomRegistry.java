@@ -0,0 +1,232 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.protocol.Rooms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RoomRegistry implements the Singleton pattern
+ * Server-side membership of group conversations. Members are interned user numbers in
+ * a sorted int array per Room, so a room message is encoded once and MessageBroker walks
+ * the array to queue it for each member, instead of the client sending one copy per member.
+ *
+ * Membership requests change one room at a time inside ConcurrentHashMap.compute, and
+ * members only hear about the users that changed: joiners get the full list once.
+ * Rooms are created by their first join or add and dropped when the last member leaves.
+ */
+public class RoomRegistry {
+    private static RoomRegistry instance;
+
+    private final Map<String, Room> rooms;
+    private final UserIds userIds;
+
+    private RoomRegistry() {
+        this.rooms = new ConcurrentHashMap<>();
+        this.userIds = new UserIds();
+    }
+
+    /**
+     * Singleton pattern: Thread-safe lazy initialization
+     */
+    public static synchronized RoomRegistry getInstance() {
+        if (instance == null) {
+            instance = new RoomRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Handles a ROOM request a client sent to SERVER_ID
+     */
+    public void handle(Message request) {
+        String room = request.getHeader(Rooms.HEADER_ROOM);
+        String action = request.getHeader(Rooms.HEADER_ACTION);
+        String userId = request.getSenderId();
+        if (room == null || room.isEmpty() || action == null || userId == null) {
+            System.out.println("Ignoring malformed room request from " + userId);
+            return;
+        }
+
+        switch (action) {
+            case Rooms.ACTION_JOIN:
+                addMembers(room, userId, Collections.singletonList(userId), false);
+                break;
+
+            case Rooms.ACTION_ADD:
+                try {
+                    List<String> members = new ArrayList<>(Rooms.members(request));
+                    members.add(userId);
+                    addMembers(room, userId, members, true);
+                } catch (IOException e) {
+                    System.err.println("Invalid member list from " + userId + ": " + e.getMessage());
+                }
+                break;
+
+            case Rooms.ACTION_LEAVE:
+                removeMember(room, userId);
+                break;
+
+            case Rooms.ACTION_LIST:
+                sendMemberList(room, userId);
+                break;
+
+            default:
+                System.out.println("Unknown room action from " + userId + ": " + action);
+                break;
+        }
+    }
+
+    /**
+     * Adds users to the room, creating it if needed; on an existing room only a member
+     * may add others. Members get the newcomers, newcomers get the full list
+     */
+    private void addMembers(String name, String requesterId, List<String> candidates, boolean membersOnly) {
+        MessageBroker broker = MessageBroker.getInstance();
+        int requester = userIds.intern(requesterId);
+        List<String> joined = new ArrayList<>();
+        int[][] after = new int[1][];
+
+        rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room(key);
+            } else if (membersOnly && !room.contains(requester)) {
+                return room;
+            }
+            for (String candidate : candidates) {
+                if (broker.isKnownUser(candidate) && room.add(userIds.intern(candidate))) {
+                    joined.add(candidate);
+                }
+            }
+            after[0] = room.members();
+            return room.isEmpty() ? null : room;
+        });
+
+        if (after[0] == null) {
+            System.out.println(requesterId + " may not add members to room " + name);
+            return;
+        }
+        if (joined.isEmpty()) {
+            // Nothing changed; a repeated join still answers with the member list
+            if (contains(after[0], requester)) {
+                sendMemberList(name, after[0], requesterId);
+            }
+            return;
+        }
+        System.out.println("Room " + name + ": " + joined + " joined (" + after[0].length + " members)");
+
+        EncodedMessage delta = EncodedMessage.of(Rooms.notification(name, Rooms.ACTION_JOINED, joined));
+        try {
+            broker.deliverToMembers(after[0], delta);
+        } finally {
+            delta.release();
+        }
+        EncodedMessage list = EncodedMessage.of(Rooms.notification(name, Rooms.ACTION_MEMBERS, namesOf(after[0])));
+        try {
+            for (String member : joined) {
+                broker.deliverToUser(member, list);
+            }
+        } finally {
+            list.release();
+        }
+    }
+
+    private void removeMember(String name, String userId) {
+        int member = userIds.find(userId);
+        if (member < 0) {
+            return;
+        }
+        boolean[] removed = new boolean[1];
+        int[][] remaining = new int[1][];
+        rooms.computeIfPresent(name, (key, room) -> {
+            removed[0] = room.remove(member);
+            remaining[0] = room.members();
+            return room.isEmpty() ? null : room;
+        });
+        if (!removed[0]) {
+            return;
+        }
+        System.out.println("Room " + name + ": " + userId + " left (" + remaining[0].length + " members)");
+
+        MessageBroker broker = MessageBroker.getInstance();
+        EncodedMessage delta = EncodedMessage.of(
+                Rooms.notification(name, Rooms.ACTION_LEFT, Collections.singletonList(userId)));
+        try {
+            broker.deliverToMembers(remaining[0], delta);
+            broker.deliverToUser(userId, delta);
+        } finally {
+            delta.release();
+        }
+    }
+
+    private void sendMemberList(String name, String userId) {
+        Room room = rooms.get(name);
+        int[] members = room != null ? room.members() : null;
+        if (members == null || !contains(members, userIds.find(userId))) {
+            System.out.println(userId + " asked for members of room " + name + " without being one");
+            return;
+        }
+        sendMemberList(name, members, userId);
+    }
+
+    private void sendMemberList(String name, int[] members, String userId) {
+        EncodedMessage list = EncodedMessage.of(Rooms.notification(name, Rooms.ACTION_MEMBERS, namesOf(members)));
+        try {
+            MessageBroker.getInstance().deliverToUser(userId, list);
+        } finally {
+            list.release();
+        }
+    }
+
+    /**
+     * Members a room message from the sender fans out to, or null if the room does not
+     * exist or the sender is not in it
+     */
+    int[] membersFor(String name, String senderId) {
+        Room room = rooms.get(name);
+        if (room == null) {
+            System.out.println("Room not found: " + name);
+            return null;
+        }
+        int[] members = room.members();
+        if (!contains(members, userIds.find(senderId))) {
+            System.out.println(senderId + " is not a member of room " + name);
+            return null;
+        }
+        return members;
+    }
+
+    String nameOf(int member) {
+        return userIds.nameOf(member);
+    }
+
+    private List<String> namesOf(int[] members) {
+        List<String> names = new ArrayList<>(members.length);
+        for (int member : members) {
+            names.add(userIds.nameOf(member));
+        }
+        return names;
+    }
+
+    private static boolean contains(int[] members, int member) {
+        return member >= 0 && Arrays.binarySearch(members, member) >= 0;
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Member ids of a room, empty if it does not exist
+     */
+    public List<String> getMembers(String name) {
+        Room room = rooms.get(name);
+        return room != null ? namesOf(room.members()) : Collections.<String>emptyList();
+    }
+}
@@ -6,41 +6,84 @@ import java.io.*;
         import java.net.*;
         import java.util.*;
         import java.util.concurrent.*;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * Main server class implementing the Observer pattern through MessageBroker
- * Uses thread pool for handling multiple clients efficiently
+ * Uses thread pool for handling multiple clients efficiently, one virtual thread
+ * per client in ServerMode.VIRTUAL, or the NIO engine in ServerMode.NIO
  */
 public class Server {
-    private static final int PORT = 8888;
     private static final int MAX_CLIENTS = 100;
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final long STATS_INTERVAL_SECONDS = 60;
 
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    private final int port;
+    private final ServerMode mode;
     private final ExecutorService threadPool;
     private final MessageBroker messageBroker;
+    private NioServerEngine nioEngine;
+    private MetricsEndpoint metricsEndpoint;
+    private ScheduledExecutorService statsReporter;
     private volatile boolean running;
 
     public Server() {
-        // Using thread pool follows best practices for scalability
-        this.threadPool = Executors.newFixedThreadPool(MAX_CLIENTS);
+        this(ServerMode.BLOCKING);
+    }
+
+    public Server(ServerMode mode) {
+        this.port = ServerConfig.port();
+        this.mode = mode;
+        this.threadPool = createThreadPool(mode);
         this.messageBroker = MessageBroker.getInstance();
         this.running = false;
     }
 
+    private static ExecutorService createThreadPool(ServerMode mode) {
+        switch (mode) {
+            case BLOCKING:
+                // Using thread pool follows best practices for scalability
+                return Executors.newFixedThreadPool(MAX_CLIENTS);
+            case VIRTUAL:
+                // No ceiling: every connection gets its own cheap virtual thread
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory());
+            default:
+                return null;
+        }
+    }
+
     public void start() {
+        startMetrics();
+        startCluster();
+        if (mode == ServerMode.NIO) {
+            startNio();
+            return;
+        }
+
         try {
-            serverSocket = new ServerSocket(PORT);
+            // A channel rather than a plain ServerSocket so handlers can transferTo their sockets
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
             running = true;
-            System.out.println("Server started on port " + PORT);
+            System.out.println("Server started on port " + port + " (" + mode + ")");
+
+            if (mode == ServerMode.VIRTUAL) {
+                startVirtualThreadStats();
+            }
 
             while (running) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
+                    Socket clientSocket = serverChannel.accept().socket();
                     System.out.println("New client connected: " +
                             clientSocket.getInetAddress().getHostAddress());
 
                     ClientHandler handler = new ClientHandler(clientSocket, messageBroker);
-                    threadPool.execute(handler);
+                    if (mode == ServerMode.VIRTUAL) {
+                        threadPool.execute(VirtualThreadStats.getInstance().track(handler));
+                    } else {
+                        threadPool.execute(handler);
+                    }
 
                 } catch (IOException e) {
                     if (running) {
@@ -55,23 +98,99 @@ public class Server {
         }
     }
 
+    /**
+     * Serves ServerMetrics on the loopback interface unless messaging.metrics.port is 0
+     */
+    private void startMetrics() {
+        int port = ServerConfig.metricsPort();
+        if (port <= 0) {
+            return;
+        }
+        metricsEndpoint = new MetricsEndpoint(port);
+        try {
+            metricsEndpoint.start();
+        } catch (IOException e) {
+            System.err.println("Metrics endpoint unavailable on port " + port + ": " + e.getMessage());
+            metricsEndpoint = null;
+        }
+    }
+
+    /**
+     * Joins the cluster when messaging.cluster.nodes is set; standalone otherwise
+     */
+    private void startCluster() {
+        try {
+            Cluster.getInstance().start();
+        } catch (IOException e) {
+            System.err.println("Cluster listener unavailable, running standalone: " + e.getMessage());
+        }
+    }
+
+    private void startVirtualThreadStats() {
+        VirtualThreadStats stats = VirtualThreadStats.getInstance();
+        stats.startPinnedMonitor();
+
+        statsReporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "virtual-thread-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        statsReporter.scheduleAtFixedRate(() -> System.out.println(stats),
+                STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void startNio() {
+        nioEngine = new NioServerEngine(port, messageBroker);
+        running = true;
+        try {
+            nioEngine.start();
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+        } finally {
+            stop();
+        }
+    }
+
     public void stop() {
         running = false;
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            if (nioEngine != null) {
+                nioEngine.stop();
             }
-            threadPool.shutdown();
-            if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
-                threadPool.shutdownNow();
+            if (metricsEndpoint != null) {
+                metricsEndpoint.stop();
+            }
+            if (statsReporter != null) {
+                statsReporter.shutdownNow();
+                VirtualThreadStats.getInstance().stopPinnedMonitor();
+            }
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+            if (threadPool != null) {
+                threadPool.shutdown();
+                if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
+                    threadPool.shutdownNow();
+                }
             }
+            // Parked sessions go to the offline store before it closes
+            HeartbeatMonitor.getInstance().close();
+            DeliveryTracker.getInstance().close();
+            OfflineMessageStore.getInstance().close();
+            AttachmentSpool.getInstance().close();
+            BlobStore.getInstance().close();
+            PresenceIndex.getInstance().close();
+            Cluster.getInstance().close();
+            ServerMetrics.getInstance().close();
         } catch (Exception e) {
             System.err.println("Error stopping server: " + e.getMessage());
         }
     }
 
     public static void main(String[] args) {
-        Server server = new Server();
+        // Engine can be chosen on the command line or with -Dmessaging.server.mode
+        String modeName = args.length > 0 ? args[0] : System.getProperty("messaging.server.mode");
+        Server server = new Server(ServerMode.fromString(modeName));
 
         // Add shutdown hook for graceful termination
         Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
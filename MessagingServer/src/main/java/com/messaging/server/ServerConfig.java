@@ -0,0 +1,236 @@
+package com.messaging.server;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Server tunables, read from system properties (-Dmessaging.xxx=value) with defaults
+ */
+public final class ServerConfig {
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Port clients connect to
+     */
+    public static int port() {
+        return intProperty("messaging.port", 8888);
+    }
+
+    /**
+     * Messages held in memory per client before the overflow policy applies
+     */
+    public static int outboundQueueCapacity() {
+        return intProperty("messaging.outbound.capacity", 1024);
+    }
+
+    public static OverflowPolicy outboundOverflowPolicy() {
+        return OverflowPolicy.fromString(System.getProperty("messaging.outbound.policy"),
+                OverflowPolicy.SPILL_TO_DISK);
+    }
+
+    /**
+     * Directory for per-client overflow files
+     */
+    public static Path spillDirectory() {
+        return Paths.get(System.getProperty("messaging.outbound.spillDir",
+                System.getProperty("java.io.tmpdir") + "/messaging-spill"));
+    }
+
+    /**
+     * Root directory of the durable per-user offline inboxes
+     */
+    public static Path offlineStoreDirectory() {
+        return Paths.get(System.getProperty("messaging.store.dir",
+                System.getProperty("user.dir") + "/messaging-data/offline"));
+    }
+
+    /**
+     * Root directory of the content-addressed attachment store
+     */
+    public static Path blobStoreDirectory() {
+        return Paths.get(System.getProperty("messaging.blob.dir",
+                System.getProperty("user.dir") + "/messaging-data/blobs"));
+    }
+
+    /**
+     * Largest blob read into memory to send inline to a legacy client; bigger ones are
+     * announced with a text notice instead
+     */
+    public static int blobInlineMaxBytes() {
+        return intProperty("messaging.blob.inlineMaxBytes", 4 * 1024 * 1024);
+    }
+
+    /**
+     * Size at which an inbox rolls over to a new log segment
+     */
+    public static int offlineSegmentBytes() {
+        return intProperty("messaging.store.segmentBytes", 16 * 1024 * 1024);
+    }
+
+    /**
+     * Worker threads that route messages and register users for the NIO event loops,
+     * which themselves only do socket I/O
+     */
+    public static int nioWorkerThreads() {
+        return intProperty("messaging.nio.workers", Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Interval between batched fsyncs of the offline store
+     */
+    public static int offlineSyncMillis() {
+        return intProperty("messaging.store.syncMillis", 100);
+    }
+
+    /**
+     * Directory where relayed attachment chunks are staged on their way to recipients
+     */
+    public static Path relaySpoolDirectory() {
+        return Paths.get(System.getProperty("messaging.relay.spoolDir",
+                System.getProperty("java.io.tmpdir") + "/messaging-relay"));
+    }
+
+    /**
+     * Seconds an unfinished, unused relay spool is kept before it is deleted
+     */
+    public static int relayIdleSeconds() {
+        return intProperty("messaging.relay.idleSeconds", 600);
+    }
+
+    /**
+     * How long presence changes are collected before they go out as one delta
+     */
+    public static int presenceFlushMillis() {
+        return intProperty("messaging.presence.flushMillis", 250);
+    }
+
+    /**
+     * How long acknowledgements to a client are collected before one ACK goes out
+     */
+    public static int ackDelayMillis() {
+        return intProperty("messaging.ack.delayMillis", 20);
+    }
+
+    /**
+     * Messages kept per connection until the client acknowledges them; once that many
+     * are waiting, writing to the client pauses until it acknowledges some
+     */
+    public static int ackWindow() {
+        return intProperty("messaging.ack.window", 1024);
+    }
+
+    /**
+     * How long a dropped connection's unconfirmed messages wait for the client to resume
+     * before they go to the offline store
+     */
+    public static int resumeTtlMillis() {
+        return intProperty("messaging.resume.ttlMillis", 30_000);
+    }
+
+    /**
+     * Resolution of client idle deadlines; a silent client is closed up to one tick late
+     */
+    public static int heartbeatTickMillis() {
+        return intProperty("messaging.heartbeat.tickMillis", 500);
+    }
+
+    /**
+     * Shortest heartbeat interval a client may ask for
+     */
+    public static int heartbeatMinMillis() {
+        return intProperty("messaging.heartbeat.minMillis", 5_000);
+    }
+
+    /**
+     * Longest heartbeat interval a client may ask for, such as a phone in the background
+     */
+    public static int heartbeatMaxMillis() {
+        return intProperty("messaging.heartbeat.maxMillis", 600_000);
+    }
+
+    /**
+     * Every node of the cluster as comma-separated id@host:port peer addresses,
+     * null to run standalone
+     */
+    public static String clusterNodes() {
+        return System.getProperty("messaging.cluster.nodes");
+    }
+
+    /**
+     * Id of this node in messaging.cluster.nodes
+     */
+    public static String clusterNodeId() {
+        return System.getProperty("messaging.cluster.node");
+    }
+
+    /**
+     * Points per node on the hash ring; more spreads users more evenly
+     */
+    public static int clusterVirtualNodes() {
+        return intProperty("messaging.cluster.virtualNodes", 128);
+    }
+
+    /**
+     * Interval of pings on idle cluster links and of membership checks
+     */
+    public static int clusterHeartbeatMillis() {
+        return intProperty("messaging.cluster.heartbeatMillis", 500);
+    }
+
+    /**
+     * Silence after which a peer is considered lost and its users move
+     */
+    public static int clusterFailureMillis() {
+        return intProperty("messaging.cluster.failureMillis", 2000);
+    }
+
+    /**
+     * Loopback port of the metrics HTTP endpoint, 0 to disable it
+     */
+    public static int metricsPort() {
+        return intProperty("messaging.metrics.port", 9090);
+    }
+
+    /**
+     * Whether every routed message is logged; off by default since the console lock
+     * would serialize all connections on the message path
+     */
+    public static boolean logMessages() {
+        return Boolean.getBoolean("messaging.log.messages");
+    }
+
+    /**
+     * Maps a user id to a file name: letters, digits and '-' are kept, anything else
+     * becomes '_' plus four hex digits, so distinct ids never share a file
+     */
+    static String fileSafeName(String id) {
+        if (id == null || id.isEmpty()) {
+            return "_";
+        }
+        StringBuilder name = new StringBuilder(id.length());
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-') {
+                name.append(c);
+            } else {
+                name.append('_').append(String.format("%04x", (int) c));
+            }
+        }
+        return name.toString();
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+}
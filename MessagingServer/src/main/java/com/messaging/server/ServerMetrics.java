@@ -0,0 +1,309 @@
+package com.messaging.server;
+
+import com.messaging.models.MessageType;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ServerMetrics implements the Singleton pattern
+ * Low-overhead instrumentation of the message path, served by MetricsEndpoint.
+ *
+ * Counters are LongAdders indexed by MessageType ordinal and latencies go into
+ * LatencyHistograms, so recording is lock- and allocation-free on every thread:
+ * - received: messages read from clients, per type
+ * - sent / sent bytes: frames written to clients, per type
+ * - route latency: receive until queued for every recipient
+ * - delivery latency: receive until written to a recipient's socket
+ * - encode time: serializing one frame
+ * Per-second rates are sampled once a second by a daemon thread.
+ */
+public class ServerMetrics {
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final long SAMPLE_INTERVAL_MILLIS = 1000;
+
+    private static ServerMetrics instance;
+
+    private final LongAdder[] received = adders();
+    private final LongAdder[] sent = adders();
+    private final LongAdder[] sentBytes = adders();
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LatencyHistogram routeLatency = new LatencyHistogram();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+
+    // Totals at the previous sample and the per-second rates derived from them
+    private final long[] lastReceived = new long[TYPES.length];
+    private final long[] lastSent = new long[TYPES.length];
+    private final long[] lastSentBytes = new long[TYPES.length];
+    private final AtomicLongArray receivedRate = new AtomicLongArray(TYPES.length);
+    private final AtomicLongArray sentRate = new AtomicLongArray(TYPES.length);
+    private final AtomicLongArray sentBytesRate = new AtomicLongArray(TYPES.length);
+    private final ScheduledExecutorService sampler;
+    private long lastSampleNanos;
+
+    private ServerMetrics() {
+        this.lastSampleNanos = System.nanoTime();
+        this.sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sampleRates, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Singleton pattern: Thread-safe lazy initialization
+     */
+    public static synchronized ServerMetrics getInstance() {
+        if (instance == null) {
+            instance = new ServerMetrics();
+        }
+        return instance;
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[TYPES.length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    // ========== Recording ==========
+
+    /**
+     * A message was read from a client; returns the timestamp routing latencies start from
+     */
+    public long onReceived(MessageType type) {
+        if (type != null) {
+            received[type.ordinal()].increment();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Raw bytes read from client sockets, whatever they decode to
+     */
+    public void onBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * The message has been queued for all its recipients
+     */
+    public void onRouted(long receivedNanos) {
+        routeLatency.record(System.nanoTime() - receivedNanos);
+    }
+
+    /**
+     * A frame of the given length reached a client's socket
+     */
+    public void onWritten(EncodedMessage message, long frameBytes) {
+        MessageType type = message.getMessage().getType();
+        if (type != null) {
+            sent[type.ordinal()].increment();
+            sentBytes[type.ordinal()].add(frameBytes);
+        }
+        long receivedNanos = message.getReceivedNanos();
+        if (receivedNanos != 0) {
+            deliveryLatency.record(System.nanoTime() - receivedNanos);
+        }
+    }
+
+    public void onEncoded(long nanos) {
+        encodeTime.record(nanos);
+    }
+
+    private void sampleRates() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        lastSampleNanos = now;
+        if (seconds <= 0) {
+            return;
+        }
+        for (int i = 0; i < TYPES.length; i++) {
+            receivedRate.set(i, rate(received[i], lastReceived, i, seconds));
+            sentRate.set(i, rate(sent[i], lastSent, i, seconds));
+            sentBytesRate.set(i, rate(sentBytes[i], lastSentBytes, i, seconds));
+        }
+    }
+
+    private static long rate(LongAdder counter, long[] last, int i, double seconds) {
+        long total = counter.sum();
+        long delta = total - last[i];
+        last[i] = total;
+        return Math.round(delta / seconds);
+    }
+
+    public void close() {
+        sampler.shutdownNow();
+    }
+
+    // ========== Reading ==========
+
+    public long getReceivedCount(MessageType type) {
+        return received[type.ordinal()].sum();
+    }
+
+    public long getSentCount(MessageType type) {
+        return sent[type.ordinal()].sum();
+    }
+
+    public long getSentBytes(MessageType type) {
+        return sentBytes[type.ordinal()].sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public LatencyHistogram getRouteLatency() {
+        return routeLatency;
+    }
+
+    public LatencyHistogram getDeliveryLatency() {
+        return deliveryLatency;
+    }
+
+    public LatencyHistogram getEncodeTime() {
+        return encodeTime;
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder(8192);
+        MessageBroker broker = MessageBroker.getInstance();
+
+        gauge(out, "messaging_connected_clients", "Clients currently connected", broker.getConnectedCount());
+
+        header(out, "messaging_messages_received_total", "counter", "Messages read from clients");
+        header(out, "messaging_messages_received_per_second", "gauge", "Messages read from clients over the last second");
+        header(out, "messaging_messages_sent_total", "counter", "Frames written to clients");
+        header(out, "messaging_messages_sent_per_second", "gauge", "Frames written to clients over the last second");
+        header(out, "messaging_bytes_sent_total", "counter", "Frame bytes written to clients");
+        header(out, "messaging_bytes_sent_per_second", "gauge", "Frame bytes written to clients over the last second");
+        for (int i = 0; i < TYPES.length; i++) {
+            String label = "{type=\"" + TYPES[i].name() + "\"}";
+            sample(out, "messaging_messages_received_total", label, received[i].sum());
+            sample(out, "messaging_messages_received_per_second", label, receivedRate.get(i));
+            sample(out, "messaging_messages_sent_total", label, sent[i].sum());
+            sample(out, "messaging_messages_sent_per_second", label, sentRate.get(i));
+            sample(out, "messaging_bytes_sent_total", label, sentBytes[i].sum());
+            sample(out, "messaging_bytes_sent_per_second", label, sentBytesRate.get(i));
+        }
+        header(out, "messaging_bytes_received_total", "counter", "Bytes read from client sockets");
+        sample(out, "messaging_bytes_received_total", "", bytesRead.sum());
+
+        summary(out, "messaging_route_latency_seconds", "Receive until queued for every recipient", routeLatency);
+        summary(out, "messaging_delivery_latency_seconds", "Receive until written to the recipient", deliveryLatency);
+        summary(out, "messaging_encode_seconds", "Time to serialize one frame", encodeTime);
+
+        header(out, "messaging_outbound_queue_depth", "gauge", "Messages waiting in a client's outbound queue");
+        header(out, "messaging_outbound_dropped_total", "counter", "Messages dropped by a client's overflow policy");
+        header(out, "messaging_outbound_spilled_total", "counter", "Messages spilled to disk for a client");
+        for (Map.Entry<String, ClientConnection> entry : broker.getConnectedClients().entrySet()) {
+            OutboundQueue queue = entry.getValue().getOutboundQueue();
+            if (queue == null) {
+                continue;
+            }
+            String label = "{client=\"" + escape(entry.getKey()) + "\"}";
+            sample(out, "messaging_outbound_queue_depth", label, queue.getDepth());
+            sample(out, "messaging_outbound_dropped_total", label, queue.getDroppedCount());
+            sample(out, "messaging_outbound_spilled_total", label, queue.getSpilledCount());
+        }
+
+        gauge(out, "messaging_frames_encoded_total", "Frames encoded since startup", EncodedMessage.getEncodeCount());
+        gauge(out, "messaging_relay_spools", "Attachment relay spools open", AttachmentSpool.getInstance().getSpoolCount());
+        gauge(out, "messaging_relay_staged_bytes_total", "Attachment bytes staged in relay spools",
+                AttachmentSpool.getInstance().getStagedBytes());
+        gauge(out, "messaging_blobs_deduplicated_total", "Uploads skipped because the blob was stored",
+                BlobStore.getInstance().getDeduplicatedCount());
+        Cluster cluster = Cluster.getInstance();
+        if (cluster.isEnabled()) {
+            gauge(out, "messaging_cluster_live_nodes", "Cluster nodes on the hash ring, this one included",
+                    cluster.getLiveNodes().size());
+            header(out, "messaging_cluster_link_frames_total", "counter", "Frames sent to a peer node");
+            header(out, "messaging_cluster_link_batches_total", "counter", "Flushes to a peer node, each carrying a batch of frames");
+            header(out, "messaging_cluster_link_dropped_total", "counter", "Frames to a peer node dropped while it was unreachable");
+            header(out, "messaging_cluster_link_queue_depth", "gauge", "Frames waiting to be sent to a peer node");
+            for (ClusterLink link : cluster.getLinks()) {
+                String label = "{peer=\"" + escape(link.getPeer().getId()) + "\"}";
+                sample(out, "messaging_cluster_link_frames_total", label, link.getFrameCount());
+                sample(out, "messaging_cluster_link_batches_total", label, link.getBatchCount());
+                sample(out, "messaging_cluster_link_dropped_total", label, link.getDroppedCount());
+                sample(out, "messaging_cluster_link_queue_depth", label, link.getQueueDepth());
+            }
+        }
+        gauge(out, "messaging_rooms", "Group conversations with at least one member",
+                RoomRegistry.getInstance().getRoomCount());
+        gauge(out, "messaging_presence_version", "Version of the published online set",
+                PresenceIndex.getInstance().getVersion());
+        gauge(out, "messaging_presence_deltas_total", "Presence deltas broadcast",
+                PresenceIndex.getInstance().getDeltaCount());
+        gauge(out, "messaging_presence_coalesced_total", "Presence changes cancelled out before publishing",
+                PresenceIndex.getInstance().getCoalescedCount());
+        gauge(out, "messaging_blobs_served_total", "Blob downloads started", BlobStore.getInstance().getServedCount());
+        DeliveryTracker delivery = DeliveryTracker.getInstance();
+        gauge(out, "messaging_acks_sent_total", "Acknowledgements sent to clients", delivery.getAckCount());
+        gauge(out, "messaging_retransmits_dropped_total", "Client retransmits already routed, acknowledged again",
+                delivery.getDuplicateCount());
+        gauge(out, "messaging_redelivered_total", "Unacknowledged messages delivered again after a disconnect",
+                delivery.getRedeliveredCount());
+        gauge(out, "messaging_ack_window_full_total", "Writer pauses until a client acknowledged its full ack window",
+                delivery.getWindowFullCount());
+        gauge(out, "messaging_sessions_resumed_total", "Reconnects that resumed their previous session",
+                delivery.getResumedCount());
+        gauge(out, "messaging_resume_skipped_total", "Unacknowledged messages a resuming client already had",
+                delivery.getResumeSkippedCount());
+        gauge(out, "messaging_sessions_parked", "Dropped sessions waiting to be resumed", delivery.getParkedCount());
+        HeartbeatMonitor heartbeats = HeartbeatMonitor.getInstance();
+        gauge(out, "messaging_heartbeat_connections_total", "Connections that opted in to heartbeats",
+                heartbeats.getWatchedCount());
+        gauge(out, "messaging_heartbeat_pings_total", "Heartbeat pings answered", heartbeats.getPingCount());
+        gauge(out, "messaging_idle_reaped_total", "Connections closed after their client went silent",
+                heartbeats.getReapedCount());
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, name.endsWith("_total") ? "counter" : "gauge", help);
+        sample(out, name, "", value);
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        header(out, name, "summary", help);
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        for (double quantile : quantiles) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getValueAtQuantile(quantile) / 1e9).append('\n');
+        }
+        out.append(name).append("_max ").append(histogram.getMax() / 1e9).append('\n');
+        out.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * User ids come from clients: keep them from breaking out of the label value
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
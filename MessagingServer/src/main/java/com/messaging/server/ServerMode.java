@@ -0,0 +1,29 @@
+package com.messaging.server;
+
+/**
+ * Connection engines the server can run with
+ * Selected at startup so the engines can be compared under the same load
+ */
+public enum ServerMode {
+    /** One pooled platform thread per connection (ClientHandler) */
+    BLOCKING,
+    /** One virtual thread per connection, no client ceiling (ClientHandler) */
+    VIRTUAL,
+    /** Non-blocking selector event loops, one per core (NioServerEngine) */
+    NIO;
+
+    /**
+     * Parses a mode name, falling back to BLOCKING for unknown values
+     */
+    public static ServerMode fromString(String value) {
+        if (value == null) {
+            return BLOCKING;
+        }
+        try {
+            return ServerMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown server mode '" + value + "', using " + BLOCKING);
+            return BLOCKING;
+        }
+    }
+}
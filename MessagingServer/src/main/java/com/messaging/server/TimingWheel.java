@@ -0,0 +1,136 @@
+package com.messaging.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel for a large number of coarse, mostly cancelled timeouts
+ * Time is cut into ticks and the wheel has a power-of-two number of buckets; a timeout
+ * goes into the bucket of its deadline tick along with how many full turns remain.
+ * Scheduling only appends to a lock-free queue and cancelling only sets a flag, so
+ * both are O(1) from any thread. One worker thread moves new timeouts into their
+ * buckets and, once per tick, runs the due ones of a single bucket.
+ * Deadlines are rounded up to the next tick; tasks run on the worker and must be short
+ */
+final class TimingWheel {
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] buckets;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startNanos;
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    // Worker only
+    private long tick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(String name, long tickDuration, TimeUnit unit, int bucketCount) {
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(2, bucketCount - 1)) << 1;
+        this.buckets = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Runs the task on the worker once the delay has passed, unless cancelled first
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay)));
+        added.add(timeout);
+        return timeout;
+    }
+
+    void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            transferAdded();
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Places newly scheduled timeouts; one already overdue goes into the current bucket
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long deadlineTick = Math.max(tick, (timeout.deadline + tickNanos - 1) / tickNanos);
+            timeout.rounds = (deadlineTick - tick) / buckets.length;
+            buckets[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+            } else if (timeout.rounds <= 0) {
+                iterator.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Timer task failed: " + e.getMessage());
+                }
+            } else {
+                timeout.rounds--;
+            }
+        }
+    }
+
+    /**
+     * Handle of a scheduled task
+     */
+    static final class Timeout {
+        private final Runnable task;
+        // Nanoseconds since the wheel started
+        private final long deadline;
+        // Worker only: full turns of the wheel left before it is due
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * The task will not run; the slot is reclaimed when the worker next passes it
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.messaging.server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns user ids as dense ints, so membership sets can hold primitives instead of
+ * Strings: a member costs 4 bytes and comparing two is a single instruction
+ * Numbers are handed out once and never reused, for as long as the server runs
+ */
+final class UserIds {
+    private final Map<String, Integer> numbers = new ConcurrentHashMap<>();
+    // Index is the number; replaced with a larger copy when full, under the lock
+    private volatile String[] names = new String[1024];
+    private int next;
+
+    int intern(String userId) {
+        Integer number = numbers.get(userId);
+        if (number != null) {
+            return number;
+        }
+        synchronized (this) {
+            number = numbers.get(userId);
+            if (number != null) {
+                return number;
+            }
+            int assigned = next++;
+            String[] current = names;
+            if (assigned == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[assigned] = userId;
+            // The volatile write publishes the name before the number becomes visible
+            names = current;
+            numbers.put(userId, assigned);
+            return assigned;
+        }
+    }
+
+    /**
+     * Number of an already interned id, or -1
+     */
+    int find(String userId) {
+        Integer number = numbers.get(userId);
+        return number != null ? number : -1;
+    }
+
+    String nameOf(int number) {
+        return names[number];
+    }
+
+    int size() {
+        return numbers.size();
+    }
+}
@@ -0,0 +1,191 @@
+package com.messaging.server;
+
+import jdk.jfr.consumer.RecordingStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Singleton collecting scheduling counters for ClientHandlers running on virtual threads
+ * The JDK reports no mount/unmount events, so the counters say what each one is:
+ * - pinned: measured, from the jdk.VirtualThreadPinned JFR event
+ * - carrier migrations: measured, a read that returned on another carrier than it
+ *   started on; each one is certainly an unmount and remount, so it is a lower bound
+ * - estimated parks: a heuristic, reads that started with no bytes ready. Data may
+ *   arrive before the read blocks, and a read may park with some bytes buffered, so it
+ *   only shows the trend, not a count of real unmounts
+ */
+public class VirtualThreadStats {
+    private static final Duration PINNED_THRESHOLD = Duration.ofMillis(20);
+
+    private static VirtualThreadStats instance;
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder finished = new LongAdder();
+    private final LongAdder estimatedParks = new LongAdder();
+    private final LongAdder carrierMigrations = new LongAdder();
+    private final LongAdder pinnedEvents = new LongAdder();
+    private final Set<String> carriersSeen = ConcurrentHashMap.newKeySet();
+    private RecordingStream pinnedRecording;
+
+    private VirtualThreadStats() {
+    }
+
+    public static synchronized VirtualThreadStats getInstance() {
+        if (instance == null) {
+            instance = new VirtualThreadStats();
+        }
+        return instance;
+    }
+
+    /**
+     * Starts listening for pinned virtual threads; safe to call more than once
+     */
+    public synchronized void startPinnedMonitor() {
+        if (pinnedRecording != null) {
+            return;
+        }
+        try {
+            pinnedRecording = new RecordingStream();
+            pinnedRecording.enable("jdk.VirtualThreadPinned").withThreshold(PINNED_THRESHOLD);
+            pinnedRecording.onEvent("jdk.VirtualThreadPinned", event -> pinnedEvents.increment());
+            pinnedRecording.startAsync();
+        } catch (RuntimeException e) {
+            System.err.println("Pinned thread monitoring unavailable: " + e.getMessage());
+            pinnedRecording = null;
+        }
+    }
+
+    public synchronized void stopPinnedMonitor() {
+        if (pinnedRecording != null) {
+            pinnedRecording.close();
+            pinnedRecording = null;
+        }
+    }
+
+    /**
+     * Wraps a connection task so its virtual thread lifetime is counted
+     */
+    public Runnable track(Runnable task) {
+        return () -> {
+            started.increment();
+            recordCarrier(currentCarrier());
+            try {
+                task.run();
+            } finally {
+                finished.increment();
+            }
+        };
+    }
+
+    /**
+     * Called before a blocking read; counts it as an estimated park when the socket has
+     * no bytes ready, a guess rather than an observation
+     */
+    public void beforeBlockingRead(InputStream socketInput) {
+        if (!Thread.currentThread().isVirtual()) {
+            return;
+        }
+        try {
+            if (socketInput.available() == 0) {
+                estimatedParks.increment();
+            }
+        } catch (IOException e) {
+            // The read itself will report the failure
+        }
+    }
+
+    /**
+     * Called after a blocking read returns with the carrier observed before the read;
+     * a different carrier now proves the thread was unmounted meanwhile
+     */
+    public void afterBlockingRead(String carrierBefore) {
+        if (carrierBefore == null) {
+            return;
+        }
+        String carrierAfter = currentCarrier();
+        recordCarrier(carrierAfter);
+        if (!carrierBefore.equals(carrierAfter)) {
+            carrierMigrations.increment();
+        }
+    }
+
+    /**
+     * Name of the carrier the current virtual thread is mounted on, null for platform threads
+     * The JDK exposes it only through VirtualThread.toString(): "VirtualThread[#21]/runnable@ForkJoinPool-1-worker-3"
+     */
+    public String currentCarrier() {
+        Thread thread = Thread.currentThread();
+        if (!thread.isVirtual()) {
+            return null;
+        }
+        String description = thread.toString();
+        int at = description.lastIndexOf('@');
+        return at >= 0 ? description.substring(at + 1) : null;
+    }
+
+    private void recordCarrier(String carrier) {
+        if (carrier != null) {
+            carriersSeen.add(carrier);
+        }
+    }
+
+    public long getActiveThreads() {
+        return started.sum() - finished.sum();
+    }
+
+    public long getStartedThreads() {
+        return started.sum();
+    }
+
+    /**
+     * Reads that found no bytes ready, a heuristic for how often handlers park
+     */
+    public long getEstimatedParks() {
+        return estimatedParks.sum();
+    }
+
+    /**
+     * Reads that returned on another carrier, a lower bound on remounts
+     */
+    public long getCarrierMigrations() {
+        return carrierMigrations.sum();
+    }
+
+    public long getPinnedEvents() {
+        return pinnedEvents.sum();
+    }
+
+    public int getCarrierThreadsSeen() {
+        return carriersSeen.size();
+    }
+
+    /**
+     * Configured size of the virtual thread scheduler
+     */
+    public int getCarrierParallelism() {
+        String configured = System.getProperty("jdk.virtualThreadScheduler.parallelism");
+        if (configured != null) {
+            try {
+                return Integer.parseInt(configured);
+            } catch (NumberFormatException e) {
+                // Fall through to the JDK default
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualThreads{active=" + getActiveThreads() +
+                ", started=" + getStartedThreads() +
+                ", carriers=" + getCarrierThreadsSeen() + "/" + getCarrierParallelism() +
+                ", estimatedParks~" + getEstimatedParks() +
+                ", migrations=" + getCarrierMigrations() +
+                ", pinned=" + getPinnedEvents() + "}";
+    }
+}
@@ -0,0 +1,233 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.models.User;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryMessageCodecTest {
+
+    @Test
+    void messageRoundTripsEveryField() throws IOException {
+        LocalDateTime timestamp = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        Message message = new Message.Builder()
+                .id(UUID.randomUUID().toString())
+                .senderId("alice")
+                .receiverId("bob")
+                .type(MessageType.FILE)
+                .content("käse ✓")
+                .fileName("notes.txt")
+                .fileSize(1234567890123L)
+                .timestamp(timestamp)
+                .header(Acks.HEADER_SEQ, "42")
+                .header("empty", "")
+                .data(new byte[]{1, 2, 3, 0, -1})
+                .build();
+
+        Message decoded = BinaryMessageCodec.decode(BinaryMessageCodec.encode(message));
+
+        assertEquals(message.getId(), decoded.getId());
+        assertEquals("alice", decoded.getSenderId());
+        assertEquals("bob", decoded.getReceiverId());
+        assertEquals(MessageType.FILE, decoded.getType());
+        assertEquals("käse ✓", decoded.getContent());
+        assertEquals("notes.txt", decoded.getFileName());
+        assertEquals(1234567890123L, decoded.getFileSize());
+        assertEquals(timestamp, decoded.getTimestamp());
+        assertEquals("42", decoded.getHeader(Acks.HEADER_SEQ));
+        assertEquals("", decoded.getHeader("empty"));
+        assertArrayEquals(new byte[]{1, 2, 3, 0, -1}, decoded.getData());
+    }
+
+    @Test
+    void absentFieldsStayAbsent() throws IOException {
+        Message message = new Message.Builder().id("not-a-uuid").type(MessageType.ACK).timestamp(null).build();
+
+        Message decoded = BinaryMessageCodec.decode(BinaryMessageCodec.encode(message));
+
+        assertEquals("not-a-uuid", decoded.getId());
+        assertNull(decoded.getSenderId());
+        assertNull(decoded.getContent());
+        assertNull(decoded.getTimestamp());
+        assertNull(decoded.getData());
+        assertTrue(decoded.getHeaders().isEmpty());
+    }
+
+    @Test
+    void everyTypeRoundTrips() throws IOException {
+        for (MessageType type : MessageType.values()) {
+            Message message = new Message.Builder().type(type).build();
+            assertEquals(type, BinaryMessageCodec.decode(BinaryMessageCodec.encode(message)).getType());
+        }
+    }
+
+    @Test
+    void framesReadBackFromAStream() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(BinaryMessageCodec.encodeFrame(text("one")));
+        stream.write(BinaryMessageCodec.encodeFrame(text("two")));
+        ByteArrayInputStream in = new ByteArrayInputStream(stream.toByteArray());
+
+        assertEquals("one", BinaryMessageCodec.decode(BinaryMessageCodec.readFrame(in)).getContent());
+        assertEquals("two", BinaryMessageCodec.decode(BinaryMessageCodec.readFrame(in)).getContent());
+        assertThrows(EOFException.class, () -> BinaryMessageCodec.readFrame(in));
+    }
+
+    @Test
+    void frameHeadFollowedByTheDataIsAWholeFrame() throws IOException {
+        byte[] data = new byte[1000];
+        Arrays.fill(data, (byte) 7);
+        Message chunk = new Message.Builder().senderId("alice").type(MessageType.FILE_CHUNK).build();
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(BinaryMessageCodec.encodeFrameHead(chunk, data.length));
+        frame.write(data);
+        Message decoded = BinaryMessageCodec.decode(
+                BinaryMessageCodec.readFrame(new ByteArrayInputStream(frame.toByteArray())));
+
+        assertEquals(MessageType.FILE_CHUNK, decoded.getType());
+        assertArrayEquals(data, decoded.getData());
+    }
+
+    @Test
+    void usersStringsAndPresenceRoundTrip() throws IOException {
+        User alice = new User("alice", "alice");
+        alice.setIpAddress("10.0.0.1");
+        alice.setPort(5000);
+        alice.setOnline(true);
+        User bob = new User("bob", "Bobby");
+
+        List<User> users = BinaryMessageCodec.decodeUsers(BinaryMessageCodec.encodeUsers(Arrays.asList(alice, bob)));
+        assertEquals(2, users.size());
+        assertEquals("10.0.0.1", users.get(0).getIpAddress());
+        assertEquals(5000, users.get(0).getPort());
+        assertTrue(users.get(0).isOnline());
+        assertEquals("Bobby", users.get(1).getUsername());
+        assertFalse(users.get(1).isOnline());
+
+        List<String> strings = Arrays.asList("a", "", "ü");
+        assertEquals(strings, BinaryMessageCodec.decodeStrings(BinaryMessageCodec.encodeStrings(strings)));
+
+        PresenceUpdate update = BinaryMessageCodec.decodePresence(BinaryMessageCodec.encodePresence(
+                new PresenceUpdate(9, true, Collections.singletonList(alice), Collections.singletonList("carol"))));
+        assertEquals(9, update.getVersion());
+        assertTrue(update.isSnapshot());
+        assertEquals("alice", update.getJoined().get(0).getId());
+        assertEquals(Collections.singletonList("carol"), update.getLeft());
+    }
+
+    @Test
+    void truncatedMessageIsRejected() {
+        byte[] payload = BinaryMessageCodec.encode(text("hello there"));
+        byte[] truncated = Arrays.copyOf(payload, payload.length - 3);
+
+        assertThrows(EOFException.class, () -> BinaryMessageCodec.decode(truncated));
+    }
+
+    @Test
+    void trailingBytesAreRejected() {
+        byte[] payload = BinaryMessageCodec.encode(text("hello"));
+        byte[] padded = Arrays.copyOf(payload, payload.length + 1);
+
+        assertThrows(StreamCorruptedException.class, () -> BinaryMessageCodec.decode(padded));
+    }
+
+    @Test
+    void unknownTypeTagIsRejected() {
+        byte[] payload = BinaryMessageCodec.encode(text("hello"));
+        payload[0] = (byte) 0x7F;
+
+        assertThrows(IOException.class, () -> BinaryMessageCodec.decode(payload));
+    }
+
+    @Test
+    void negativeUserCountIsRejected() {
+        // varint 0xFFFFFFFF: a count of -1
+        byte[] payload = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+
+        assertThrows(StreamCorruptedException.class, () -> BinaryMessageCodec.decodeUsers(payload));
+    }
+
+    @Test
+    void hugeCountIsRejectedWithoutAllocatingForIt() {
+        // varint 0x7FFFFFFF followed by a single user's worth of bytes
+        byte[] payload = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0, 0};
+
+        assertThrows(EOFException.class, () -> BinaryMessageCodec.decodeUsers(payload));
+        assertThrows(EOFException.class, () -> BinaryMessageCodec.decodeStrings(payload));
+    }
+
+    @Test
+    void oversizedFrameLengthIsRejected() throws IOException {
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+        BinaryMessageCodec.writeVarInt(prefix, BinaryMessageCodec.MAX_FRAME_LENGTH + 1);
+        byte[] bytes = prefix.toByteArray();
+
+        assertThrows(StreamCorruptedException.class,
+                () -> BinaryMessageCodec.readFrame(new ByteArrayInputStream(bytes)));
+        assertThrows(StreamCorruptedException.class,
+                () -> BinaryMessageCodec.peekFrameLength(bytes, 0, bytes.length, new int[1]));
+    }
+
+    @Test
+    void chunkSizedFrameIsAccepted() throws IOException {
+        Message chunk = new Message.Builder()
+                .senderId("alice")
+                .receiverId("bob")
+                .type(MessageType.FILE_CHUNK)
+                .header("transfer", UUID.randomUUID().toString())
+                .data(new byte[ChunkedFileTransfer.CHUNK_SIZE])
+                .build();
+        byte[] frame = BinaryMessageCodec.encodeFrame(chunk);
+
+        int[] prefixLength = new int[1];
+        int length = BinaryMessageCodec.peekFrameLength(frame, 0, frame.length, prefixLength);
+        assertEquals(frame.length - prefixLength[0], length);
+        assertEquals(ChunkedFileTransfer.CHUNK_SIZE,
+                BinaryMessageCodec.decode(frame, prefixLength[0], length).getData().length);
+    }
+
+    @Test
+    void oversizedMessageIsNotFramed() {
+        Message image = new Message.Builder()
+                .senderId("alice")
+                .receiverId("bob")
+                .type(MessageType.IMAGE)
+                .data(new byte[BinaryMessageCodec.MAX_FRAME_LENGTH + 1])
+                .build();
+
+        assertThrows(IOException.class, () -> BinaryMessageCodec.encodeFrame(image));
+        assertThrows(IOException.class,
+                () -> BinaryMessageCodec.encodeFrameHead(image, BinaryMessageCodec.MAX_FRAME_LENGTH));
+    }
+
+    @Test
+    void incompleteLengthPrefixAsksForMoreBytes() throws StreamCorruptedException {
+        byte[] partial = {(byte) 0x80};
+
+        assertEquals(-1, BinaryMessageCodec.peekFrameLength(partial, 0, partial.length, new int[1]));
+    }
+
+    private static Message text(String content) {
+        return new Message.Builder().senderId("alice").receiverId("bob").type(MessageType.TEXT).content(content).build();
+    }
+}
@@ -0,0 +1,329 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class ChunkedFileTransferTest {
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @Test
+    void finishedFileMatchesItsSha256AndLandsInTheCache() throws Exception {
+        Network network = new Network();
+        Recorder received = new Recorder();
+        ChunkedFileTransfer sender = network.sender();
+        ChunkedFileTransfer receiver = network.receiver(received);
+        byte[] data = randomBytes(3 * ChunkedFileTransfer.CHUNK_SIZE + 123);
+        String sha256 = BlobCache.sha256(data);
+
+        sender.send("t1", "alice", "bob", MessageType.FILE, "report.pdf",
+                ChunkedFileTransfer.bytesSource(data), sha256);
+        network.run(sender, receiver, () -> !received.files.isEmpty());
+
+        Message summary = received.summaries.get(0);
+        assertEquals(sha256, summary.getHeader(ChunkedFileTransfer.HEADER_SHA256));
+        assertEquals(data.length, summary.getFileSize());
+        File file = received.files.get(0);
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        assertEquals(sha256, BlobCache.sha256(Files.readAllBytes(file.toPath())));
+        assertEquals(file, receiver.getCache().lookup(sha256));
+        assertTrue(received.failures.isEmpty());
+    }
+
+    @Test
+    void fileNotMatchingTheAnnouncedSha256IsDiscarded() throws Exception {
+        Network network = new Network();
+        Recorder received = new Recorder();
+        ChunkedFileTransfer sender = network.sender();
+        ChunkedFileTransfer receiver = network.receiver(received);
+        byte[] data = randomBytes(2 * ChunkedFileTransfer.CHUNK_SIZE + 1);
+        String otherSha256 = BlobCache.sha256(randomBytes(16));
+
+        sender.send("t1", "alice", "bob", MessageType.FILE, "report.pdf",
+                ChunkedFileTransfer.bytesSource(data), otherSha256);
+        network.run(sender, receiver, () -> !received.failures.isEmpty());
+        sender.cancel("t1");
+
+        assertEquals("t1", received.failures.get(0));
+        assertTrue(received.files.isEmpty());
+        assertFalse(receiver.isActive("t1"));
+        assertNull(receiver.getCache().lookup(otherSha256));
+        File[] leftovers = new File(network.receiverDir, ".partial").listFiles();
+        assertEquals(0, leftovers != null ? leftovers.length : 0);
+    }
+
+    @Test
+    void corruptedChunkIsRequestedAgainFromItsOffset() throws Exception {
+        Network network = new Network();
+        Recorder received = new Recorder();
+        ChunkedFileTransfer sender = network.sender();
+        ChunkedFileTransfer receiver = network.receiver(received);
+        byte[] data = randomBytes(4 * ChunkedFileTransfer.CHUNK_SIZE);
+        String corruptOffset = Long.toString(ChunkedFileTransfer.CHUNK_SIZE);
+        boolean[] corrupted = new boolean[1];
+        network.tamper = message -> {
+            if (corrupted[0] || !corruptOffset.equals(message.getHeader(ChunkedFileTransfer.HEADER_OFFSET))) {
+                return message;
+            }
+            corrupted[0] = true;
+            byte[] flipped = message.getData().clone();
+            flipped[17] ^= 0x01;
+            // Same CRC header as before, so the checksum no longer matches the data
+            return copyWithData(message, flipped);
+        };
+
+        sender.send("t1", "alice", "bob", MessageType.FILE, "clip.mp4",
+                ChunkedFileTransfer.bytesSource(data), null);
+        network.run(sender, receiver, () -> !received.files.isEmpty());
+
+        assertTrue(corrupted[0]);
+        assertTrue(network.retries().contains(corruptOffset), "retries: " + network.retries());
+        assertArrayEquals(data, Files.readAllBytes(received.files.get(0).toPath()));
+    }
+
+    @Test
+    void reconnectResumesFromTheReceiversOffset() throws Exception {
+        Network network = new Network();
+        Recorder received = new Recorder();
+        ChunkedFileTransfer sender = network.sender();
+        ChunkedFileTransfer receiver = network.receiver(received);
+        byte[] data = randomBytes(6 * ChunkedFileTransfer.CHUNK_SIZE + 5);
+        String sha256 = BlobCache.sha256(data);
+
+        sender.send("t1", "alice", "bob", MessageType.FILE, "backup.zip",
+                ChunkedFileTransfer.bytesSource(data), sha256);
+        network.run(sender, receiver, () -> received.incomingBytes >= 2L * ChunkedFileTransfer.CHUNK_SIZE);
+
+        // The connection drops: whatever was in flight is lost
+        network.connected = false;
+        network.toReceiver.clear();
+        network.toSender.clear();
+        long held = received.incomingBytes;
+        network.connected = true;
+        network.chunkOffsets.clear();
+        sender.resumeAll();
+        receiver.resumeAll();
+        network.run(sender, receiver, () -> !received.files.isEmpty());
+
+        assertTrue(held > 0);
+        for (long offset : network.chunkOffsets) {
+            assertTrue(offset >= held, "chunk at " + offset + " was already held up to " + held);
+        }
+        assertArrayEquals(data, Files.readAllBytes(received.files.get(0).toPath()));
+        assertTrue(received.failures.isEmpty());
+    }
+
+    @Test
+    void cancelWhileHashingSendsNothing() throws Exception {
+        Network network = new Network();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ChunkedFileTransfer sender = new ChunkedFileTransfer(
+                Files.createTempDirectory("transfer-sender").toFile(), network::toReceiver, executor);
+        Recorder events = new Recorder();
+        sender.setListener(events);
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        byte[] data = randomBytes(4 * ChunkedFileTransfer.CHUNK_SIZE);
+        ChunkedFileTransfer.Source source = new ChunkedFileTransfer.Source() {
+            @Override
+            public long length() {
+                return data.length;
+            }
+
+            @Override
+            public InputStream open(long offset) {
+                return new BlockingInput(data, reading, release);
+            }
+        };
+        Message reference = new Message.Builder().senderId("alice").receiverId("bob")
+                .type(MessageType.IMAGE).fileName("photo.jpg").build();
+
+        String transferId = sender.sendAttachment(reference, source);
+        assertTrue(reading.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(sender.isActive(transferId));
+        sender.cancel(transferId);
+        assertFalse(sender.isActive(transferId));
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        assertTrue(network.toReceiver.isEmpty());
+        assertTrue(events.failures.isEmpty());
+        assertFalse(sender.isActive(transferId));
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static Message copyWithData(Message message, byte[] data) {
+        return new Message.Builder()
+                .id(message.getId())
+                .senderId(message.getSenderId())
+                .receiverId(message.getReceiverId())
+                .type(message.getType())
+                .headers(message.getHeaders())
+                .data(data)
+                .build();
+    }
+
+    /**
+     * Both directions of a connection between a sender and a receiver, pumped by the test
+     * thread, which plays each side's reading thread
+     */
+    private static final class Network {
+        final BlockingQueue<Message> toReceiver = new LinkedBlockingQueue<>();
+        final BlockingQueue<Message> toSender = new LinkedBlockingQueue<>();
+        // Offsets of the chunks the receiver was handed
+        final List<Long> chunkOffsets = new CopyOnWriteArrayList<>();
+        final List<Message> resumes = new ArrayList<>();
+        volatile boolean connected = true;
+        volatile UnaryOperator<Message> tamper = UnaryOperator.identity();
+        File receiverDir;
+
+        ChunkedFileTransfer sender() throws IOException {
+            return new ChunkedFileTransfer(Files.createTempDirectory("transfer-sender").toFile(),
+                    this::toReceiver, task -> {
+                        Thread pump = new Thread(task, "transfer-test-pump");
+                        pump.setDaemon(true);
+                        pump.start();
+                    });
+        }
+
+        ChunkedFileTransfer receiver(Recorder recorder) throws IOException {
+            receiverDir = Files.createTempDirectory("transfer-receiver").toFile();
+            ChunkedFileTransfer receiver = new ChunkedFileTransfer(receiverDir, this::toSender, Runnable::run);
+            receiver.setListener(recorder);
+            return receiver;
+        }
+
+        void toReceiver(Message message) throws IOException {
+            if (!connected) {
+                throw new IOException("Not connected");
+            }
+            toReceiver.add(tamper.apply(message));
+        }
+
+        void toSender(Message message) throws IOException {
+            if (!connected) {
+                throw new IOException("Not connected");
+            }
+            toSender.add(message);
+        }
+
+        /**
+         * Offsets the receiver asked the sender to rewind to
+         */
+        List<String> retries() {
+            List<String> offsets = new ArrayList<>();
+            for (Message resume : resumes) {
+                if ("true".equals(resume.getHeader(ChunkedFileTransfer.HEADER_RETRY))) {
+                    offsets.add(resume.getHeader(ChunkedFileTransfer.HEADER_OFFSET));
+                }
+            }
+            return offsets;
+        }
+
+        void run(ChunkedFileTransfer sender, ChunkedFileTransfer receiver, BooleanSupplier until)
+                throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!until.getAsBoolean()) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Transfer did not get there in time");
+                }
+                Message reply = toSender.poll();
+                if (reply != null) {
+                    resumes.add(reply);
+                    sender.handleMessage(reply);
+                }
+                Message message = toReceiver.poll(1, TimeUnit.MILLISECONDS);
+                if (message != null) {
+                    if (message.getType() == MessageType.FILE_CHUNK) {
+                        chunkOffsets.add(Long.parseLong(message.getHeader(ChunkedFileTransfer.HEADER_OFFSET)));
+                    }
+                    receiver.handleMessage(message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Listener keeping what it was told
+     */
+    private static final class Recorder implements ChunkedFileTransfer.Listener {
+        final List<Message> summaries = new CopyOnWriteArrayList<>();
+        final List<File> files = new CopyOnWriteArrayList<>();
+        final List<String> failures = new CopyOnWriteArrayList<>();
+        volatile long incomingBytes;
+
+        @Override
+        public void onProgress(String transferId, long transferred, long total, boolean incoming) {
+            if (incoming) {
+                incomingBytes = transferred;
+            }
+        }
+
+        @Override
+        public void onReceived(Message summary, File file) {
+            summaries.add(summary);
+            files.add(file);
+        }
+
+        @Override
+        public void onFailed(String transferId, IOException error) {
+            failures.add(transferId);
+        }
+    }
+
+    /**
+     * Stream whose first read waits until the test lets it go
+     */
+    private static final class BlockingInput extends ByteArrayInputStream {
+        private final CountDownLatch reading;
+        private final CountDownLatch release;
+
+        BlockingInput(byte[] data, CountDownLatch reading, CountDownLatch release) {
+            super(data);
+            this.reading = reading;
+            this.release = release;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            reading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.read(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InboundAcksTest {
+
+    @Test
+    void countsEveryFrameRead() {
+        InboundAcks acks = new InboundAcks();
+        acks.accept(text());
+        acks.accept(Acks.ack("server", "alice", 0));
+        acks.accept(text());
+
+        assertEquals(3, acks.piggyback());
+    }
+
+    @Test
+    void dropsATrackedMessageSeenBefore() {
+        InboundAcks acks = new InboundAcks();
+        Message message = text();
+
+        assertTrue(acks.accept(message));
+        assertFalse(acks.accept(message));
+        // The duplicate was still read, so it still counts towards the acknowledgement
+        assertEquals(2, acks.piggyback());
+    }
+
+    @Test
+    void neverDropsUntrackedMessages() {
+        InboundAcks acks = new InboundAcks();
+        Message presence = new Message.Builder().id("same").senderId("bob").type(MessageType.PRESENCE).build();
+
+        assertTrue(acks.accept(presence));
+        assertTrue(acks.accept(presence));
+    }
+
+    @Test
+    void dueOnlyWhenSomethingWasReadSinceTheLastAck() {
+        InboundAcks acks = new InboundAcks();
+        assertEquals(-1, acks.due());
+
+        acks.accept(text());
+        assertEquals(1, acks.due());
+        assertEquals(-1, acks.due());
+
+        acks.accept(text());
+        assertEquals(2, acks.piggyback());
+        assertEquals(-1, acks.due());
+    }
+
+    @Test
+    void resetStartsCountingAgainButRemembersIds() {
+        InboundAcks acks = new InboundAcks();
+        Message message = text();
+        acks.accept(message);
+        acks.accept(text());
+
+        assertEquals(2, acks.reset());
+        assertEquals(-1, acks.due());
+        // A redelivery on the new connection is counted and dropped
+        assertFalse(acks.accept(message));
+        assertEquals(1, acks.due());
+    }
+
+    private static Message text() {
+        return new Message.Builder().senderId("bob").receiverId("alice").type(MessageType.TEXT).content("hi").build();
+    }
+}
@@ -0,0 +1,86 @@
+package com.messaging.protocol;
+
+import com.messaging.models.User;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PresenceViewTest {
+
+    @Test
+    void largeSnapshotIsSplitIntoBoundedPages() throws IOException {
+        List<PresenceUpdate> pages = PresenceUpdate.snapshotPages(7, users(2 * PresenceUpdate.SNAPSHOT_PAGE_USERS + 1));
+
+        assertEquals(3, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            PresenceUpdate page = PresenceUpdate.fromMessage(pages.get(i).toMessage());
+            assertEquals(7, page.getVersion());
+            assertTrue(page.isSnapshot());
+            assertEquals(i, page.getPage());
+            assertEquals(3, page.getPageCount());
+        }
+        assertEquals(1, pages.get(2).getJoined().size());
+    }
+
+    @Test
+    void emptySetIsOneEmptyPage() {
+        List<PresenceUpdate> pages = PresenceUpdate.snapshotPages(1, Collections.<User>emptyList());
+
+        assertEquals(1, pages.size());
+        assertTrue(pages.get(0).isLastPage());
+    }
+
+    @Test
+    void setIsReplacedOnlyOnceTheLastPageArrives() {
+        PresenceView view = new PresenceView();
+        view.apply(PresenceUpdate.snapshot(1, users(1)));
+        List<PresenceUpdate> pages = PresenceUpdate.snapshotPages(5, users(PresenceUpdate.SNAPSHOT_PAGE_USERS + 10));
+
+        assertTrue(view.apply(pages.get(0)));
+        assertEquals(1, view.getOnlineCount());
+        assertEquals(1, view.getVersion());
+
+        assertTrue(view.apply(pages.get(1)));
+        assertEquals(PresenceUpdate.SNAPSHOT_PAGE_USERS + 10, view.getOnlineCount());
+        assertEquals(5, view.getVersion());
+    }
+
+    @Test
+    void missingPageAsksForANewSnapshot() {
+        PresenceView view = new PresenceView();
+        List<PresenceUpdate> pages = PresenceUpdate.snapshotPages(5, users(3 * PresenceUpdate.SNAPSHOT_PAGE_USERS));
+
+        assertTrue(view.apply(pages.get(0)));
+        assertFalse(view.apply(pages.get(2)));
+        assertEquals(-1, view.getVersion());
+    }
+
+    @Test
+    void deltaAppliesOnTopOfAPagedSnapshot() {
+        PresenceView view = new PresenceView();
+        for (PresenceUpdate page : PresenceUpdate.snapshotPages(5, users(PresenceUpdate.SNAPSHOT_PAGE_USERS + 1))) {
+            view.apply(page);
+        }
+
+        assertTrue(view.apply(new PresenceUpdate(6, false, null, Collections.singletonList("user-0"))));
+        assertFalse(view.isOnline("user-0"));
+        assertFalse(view.apply(new PresenceUpdate(8, false, null, null)));
+    }
+
+    private static List<User> users(int count) {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            User user = new User("user-" + i, "User " + i);
+            user.setOnline(true);
+            users.add(user);
+        }
+        return users;
+    }
+}
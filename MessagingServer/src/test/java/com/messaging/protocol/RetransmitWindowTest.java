@@ -0,0 +1,80 @@
+package com.messaging.protocol;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetransmitWindowTest {
+
+    @Test
+    void stampsConsecutiveSequencesInOneSession() {
+        RetransmitWindow window = new RetransmitWindow(8);
+        Message original = text("hello");
+
+        Message first = window.stamp(original);
+        Message second = window.stamp(text("again"));
+
+        assertEquals(1, Acks.seqOf(first));
+        assertEquals(2, Acks.seqOf(second));
+        assertEquals(window.getSession(), first.getHeader(Acks.HEADER_SESSION));
+        assertEquals(window.getSession(), second.getHeader(Acks.HEADER_SESSION));
+        assertEquals(original.getId(), first.getId());
+        assertNull(original.getHeader(Acks.HEADER_SEQ));
+    }
+
+    @Test
+    void ackDropsEverythingUpToItsSequence() {
+        RetransmitWindow window = new RetransmitWindow(8);
+        for (int i = 0; i < 5; i++) {
+            window.stamp(text("m" + i));
+        }
+
+        window.onAck(3);
+        assertEquals(2, window.size());
+        assertEquals(4, Acks.seqOf(window.pending().get(0)));
+
+        // A late, lower acknowledgement changes nothing
+        window.onAck(1);
+        assertEquals(2, window.size());
+    }
+
+    @Test
+    void pendingKeepsUnacknowledgedMessagesInOrderForResend() {
+        RetransmitWindow window = new RetransmitWindow(8);
+        Message first = window.stamp(text("first"));
+        Message second = window.stamp(text("second"));
+
+        List<Message> pending = window.pending();
+        assertEquals(2, pending.size());
+        assertEquals(first.getId(), pending.get(0).getId());
+        assertEquals(second.getId(), pending.get(1).getId());
+
+        window.onAck(2);
+        assertTrue(window.pending().isEmpty());
+    }
+
+    @Test
+    void fullWindowRefusesUntilAnAckMakesRoom() {
+        RetransmitWindow window = new RetransmitWindow(1);
+        window.stamp(text("first"));
+
+        assertFalse(window.hasRoom());
+        assertNull(window.stamp(text("second")));
+        assertEquals(1, window.size());
+
+        window.onAck(1);
+        assertTrue(window.hasRoom());
+        assertEquals(2, Acks.seqOf(window.stamp(text("second"))));
+    }
+
+    private static Message text(String content) {
+        return new Message.Builder().senderId("alice").receiverId("bob").type(MessageType.TEXT).content(content).build();
+    }
+}
@@ -0,0 +1,204 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import com.messaging.protocol.Acks;
+import com.messaging.protocol.ChunkedFileTransfer;
+import com.messaging.protocol.WireFormat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionAcksTest {
+    private static final int WINDOW = 3;
+
+    private static Path storeDir;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        storeDir = Files.createTempDirectory("acks-test");
+        System.setProperty("messaging.store.dir", storeDir.resolve("store").toString());
+        System.setProperty("messaging.blob.dir", storeDir.resolve("blob").toString());
+        System.setProperty("messaging.relay.spoolDir", storeDir.resolve("spool").toString());
+        System.setProperty("messaging.ack.window", Integer.toString(WINDOW));
+    }
+
+    @AfterAll
+    static void restore() {
+        System.clearProperty("messaging.ack.window");
+    }
+
+    @Test
+    void welcomeIsTheFirstFrameAndCarriesAResumeToken() {
+        FakeConnection connection = new FakeConnection();
+        ConnectionAcks acks = new ConnectionAcks(connection, hello(user()));
+        acks.start();
+
+        assertEquals(1, connection.sent.size());
+        Message welcome = connection.sent.get(0);
+        assertEquals(MessageType.ACK, welcome.getType());
+        assertNotNull(welcome.getHeader(Acks.HEADER_RESUME));
+        assertEquals(0, Acks.ackOf(welcome));
+    }
+
+    @Test
+    void clientWithoutAcksIsNeitherWelcomedNorHeldBack() {
+        FakeConnection connection = new FakeConnection();
+        Message init = new Message.Builder().senderId(user()).type(MessageType.TEXT).content("CONNECT").build();
+        ConnectionAcks acks = new ConnectionAcks(connection, init);
+        acks.start();
+
+        for (int i = 0; i < WINDOW * 2; i++) {
+            acks.onWritten(EncodedMessage.of(text("m" + i)));
+        }
+        assertTrue(connection.sent.isEmpty());
+        assertTrue(acks.hasRoom());
+    }
+
+    @Test
+    void fullWindowHoldsTheWriterUntilTheClientAcks() {
+        AtomicInteger opened = new AtomicInteger();
+        ConnectionAcks acks = new ConnectionAcks(new FakeConnection(), hello(user()), opened::incrementAndGet);
+        acks.start();
+
+        for (int i = 0; i < WINDOW; i++) {
+            assertTrue(acks.hasRoom());
+            acks.onWritten(EncodedMessage.of(text("m" + i)));
+        }
+        assertFalse(acks.hasRoom());
+        assertEquals(0, opened.get());
+
+        // Frame 1 is acknowledged, which makes room for one more
+        assertFalse(acks.onReceived(Acks.ack(user(), ChunkedFileTransfer.SERVER_ID, 1)));
+        assertTrue(acks.hasRoom());
+        assertEquals(1, opened.get());
+    }
+
+    @Test
+    void untrackedFramesDoNotFillTheWindow() {
+        ConnectionAcks acks = new ConnectionAcks(new FakeConnection(), hello(user()));
+        acks.start();
+
+        for (int i = 0; i < WINDOW * 2; i++) {
+            acks.onWritten(EncodedMessage.of(Acks.ack(ChunkedFileTransfer.SERVER_ID, "someone", i)));
+        }
+        assertTrue(acks.hasRoom());
+    }
+
+    @Test
+    void retransmitIsAcknowledgedButNotRoutedTwice() {
+        String userId = user();
+        ConnectionAcks acks = new ConnectionAcks(new FakeConnection(), hello(userId));
+        acks.start();
+
+        Message first = sequenced(userId, "session-a", 1);
+        assertTrue(acks.onReceived(first));
+        acks.onRouted(first);
+        assertFalse(acks.onReceived(first));
+
+        Message second = sequenced(userId, "session-a", 2);
+        assertTrue(acks.onReceived(second));
+        acks.onRouted(second);
+        assertEquals(2, DeliveryTracker.getInstance().highestSeq(userId, "session-a"));
+    }
+
+    @Test
+    void closeParksUnacknowledgedFramesForResume() {
+        String userId = user();
+        FakeConnection connection = new FakeConnection();
+        ConnectionAcks acks = new ConnectionAcks(connection, hello(userId));
+        acks.start();
+        String token = connection.sent.get(0).getHeader(Acks.HEADER_RESUME);
+
+        for (int i = 1; i <= WINDOW; i++) {
+            acks.onWritten(EncodedMessage.of(text("m" + i)));
+        }
+        acks.onReceived(Acks.ack(userId, ChunkedFileTransfer.SERVER_ID, 1));
+        EncodedMessage queued = EncodedMessage.of(text("queued"));
+        connection.queue.offer(queued);
+        queued.release();
+        acks.close();
+
+        // The client read frame 2 before the drop; frame 3 and the queued one are missing
+        List<Message> gap = DeliveryTracker.getInstance().resume(userId, token, 2);
+        assertEquals(List.of("m3", "queued"), contents(gap));
+    }
+
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    private static String user() {
+        return "acks-user-" + USERS.incrementAndGet();
+    }
+
+    private static Message hello(String userId) {
+        return Acks.hello(userId, UUID.randomUUID().toString(), null, 0);
+    }
+
+    private static Message text(String content) {
+        return new Message.Builder().senderId("peer").receiverId("me").type(MessageType.TEXT).content(content).build();
+    }
+
+    private static Message sequenced(String userId, String session, long seq) {
+        return new Message.Builder()
+                .senderId(userId)
+                .receiverId("peer")
+                .type(MessageType.TEXT)
+                .content("seq " + seq)
+                .header(Acks.HEADER_SESSION, session)
+                .header(Acks.HEADER_SEQ, Long.toString(seq))
+                .build();
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        List<String> contents = new ArrayList<>();
+        for (Message message : messages) {
+            contents.add(message.getContent());
+        }
+        return contents;
+    }
+
+    /**
+     * Records what is sent instead of writing it anywhere
+     */
+    private static final class FakeConnection implements ClientConnection {
+        private final List<Message> sent = new ArrayList<>();
+        private final OutboundQueue queue = new OutboundQueue("fake", 16, OverflowPolicy.DISCONNECT);
+
+        @Override
+        public String getUserId() {
+            return null;
+        }
+
+        @Override
+        public void send(EncodedMessage message) {
+            sent.add(message.getMessage());
+        }
+
+        @Override
+        public WireFormat getWireFormat() {
+            return WireFormat.BINARY;
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return queue;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.messaging.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTest {
+    private static final int VIRTUAL_NODES = 128;
+    private static final int KEYS = 20_000;
+    private static final List<String> NODES = Arrays.asList("node-1", "node-2", "node-3", "node-4");
+
+    @Test
+    void ownerDoesNotDependOnTheOrderNodesAreListedIn() {
+        HashRing ring = new HashRing(NODES, VIRTUAL_NODES);
+        HashRing reversed = new HashRing(Arrays.asList("node-4", "node-3", "node-2", "node-1"), VIRTUAL_NODES);
+
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(ring.ownerOf(key(i)), reversed.ownerOf(key(i)));
+        }
+    }
+
+    @Test
+    void removingANodeOnlyMovesThatNodesKeys() {
+        HashRing ring = new HashRing(NODES, VIRTUAL_NODES);
+        HashRing survivors = new HashRing(Arrays.asList("node-1", "node-2", "node-4"), VIRTUAL_NODES);
+        Map<String, Integer> inherited = new HashMap<>();
+
+        for (int i = 0; i < KEYS; i++) {
+            String before = ring.ownerOf(key(i));
+            String after = survivors.ownerOf(key(i));
+            if (before.equals("node-3")) {
+                inherited.merge(after, 1, Integer::sum);
+            } else {
+                assertEquals(before, after, "key " + key(i) + " moved off a surviving node");
+            }
+        }
+        // The lost node's keys are spread over every survivor rather than dumped on one
+        assertEquals(3, inherited.size(), "inherited: " + inherited);
+    }
+
+    @Test
+    void addingANodeOnlyTakesKeysForItself() {
+        HashRing ring = new HashRing(NODES, VIRTUAL_NODES);
+        HashRing grown = new HashRing(Arrays.asList("node-1", "node-2", "node-3", "node-4", "node-5"), VIRTUAL_NODES);
+        int taken = 0;
+
+        for (int i = 0; i < KEYS; i++) {
+            String before = ring.ownerOf(key(i));
+            String after = grown.ownerOf(key(i));
+            if (!before.equals(after)) {
+                assertEquals("node-5", after);
+                taken++;
+            }
+        }
+        assertTrue(taken > 0);
+    }
+
+    @Test
+    void keysAreSpreadRoughlyEvenly() {
+        HashRing ring = new HashRing(NODES, VIRTUAL_NODES);
+        Map<String, Integer> counts = new HashMap<>();
+
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(ring.ownerOf(key(i)), 1, Integer::sum);
+        }
+        assertEquals(NODES.size(), counts.size());
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            // A quarter each would be 25%; allow what 128 points per node give in practice
+            double share = (double) count.getValue() / KEYS;
+            assertTrue(share > 0.15 && share < 0.35, count.getKey() + " owns " + share);
+        }
+    }
+
+    @Test
+    void emptyRingOwnsNothing() {
+        HashRing ring = new HashRing(Collections.emptyList(), VIRTUAL_NODES);
+
+        assertNull(ring.ownerOf("alice"));
+        assertTrue(ring.getNodes().isEmpty());
+    }
+
+    private static String key(int i) {
+        return "user-" + i;
+    }
+}
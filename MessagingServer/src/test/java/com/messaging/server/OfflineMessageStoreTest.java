@@ -0,0 +1,185 @@
+package com.messaging.server;
+
+import com.messaging.models.Message;
+import com.messaging.models.MessageType;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OfflineMessageStoreTest {
+    // A few records per segment, so a handful of messages spans several of them
+    private static final int SEGMENT_BYTES = 256;
+    // Long enough that only the explicit sync() calls below ever run
+    private static final int SYNC_MILLIS = 600_000;
+    private static final String USER = "bob";
+
+    private static Path root;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        root = Files.createTempDirectory("offline-store-test");
+    }
+
+    @Test
+    void appendsRollOverIntoSegmentsNamedAfterTheirFirstOffset() throws IOException {
+        Path directory = newDirectory();
+        OfflineMessageStore store = open(directory);
+        appendTexts(store, 0, 20);
+
+        List<Long> bases = segmentBases(directory);
+        assertTrue(bases.size() > 1, "expected several segments, got " + bases);
+        assertEquals(0L, bases.get(0));
+        for (int i = 1; i < bases.size(); i++) {
+            assertTrue(bases.get(i) > bases.get(i - 1));
+        }
+        assertEquals(20, store.getPendingCount(USER));
+        store.close();
+    }
+
+    @Test
+    void replayIsOldestFirstAcrossSegments() throws IOException {
+        OfflineMessageStore store = open(newDirectory());
+        appendTexts(store, 0, 20);
+
+        List<EncodedMessage> replayed = replay(store);
+        assertEquals(contents(0, 20), contents(replayed));
+        // Acknowledging a prefix leaves the rest, still in order, for the next replay
+        for (int i = 0; i < 7; i++) {
+            replayed.get(i).written();
+        }
+        assertEquals(contents(7, 20), contents(replay(store)));
+        assertEquals(13, store.getPendingCount(USER));
+        store.close();
+    }
+
+    @Test
+    void acknowledgementsReachTheDiskOnlyWithTheBatchedSync() throws IOException {
+        Path directory = newDirectory();
+        OfflineMessageStore store = open(directory);
+        appendTexts(store, 0, 10);
+        List<EncodedMessage> replayed = replay(store);
+        for (int i = 0; i < 4; i++) {
+            replayed.get(i).written();
+        }
+
+        assertFalse(Files.exists(directory.resolve(USER).resolve("ack")));
+        OfflineMessageStore beforeSync = open(directory);
+        assertEquals(contents(0, 10), contents(replay(beforeSync)));
+        beforeSync.close();
+
+        store.sync();
+        assertTrue(Files.exists(directory.resolve(USER).resolve("ack")));
+        OfflineMessageStore afterSync = open(directory);
+        assertEquals(contents(4, 10), contents(replay(afterSync)));
+        afterSync.close();
+        store.close();
+    }
+
+    @Test
+    void restartResumesFromTheAckFileAndKeepsAppendingInOrder() throws IOException {
+        Path directory = newDirectory();
+        OfflineMessageStore store = open(directory);
+        appendTexts(store, 0, 10);
+        List<EncodedMessage> replayed = replay(store);
+        for (int i = 0; i < 6; i++) {
+            replayed.get(i).written();
+        }
+        store.close();
+
+        OfflineMessageStore restarted = open(directory);
+        assertTrue(restarted.hasInbox(USER));
+        appendTexts(restarted, 10, 13);
+        assertEquals(7, restarted.getPendingCount(USER));
+        assertEquals(contents(6, 13), contents(replay(restarted)));
+        restarted.close();
+    }
+
+    @Test
+    void compactionDeletesOnlyFullyAcknowledgedSegments() throws IOException {
+        Path directory = newDirectory();
+        OfflineMessageStore store = open(directory);
+        appendTexts(store, 0, 20);
+        List<Long> bases = segmentBases(directory);
+        List<EncodedMessage> replayed = replay(store);
+
+        // Everything in the first segment, and one record short of the second
+        long secondEnd = bases.get(2);
+        for (int i = 0; i < secondEnd - 1; i++) {
+            replayed.get(i).written();
+        }
+        store.sync();
+        assertEquals(bases.subList(1, bases.size()), segmentBases(directory));
+
+        for (EncodedMessage message : replayed) {
+            message.written();
+        }
+        store.sync();
+        assertTrue(segmentBases(directory).isEmpty());
+        assertEquals(0, store.getPendingCount(USER));
+
+        // A drained inbox starts its next segment where the old ones left off
+        appendTexts(store, 20, 21);
+        assertEquals(List.of(20L), segmentBases(directory));
+        assertEquals(contents(20, 21), contents(replay(store)));
+        store.close();
+    }
+
+    private static OfflineMessageStore open(Path directory) {
+        return new OfflineMessageStore(directory, SEGMENT_BYTES, SYNC_MILLIS);
+    }
+
+    private static Path newDirectory() {
+        return root.resolve(UUID.randomUUID().toString());
+    }
+
+    private static void appendTexts(OfflineMessageStore store, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            store.append(USER, new Message.Builder()
+                    .senderId("alice").receiverId(USER).type(MessageType.TEXT).content("m" + i).build());
+        }
+    }
+
+    private static List<EncodedMessage> replay(OfflineMessageStore store) throws IOException {
+        List<EncodedMessage> replayed = new ArrayList<>();
+        store.replay(USER, replayed::add);
+        return replayed;
+    }
+
+    private static List<String> contents(List<EncodedMessage> messages) {
+        return messages.stream().map(message -> message.getMessage().getContent()).collect(Collectors.toList());
+    }
+
+    private static List<String> contents(int from, int to) {
+        List<String> contents = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            contents.add("m" + i);
+        }
+        return contents;
+    }
+
+    private static List<Long> segmentBases(Path directory) throws IOException {
+        Path inbox = directory.resolve(USER);
+        if (!Files.isDirectory(inbox)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(inbox)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".log"))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - ".log".length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.messaging.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+    private static final long TICK_MILLIS = 10;
+    private static final int BUCKETS = 8;
+    private static final long TURN_MILLIS = TICK_MILLIS * BUCKETS;
+    // Generous bound on how late a task may run on a busy test machine
+    private static final long SLACK_MILLIS = 2_000;
+
+    @Test
+    void deadlineExactlyOneTurnOutWaitsForTheWholeTurn() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("wheel-test", TICK_MILLIS, TimeUnit.MILLISECONDS, BUCKETS);
+        try {
+            // Let the worker get going, so the timeout lands in the bucket it is about to expire
+            Thread.sleep(3 * TICK_MILLIS);
+            AtomicLong ranAt = new AtomicLong();
+            CountDownLatch ran = new CountDownLatch(1);
+            long scheduledAt = System.nanoTime();
+            wheel.schedule(() -> {
+                ranAt.set(System.nanoTime());
+                ran.countDown();
+            }, TURN_MILLIS, TimeUnit.MILLISECONDS);
+
+            assertTrue(ran.await(TURN_MILLIS + SLACK_MILLIS, TimeUnit.MILLISECONDS));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(ranAt.get() - scheduledAt);
+            assertTrue(elapsedMillis >= TURN_MILLIS, "ran after " + elapsedMillis + " ms");
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    void deadlinesSeveralTurnsOutRunInOrderAndNeverEarly() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("wheel-test", TICK_MILLIS, TimeUnit.MILLISECONDS, BUCKETS);
+        try {
+            long[] delays = {TICK_MILLIS, TURN_MILLIS - TICK_MILLIS, TURN_MILLIS + TICK_MILLIS, 2 * TURN_MILLIS};
+            long[] ranAfter = new long[delays.length];
+            CountDownLatch ran = new CountDownLatch(delays.length);
+            long scheduledAt = System.nanoTime();
+            for (int i = 0; i < delays.length; i++) {
+                int index = i;
+                wheel.schedule(() -> {
+                    ranAfter[index] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduledAt);
+                    ran.countDown();
+                }, delays[i], TimeUnit.MILLISECONDS);
+            }
+
+            assertTrue(ran.await(2 * TURN_MILLIS + SLACK_MILLIS, TimeUnit.MILLISECONDS));
+            for (int i = 0; i < delays.length; i++) {
+                assertTrue(ranAfter[i] >= delays[i], "delay " + delays[i] + " ran after " + ranAfter[i] + " ms");
+                if (i > 0) {
+                    assertTrue(ranAfter[i] >= ranAfter[i - 1]);
+                }
+            }
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    void overdueTimeoutsRunOnTheNextTick() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("wheel-test", TICK_MILLIS, TimeUnit.MILLISECONDS, BUCKETS);
+        try {
+            CountDownLatch ran = new CountDownLatch(2);
+            wheel.schedule(ran::countDown, 0, TimeUnit.MILLISECONDS);
+            wheel.schedule(ran::countDown, -5, TimeUnit.SECONDS);
+
+            // Well within one turn, not after a trip round the wheel
+            assertTrue(ran.await(TURN_MILLIS + SLACK_MILLIS, TimeUnit.MILLISECONDS));
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    void timeoutThatFellDueWhileTheWorkerWasBusyRunsAsSoonAsItIsFree() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("wheel-test", TICK_MILLIS, TimeUnit.MILLISECONDS, BUCKETS);
+        try {
+            CountDownLatch busy = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            wheel.schedule(() -> {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+            assertTrue(busy.await(SLACK_MILLIS, TimeUnit.MILLISECONDS));
+
+            CountDownLatch ran = new CountDownLatch(1);
+            wheel.schedule(ran::countDown, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            // Hold the worker for more than two turns, well past the deadline
+            Thread.sleep(2 * TURN_MILLIS + 3 * TICK_MILLIS);
+            long releasedAt = System.nanoTime();
+            release.countDown();
+
+            assertTrue(ran.await(SLACK_MILLIS, TimeUnit.MILLISECONDS));
+            long lateMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - releasedAt);
+            assertTrue(lateMillis < TURN_MILLIS + SLACK_MILLIS / 2, "ran " + lateMillis + " ms after the worker was free");
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    void cancelledTimeoutsNeverRun() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("wheel-test", TICK_MILLIS, TimeUnit.MILLISECONDS, BUCKETS);
+        try {
+            AtomicInteger runs = new AtomicInteger();
+            // Cancelled before the worker moved it into its bucket
+            wheel.schedule(runs::incrementAndGet, TICK_MILLIS, TimeUnit.MILLISECONDS).cancel();
+            // Cancelled while already sitting in its bucket
+            TimingWheel.Timeout placed = wheel.schedule(runs::incrementAndGet, TURN_MILLIS, TimeUnit.MILLISECONDS);
+            Thread.sleep(3 * TICK_MILLIS);
+            placed.cancel();
+            // A later timeout that does run shows the wheel has passed both deadlines
+            CountDownLatch after = new CountDownLatch(1);
+            wheel.schedule(after::countDown, 2 * TURN_MILLIS, TimeUnit.MILLISECONDS);
+
+            assertTrue(after.await(2 * TURN_MILLIS + SLACK_MILLIS, TimeUnit.MILLISECONDS));
+            assertEquals(0, runs.get());
+        } finally {
+            wheel.stop();
+        }
+    }
+}